@@ -0,0 +1,21 @@
+package com.botifier.database;
+
+/**
+ * Information stored in the benchmark items, a few fields of the common kinds
+ */
+public class BenchmarkItem {
+	public String name;
+	public int level;
+	public double weight;
+	public boolean tradable;
+
+	public BenchmarkItem() {
+	}
+
+	public BenchmarkItem(int i) {
+		this.name = "item-"+i;
+		this.level = i % 100;
+		this.weight = (i % 1000) / 10.0;
+		this.tradable = (i & 1) == 0;
+	}
+}
@@ -0,0 +1,26 @@
+package com.botifier.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks, writing the results as JSON to jmh-result.json unless -rf/-rff are given,
+ * so runs of different builds can be compared by a script.
+ * Every other argument is passed on to JMH, e.g. a benchmark name pattern or -p items=1000.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		List<String> a = new ArrayList<String>(Arrays.asList(args));
+		if (!a.contains("-rf")) {
+			a.add("-rf");
+			a.add("json");
+		}
+		if (!a.contains("-rff")) {
+			a.add("-rff");
+			a.add("jmh-result.json");
+		}
+		org.openjdk.jmh.Main.main(a.toArray(new String[0]));
+	}
+}
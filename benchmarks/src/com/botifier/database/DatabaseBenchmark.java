@@ -0,0 +1,105 @@
+package com.botifier.database;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Single operations against a loaded flat file database of 1k, 100k and 1M items
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class DatabaseBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	public int items;
+
+	private Database db;
+	private DatabaseUser[] users;
+	private DatabaseObject<?>[] loaded;
+	private DatabaseObjectAdapter adapter;
+	private String[] names;
+	private UUID[] uuids;
+	private final StringWriter out = new StringWriter();
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		Fixtures.configure(false);
+		db = new Database();
+		users = Fixtures.users(db, items);
+		List<DatabaseObject<?>> created = Fixtures.items(db, users, items);
+		loaded = created.toArray(new DatabaseObject<?>[0]);
+		adapter = new DatabaseObjectAdapter(db);
+		names = new String[users.length];
+		uuids = new UUID[users.length];
+		for (int i = 0; i < users.length; i++) {
+			//Mixed case, lookups ignore it
+			names[i] = (i & 1) == 0 ? Fixtures.userName(i) : Fixtures.userName(i).toUpperCase();
+			uuids[i] = Fixtures.userUUID(i);
+		}
+	}
+
+	private int next(int bound) {
+		int i = next++;
+		if (next >= bound)
+			next = 0;
+		return i % bound;
+	}
+
+	@Benchmark
+	public DatabaseUser getUserByName() {
+		return db.getUser(names[next(names.length)]);
+	}
+
+	@Benchmark
+	public DatabaseUser getUserByUUID() {
+		return db.getUser(uuids[next(uuids.length)]);
+	}
+
+	/**
+	 * Moves items between neighbouring users, every item goes back and forth
+	 * @return boolean
+	 */
+	@Benchmark
+	public boolean transferObject() {
+		DatabaseObject<?> d = loaded[next(loaded.length)];
+		DatabaseUser owner = d.getOwner();
+		int i = (int) owner.getUUID().getLeastSignificantBits();
+		return owner.transferObject(users[(i + 1) % users.length], d);
+	}
+
+	@Benchmark
+	public String toJson() {
+		return loaded[next(loaded.length)].toJson();
+	}
+
+	@Benchmark
+	public int adapterWrite() throws IOException {
+		out.getBuffer().setLength(0);
+		adapter.write(new JsonWriter(out), loaded[next(loaded.length)]);
+		return out.getBuffer().length();
+	}
+}
@@ -0,0 +1,87 @@
+package com.botifier.database;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+import com.botifier.database.main.Config;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Builds the databases the benchmarks run against. Databases are used without start(), so nothing
+ * reads config.cfg or touches the GameItemDatabase folder of the working directory.
+ */
+final class Fixtures {
+
+	//Items given to each user, item_limit is lifted so this is only about spreading them out
+	static final int ITEMS_PER_USER = 1000;
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Sets the Config fields the benchmarks depend on
+	 * @param mongo boolean Whether to use MongoDB
+	 */
+	static void configure(boolean mongo) {
+		Config.useMongo = mongo;
+		Config.journalEnabled = false;
+		Config.writeBehindEnabled = false;
+		Config.item_limit = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Registers the users for a number of items, the UUIDs are the same every run
+	 * @param db Database To register in
+	 * @param items int Number of items that will be spread over them
+	 * @return DatabaseUser[]
+	 */
+	static DatabaseUser[] users(Database db, int items) {
+		DatabaseUser[] users = new DatabaseUser[Math.max(2, items / ITEMS_PER_USER)];
+		for (int i = 0; i < users.length; i++)
+			users[i] = db.registerUser("bench"+i, userUUID(i));
+		return users;
+	}
+
+	static UUID userUUID(int i) {
+		return new UUID(0x5EEDL, i);
+	}
+
+	static String userName(int i) {
+		return "bench"+i;
+	}
+
+	/**
+	 * Creates items spread round robin over the users
+	 * @param db Database To create in
+	 * @param users DatabaseUser[] Owners
+	 * @param n int Number of items
+	 * @return List<DatabaseObject<?>>
+	 */
+	static List<DatabaseObject<?>> items(Database db, DatabaseUser[] users, int n) {
+		List<DatabaseObject<?>> items = new ArrayList<DatabaseObject<?>>(n);
+		for (int i = 0; i < n; i++)
+			items.add(db.createItem(new BenchmarkItem(i), users[i % users.length]));
+		return items;
+	}
+
+	/**
+	 * Serializes items the way they are stored, one JSON object each
+	 * @param adapter DatabaseObjectAdapter Adapter to write with
+	 * @param items List<DatabaseObject<?>> Items to write
+	 * @return String[]
+	 * @throws Exception
+	 */
+	static String[] serialize(DatabaseObjectAdapter adapter, List<DatabaseObject<?>> items) throws Exception {
+		String[] out = new String[items.size()];
+		for (int i = 0; i < out.length; i++) {
+			StringWriter sw = new StringWriter();
+			adapter.write(new JsonWriter(sw), items.get(i));
+			out[i] = sw.toString();
+		}
+		return out;
+	}
+}
@@ -0,0 +1,83 @@
+package com.botifier.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and writing a whole items.json of 1k, 100k or 1M items, in a temporary folder.
+ * write() is the work writeItemsFlatFile does, without its fixed GameItemDatabase folder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class FlatFileBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	public int items;
+
+	@Param({"false", "true"})
+	public boolean compact;
+
+	private File dir;
+	private File file;
+	private Database source;
+	private DatabaseObjectAdapter adapter;
+
+	//Fresh database for every load, with the users already known
+	private Database target;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Fixtures.configure(false);
+		dir = Files.createTempDirectory("gidb-bench").toFile();
+		file = new File(dir, "items.json");
+		source = new Database();
+		Fixtures.items(source, Fixtures.users(source, items), items);
+		adapter = new DatabaseObjectAdapter(source);
+		FlatFileItems.write(file, source.getLoadedItems().values(), adapter, compact, false);
+	}
+
+	@Setup(Level.Invocation)
+	public void freshTarget() {
+		target = new Database();
+		Fixtures.users(target, items);
+	}
+
+	@Benchmark
+	public int loadItemsFlatFile() throws IOException {
+		return target.loadItemsFlatFile(FlatFileItems.open(file));
+	}
+
+	@Benchmark
+	public int writeItemsFlatFile() throws IOException {
+		return FlatFileItems.write(new File(dir, "written.json"), source.getLoadedItems().values(), adapter, compact, false);
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanup() {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+}
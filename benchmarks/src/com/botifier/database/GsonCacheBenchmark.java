@@ -0,0 +1,77 @@
+package com.botifier.database;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * The serialization paths before and after Gson and the info type adapters were cached.
+ * The uncached variants build what every call used to build: a GsonBuilder, a Gson and a
+ * DatabaseObjectAdapter whose info type cache starts empty, so Class.forName and the
+ * reflective adapter lookup happen on each call again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GsonCacheBenchmark {
+
+	private Database db;
+	private DatabaseObject<?> item;
+	private DatabaseObjectAdapter cached;
+	private String infoJson;
+
+	@Setup
+	public void setup() throws IOException {
+		Fixtures.configure(false);
+		db = new Database();
+		List<DatabaseObject<?>> items = Fixtures.items(db, Fixtures.users(db, 2), 1);
+		item = items.get(0);
+		cached = new DatabaseObjectAdapter(db);
+		infoJson = cached.infoToJson(cached.infoAdapter(BenchmarkItem.class), item.getInformation());
+	}
+
+	@Benchmark
+	public String toJsonCached() {
+		return item.toJson();
+	}
+
+	@Benchmark
+	public String toJsonUncached() {
+		GsonBuilder gb = new GsonBuilder();
+		gb.registerTypeHierarchyAdapter(DatabaseObject.class, new DatabaseObjectAdapter(db));
+		return gb.create().toJson(item);
+	}
+
+	@Benchmark
+	public Object readInfoCached() throws Exception {
+		return cached.infoFromJson(cached.infoAdapter(BenchmarkItem.class.getName()), infoJson);
+	}
+
+	@Benchmark
+	public Object readInfoUncached() throws Exception {
+		Class<?> c = Class.forName(BenchmarkItem.class.getName());
+		JsonReader r = new JsonReader(new StringReader(infoJson));
+		r.setLenient(true);
+		return new Gson().fromJson(r, c);
+	}
+}
@@ -0,0 +1,109 @@
+package com.botifier.database;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.main.Config;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * The MongoDB paths against an in process stand in server, which speaks the wire protocol but keeps
+ * everything in memory. It measures the driver, codec and bulk batching work done here, not a real
+ * mongod's storage engine, so compare these numbers with each other rather than with production.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MongoBenchmark {
+
+	//Items read one by one per timed lookup batch
+	public static final int LOOKUPS = 1000;
+
+	@Param({"1000", "100000", "1000000"})
+	public int items;
+
+	private MongoServer server;
+	private Database source;
+	private UUID[] uuids;
+
+	//Fresh database for every invocation, nothing is loaded in it yet
+	private Database target;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		server = new MongoServer(new MemoryBackend());
+		InetSocketAddress address = server.bind();
+		Fixtures.configure(true);
+		Config.mongoIp = address.getHostString();
+		Config.mongoPort = address.getPort();
+
+		source = new Database();
+		source.getMongo().ensureIndexes();
+		List<DatabaseObject<?>> created = Fixtures.items(source, Fixtures.users(source, items), items);
+		source.markAllDirty();
+		source.writeUsersMongo();
+		source.writeItemsMongo();
+		uuids = new UUID[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++)
+			uuids[i] = created.get((int) ((long) i * items / LOOKUPS)).getUUID();
+	}
+
+	@Setup(Level.Invocation)
+	public void freshTarget() {
+		target = new Database();
+		source.markAllDirty();
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeTarget() {
+		target.getMongo().close();
+	}
+
+	@Benchmark
+	public long writeItemsMongo() {
+		return source.writeItemsMongo().getWritten();
+	}
+
+	@Benchmark
+	public int loadItemsMongo() {
+		target.loadItemsMongo();
+		return target.getLoadedItems().size();
+	}
+
+	@Benchmark
+	public int getObjectMongo() {
+		int found = 0;
+		for (UUID u : uuids)
+			if (target.getObjectMongo(u) != null)
+				found++;
+		return found;
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanup() {
+		source.getMongo().close();
+		server.shutdownNow();
+	}
+}
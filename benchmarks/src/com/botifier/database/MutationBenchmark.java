@@ -0,0 +1,98 @@
+package com.botifier.database;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Operations that grow the database. Each iteration starts from a fresh database of 1k, 100k or 1M
+ * items and times one batch of BATCH operations, divide the score by BATCH for a single one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MutationBenchmark {
+
+	//Operations per timed batch
+	public static final int BATCH = 10000;
+
+	@Param({"1000", "100000", "1000000"})
+	public int items;
+
+	private Database db;
+	private DatabaseUser[] users;
+	private DatabaseObjectAdapter adapter;
+	private final List<DatabaseObject<?>> ownerless = new ArrayList<DatabaseObject<?>>();
+	private String[] serialized;
+
+	@Setup(Level.Trial)
+	public void serialize() throws Exception {
+		Fixtures.configure(false);
+		//Items from another database, so reading them registers new UUIDs
+		Database source = new Database();
+		serialized = Fixtures.serialize(new DatabaseObjectAdapter(source), Fixtures.items(source, Fixtures.users(source, BATCH), BATCH));
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		db = new Database();
+		users = Fixtures.users(db, items);
+		Fixtures.items(db, users, items);
+		adapter = new DatabaseObjectAdapter(db);
+		ownerless.clear();
+		for (int i = 0; i < BATCH; i++)
+			ownerless.add(db.createItem(new BenchmarkItem(i), null));
+	}
+
+	@Benchmark
+	public int createItem() {
+		for (int i = 0; i < BATCH; i++)
+			db.createItem(new BenchmarkItem(i), users[i % users.length]);
+		return db.getLoadedItems().size();
+	}
+
+	@Benchmark
+	public int addObject() {
+		int added = 0;
+		for (int i = 0; i < BATCH; i++)
+			if (users[i % users.length].addObject(ownerless.get(i)))
+				added++;
+		return added;
+	}
+
+	/**
+	 * Reads serialized items, which also registers them with the database and their owner
+	 * @return int
+	 * @throws IOException
+	 */
+	@Benchmark
+	public int adapterRead() throws IOException {
+		int read = 0;
+		for (String s : serialized)
+			if (adapter.read(new JsonReader(new StringReader(s))) != null)
+				read++;
+		return read;
+	}
+}
@@ -0,0 +1,79 @@
+package com.botifier.database;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding benchmark item information with the JSON and binary item serializers.
+ * The encode benchmarks also report the encoded size as a secondary result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerBenchmark {
+
+	private ItemSerializer json;
+	private ItemSerializer binary;
+	private BenchmarkItem info;
+	private byte[] jsonData;
+	private byte[] binaryData;
+
+	@Setup
+	public void setup() throws IOException {
+		DatabaseObjectAdapter adapter = new DatabaseObjectAdapter(null);
+		json = new JsonItemSerializer(adapter);
+		binary = new BinaryItemSerializer(new SchemaRegistry());
+		info = new BenchmarkItem(12345);
+		jsonData = json.encode(info);
+		binaryData = binary.encode(info);
+	}
+
+	@Benchmark
+	public byte[] encodeJson(EncodedSize size) throws IOException {
+		byte[] data = json.encode(info);
+		size.encodedBytes = data.length;
+		return data;
+	}
+
+	@Benchmark
+	public byte[] encodeBinary(EncodedSize size) throws IOException {
+		byte[] data = binary.encode(info);
+		size.encodedBytes = data.length;
+		return data;
+	}
+
+	@Benchmark
+	public Object decodeJson() throws IOException {
+		return json.decode(jsonData);
+	}
+
+	@Benchmark
+	public Object decodeBinary() throws IOException {
+		return binary.decode(binaryData);
+	}
+
+	/**
+	 * Size of the last encoded item, reported by JMH next to the time
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class EncodedSize {
+		//Assigned rather than added, so every iteration reports the size of one item
+		public long encodedBytes;
+	}
+}
@@ -0,0 +1,100 @@
+package com.botifier.database;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The UUID keyed maps against the ConcurrentHashMap they replaced, for the item and user maps
+ * (large) and a user's items (small). Run with -prof gc to compare allocation, building a map
+ * allocates no node per entry with UUIDMap and SortedUUIDMap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UUIDMapBenchmark {
+
+	@Param({"chm", "uuid", "sorted"})
+	public String map;
+
+	@Param({"100", "100000"})
+	public int entries;
+
+	private UUID[] keys;
+	private UUID[] copies;
+	private int[] order;
+	private Map<UUID, Object> filled;
+	private int next;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(42);
+		keys = new UUID[entries];
+		copies = new UUID[entries];
+		for (int i = 0; i < entries; i++) {
+			keys[i] = new UUID(r.nextLong(), r.nextLong());
+			//Lookups use equal but distinct keys, like UUIDs parsed from a request
+			copies[i] = new UUID(keys[i].getMostSignificantBits(), keys[i].getLeastSignificantBits());
+		}
+		filled = build();
+		//Looked up in random order, in key order the nodes ConcurrentHashMap allocated one after another would be prefetched
+		order = new int[entries];
+		for (int i = 0; i < entries; i++)
+			order[i] = r.nextInt(entries);
+	}
+
+	private Map<UUID, Object> create() {
+		switch (map) {
+			case "uuid":
+				return new UUIDMap<Object>();
+			case "sorted":
+				return new SortedUUIDMap<Object>();
+			default:
+				return new ConcurrentHashMap<UUID, Object>();
+		}
+	}
+
+	private Map<UUID, Object> build() {
+		Map<UUID, Object> m = create();
+		for (UUID u : keys)
+			m.put(u, u);
+		return m;
+	}
+
+	@Benchmark
+	public Object get() {
+		next = next + 1 == entries ? 0 : next + 1;
+		return filled.get(copies[order[next]]);
+	}
+
+	@Benchmark
+	public Map<UUID, Object> fill() {
+		return build();
+	}
+
+	@Benchmark
+	public int iterate() {
+		int n = 0;
+		for (Object o : filled.values())
+			if (o != null)
+				n++;
+		return n;
+	}
+}
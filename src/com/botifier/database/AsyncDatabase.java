@@ -0,0 +1,586 @@
+package com.botifier.database;
+
+import static com.botifier.database.main.Config.*;
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+
+/**
+ * Non blocking access to the MongoDB backend of a Database, every call returns a CompletableFuture.
+ * Items and users read here are registered with the Database exactly like the blocking calls do,
+ * so both can be used side by side. Futures complete on the driver's threads, anything slow
+ * should be moved off them with the *Async variants of CompletableFuture. Items are read as raw
+ * documents and registered off those threads, since registering an item locks its owner.
+ * At most asyncMaxInFlight requests are sent at once, up to asyncMaxQueued more wait their turn
+ * and anything past that fails with a RejectedExecutionException.
+ */
+public class AsyncDatabase implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(AsyncDatabase.class.getName());
+
+	//Database items and users are registered with
+	private final Database db;
+
+	//Reactive client, separate from the blocking one
+	private MongoClient client;
+
+	//Collections
+	private MongoCollection<Document> userCollection;
+	private MongoCollection<DatabaseObject<?>> itemCollection;
+	private MongoCollection<BsonDocument> itemDocuments;
+
+	//Pool statistics of the reactive client
+	private final MongoConnection.PoolStatistics statistics = new MongoConnection.PoolStatistics();
+
+	//Request limits
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final BlockingQueue<Runnable> queued;
+
+	/**
+	 * AsyncDatabase constructor, uses the limits in Config
+	 * @param db Database To register items and users with
+	 */
+	public AsyncDatabase(Database db) {
+		this(db, asyncMaxInFlight, asyncMaxQueued);
+	}
+
+	/**
+	 * AsyncDatabase constructor
+	 * @param db Database To register items and users with
+	 * @param maxInFlight int Requests sent at once
+	 * @param maxQueued int Requests allowed to wait for a free slot
+	 */
+	public AsyncDatabase(Database db, int maxInFlight, int maxQueued) {
+		this.db = db;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.inFlight = new Semaphore(this.maxInFlight);
+		this.queued = new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued));
+	}
+
+	/**
+	 * Opens the reactive client using the settings in Config
+	 */
+	public synchronized void open() {
+		if (client != null)
+			return;
+		client = MongoClients.create(MongoConnection.buildSettings(statistics));
+		MongoDatabase database = client.getDatabase(mongoDBName);
+		userCollection = database.getCollection(mongoUserCol);
+		DatabaseObjectCodec codec = db.getItemCodec();
+		itemCollection = database.getCollection(mongoItemCol, codec.getEncoderClass())
+				.withCodecRegistry(MongoConnection.codecRegistry(codec));
+		itemDocuments = database.getCollection(mongoItemCol, BsonDocument.class);
+	}
+
+	/**
+	 * Closes the reactive client, requests still running fail
+	 */
+	@Override
+	public synchronized void close() {
+		if (client == null)
+			return;
+		client.close();
+		client = null;
+		userCollection = null;
+		itemCollection = null;
+		itemDocuments = null;
+	}
+
+	/**
+	 * Finds an item, loaded items complete right away
+	 * @param u UUID To search
+	 * @return CompletableFuture<DatabaseObject<?>> Completes with null if it doesn't exist
+	 */
+	public CompletableFuture<DatabaseObject<?>> getItem(UUID u) {
+		DatabaseObject<?> d = db.getLoadedItem(u);
+		if (d != null)
+			return CompletableFuture.completedFuture(d);
+		MongoCollection<BsonDocument> col = itemDocuments();
+		return submit(() -> single(col.find(eq("_id", u.toString())).first()))
+				.thenCompose(this::registerItem);
+	}
+
+	/**
+	 * Finds a user by UUID, loaded users complete right away
+	 * @param u UUID To search
+	 * @return CompletableFuture<DatabaseUser> Completes with null if it doesn't exist
+	 */
+	public CompletableFuture<DatabaseUser> getUser(UUID u) {
+		DatabaseUser cached = db.getLoadedUser(u);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+		MongoCollection<Document> col = users();
+		return submit(() -> single(col.find(eq("_id", u.toString())).first()))
+				.thenApply(this::registerUser);
+	}
+
+	/**
+	 * Finds a user by name, loaded users complete right away
+	 * @param name String To search
+	 * @return CompletableFuture<DatabaseUser> Completes with null if it doesn't exist
+	 */
+	public CompletableFuture<DatabaseUser> getUser(String name) {
+		DatabaseUser cached = db.getLoadedUser(name);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+		MongoCollection<Document> col = users();
+		//Same collation as the unique name index, like Database.getUser(String)
+		return submit(() -> single(col.find(eq("name", name)).collation(MongoConnection.NAME_COLLATION).first()))
+				.thenApply(this::registerUser);
+	}
+
+	/**
+	 * Writes a single item, only over the copy this node last saw like the blocking writes
+	 * @param i DatabaseObject<?> To write
+	 * @return CompletableFuture<Void>
+	 */
+	public CompletableFuture<Void> writeItem(DatabaseObject<?> i) {
+		MongoCollection<DatabaseObject<?>> col = items();
+		List<DatabaseObject<?>> written = Collections.<DatabaseObject<?>>singletonList(i);
+		DatabaseUser owner = i.getOwner();
+		UUID[] owners = {owner == null ? null : owner.getUUID()};
+		long[] modified = {i.getLastModified()};
+		Bson filter = db.storedState(i);
+		ReplaceOptions options = Database.storedWriteOptions(i);
+		db.takeDirty(written);
+		return submit(() -> single(col.replaceOne(filter, i, options)))
+				.handleAsync((r, e) -> {
+					settle(written, owners, modified, e, r == null ? 0 : r.getMatchedCount() + (r.getUpsertedId() == null ? 0 : 1));
+					return null;
+				});
+	}
+
+	/**
+	 * Writes a single user
+	 * @param dbu DatabaseUser To write
+	 * @return CompletableFuture<Void>
+	 */
+	public CompletableFuture<Void> writeUser(DatabaseUser dbu) {
+		MongoCollection<Document> col = users();
+		Document d = new Document("_id", dbu.getUUID().toString())
+				 .append("name", dbu.getName())
+				 .append("last_modified", dbu.getLastModified());
+		return submit(() -> single(col.replaceOne(eq("_id", dbu.getUUID().toString()), d, new ReplaceOptions().upsert(true))))
+				.thenAccept(r -> {});
+	}
+
+	/**
+	 * Writes items in bulkWrite batches of mongoBulkBatchSize, one batch after another
+	 * @param toWrite Collection<DatabaseObject<?>> Items to write
+	 * @return CompletableFuture<Integer> Completes with the number of items written
+	 */
+	public CompletableFuture<Integer> writeItems(Collection<DatabaseObject<?>> toWrite) {
+		MongoCollection<DatabaseObject<?>> col = items();
+		List<DatabaseObject<?>> all = new ArrayList<DatabaseObject<?>>(toWrite);
+		int batchSize = Math.max(1, mongoBulkBatchSize);
+		CompletableFuture<Integer> chain = CompletableFuture.completedFuture(0);
+		for (int start = 0; start < all.size(); start += batchSize) {
+			List<DatabaseObject<?>> batch = all.subList(start, Math.min(all.size(), start + batchSize));
+			chain = chain.thenCompose(written -> writeBatch(col, batch).thenApply(n -> written + n));
+		}
+		return chain;
+	}
+
+	/**
+	 * Sends one bulkWrite and records the written state of its items once it is acknowledged
+	 * @param col MongoCollection<DatabaseObject<?>> Item collection
+	 * @param batch List<DatabaseObject<?>> Items to write
+	 * @return CompletableFuture<Integer> Completes with the number of items written
+	 */
+	private CompletableFuture<Integer> writeBatch(MongoCollection<DatabaseObject<?>> col, List<DatabaseObject<?>> batch) {
+		List<WriteModel<DatabaseObject<?>>> models = new ArrayList<WriteModel<DatabaseObject<?>>>(batch.size());
+		UUID[] owners = new UUID[batch.size()];
+		long[] modified = new long[batch.size()];
+		for (int n = 0; n < batch.size(); n++) {
+			DatabaseObject<?> i = batch.get(n);
+			DatabaseUser owner = i.getOwner();
+			owners[n] = owner == null ? null : owner.getUUID();
+			modified[n] = i.getLastModified();
+			models.add(new ReplaceOneModel<DatabaseObject<?>>(db.storedState(i), i, Database.storedWriteOptions(i)));
+		}
+		BulkWriteOptions options = new BulkWriteOptions().ordered(mongoBulkOrdered);
+		db.takeDirty(batch);
+		return submit(() -> single(col.bulkWrite(models, options)))
+				.handleAsync((BulkWriteResult r, Throwable e) -> settle(batch, owners, modified, e, r == null ? 0 : r.getMatchedCount() + r.getUpserts().size()));
+	}
+
+	/**
+	 * Records the outcome of conditional item writes the way Database.writeItemsMongo does
+	 * Runs off the driver's threads, since working out a partial match reads the items back with the blocking client
+	 * @param written List<DatabaseObject<?>> Items sent
+	 * @param owners UUID[] Owner of each when it was sent
+	 * @param modified long[] Modification time of each when it was sent
+	 * @param e Throwable Why the write failed, null if it didn't
+	 * @param matched long Documents matched or inserted
+	 * @return int Number of items written as sent
+	 */
+	private int settle(List<DatabaseObject<?>> written, UUID[] owners, long[] modified, Throwable e, long matched) {
+		if (e != null) {
+			//Nothing is known to be written, so everything is sent again with the next write
+			for (DatabaseObject<?> i : written)
+				db.markDirty(i);
+			throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+		}
+		if (matched < written.size())
+			return db.resolveWrites(written, owners, modified);
+		db.markWritten(written, owners, modified);
+		return written.size();
+	}
+
+	/**
+	 * Loads every item, asking the server for one batch at a time so a slow consumer is never flooded
+	 * @return CompletableFuture<Integer> Completes with the number of items loaded
+	 */
+	public CompletableFuture<Integer> loadItems() {
+		MongoCollection<BsonDocument> col = itemDocuments();
+		int batchSize = Math.max(1, mongoBulkBatchSize);
+		return submit(() -> streamBatches(col.find().batchSize(batchSize), batchSize, this::registerItems));
+	}
+
+	/**
+	 * Loads every user, asking the server for one batch at a time
+	 * @return CompletableFuture<Integer> Completes with the number of users loaded
+	 */
+	public CompletableFuture<Integer> loadUsers() {
+		MongoCollection<Document> col = users();
+		int batchSize = Math.max(1, mongoBulkBatchSize);
+		return submit(() -> stream(col.find().batchSize(batchSize), batchSize, this::registerUser));
+	}
+
+	/**
+	 * Returns the number of requests currently sent to the server
+	 * @return int
+	 */
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/**
+	 * Returns the number of requests waiting for a free slot
+	 * @return int
+	 */
+	public int getQueued() {
+		return queued.size();
+	}
+
+	/**
+	 * Returns the pool statistics of the reactive client
+	 * @return MongoConnection.PoolStatistics
+	 */
+	public MongoConnection.PoolStatistics getPoolStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Registers an item document with the database once its owner is loaded
+	 * The owner is looked up without blocking, the item is registered off the driver's threads
+	 * @param doc BsonDocument Item document, may be null
+	 * @return CompletableFuture<DatabaseObject<?>> Completes with null if there is no item to register
+	 */
+	private CompletableFuture<DatabaseObject<?>> registerItem(BsonDocument doc) {
+		if (doc == null)
+			return CompletableFuture.completedFuture(null);
+		DatabaseObjectAdapter.ItemRecord r = db.getItemCodec().readRecord(doc);
+		if (r == null || r.information == null) {
+			LOG.severe("Skipped an item that could not be decoded.");
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<DatabaseUser> owner = r.owner == null ? CompletableFuture.completedFuture(null) : getUser(r.owner);
+		return owner.thenApplyAsync(user -> {
+			//Loaded meanwhile, or evicted before its change was written, either way newer than the document
+			DatabaseObject<?> loaded = db.getLoadedItem(r.uuid);
+			return loaded != null ? loaded : db.loadItem(r, user, true);
+		});
+	}
+
+	/**
+	 * Registers a batch of item documents off the driver's threads, grouped by owner like the blocking bulk load
+	 * @param docs List<BsonDocument> Item documents
+	 * @return CompletableFuture<Integer> Completes with the number of items registered
+	 */
+	private CompletableFuture<Integer> registerItems(List<BsonDocument> docs) {
+		return CompletableFuture.supplyAsync(() -> {
+			Map<UUID, List<DatabaseObjectAdapter.ItemRecord>> byOwner = new HashMap<UUID, List<DatabaseObjectAdapter.ItemRecord>>();
+			for (BsonDocument doc : docs) {
+				DatabaseObjectAdapter.ItemRecord r = db.getItemCodec().readRecord(doc);
+				if (r != null)
+					byOwner.computeIfAbsent(r.owner, k -> new ArrayList<DatabaseObjectAdapter.ItemRecord>()).add(r);
+			}
+			int registered = 0;
+			for (Map.Entry<UUID, List<DatabaseObjectAdapter.ItemRecord>> e : byOwner.entrySet())
+				registered += db.registerLoadedItems(e.getKey(), e.getValue());
+			return registered;
+		});
+	}
+
+	/**
+	 * Registers a user document with the database
+	 * @param d Document User document, may be null
+	 * @return DatabaseUser or null
+	 */
+	private DatabaseUser registerUser(Document d) {
+		if (d == null)
+			return null;
+		String id = d.getString("_id");
+		String name = d.getString("name");
+		if (id == null || id.isEmpty() || name == null || name.isEmpty())
+			return null;
+		return db.registerUser(name, UUID.fromString(id));
+	}
+
+	private synchronized MongoCollection<DatabaseObject<?>> items() {
+		open();
+		return itemCollection;
+	}
+
+	private synchronized MongoCollection<BsonDocument> itemDocuments() {
+		open();
+		return itemDocuments;
+	}
+
+	private synchronized MongoCollection<Document> users() {
+		open();
+		return userCollection;
+	}
+
+	/**
+	 * Starts a request once a slot is free, queueing it until then
+	 * @param <T> Result type
+	 * @param request Supplier<CompletableFuture<T>> Starts the request
+	 * @return CompletableFuture<T>
+	 */
+	private <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		Runnable start = () -> {
+			CompletableFuture<T> f;
+			try {
+				f = request.get();
+			} catch (RuntimeException e) {
+				f = new CompletableFuture<T>();
+				f.completeExceptionally(e);
+			}
+			f.whenComplete((v, e) -> {
+				release();
+				if (e != null)
+					result.completeExceptionally(e);
+				else
+					result.complete(v);
+			});
+		};
+		if (inFlight.tryAcquire()) {
+			start.run();
+		} else if (queued.offer(start)) {
+			//A slot may have opened up between the tryAcquire and the offer
+			drain();
+		} else {
+			result.completeExceptionally(new RejectedExecutionException("Too many queued requests."));
+		}
+		return result;
+	}
+
+	/**
+	 * Frees a slot and hands it to the next queued request
+	 */
+	private void release() {
+		inFlight.release();
+		drain();
+	}
+
+	/**
+	 * Starts queued requests while there are free slots
+	 */
+	private void drain() {
+		while (!queued.isEmpty() && inFlight.tryAcquire()) {
+			Runnable next = queued.poll();
+			if (next == null) {
+				inFlight.release();
+				return;
+			}
+			next.run();
+		}
+	}
+
+	/**
+	 * Subscribes to a publisher that emits at most one value
+	 * @param <T> Value type
+	 * @param p Publisher<T> To subscribe to
+	 * @return CompletableFuture<T> Completes with the value, or null if there was none
+	 */
+	private static <T> CompletableFuture<T> single(Publisher<T> p) {
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		p.subscribe(new Subscriber<T>() {
+			private T value;
+
+			@Override
+			public void onSubscribe(Subscription s) {
+				s.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(T t) {
+				value = t;
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				f.completeExceptionally(t);
+			}
+
+			@Override
+			public void onComplete() {
+				f.complete(value);
+			}
+		});
+		return f;
+	}
+
+	/**
+	 * Subscribes to a publisher and hands values on a batch at a time, the next batch is only requested
+	 * once the future returned for the current one completes, so the handler may finish it on another thread
+	 * @param <T> Value type
+	 * @param p Publisher<T> To subscribe to
+	 * @param batchSize int Values requested at a time
+	 * @param handler Function<List<T>, CompletableFuture<Integer>> Called for every batch, completes with the number handled
+	 * @return CompletableFuture<Integer> Completes with the number of values handled
+	 */
+	private static <T> CompletableFuture<Integer> streamBatches(Publisher<T> p, int batchSize, Function<List<T>, CompletableFuture<Integer>> handler) {
+		CompletableFuture<Integer> f = new CompletableFuture<Integer>();
+		p.subscribe(new Subscriber<T>() {
+			private Subscription subscription;
+			private List<T> batch = new ArrayList<T>(batchSize);
+			//Batches are chained, so a batch ending the stream still waits for the one before it
+			private CompletableFuture<Integer> handled = CompletableFuture.completedFuture(0);
+
+			@Override
+			public void onSubscribe(Subscription s) {
+				subscription = s;
+				s.request(batchSize);
+			}
+
+			@Override
+			public void onNext(T t) {
+				batch.add(t);
+				if (batch.size() == batchSize)
+					hand(false);
+			}
+
+			private void hand(boolean last) {
+				List<T> full = batch;
+				batch = new ArrayList<T>(batchSize);
+				handled = handled.thenCompose(n -> handler.apply(full).thenApply(m -> n + m));
+				handled.whenComplete((n, e) -> {
+					if (e != null) {
+						subscription.cancel();
+						f.completeExceptionally(e);
+					} else if (last) {
+						f.complete(n);
+					} else {
+						if (n / 100000 != (n - full.size()) / 100000)
+							LOG.info("Loaded "+n+"...");
+						subscription.request(batchSize);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				f.completeExceptionally(t);
+			}
+
+			@Override
+			public void onComplete() {
+				hand(true);
+			}
+		});
+		return f;
+	}
+
+	/**
+	 * Subscribes to a publisher and requests the next batch only once the current one was handled
+	 * @param <T> Value type
+	 * @param p Publisher<T> To subscribe to
+	 * @param batchSize int Values requested at a time
+	 * @param handler Consumer<T> Called for every value
+	 * @return CompletableFuture<Integer> Completes with the number of values handled
+	 */
+	private static <T> CompletableFuture<Integer> stream(Publisher<T> p, int batchSize, Consumer<T> handler) {
+		CompletableFuture<Integer> f = new CompletableFuture<Integer>();
+		p.subscribe(new Subscriber<T>() {
+			private Subscription subscription;
+			private int handled = 0;
+			private int outstanding = 0;
+
+			@Override
+			public void onSubscribe(Subscription s) {
+				subscription = s;
+				outstanding = batchSize;
+				s.request(batchSize);
+			}
+
+			@Override
+			public void onNext(T t) {
+				try {
+					handler.accept(t);
+				} catch (RuntimeException e) {
+					subscription.cancel();
+					f.completeExceptionally(e);
+					return;
+				}
+				handled++;
+				if (handled % 100000 == 0)
+					LOG.info("Loaded "+handled+"...");
+				if (--outstanding == 0) {
+					outstanding = batchSize;
+					subscription.request(batchSize);
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				f.completeExceptionally(t);
+			}
+
+			@Override
+			public void onComplete() {
+				f.complete(handled);
+			}
+		});
+		return f;
+	}
+}
@@ -0,0 +1,578 @@
+package com.botifier.database;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.botifier.database.SchemaRegistry.Field;
+import com.google.gson.Gson;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.internal.UnsafeAllocator;
+
+/**
+ * Compact binary ItemSerializer driven by the schemas in a SchemaRegistry.
+ * A message is the type ID and schema version as varints followed by the value:
+ * <ul>
+ * <li>Strings, numbers, booleans, characters and enums are a single value.</li>
+ * <li>Other classes are written field by field like Gson would see them, after a bitmap of the null
+ * fields. Integers are zigzag varints, floating point numbers are fixed width little endian,
+ * strings are a varint length and UTF-8, and fields of other classes are nested messages.</li>
+ * <li>Collections, maps, arrays, JDK classes and classes with their own Gson adapter are written
+ * as JSON, as are fields declared with such a type.</li>
+ * </ul>
+ * Field names are only in the registry, never in the data. Data written with an older version of a
+ * class is read by field name: fields that are gone are skipped, new fields keep their default and
+ * numbers are converted when a field changed between numeric types.
+ */
+public class BinaryItemSerializer implements ItemSerializer {
+
+	public static final String NAME = "binary";
+
+	//Classes with a single value
+	private static final Set<Class<?>> SCALARS = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+			String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class));
+
+	//Returned by coerce when a value doesn't fit its field any more
+	private static final Object SKIP = new Object();
+
+	//Schemas written and read
+	private final SchemaRegistry registry;
+
+	//Used for the values written as JSON, the same defaults as DatabaseObjectAdapter's
+	private final Gson gson = new Gson();
+
+	//How each class is written, and how each written type and version is read
+	private final ConcurrentHashMap<Class<?>, WritePlan> writePlans = new ConcurrentHashMap<Class<?>, WritePlan>();
+	private final ConcurrentHashMap<Long, ReadPlan> readPlans = new ConcurrentHashMap<Long, ReadPlan>();
+
+	/**
+	 * BinaryItemSerializer constructor
+	 * @param registry SchemaRegistry Schemas to write and read with
+	 */
+	public BinaryItemSerializer(SchemaRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public byte[] encode(Object info) throws IOException {
+		Out out = new Out();
+		writeMessage(out, info);
+		return out.toByteArray();
+	}
+
+	@Override
+	public Object decode(byte[] data) throws IOException {
+		try {
+			In in = new In(data);
+			Object info = readMessage(in);
+			if (in.pos != data.length)
+				throw new IOException("Encoded info has "+(data.length - in.pos)+" bytes left over.");
+			return info;
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Encoded info is cut short.", e);
+		}
+	}
+
+	private void writeMessage(Out out, Object v) throws IOException {
+		WritePlan p = writePlan(v.getClass());
+		out.varint(p.id);
+		out.varint(p.version);
+		switch (p.kind) {
+			case SchemaRegistry.KIND_SCALAR:
+				writeValue(out, p.wires[0], v, null);
+				break;
+			case SchemaRegistry.KIND_RECORD:
+				Object[] values = new Object[p.fields.length];
+				byte[] nulls = new byte[(p.fields.length + 7) / 8];
+				try {
+					for (int i = 0; i < values.length; i++) {
+						values[i] = p.fields[i].get(v);
+						if (values[i] == null)
+							nulls[i / 8] |= 1 << (i % 8);
+					}
+				} catch (IllegalAccessException e) {
+					throw new IOException("Could not read the fields of "+v.getClass().getName()+".", e);
+				}
+				out.bytes(nulls);
+				for (int i = 0; i < values.length; i++)
+					if (values[i] != null)
+						writeValue(out, p.wires[i], values[i], p.fields[i].getGenericType());
+				break;
+			default:
+				out.string(gson.toJson(v, v.getClass()));
+				break;
+		}
+	}
+
+	private void writeValue(Out out, int wire, Object v, Type declared) throws IOException {
+		switch (wire) {
+			case SchemaRegistry.WIRE_BOOL:
+				out.write(((Boolean) v) ? 1 : 0);
+				break;
+			case SchemaRegistry.WIRE_INT:
+				out.zigzag(v instanceof Character ? (Character) v : ((Number) v).longValue());
+				break;
+			case SchemaRegistry.WIRE_FLOAT:
+				out.fixed(Float.floatToRawIntBits(((Number) v).floatValue()), 4);
+				break;
+			case SchemaRegistry.WIRE_DOUBLE:
+				out.fixed(Double.doubleToRawLongBits(((Number) v).doubleValue()), 8);
+				break;
+			case SchemaRegistry.WIRE_STRING:
+				out.string(v instanceof Enum ? ((Enum<?>) v).name() : (String) v);
+				break;
+			case SchemaRegistry.WIRE_MESSAGE:
+				writeMessage(out, v);
+				break;
+			default:
+				out.string(gson.toJson(v, declared));
+				break;
+		}
+	}
+
+	private Object readMessage(In in) throws IOException {
+		ReadPlan p = readPlan((int) in.varint(), (int) in.varint());
+		switch (p.kind) {
+			case SchemaRegistry.KIND_SCALAR:
+				Object v = coerce(readRaw(in, p.wires[0], p.type), p.type);
+				if (v == SKIP)
+					throw new IOException("Stored value doesn't fit "+p.type.getName()+" any more.");
+				return v;
+			case SchemaRegistry.KIND_RECORD:
+				Object o = p.newInstance();
+				byte[] nulls = in.bytes((p.wires.length + 7) / 8);
+				for (int i = 0; i < p.wires.length; i++) {
+					if ((nulls[i / 8] & (1 << (i % 8))) != 0)
+						continue;
+					java.lang.reflect.Field f = p.targets[i];
+					if (f == null) {
+						skipValue(in, p.wires[i]);
+						continue;
+					}
+					Object value = coerce(readRaw(in, p.wires[i], f.getGenericType()), f.getType());
+					if (value == SKIP)
+						continue;
+					try {
+						f.set(o, value);
+					} catch (IllegalAccessException e) {
+						throw new IOException("Could not set "+f+".", e);
+					}
+				}
+				return o;
+			default:
+				return gson.fromJson(in.string(), p.type);
+		}
+	}
+
+	/**
+	 * Reads a value as written, JSON is parsed as the type it is read into
+	 */
+	private Object readRaw(In in, int wire, Type target) throws IOException {
+		switch (wire) {
+			case SchemaRegistry.WIRE_BOOL:
+				return in.read() != 0;
+			case SchemaRegistry.WIRE_INT:
+				return in.zigzag();
+			case SchemaRegistry.WIRE_FLOAT:
+				return Float.intBitsToFloat((int) in.fixed(4));
+			case SchemaRegistry.WIRE_DOUBLE:
+				return Double.longBitsToDouble(in.fixed(8));
+			case SchemaRegistry.WIRE_STRING:
+				return in.string();
+			case SchemaRegistry.WIRE_MESSAGE:
+				return readMessage(in);
+			default:
+				return gson.fromJson(in.string(), target);
+		}
+	}
+
+	/**
+	 * Converts a value read into the type of the field it goes to
+	 * @return Object Converted value, or SKIP if it can't be
+	 */
+	private static Object coerce(Object v, Class<?> t) {
+		if (v instanceof Number) {
+			Number n = (Number) v;
+			boolean integral = v instanceof Long;
+			if (t == int.class || t == Integer.class)
+				return integral ? (Object) n.intValue() : SKIP;
+			if (t == long.class || t == Long.class)
+				return integral ? (Object) n.longValue() : SKIP;
+			if (t == short.class || t == Short.class)
+				return integral ? (Object) n.shortValue() : SKIP;
+			if (t == byte.class || t == Byte.class)
+				return integral ? (Object) n.byteValue() : SKIP;
+			if (t == char.class || t == Character.class)
+				return integral ? (Object) (char) n.intValue() : SKIP;
+			if (t == double.class || t == Double.class)
+				return n.doubleValue();
+			if (t == float.class || t == Float.class)
+				return n.floatValue();
+		}
+		if (v instanceof String && t.isEnum()) {
+			for (Object c : t.getEnumConstants())
+				if (((Enum<?>) c).name().equals(v))
+					return c;
+			return SKIP;
+		}
+		if (t.isPrimitive())
+			return t == boolean.class && v instanceof Boolean ? v : SKIP;
+		return v == null || t.isInstance(v) ? v : SKIP;
+	}
+
+	private void skipValue(In in, int wire) throws IOException {
+		switch (wire) {
+			case SchemaRegistry.WIRE_BOOL:
+				in.read();
+				break;
+			case SchemaRegistry.WIRE_INT:
+				in.varint();
+				break;
+			case SchemaRegistry.WIRE_FLOAT:
+				in.fixed(4);
+				break;
+			case SchemaRegistry.WIRE_DOUBLE:
+				in.fixed(8);
+				break;
+			case SchemaRegistry.WIRE_MESSAGE:
+				skipMessage(in);
+				break;
+			default:
+				in.skip((int) in.varint());
+				break;
+		}
+	}
+
+	/**
+	 * Skips a message by its schema, without loading its class
+	 */
+	private void skipMessage(In in) throws IOException {
+		int id = (int) in.varint();
+		int version = (int) in.varint();
+		SchemaRegistry.Type t = registry.type(id);
+		Field[] fields = t == null ? null : t.fields(version);
+		if (fields == null)
+			throw new IOException("Unknown schema "+id+" version "+version+".");
+		switch (t.getKind()) {
+			case SchemaRegistry.KIND_SCALAR:
+				skipValue(in, fields[0].wire);
+				break;
+			case SchemaRegistry.KIND_RECORD:
+				byte[] nulls = in.bytes((fields.length + 7) / 8);
+				for (int i = 0; i < fields.length; i++)
+					if ((nulls[i / 8] & (1 << (i % 8))) == 0)
+						skipValue(in, fields[i].wire);
+				break;
+			default:
+				in.skip((int) in.varint());
+				break;
+		}
+	}
+
+	/**
+	 * Returns how a class is written, registering its schema the first time
+	 */
+	private WritePlan writePlan(Class<?> c) throws IOException {
+		WritePlan p = writePlans.get(c);
+		if (p != null)
+			return p;
+		int kind;
+		java.lang.reflect.Field[] fields = new java.lang.reflect.Field[0];
+		if (SCALARS.contains(c) || c.isEnum()) {
+			kind = SchemaRegistry.KIND_SCALAR;
+		} else if (recordable(c) && (fields = fieldsOf(c)) != null) {
+			kind = SchemaRegistry.KIND_RECORD;
+		} else {
+			kind = SchemaRegistry.KIND_JSON;
+			fields = new java.lang.reflect.Field[0];
+		}
+		Field[] schema;
+		int[] wires;
+		if (kind == SchemaRegistry.KIND_SCALAR) {
+			wires = new int[] {wireOf(c)};
+			schema = new Field[] {new Field("", wires[0])};
+		} else {
+			wires = new int[fields.length];
+			schema = new Field[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				wires[i] = wireOf(fields[i].getType());
+				schema[i] = new Field(fields[i].getName(), wires[i]);
+			}
+		}
+		int[] idVersion = registry.register(c.getName(), kind, schema);
+		p = new WritePlan(idVersion[0], idVersion[1], kind, fields, wires);
+		writePlans.putIfAbsent(c, p);
+		return p;
+	}
+
+	/**
+	 * Returns how a written type and version is read, matching its fields to the class by name
+	 */
+	private ReadPlan readPlan(int id, int version) throws IOException {
+		Long key = ((long) id << 32) | (version & 0xFFFFFFFFL);
+		ReadPlan p = readPlans.get(key);
+		if (p != null)
+			return p;
+		SchemaRegistry.Type t = registry.type(id);
+		Field[] schema = t == null ? null : t.fields(version);
+		if (schema == null)
+			throw new IOException("Unknown schema "+id+" version "+version+".");
+		Class<?> c;
+		try {
+			c = Class.forName(t.getClassName());
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown info type "+t.getClassName()+".", e);
+		}
+		int[] wires = new int[schema.length];
+		java.lang.reflect.Field[] targets = new java.lang.reflect.Field[schema.length];
+		Map<String, java.lang.reflect.Field> byName = new HashMap<String, java.lang.reflect.Field>();
+		if (t.getKind() == SchemaRegistry.KIND_RECORD) {
+			java.lang.reflect.Field[] current = fieldsOf(c);
+			if (current == null)
+				throw new IOException("Fields of "+c.getName()+" can't be matched by name any more.");
+			for (java.lang.reflect.Field f : current)
+				byName.put(f.getName(), f);
+		}
+		for (int i = 0; i < schema.length; i++) {
+			wires[i] = schema[i].wire;
+			targets[i] = byName.get(schema[i].name);
+		}
+		p = new ReadPlan(c, t.getKind(), wires, targets);
+		readPlans.putIfAbsent(key, p);
+		return p;
+	}
+
+	private static int wireOf(Class<?> t) {
+		if (t == boolean.class || t == Boolean.class)
+			return SchemaRegistry.WIRE_BOOL;
+		if (t == int.class || t == Integer.class || t == long.class || t == Long.class || t == short.class || t == Short.class
+				|| t == byte.class || t == Byte.class || t == char.class || t == Character.class)
+			return SchemaRegistry.WIRE_INT;
+		if (t == float.class || t == Float.class)
+			return SchemaRegistry.WIRE_FLOAT;
+		if (t == double.class || t == Double.class)
+			return SchemaRegistry.WIRE_DOUBLE;
+		if (t == String.class || t.isEnum())
+			return SchemaRegistry.WIRE_STRING;
+		return recordable(t) ? SchemaRegistry.WIRE_MESSAGE : SchemaRegistry.WIRE_JSON;
+	}
+
+	/**
+	 * Returns whether a class is written field by field, everything Gson has a built in or custom adapter for is left to Gson
+	 */
+	private static boolean recordable(Class<?> c) {
+		if (c.isPrimitive() || c.isArray() || c.isEnum() || c.isInterface() || Modifier.isAbstract(c.getModifiers())
+				|| c.isAnonymousClass() || c.isLocalClass())
+			return false;
+		if (Collection.class.isAssignableFrom(c) || Map.class.isAssignableFrom(c) || c.isAnnotationPresent(JsonAdapter.class))
+			return false;
+		String n = c.getName();
+		return !n.startsWith("java.") && !n.startsWith("javax.") && !n.startsWith("sun.");
+	}
+
+	/**
+	 * Returns the fields Gson would serialize, superclass fields first
+	 * @return java.lang.reflect.Field[] or null if two of them share a name
+	 */
+	private static java.lang.reflect.Field[] fieldsOf(Class<?> c) {
+		List<Class<?>> chain = new ArrayList<Class<?>>();
+		for (Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass())
+			chain.add(0, k);
+		List<java.lang.reflect.Field> fields = new ArrayList<java.lang.reflect.Field>();
+		Set<String> names = new HashSet<String>();
+		for (Class<?> k : chain) {
+			for (java.lang.reflect.Field f : k.getDeclaredFields()) {
+				int m = f.getModifiers();
+				if (Modifier.isStatic(m) || Modifier.isTransient(m) || f.isSynthetic())
+					continue;
+				if (!names.add(f.getName()))
+					return null;
+				f.setAccessible(true);
+				fields.add(f);
+			}
+		}
+		return fields.toArray(new java.lang.reflect.Field[0]);
+	}
+
+	private static class WritePlan {
+		final int id;
+		final int version;
+		final int kind;
+		final java.lang.reflect.Field[] fields;
+		final int[] wires;
+
+		WritePlan(int id, int version, int kind, java.lang.reflect.Field[] fields, int[] wires) {
+			this.id = id;
+			this.version = version;
+			this.kind = kind;
+			this.fields = fields;
+			this.wires = wires;
+		}
+	}
+
+	private static class ReadPlan {
+		final Class<?> type;
+		final int kind;
+		final int[] wires;
+		//Current field of every written field, null where the field is gone
+		final java.lang.reflect.Field[] targets;
+		//No argument constructor, null to allocate without one like Gson does
+		private final Constructor<?> constructor;
+
+		ReadPlan(Class<?> type, int kind, int[] wires, java.lang.reflect.Field[] targets) {
+			this.type = type;
+			this.kind = kind;
+			this.wires = wires;
+			this.targets = targets;
+			Constructor<?> ctor = null;
+			if (kind == SchemaRegistry.KIND_RECORD) {
+				try {
+					ctor = type.getDeclaredConstructor();
+					ctor.setAccessible(true);
+				} catch (NoSuchMethodException | RuntimeException e) {
+					ctor = null;
+				}
+			}
+			this.constructor = ctor;
+		}
+
+		Object newInstance() throws IOException {
+			try {
+				return constructor != null ? constructor.newInstance() : UnsafeAllocator.create().newInstance(type);
+			} catch (Exception e) {
+				throw new IOException("Could not create an instance of "+type.getName()+".", e);
+			}
+		}
+	}
+
+	/**
+	 * Growable output buffer
+	 */
+	private static final class Out {
+		private byte[] buf = new byte[64];
+		private int len = 0;
+
+		private void ensure(int n) {
+			if (len + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(2 * buf.length, len + n));
+		}
+
+		void write(int b) {
+			ensure(1);
+			buf[len++] = (byte) b;
+		}
+
+		void varint(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[len++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[len++] = (byte) v;
+		}
+
+		void zigzag(long v) {
+			varint((v << 1) ^ (v >> 63));
+		}
+
+		void fixed(long v, int n) {
+			ensure(n);
+			for (int i = 0; i < n; i++)
+				buf[len++] = (byte) (v >>> (8 * i));
+		}
+
+		void bytes(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, len, b.length);
+			len += b.length;
+		}
+
+		void string(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			varint(b.length);
+			bytes(b);
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, len);
+		}
+	}
+
+	/**
+	 * Input over an encoded message, reading past the end throws IndexOutOfBoundsException
+	 */
+	private static final class In {
+		private final byte[] buf;
+		private int pos = 0;
+
+		In(byte[] buf) {
+			this.buf = buf;
+		}
+
+		int read() {
+			return buf[pos++] & 0xFF;
+		}
+
+		long varint() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+			throw new IOException("Malformed varint.");
+		}
+
+		long zigzag() throws IOException {
+			long v = varint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		long fixed(int n) {
+			long v = 0;
+			for (int i = 0; i < n; i++)
+				v |= (long) read() << (8 * i);
+			return v;
+		}
+
+		byte[] bytes(int n) {
+			if (n < 0 || pos + n > buf.length)
+				throw new IndexOutOfBoundsException();
+			byte[] b = Arrays.copyOfRange(buf, pos, pos + n);
+			pos += n;
+			return b;
+		}
+
+		void skip(int n) {
+			if (n < 0 || pos + n > buf.length)
+				throw new IndexOutOfBoundsException();
+			pos += n;
+		}
+
+		String string() throws IOException {
+			int n = (int) varint();
+			if (n < 0 || pos + n > buf.length)
+				throw new IndexOutOfBoundsException();
+			String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+	}
+}
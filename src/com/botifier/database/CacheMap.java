@@ -0,0 +1,211 @@
+package com.botifier.database;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Access ordered map that evicts its least recently used entries once it holds more than
+ * maxEntries entries or maxBytes estimated bytes. Used in place of the plain HashMaps in
+ * MongoDB mode, where anything evicted can be read back from the server.
+ * Entries are weighed once when put, and the same weight is taken off again when they leave, so values
+ * whose size changes meanwhile can't make the total drift. Removing through an iterator is not tracked.
+ * Single entry calls are synchronized on the map, iterating over a view must hold the map's monitor.
+ * @param <V> Value type
+ */
+public class CacheMap<V> extends LinkedHashMap<UUID, V> {
+
+	private static final long serialVersionUID = 6467308335838521934L;
+
+	//Limits, 0 means no limit
+	private final int maxEntries;
+	private final long maxBytes;
+
+	//Decides what may be evicted and handles it once it is
+	private final transient Policy<V> policy;
+
+	//Estimated size of every entry, and what each entry was weighed at when put
+	private long bytes = 0;
+	private final HashMap<Object, Long> weights = new HashMap<Object, Long>();
+
+	//Counters
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	//Set while evicting so the policy can't start a second eviction
+	private boolean evicting = false;
+
+	/**
+	 * CacheMap constructor
+	 * @param maxEntries int Max entries, 0 for no limit
+	 * @param maxBytes long Max estimated bytes, 0 for no limit
+	 * @param policy Policy<V> Eviction policy
+	 */
+	public CacheMap(int maxEntries, long maxBytes, Policy<V> policy) {
+		super(16, 0.75f, true);
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+	}
+
+	/**
+	 * Gets a value and counts it as a hit or a miss
+	 * @param key UUID To look up
+	 * @return V or null
+	 */
+	public synchronized V lookup(UUID key) {
+		V v = get(key);
+		if (v == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return v;
+	}
+
+	@Override
+	public synchronized V get(Object key) {
+		return super.get(key);
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		return super.containsKey(key);
+	}
+
+	@Override
+	public synchronized boolean containsValue(Object value) {
+		return super.containsValue(value);
+	}
+
+	@Override
+	public synchronized int size() {
+		return super.size();
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return super.isEmpty();
+	}
+
+	@Override
+	public synchronized V putIfAbsent(UUID key, V value) {
+		V old = super.get(key);
+		if (old == null)
+			put(key, value);
+		return old;
+	}
+
+	@Override
+	public synchronized V put(UUID key, V value) {
+		V old = super.put(key, value);
+		long w = policy.weigh(value);
+		Long was = weights.put(key, w);
+		bytes += was == null ? w : w - was;
+		evict();
+		return old;
+	}
+
+	@Override
+	public synchronized V remove(Object key) {
+		V old = super.remove(key);
+		Long w = weights.remove(key);
+		if (w != null)
+			bytes -= w;
+		return old;
+	}
+
+	@Override
+	public synchronized void clear() {
+		super.clear();
+		weights.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Evicts from the least recently used end until the map is back under its limits
+	 */
+	private void evict() {
+		if (evicting || !overLimit())
+			return;
+		evicting = true;
+		try {
+			Iterator<Map.Entry<UUID, V>> it = entrySet().iterator();
+			while (overLimit() && it.hasNext()) {
+				Map.Entry<UUID, V> e = it.next();
+				if (!policy.canEvict(e.getValue()))
+					continue;
+				it.remove();
+				Long w = weights.remove(e.getKey());
+				if (w != null)
+					bytes -= w;
+				evictions.incrementAndGet();
+				policy.evicted(e.getKey(), e.getValue());
+			}
+		} finally {
+			evicting = false;
+		}
+	}
+
+	private boolean overLimit() {
+		return (maxEntries > 0 && size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes);
+	}
+
+	/**
+	 * Returns the estimated size of everything held
+	 * @return long
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the counters as a readable line
+	 * @return String
+	 */
+	public synchronized String getStatistics() {
+		return "Size: "+size()+", Bytes: "+bytes+", Hits: "+hits.get()+", Misses: "+misses.get()+", Evictions: "+evictions.get();
+	}
+
+	/**
+	 * Eviction policy of a CacheMap
+	 * @param <V> Value type
+	 */
+	public interface Policy<V> {
+		/**
+		 * Returns whether a value may be evicted right now
+		 * @param v V Value
+		 * @return boolean
+		 */
+		boolean canEvict(V v);
+
+		/**
+		 * Called after a value was evicted, under the map's monitor, so it must not block: dirty values are handed off to be written back later
+		 * @param key UUID Key
+		 * @param v V Value
+		 */
+		void evicted(UUID key, V v);
+
+		/**
+		 * Returns the estimated size of a value in bytes
+		 * @param v V Value
+		 * @return long
+		 */
+		long weigh(V v);
+	}
+}
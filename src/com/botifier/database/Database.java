@@ -3,7 +3,9 @@ package com.botifier.database;
 import static com.mongodb.client.model.Filters.*;
 import static com.botifier.database.main.Config.*;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
@@ -11,30 +13,57 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.Serializable;
-import java.lang.reflect.Type;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
 import org.bson.conversions.Bson;
-import org.bson.json.JsonObject;
 
 import com.botifier.database.main.Config;
+import com.botifier.database.metrics.LoggingExporter;
+import com.botifier.database.metrics.MetricsMBean;
+import com.botifier.database.metrics.MetricsRegistry;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
-import com.mongodb.client.FindIterable;
-import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
 import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
 
 
 
@@ -44,15 +73,84 @@ public class Database implements Serializable{
 	 */
 	private static final long serialVersionUID = 1595287555711769296L;
 	
-	//User HashMaps, tied together to aid with searching based on either name or UUID
-	private HashMap<String, UUID> allUsers = new HashMap<String, UUID>();
-	private HashMap<UUID, DatabaseUser> users = new HashMap<UUID, DatabaseUser>();
+	private static final Logger LOG = Logger.getLogger(Database.class.getName());
 	
-	//Item HashMap
-	private HashMap<UUID, DatabaseObject<?>> items = new HashMap<UUID, DatabaseObject<?>>();
-
-	//Gson
-	private Gson gson = null;
+	//Name and UUID of every known user, names are matched without regard to case
+	private transient UserNameIndex names = new UserNameIndex();
+	
+	//Item UUIDs of every owner, kept for the flat file backends whose items aren't all loaded or indexed elsewhere
+	private final transient OwnerIndex owners = new OwnerIndex();
+	
+	//Runs item queries and keeps the flat file field indexes
+	private final transient ItemQueryEngine queries = new ItemQueryEngine(this);
+	
+	//Loaded users
+	private Map<UUID, DatabaseUser> users = new UUIDMap<DatabaseUser>();
+	
+	//Item map
+	private Map<UUID, DatabaseObject<?>> items = new UUIDMap<DatabaseObject<?>>();
+	
+	//UUIDs of items and users changed since they were last written
+	private Set<UUID> dirtyItems = ConcurrentHashMap.newKeySet();
+	private Set<UUID> dirtyUsers = ConcurrentHashMap.newKeySet();
+	
+	//Per user locks, held while a user's items are added, removed or transferred
+	private final transient UserLocks userLocks = new UserLocks(UserLocks.DEFAULT_STRIPES);
+	
+	//Changes are journaled under the read lock, writing to disk and emptying the journal takes the write lock
+	private final transient ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+	
+	//How many items are loaded between progress messages
+	private static final int LOAD_PROGRESS_INTERVAL = 100000;
+	
+	//Shared adapter, caches the resolved info types
+	private transient DatabaseObjectAdapter adapter = new DatabaseObjectAdapter(this);
+	
+	//Gson, thread safe and reused for every (de)serialization
+	private transient Gson gson = buildGson();
+	
+	//Counters, timings and gauges, exported through JMX and the configured exporters
+	private final transient MetricsRegistry metrics = new MetricsRegistry();
+	
+	//Name the metrics are registered under in JMX, null when not registered
+	private transient ObjectName metricsBean = null;
+	
+	//Shared MongoDB client, opened in start() and closed in stop()
+	private transient MongoConnection mongo = new MongoConnection(new DatabaseObjectCodec(this, adapter), metrics);
+	
+	//Write ahead journal of the flat file backend, null when disabled or using MongoDB
+	private transient ItemJournal journal = null;
+	
+	//Compacts the journal once it is full, so the thread that filled it doesn't rewrite every item while holding its locks
+	private transient ExecutorService journalCompactor = null;
+	
+	//Set while a compaction is queued or running, so a full journal is only queued once
+	private final transient AtomicBoolean compactionQueued = new AtomicBoolean();
+	
+	//Binary item store used instead of items.json when itemStore=segment
+	private transient SegmentStore segmentStore = null;
+	
+	//Shard files used when itemStore or userStore is sharded, created on first use
+	private transient FlatFileShards shards = null;
+	
+	//Set when the shards on disk don't match the configured layout, the next write then rewrites every shard
+	private transient volatile boolean itemShardsStale = false;
+	private transient volatile boolean userShardsStale = false;
+	
+	//Background writer of the MongoDB backend, null when disabled
+	private transient volatile WriteBehind writeBehind = null;
+	
+	//Items evicted from the MongoDB cache that are still dirty or still listed by their owner, released by the next flush
+	private final transient Map<UUID, DatabaseObject<?>> evictedItems = new ConcurrentHashMap<UUID, DatabaseObject<?>>();
+	
+	//Users evicted from the MongoDB cache before their change was written, released by the next flush
+	private final transient Map<UUID, DatabaseUser> evictedUsers = new ConcurrentHashMap<UUID, DatabaseUser>();
+	
+	//Holds the serialized information of clean items off heap, null unless offHeapPayloads is set
+	private transient OffHeapStore payloads = null;
+	
+	//Serializer of everything in payloads, picked with the store
+	private transient ItemSerializer payloadSerializer = null;
 	
 	/**
 	 * Starts the program
@@ -63,48 +161,352 @@ public class Database implements Serializable{
 		try {
 			Config.loadConfig();
 		} catch (IOException e) {
-			System.out.println("Config load failed.");
-			e.printStackTrace();
+			LOG.log(Level.SEVERE, "Config load failed.", e);
 		} 
+		metrics.setSlowThresholdMs(metricsSlowMs);
+		try {
+			adapter.register(new BinaryItemSerializer(new SchemaRegistry(new File(DEFAULT_FOLDER+"/items/schemas.json"))));
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, "Schema registry load failed, binary info can't be read.", e);
+		}
+		adapter.use(itemSerializer);
+		if (offHeapPayloads && payloads == null) {
+			payloads = new OffHeapStore(offHeapSlabBytes, offHeapMaxBytes);
+			payloadSerializer = adapter.getSerializer();
+		}
 
-		GsonBuilder gb = new GsonBuilder();
-		gb.registerTypeHierarchyAdapter(DatabaseObject.class, new DatabaseObjectAdapter(this));
-		gb.setPrettyPrinting();
-		gson = gb.create();
+		if (useMongo) {
+			mongo.open();
+			mongo.ensureIndexes();
+			//Anything evicted can be read back from MongoDB, so both maps are bounded
+			items = new CacheMap<DatabaseObject<?>>(mongoCacheMaxItems, mongoCacheMaxBytes, new ItemCachePolicy());
+			users = new CacheMap<DatabaseUser>(mongoCacheMaxUsers, 0, new UserCachePolicy());
+		}
 
 		try {
+			long started = metrics.start();
 			load();
+			metrics.stop("load", started);
 		} catch (IOException e) {
-			e.printStackTrace();
+			LOG.log(Level.SEVERE, "Load failed.", e);
 		}
 		
-		DatabaseObject<?>[] d = items.values().toArray(new DatabaseObject<?>[0]);
-		for (int e = d.length-1; e >= 0; e--) {
-			DatabaseObject<?> i = d[e];
-			if (i.getOwner() == null) {
-				for (Entry<UUID, DatabaseObject<?>> entry : items.entrySet()) {
-					if (i.equals(entry.getValue())) {
-						System.out.println("Removed ownerless item of UUID: "+entry.getKey());
-						items.remove(entry.getKey());
-						break;
-					}
-				}
-				continue;
-			}
-			//System.out.println(i);
+		IntegrityCheck.Report report = new IntegrityCheck(this, integrityParallel).run();
+		for (UUID u : report.getOwnerless())
+			LOG.warning("Removed ownerless item of UUID: "+u);
+		for (UUID u : report.getDuplicates())
+			LOG.warning("Removed duplicate of item with UUID: "+u);
+		metrics.counter("integrity.ownerless").add(report.getOwnerless().size());
+		metrics.counter("integrity.duplicates").add(report.getDuplicates().size());
+		LOG.info(report.toString());
+		
+		//The flat file backend already has every change in its journal, only MongoDB needs flushing in the background
+		if (useMongo && writeBehindEnabled) {
+			writeBehind = new WriteBehind(this, writeBehindIntervalMs, writeBehindBatchSize, writeBehindMaxPending, writeBehindMaxWaitMs);
+			writeBehind.start();
+		}
+		
+		registerGauges();
+		if (metricsJmx)
+			metricsBean = MetricsMBean.register(metrics, DEFAULT_FOLDER);
+		if (metricsLogIntervalMs > 0) {
+			metrics.addExporter(new LoggingExporter(Level.INFO));
+			metrics.startReporting(metricsLogIntervalMs);
+		}
+	}
+	
+	/**
+	 * Adds the gauges read at every snapshot, they read the current maps so they survive the maps being replaced
+	 */
+	private void registerGauges() {
+		metrics.gauge("items.loaded", () -> items.size());
+		metrics.gauge("users.loaded", () -> users.size());
+		metrics.gauge("dirty.items", () -> dirtyItems.size());
+		metrics.gauge("dirty.users", () -> dirtyUsers.size());
+		metrics.gauge("cache.bytes", () -> items instanceof CacheMap ? ((CacheMap<?>) items).getBytes() : 0);
+		metrics.gauge("cache.evictions", () -> items instanceof CacheMap ? ((CacheMap<?>) items).getEvictions() : 0);
+		metrics.gauge("journal.bytes", () -> {
+			ItemJournal j = journal;
+			return j == null ? 0 : j.size();
+		});
+		metrics.gauge("mongo.pool.inUse", () -> mongo.getStatistics().getInUseConnections());
+		metrics.gauge("offheap.capacity", () -> payloads == null ? 0 : payloads.getCapacity());
+		metrics.gauge("offheap.used", () -> payloads == null ? 0 : payloads.getUsed());
+	}
+	
+	/**
+	 * Returns the counters, timings and gauges of this database
+	 * @return MetricsRegistry
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Moves the information of a clean item off heap when offHeapPayloads is set
+	 * @param d DatabaseObject<?> Item that matches what is stored
+	 * @param encoded byte[] Information as it was read in the payload serializer's format, null to encode it again
+	 */
+	void stow(DatabaseObject<?> d, byte[] encoded) {
+		OffHeapStore store = payloads;
+		if (store == null || dirtyItems.contains(d.getUUID()))
+			return;
+		try {
+			d.stow(store, encoded);
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.WARNING, "Could not move item "+d.getUUID()+" off heap, keeping it on the heap.", e);
+		}
+	}
+	
+	/**
+	 * Moves every clean item whose information is on the heap off heap, done after a flush
+	 * Items changed since the flush are left on the heap for the next one
+	 */
+	private void stowClean() {
+		if (payloads == null)
+			return;
+		//Snapshot, the cache may evict or reorder entries while items are encoded
+		for (DatabaseObject<?> d : snapshotItems())
+			if (d.information != null && !dirtyItems.contains(d.getUUID()))
+				stow(d, null);
+	}
+	
+	/**
+	 * Returns the serializer of the information kept off heap
+	 * @return ItemSerializer or null when nothing is kept off heap
+	 */
+	ItemSerializer getPayloadSerializer() {
+		return payloadSerializer;
+	}
+	
+	/**
+	 * Decodes information kept off heap
+	 * @param handle long Payload handle
+	 * @return Object
+	 */
+	Object decodePayload(long handle) {
+		metrics.counter("offheap.materialized").inc();
+		try {
+			return payloadSerializer.decode(payloads.get(handle));
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not decode the information of an item kept off heap.", e);
 		}
 	}
 	
+	/**
+	 * Builds a Gson that uses this database's shared DatabaseObjectAdapter
+	 * @return Gson
+	 */
+	private Gson buildGson() {
+		GsonBuilder gb = new GsonBuilder();
+		gb.registerTypeHierarchyAdapter(DatabaseObject.class, adapter);
+		return gb.create();
+	}
+	
+	/**
+	 * Returns the Gson used to serialize single objects
+	 * @return Gson
+	 */
+	public Gson getGson() {
+		return gson;
+	}
+	
 	/**
 	 * Stops the program
 	 */
 	public void stop() {
+		//Drains whatever is still waiting before the final write
+		if (writeBehind != null) {
+			writeBehind.close();
+			writeBehind = null;
+		}
+		//A compaction still running finishes before the final write, anything queued after is covered by it
+		if (journalCompactor != null) {
+			journalCompactor.shutdown();
+			try {
+				journalCompactor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			journalCompactor = null;
+		}
 		try {
 			write();
 		} catch (IOException e) {
-			System.out.println("Write failed");
-			e.printStackTrace();
+			LOG.log(Level.SEVERE, "Write failed.", e);
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, "Journal close failed.", e);
+			}
+			journal = null;
+		}
+		if (segmentStore != null) {
+			segmentStore.close();
+			segmentStore = null;
+		}
+		mongo.close();
+		metrics.stopReporting();
+		MetricsMBean.unregister(metricsBean);
+		metricsBean = null;
+	}
+	
+	/**
+	 * Returns the shared MongoDB connection, opening it if it isn't already
+	 * @return MongoConnection
+	 */
+	public MongoConnection getMongo() {
+		mongo.open();
+		return mongo;
+	}
+	
+	/**
+	 * Returns the connection pool statistics of the shared MongoDB client
+	 * @return PoolStatistics
+	 */
+	public MongoConnection.PoolStatistics getPoolStatistics() {
+		return mongo.getStatistics();
+	}
+	
+	/**
+	 * Returns the background writer
+	 * @return WriteBehind or null if it isn't running
+	 */
+	public WriteBehind getWriteBehind() {
+		return writeBehind;
+	}
+	
+	/**
+	 * Returns the locks guarding each user's items
+	 * @return UserLocks
+	 */
+	public UserLocks getUserLocks() {
+		return userLocks;
+	}
+	
+	/**
+	 * Returns the codec used to read and write items in MongoDB
+	 * @return DatabaseObjectCodec
+	 */
+	DatabaseObjectCodec getItemCodec() {
+		return mongo.getItemCodec();
+	}
+	
+	/**
+	 * Returns every loaded item at the time of the call
+	 * @return DatabaseObject<?>[]
+	 */
+	DatabaseObject<?>[] snapshotItems() {
+		synchronized (items) {
+			return items.values().toArray(new DatabaseObject<?>[0]);
+		}
+	}
+	
+	/**
+	 * Returns every loaded user at the time of the call
+	 * @return DatabaseUser[]
+	 */
+	DatabaseUser[] snapshotUsers() {
+		synchronized (users) {
+			return users.values().toArray(new DatabaseUser[0]);
+		}
+	}
+	
+	/**
+	 * Unloads an item and marks it dirty, so the next write leaves it out
+	 * @param u UUID Item to drop
+	 */
+	void dropItem(UUID u) {
+		DatabaseObject<?> d = items.remove(u);
+		if (d != null) {
+			unindexOwner(d);
+			queries.itemRemoved(d);
+			d.detach();
 		}
+		dirtyItems.add(u);
+	}
+	
+	/**
+	 * Returns a loaded item without reading it from the backing store
+	 * @param u UUID To search
+	 * @return DatabaseObject<?> or null if it isn't loaded
+	 */
+	DatabaseObject<?> getLoadedItem(UUID u) {
+		if (getItemCache() == null)
+			return items.get(u);
+		DatabaseObject<?> d = getItemCache().lookup(u);
+		return d != null ? d : restoreEvicted(u);
+	}
+	
+	/**
+	 * Puts an evicted item that hasn't been released yet back in the cache
+	 * Its change may not be in MongoDB yet, so it must be used instead of reading the item again
+	 * @param u UUID To search
+	 * @return DatabaseObject<?> or null if no such item is waiting
+	 */
+	DatabaseObject<?> restoreEvicted(UUID u) {
+		DatabaseObject<?> d = evictedItems.remove(u);
+		if (d == null)
+			return null;
+		DatabaseObject<?> loaded = items.putIfAbsent(u, d);
+		if (loaded != null)
+			return loaded;
+		DatabaseUser owner = d.owner;
+		if (owner != null && d.exists)
+			owner.objects.put(u, d);
+		indexOwner(d);
+		queries.itemChanged(d);
+		return d;
+	}
+	
+	/**
+	 * Returns a loaded user without reading it from the backing store
+	 * @param u UUID To search
+	 * @return DatabaseUser or null if it isn't loaded
+	 */
+	DatabaseUser getLoadedUser(UUID u) {
+		DatabaseUser dbu = getUserCache() != null ? getUserCache().lookup(u) : users.get(u);
+		return dbu != null ? dbu : restoreEvictedUser(u);
+	}
+	
+	/**
+	 * Puts an evicted user whose change isn't written yet back in the cache
+	 * @param u UUID To search
+	 * @return DatabaseUser or null if no such user is waiting
+	 */
+	private DatabaseUser restoreEvictedUser(UUID u) {
+		DatabaseUser dbu = evictedUsers.remove(u);
+		if (dbu == null)
+			return null;
+		DatabaseUser loaded = users.putIfAbsent(u, dbu);
+		return loaded != null ? loaded : dbu;
+	}
+	
+	/**
+	 * Returns a loaded user without reading it from the backing store
+	 * @param name String To search
+	 * @return DatabaseUser or null if it isn't loaded
+	 */
+	DatabaseUser getLoadedUser(String name) {
+		UUID u = names.get(name);
+		return u == null ? null : getLoadedUser(u);
+	}
+	
+	/**
+	 * Registers a user read from the backing store, or returns the loaded one if it already is
+	 * @param name String User's name
+	 * @param u UUID User's UUID
+	 * @return DatabaseUser
+	 */
+	DatabaseUser registerUser(String name, UUID u) {
+		DatabaseUser loaded = users.get(u);
+		if (loaded == null)
+			loaded = restoreEvictedUser(u);
+		if (loaded != null)
+			return loaded;
+		return createUser(name, u);
 	}
 	
 	/**
@@ -113,13 +515,8 @@ public class Database implements Serializable{
 	 * @return boolean
 	 */
 	public boolean userLoaded(String name) {
-		if (useMongo)
-			return false;
-		for (DatabaseUser u : users.values()) {
-			if (u.getName().equalsIgnoreCase(name))
-				return true;
-		}
-		return false;
+		UUID u = names.get(name);
+		return u != null && users.containsKey(u);
 	}
 	
 	/**
@@ -128,9 +525,7 @@ public class Database implements Serializable{
 	 * @return boolean
 	 */
 	public boolean userLoaded(UUID u) {
-		if (useMongo)
-			return false;
-		return users.containsKey(u);
+		return u != null && users.containsKey(u);
 	}
 	
 	/**
@@ -139,17 +534,38 @@ public class Database implements Serializable{
 	 * @return DatabaseUser
 	 */
 	public DatabaseUser createUser(String name) {
-		if (allUsers.containsKey(name))
+		if (names.containsName(name))
 			return null;
+		awaitCapacity();
 		if (!verifyNewUser(name, null)) {
 			return null;
 		}
 		DatabaseUser temp = new DatabaseUser(name);
+		temp.manager = this;
+		//Two threads can get past the checks above with the same name, only one may claim it
+		if (!names.register(name, temp.getUUID()))
+			return null;
 		if (useMongo) {
-			writeUserMongo(temp);
+			try {
+				writeUserMongo(temp);
+			} catch (MongoWriteException e) {
+				names.remove(temp.getUUID());
+				//Another node took the name first, the unique name index turns that into a duplicate key error
+				if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY)
+					return null;
+				throw e;
+			}
+			users.put(temp.getUUID(), temp);
 		} else {
 			users.put(temp.getUUID(), temp);
-			allUsers.put(name, temp.getUUID());
+			markDirty(temp);
+			if (journal != null) {
+				try {
+					journal.appendUser(temp);
+				} catch (IOException e) {
+					LOG.log(Level.SEVERE, "Journal write failed.", e);
+				}
+			}
 		}
 		return temp;
 	}
@@ -163,28 +579,33 @@ public class Database implements Serializable{
 	 */
 	private DatabaseUser createUser(String name, UUID uuid) {
 		DatabaseUser temp = new DatabaseUser(name, uuid);
+		temp.manager = this;
+		if (!names.register(name, uuid))
+			LOG.severe("The name "+name+" of user "+uuid+" is already used by "+names.get(name)+".");
 		users.put(temp.getUUID(), temp);
-		allUsers.put(name, temp.getUUID());
 		return temp;
 	}
 	
+	/**
+	 * Checks that neither the name nor the UUID of a new user are taken
+	 * Names are compared without regard to case, in MongoDB through the collated name index
+	 * @param name String Name to check
+	 * @param u UUID UUID to check, may be null
+	 * @return boolean Whether both are free
+	 */
 	public boolean verifyNewUser(String name, UUID u) {
-		if (users.containsKey(u))
+		if (u != null && (users.containsKey(u) || names.containsUUID(u)))
 			return false;
-		if (allUsers.containsKey(name))
+		if (names.containsName(name))
 			return false;
 		if (useMongo) {
-			try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-				MongoDatabase database = mClient.getDatabase(mongoDBName);
-				MongoCollection<Document> item = database.getCollection(mongoUserCol);
-				
-				Bson filter = or(eq("_id", u), eq("name", name));
+			MongoCollection<Document> item = getMongo().getUserCollection();
+			
+			Bson filter = u == null ? eq("name", name) : or(eq("_id", u.toString()), eq("name", name));
 
-				Document d = item.find(filter).first();
-				
-				if (d ==null || d.isEmpty())
-					return true;
-			}
+			Document d = item.find(filter).collation(MongoConnection.NAME_COLLATION).first();
+			
+			return d == null || d.isEmpty();
 		}
 		return true;
 	}
@@ -197,10 +618,13 @@ public class Database implements Serializable{
 	public DatabaseUser getUser(String name) {
 		if (useMongo)
 			return getUserMongo(name);
-		UUID uuid = allUsers.get(name);
-		if (!users.containsKey(uuid))
-			return createUser(name, uuid);
-		return users.get(uuid);
+		UUID uuid = names.get(name);
+		if (uuid == null)
+			return null;
+		DatabaseUser u = users.get(uuid);
+		if (u == null)
+			return createUser(names.getName(uuid), uuid);
+		return u;
 	}
 	
 	/**
@@ -209,17 +633,17 @@ public class Database implements Serializable{
 	 * @return DatabaseUser
 	 */
 	public DatabaseUser getUser(UUID u) {
+		if (u == null)
+			return null;
 		if (useMongo)
 			return getUserMongo(u);
-		if (!users.containsKey(u))
-			if (allUsers.containsValue(u)) {
-				StringBuilder sb = new StringBuilder();
-				sb.append(allUsers.entrySet().stream()
-						.filter(entry -> u.equals(entry.getValue()))
-						.map(Map.Entry::getKey));
-				getUser(sb.toString());
-			}
-		return users.get(u);
+		DatabaseUser dbu = users.get(u);
+		if (dbu == null) {
+			String name = names.getName(u);
+			if (name != null)
+				dbu = createUser(name, u);
+		}
+		return dbu;
 	}
 	
 	/**
@@ -233,15 +657,20 @@ public class Database implements Serializable{
 	public <T extends Object> DatabaseObject<T> createItem(T info, DatabaseUser owner) {
 		if (info == null)
 			throw new NullPointerException();
+		awaitCapacity();
 		DatabaseObject<T> obj = new DatabaseObject<T>(info, owner);
 		obj.manager = this;
 		items.put(obj.getUUID(), obj);
+		indexOwner(obj);
+		queries.itemChanged(obj);
+		markDirty(obj);
 		return obj;
 	}
 	
 	/**
 	 * Creates a DatabaseObject with information of type T and stores it in the items HashMap
 	 * Used for creating DatabaseObjects from deserialization
+	 * If another thread loaded the same item first, that item is returned and nothing is created
 	 * @param <T> Type of information
 	 * @param info T Information to store
 	 * @param u UUID uuid to use
@@ -249,132 +678,572 @@ public class Database implements Serializable{
 	 * @param last_modification long Timestamp of last modification
 	 * @return
 	 */
+	@SuppressWarnings("unchecked")
 	protected <T extends Object> DatabaseObject<T> createItem(T info, UUID u, DatabaseUser owner, long last_modification) {
+		return (DatabaseObject<T>) registerLoaded(newLoadedItem(info, u, owner, last_modification));
+	}
+	
+	/**
+	 * Creates an item read from the backing store and registers it, unless another thread loaded it first
+	 * @param r DatabaseObjectAdapter.ItemRecord Decoded item
+	 * @param stored boolean Whether the record was read from MongoDB, making it the state transfers expect to find there
+	 * @return DatabaseObject<?> The item loaded under the record's UUID
+	 */
+	DatabaseObject<?> loadItem(DatabaseObjectAdapter.ItemRecord r, boolean stored) {
+		return loadItem(r, getUser(r.owner), stored);
+	}
+	
+	/**
+	 * Creates an item read from the backing store and registers it, unless another thread loaded it first
+	 * @param r DatabaseObjectAdapter.ItemRecord Decoded item
+	 * @param owner DatabaseUser Owner already looked up, null if it doesn't exist
+	 * @param stored boolean Whether the record was read from MongoDB, making it the state transfers expect to find there
+	 * @return DatabaseObject<?> The item loaded under the record's UUID
+	 */
+	DatabaseObject<?> loadItem(DatabaseObjectAdapter.ItemRecord r, DatabaseUser owner, boolean stored) {
+		DatabaseObject<Object> obj = newLoadedItem(r.information, r.uuid, owner, r.last_modification);
+		if (stored)
+			obj.markStored(r.owner, r.last_modification);
+		DatabaseObject<?> loaded = registerLoaded(obj);
+		//Stowed only once it won, a losing copy would leave its payload behind
+		if (loaded == obj)
+			stow(obj, r.payload);
+		return loaded;
+	}
+	
+	/**
+	 * Creates an item being loaded, it isn't registered or added to its owner yet
+	 * @param <T> Type of information
+	 * @param info T Information to store
+	 * @param u UUID uuid to use
+	 * @param owner DatabaseUser the item's owner
+	 * @param last_modification long Timestamp of last modification
+	 * @return DatabaseObject<T>
+	 */
+	private <T extends Object> DatabaseObject<T> newLoadedItem(T info, UUID u, DatabaseUser owner, long last_modification) {
 		if (info == null || u == null)
 			throw new NullPointerException();
-		DatabaseObject<T> obj = new DatabaseObject<T>(info, u, owner);
+		DatabaseObject<T> obj = new DatabaseObject<T>(info, u, null);
 		obj.manager = this;
+		obj.owner = owner;
 		obj.last_modification = last_modification;
-		items.put(obj.getUUID(), obj);
 		return obj;
 	}
 	
 	/**
-	 * Gets a specific object using MongoDB
-	 * @param u UUID To search
-	 * @return DatabaseObject<?>
+	 * Registers a loaded item and adds it to its owner, unless another thread registered the same UUID first
+	 * The owner's lock is held across both, so no one sees the item registered but missing from its owner
+	 * @param obj DatabaseObject<?> Item from newLoadedItem
+	 * @return DatabaseObject<?> obj, or the item registered before it
 	 */
-	public DatabaseObject<?> getObjectMongo(UUID u) {
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<JsonObject> item = database.getCollection(mongoItemCol, JsonObject.class);
-			
-			Bson filter = eq("_id", u.toString());
-			
-			JsonObject jo = item.find(filter).first();
-			Type ty = new TypeToken<DatabaseObject<?>>() {}.getType();
-			DatabaseObject<?> d = gson.fromJson(jo.getJson(), ty);
-			
-			return d;
+	private DatabaseObject<?> registerLoaded(DatabaseObject<?> obj) {
+		DatabaseUser owner = obj.owner;
+		ReentrantLock l = owner == null ? null : userLocks.lock(owner.getUUID());
+		try {
+			DatabaseObject<?> loaded = items.putIfAbsent(obj.getUUID(), obj);
+			if (loaded != null)
+				return loaded;
+			if (owner != null)
+				owner.addObject(obj, false);
+			indexOwner(obj);
+		} finally {
+			if (l != null)
+				l.unlock();
 		}
+		queries.itemChanged(obj);
+		return obj;
 	}
 	
 	/**
-	 * Gets a specific user using MongoDB
-	 * @param u UUID To search
-	 * @return DatabaseUser
+	 * Adds an item to its owner's entry in the owner index, destroyed items are left out
+	 * @param d DatabaseObject<?> Item to add
 	 */
-	public DatabaseUser getUserMongo(UUID u) {
-		if (users.containsKey(u))
-			return users.get(u);
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<Document> item = database.getCollection(mongoUserCol);
-			
-			Bson filter = eq("_id", u);
-
-			Document d = item.find(filter).first();
-			if (d == null)
-				return null;
-			String name = d.getString("name");
-			if (name == null || name.isEmpty())
-				return null;
-			return createUser(name, u);
-		}
+	private void indexOwner(DatabaseObject<?> d) {
+		DatabaseUser owner = d.owner;
+		if (owner != null && d.exists())
+			owners.add(owner.getUUID(), d.getUUID());
 	}
 	
 	/**
-	 * Gets a specific user using MongoDB
-	 * @param s String To search
-	 * @return DatabaseUser
+	 * Removes an item from its owner's entry in the owner index
+	 * @param d DatabaseObject<?> Item to remove
 	 */
-	public DatabaseUser getUserMongo(String s) {
-		if (allUsers.containsKey(s))
-			return users.get(allUsers.get(s));
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<Document> item = database.getCollection(mongoUserCol);
-			
-			Bson filter = eq("name", s);
-
-			Document d = item.find(filter).first();
-			if (d == null)
-				return null;
-			String id = d.getString("_id");
-			if (id == null || id.isEmpty())
-				return null;
-			UUID u = UUID.fromString(id);
-			return createUser(s, u);
-		}
+	private void unindexOwner(DatabaseObject<?> d) {
+		DatabaseUser owner = d.owner;
+		if (owner != null)
+			owners.remove(owner.getUUID(), d.getUUID());
 	}
 	
 	/**
-	 * Loads all items and users
-	 * @throws IOException
+	 * Moves an item between owners in the owner index
+	 * @param d DatabaseObject<?> Item that moved
+	 * @param from DatabaseUser Old owner, may be null
+	 * @param to DatabaseUser New owner, may be null
 	 */
-	public void load() throws IOException {
-
-		System.out.println("Load Started");
-		if (useMongo == true) {
-			//loadUsersMongo();
-			
-			//Adds the default user if the allUsers map is empty
-			if (allUsers.isEmpty()) {
-				System.out.println("Adding default user.");
-				createUser(DEFAULT_USER, DEFAULT_UUID);
-			}
-			
-			//loadItemsMongo();
-		}  else {
-			File uDir = new File(DEFAULT_FOLDER+"/users/");
-			
-			if (uDir.exists()) {
-				loadUsersFlatFile(uDir);
-			}
-
-			if (allUsers.isEmpty()) {
-				System.out.println("Map is empty adding default user.");
-				createUser(DEFAULT_USER, DEFAULT_UUID);
-			}
-			
-			File iFile = new File(DEFAULT_FOLDER+"/items/items.json");
-			if (iFile.exists()) {
-				loadItemsFlatFile(new InputStreamReader(new FileInputStream(iFile)));
+	private void reindexOwner(DatabaseObject<?> d, DatabaseUser from, DatabaseUser to) {
+		owners.move(from == null ? null : from.getUUID(), to == null || !d.exists() ? null : to.getUUID(), d.getUUID());
+	}
+	
+	/**
+	 * Finds an item based on its UUID, reading it from the backing store if it isn't loaded
+	 * @param u UUID To search
+	 * @return DatabaseObject<?> or null if it doesn't exist
+	 */
+	public DatabaseObject<?> getItem(UUID u) {
+		if (u == null)
+			return null;
+		if (useMongo)
+			return getObjectMongo(u);
+		DatabaseObject<?> d = items.get(u);
+		if (d != null)
+			return d;
+		if (segmentStore != null) {
+			try {
+				long started = metrics.start();
+				DatabaseObject<?> read = segmentStore.read(u);
+				metrics.stop("segment.read", started);
+				return read;
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, "Reading item "+u+" from the segment store failed.", e);
 			}
 		}
-
-
+		return null;
 	}
 	
 	/**
-	 * Loads users from a flatfile and puts them in the allUsers and users HashMaps
-	 * @param uDir File to Use
-	 * @throws IOException
+	 * Gets a specific object using MongoDB
+	 * @param u UUID To search
+	 * @return DatabaseObject<?>
 	 */
-	public void loadUsersFlatFile(File uDir) throws IOException {
-		allUsers.clear();
-		users.clear();
-		File[] users = uDir.listFiles(File::isDirectory);
+	public DatabaseObject<?> getObjectMongo(UUID u) {
+		DatabaseObject<?> d = getLoadedItem(u);
+		if (d != null)
+			return d;
+		MongoCollection<DatabaseObject<?>> item = getMongo().getItemCollection();
+		
+		Bson filter = eq("_id", u.toString());
+		
+		return item.find(filter).first();
+	}
+	
+	/**
+	 * Runs a query over item information, pushed down to MongoDB or evaluated against the flat file items
+	 * @param q ItemQuery Query to run
+	 * @return ItemQuery.Result
+	 * @throws IOException
+	 */
+	public ItemQuery.Result query(ItemQuery q) throws IOException {
+		long started = metrics.start();
+		try {
+			return queries.run(q);
+		} finally {
+			metrics.stop("query", started);
+		}
+	}
+	
+	/**
+	 * Indexes a field of one type of information for queries
+	 * @param infoType Class<?> Type of information
+	 * @param field String Field to index, nested fields separated by dots
+	 * @throws IOException
+	 */
+	public void createInfoIndex(Class<?> infoType, String field) throws IOException {
+		queries.createIndex(infoType.getName(), field);
+	}
+	
+	public ItemQueryEngine getQueryEngine() {
+		return queries;
+	}
+	
+	/**
+	 * Visits every existing flat file item once, stored segment items that aren't loaded are decoded without registering them
+	 * @param v ItemQueryEngine.ItemVisitor Called for every item
+	 * @throws IOException
+	 */
+	void forEachItem(ItemQueryEngine.ItemVisitor v) throws IOException {
+		SegmentStore store = segmentStore;
+		if (store != null) {
+			store.forEachRaw((u, payload) -> {
+				DatabaseObject<?> d = getLoadedItem(u);
+				if (d != null) {
+					if (d.exists())
+						v.visit(u, d.peekInformation(), d);
+					return;
+				}
+				//Dropped since the last write
+				if (dirtyItems.contains(u))
+					return;
+				try (JsonReader in = new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8))) {
+					DatabaseObjectAdapter.ItemRecord r = adapter.readRecord(in);
+					if (r.information != null)
+						v.visit(u, r.information, null);
+				} catch (IOException | RuntimeException e) {
+					LOG.log(Level.SEVERE, "Could not read item "+u+" from the segment store.", e);
+				}
+			});
+		}
+		for (DatabaseObject<?> d : snapshotItems())
+			if (d.exists() && (store == null || !store.contains(d.getUUID())))
+				v.visit(d.getUUID(), d.peekInformation(), d);
+	}
+	
+	/**
+	 * Returns whether items are kept in a segment store
+	 * @return boolean
+	 */
+	boolean hasSegmentStore() {
+		return segmentStore != null;
+	}
+	
+	/**
+	 * Returns a page of an owner's item UUIDs, without reading the items themselves
+	 * With MongoDB this is covered by the owner_id index and reflects what MongoDB holds, changes still waiting to be flushed aren't in it
+	 * @param owner UUID Owner's UUID
+	 * @param after UUID Cursor from the previous page, null for the first page
+	 * @param limit int Largest page size
+	 * @return ItemPage<UUID>
+	 */
+	public ItemPage<UUID> getItemIdsByOwner(UUID owner, UUID after, int limit) {
+		if (owner == null || limit <= 0)
+			return new ItemPage<UUID>(Collections.<UUID>emptyList(), null);
+		//One more than asked for tells whether there is a next page
+		List<UUID> ids = useMongo ? itemIdsByOwnerMongo(owner, after, limit + 1) : owners.page(owner, after, limit + 1);
+		if (ids.size() <= limit)
+			return new ItemPage<UUID>(ids, null);
+		ids = ids.subList(0, limit);
+		return new ItemPage<UUID>(ids, ids.get(limit - 1));
+	}
+	
+	/**
+	 * Returns a page of an owner's items, only the items on the page are read
+	 * @param owner UUID Owner's UUID
+	 * @param after UUID Cursor from the previous page, null for the first page
+	 * @param limit int Largest page size
+	 * @return ItemPage<DatabaseObject<?>>
+	 */
+	public ItemPage<DatabaseObject<?>> getItemsByOwner(UUID owner, UUID after, int limit) {
+		ItemPage<UUID> ids = getItemIdsByOwner(owner, after, limit);
+		Map<UUID, DatabaseObject<?>> read = useMongo ? readItemsMongo(ids.getResults()) : null;
+		List<DatabaseObject<?>> page = new ArrayList<DatabaseObject<?>>(ids.size());
+		for (UUID u : ids.getResults()) {
+			DatabaseObject<?> d = read != null ? read.get(u) : getItem(u);
+			if (d != null && d.exists())
+				page.add(d);
+		}
+		return new ItemPage<DatabaseObject<?>>(page, ids.getNext());
+	}
+	
+	/**
+	 * Returns the number of items an owner has
+	 * @param owner UUID Owner's UUID
+	 * @return long
+	 */
+	public long countItemsByOwner(UUID owner) {
+		if (owner == null)
+			return 0;
+		if (useMongo)
+			return getMongo().getItemDocuments().countDocuments(eq("owner", owner.toString()));
+		return owners.count(owner);
+	}
+	
+	/**
+	 * Finds a page of an owner's item UUIDs in MongoDB, only _id is returned
+	 * @param owner UUID Owner's UUID
+	 * @param after UUID Cursor or null
+	 * @param limit int Largest number of UUIDs
+	 * @return List<UUID>
+	 */
+	private List<UUID> itemIdsByOwnerMongo(UUID owner, UUID after, int limit) {
+		Bson filter = eq("owner", owner.toString());
+		if (after != null)
+			filter = and(filter, gt("_id", after.toString()));
+		List<UUID> ids = new ArrayList<UUID>(Math.min(limit, 64));
+		for (Document d : getMongo().getItemDocuments().find(filter).sort(Sorts.ascending("_id"))
+				.projection(Projections.include("_id")).limit(limit))
+			ids.add(UUID.fromString(d.getString("_id")));
+		return ids;
+	}
+	
+	/**
+	 * Returns the given items, the ones that aren't loaded are read from MongoDB in a single query
+	 * @param ids List<UUID> Items to return
+	 * @return Map<UUID, DatabaseObject<?>>
+	 */
+	Map<UUID, DatabaseObject<?>> readItemsMongo(List<UUID> ids) {
+		Map<UUID, DatabaseObject<?>> read = new HashMap<UUID, DatabaseObject<?>>();
+		List<String> missing = new ArrayList<String>();
+		for (UUID u : ids) {
+			DatabaseObject<?> d = getLoadedItem(u);
+			if (d != null)
+				read.put(u, d);
+			else
+				missing.add(u.toString());
+		}
+		if (!missing.isEmpty()) {
+			//Decoding registers each item, it may be evicted again before the page is built so they're kept here
+			for (DatabaseObject<?> d : getMongo().getItemCollection().find(in("_id", missing)))
+				if (d != null)
+					read.put(d.getUUID(), d);
+		}
+		return read;
+	}
+	
+	/**
+	 * Gets a specific user using MongoDB
+	 * @param u UUID To search
+	 * @return DatabaseUser
+	 */
+	public DatabaseUser getUserMongo(UUID u) {
+		DatabaseUser cached = getLoadedUser(u);
+		if (cached != null)
+			return cached;
+		MongoCollection<Document> item = getMongo().getUserCollection();
+		
+		Bson filter = eq("_id", u.toString());
+
+		Document d = item.find(filter).first();
+		if (d == null)
+			return null;
+		String name = d.getString("name");
+		if (name == null || name.isEmpty())
+			return null;
+		return registerUser(name, u);
+	}
+	
+	/**
+	 * Gets a specific user using MongoDB
+	 * @param s String To search
+	 * @return DatabaseUser
+	 */
+	public DatabaseUser getUserMongo(String s) {
+		DatabaseUser known = getLoadedUser(s);
+		if (known != null)
+			return known;
+		MongoCollection<Document> item = getMongo().getUserCollection();
+		
+		Bson filter = eq("name", s);
+
+		//Same collation as the unique name index, so the lookup uses it and ignores case
+		Document d = item.find(filter).collation(MongoConnection.NAME_COLLATION).first();
+		if (d == null)
+			return null;
+		String id = d.getString("_id");
+		if (id == null || id.isEmpty())
+			return null;
+		UUID u = UUID.fromString(id);
+		String name = d.getString("name");
+		return registerUser(name == null ? s : name, u);
+	}
+	
+	/**
+	 * Loads all items and users
+	 * @throws IOException
+	 */
+	public void load() throws IOException {
+
+		LOG.info("Load started.");
+		if (useMongo == true) {
+			//loadUsersMongo();
+			
+			//Adds the default user if no user is known yet
+			if (names.isEmpty()) {
+				LOG.info("Adding default user.");
+				markDirty(createUser(DEFAULT_USER, DEFAULT_UUID));
+			}
+			
+			//loadItemsMongo();
+		}  else {
+			File uDir = new File(DEFAULT_FOLDER+"/users/");
+			
+			if (userStore.equalsIgnoreCase("sharded")) {
+				loadUsersSharded(uDir);
+			} else if (uDir.exists()) {
+				loadUsersFlatFile(uDir);
+			}
+
+			if (names.isEmpty()) {
+				LOG.info("Map is empty adding default user.");
+				markDirty(createUser(DEFAULT_USER, DEFAULT_UUID));
+			}
+			
+			File iFile = new File(DEFAULT_FOLDER+"/items/items.json");
+			if (itemStore.equalsIgnoreCase("segment")) {
+				//Items are read from the segments on demand, nothing is loaded up front
+				segmentStore = new SegmentStore(new File(DEFAULT_FOLDER+"/items/segments/"), adapter, segmentMaxBytes);
+				segmentStore.open();
+				if (segmentStore.size() == 0 && iFile.exists())
+					importItemsJson(iFile);
+				indexSegmentOwners();
+			} else if (itemStore.equalsIgnoreCase("sharded")) {
+				loadItemsSharded(iFile);
+			} else if (iFile.exists()) {
+				loadItemsFlatFile(FlatFileItems.open(iFile));
+			}
+			
+			if (journalEnabled) {
+				if (journalCompactor == null)
+					journalCompactor = Executors.newSingleThreadExecutor(r -> {
+						Thread t = new Thread(r, "ItemJournal-compact");
+						t.setDaemon(true);
+						return t;
+					});
+				journal = new ItemJournal(new File(DEFAULT_FOLDER+"/items/items.wal"), adapter, journalSync, journalSyncIntervalMs);
+				int replayed = replayJournal();
+				journal.open();
+				if (replayed > 0) {
+					LOG.info("Replayed "+replayed+" journal records.");
+					compactJournal();
+				}
+			}
+		}
+
+
+	}
+	
+	/**
+	 * Fills the owner index from the segment store, only the owner of each record is decoded
+	 * @throws IOException
+	 */
+	private void indexSegmentOwners() throws IOException {
+		owners.clear();
+		segmentStore.forEachRaw((u, payload) -> {
+			try (JsonReader in = new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8))) {
+				owners.add(adapter.readOwner(in), u);
+			} catch (IOException | RuntimeException e) {
+				LOG.log(Level.SEVERE, "Could not read the owner of item "+u+".", e);
+			}
+		});
+	}
+	
+	/**
+	 * Applies every record in the journal on top of the loaded items and users
+	 * @return int Number of records replayed
+	 * @throws IOException
+	 */
+	private int replayJournal() throws IOException {
+		return journal.replay(new ItemJournal.Handler() {
+			@Override
+			public void item(DatabaseObjectAdapter.ItemRecord r, boolean destroyed) {
+				if (r.uuid == null)
+					return;
+				DatabaseObject<?> d = getItem(r.uuid);
+				DatabaseUser owner = getUser(r.owner);
+				if (d == null) {
+					if (r.information == null)
+						return;
+					d = createItem(r.information, r.uuid, owner, r.last_modification);
+				} else {
+					d.restore(r.information, owner, r.last_modification);
+				}
+				if (destroyed) {
+					d.exists = false;
+					unindexOwner(d);
+					queries.itemRemoved(d);
+					//Dropped entirely, or compaction would write it back and the next start would bring it back
+					DatabaseUser o = d.owner;
+					if (o != null)
+						o.objects.remove(d.getUUID());
+					items.remove(d.getUUID());
+					//Lets the segment store drop its copy on the next write
+					dirtyItems.add(d.getUUID());
+				}
+			}
+			
+			@Override
+			public void user(UUID u, String name) {
+				if (u == null || name == null || users.containsKey(u))
+					return;
+				markDirty(createUser(name, u));
+			}
+		});
+	}
+	
+	/**
+	 * Imports an items.json file into the segment store
+	 * @param f File To import
+	 * @return int Number of items imported
+	 * @throws IOException
+	 */
+	public int importItemsJson(File f) throws IOException {
+		if (segmentStore == null)
+			throw new IllegalStateException("The segment store is not in use.");
+		LOG.info("Importing "+f+" into the segment store...");
+		int imported;
+		try (Reader r = FlatFileItems.open(f)) {
+			imported = segmentStore.importJson(r);
+		}
+		LOG.info("Imported "+imported+" items.");
+		return imported;
+	}
+	
+	/**
+	 * Writes users and every item to disk and empties the journal
+	 * Changes are held back while this runs so nothing is dropped from the journal before it is on disk
+	 * @throws IOException
+	 */
+	public void compactJournal() throws IOException {
+		checkpointLock.writeLock().lock();
+		try {
+			writeUsersFlatFile();
+			writeItemsFile();
+			if (journal != null)
+				journal.reset();
+		} finally {
+			checkpointLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Queues a compaction on the compactor thread once the journal grows past journalCompactBytes
+	 * Mutators may still hold user locks here, so they never compact themselves
+	 */
+	private void queueJournalCompaction() {
+		ItemJournal j = journal;
+		ExecutorService c = journalCompactor;
+		if (j == null || c == null || j.size() <= journalCompactBytes || !compactionQueued.compareAndSet(false, true))
+			return;
+		try {
+			c.execute(() -> {
+				try {
+					compactJournalIfFull();
+				} catch (IOException e) {
+					LOG.log(Level.SEVERE, "Journal compaction failed.", e);
+				} finally {
+					compactionQueued.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			//Stopping, the final write empties the journal
+			compactionQueued.set(false);
+		}
+	}
+	
+	/**
+	 * Compacts the journal once it grows past journalCompactBytes
+	 * Checked again under the lock, so a compaction queued behind a flush that already emptied the journal does nothing
+	 * @throws IOException
+	 */
+	private void compactJournalIfFull() throws IOException {
+		if (journal == null || journal.size() <= journalCompactBytes)
+			return;
+		checkpointLock.writeLock().lock();
+		try {
+			if (journal != null && journal.size() > journalCompactBytes)
+				compactJournal();
+		} finally {
+			checkpointLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Loads users from a flatfile and puts them in the name index and users map
+	 * @param uDir File to Use
+	 * @throws IOException
+	 */
+	public void loadUsersFlatFile(File uDir) throws IOException {
+		names.clear();
+		users.clear();
+		File[] users = uDir.listFiles(File::isDirectory);
 		for (File f : users) {
 			String name = f.getName();
 			File uInfo = new File(f.getPath()+"/userinfo");
@@ -388,221 +1257,1237 @@ public class Database implements Serializable{
 				if (uuidProp == null || uuidProp.isEmpty())
 					continue;
 				UUID u = UUID.fromString(uuidProp);
-				allUsers.put(name, u);
 				createUser(name, u);
 
-				System.out.println("Added "+name+" to all user map.");
+				LOG.fine("Added "+name+" to all user map.");
 			}
 			
 		}
 	}
 	
 	/**
-	 * Loads users from MongoDB and stores them in the allUsers and users HashMaps
-	 * @throws UnknownHostException
+	 * Returns the shard layout, created the first time it is needed
+	 * @return FlatFileShards
+	 */
+	private synchronized FlatFileShards shards() {
+		if (shards == null)
+			shards = new FlatFileShards(new File(DEFAULT_FOLDER+"/shards/"), flatFileShards);
+		return shards;
+	}
+	
+	/**
+	 * Loads users from their shard files, one fork/join task per file
+	 * Without any shards the per user directories are loaded instead and written out as shards by the next write
+	 * @param uDir File Directory of the per user layout
+	 * @throws IOException
+	 */
+	public void loadUsersSharded(File uDir) throws IOException {
+		List<File> files = shards().existing(FlatFileShards.USERS);
+		if (files.isEmpty()) {
+			if (uDir.exists()) {
+				loadUsersFlatFile(uDir);
+				dirtyUsers.addAll(users.keySet());
+				userShardsStale = true;
+			}
+			return;
+		}
+		names.clear();
+		users.clear();
+		List<Integer> loaded = FlatFileShards.run(files.size(), i -> {
+			try (Reader r = FlatFileItems.open(files.get(i))) {
+				return FlatFileShards.readUsers(r, (u, name, lastModified) -> createUser(name, u).last_modification = lastModified);
+			}
+		});
+		userShardsStale = !shards().matches(FlatFileShards.USERS, files);
+		LOG.info("Loaded "+sum(loaded)+" users from "+files.size()+" shards.");
+	}
+	
+	/**
+	 * Loads items from their shard files, one fork/join task per file
+	 * Without any shards items.json is loaded instead and written out as shards by the next write
+	 * @param iFile File items.json
+	 * @throws IOException
+	 */
+	public void loadItemsSharded(File iFile) throws IOException {
+		List<File> files = shards().existing(FlatFileShards.ITEMS);
+		if (files.isEmpty()) {
+			if (iFile.exists()) {
+				loadItemsFlatFile(FlatFileItems.open(iFile));
+				dirtyItems.addAll(items.keySet());
+				itemShardsStale = true;
+			}
+			return;
+		}
+		long started = metrics.start();
+		items.clear();
+		owners.clear();
+		queries.clearIndexes();
+		//Users are all loaded at this point, so items of different shards only meet in thread safe maps
+		List<Integer> loaded = FlatFileShards.run(files.size(), i -> {
+			try (Reader r = FlatFileItems.open(files.get(i))) {
+				return readItems(r, files.get(i).getName());
+			}
+		});
+		itemShardsStale = !shards().matches(FlatFileShards.ITEMS, files);
+		metrics.stop("load.items", started);
+		LOG.info("Loaded "+sum(loaded)+" items from "+files.size()+" shards.");
+	}
+	
+	private static long sum(List<? extends Number> l) {
+		long total = 0;
+		for (Number n : l)
+			total += n.longValue();
+		return total;
+	}
+	
+	/**
+	 * Loads users from MongoDB and stores them in the name index and users map
+	 * @throws UnknownHostException
+	 */
+	public void loadUsersMongo() {
+		names.clear();
+		users.clear();
+		
+		long started = metrics.start();
+		MongoCollection<BsonDocument> col = getMongo().getUserCollection().withDocumentClass(BsonDocument.class);
+		long loaded;
+		try (MongoBulkLoader loader = new MongoBulkLoader(mongoLoadParallelism, mongoLoadBatchSize)) {
+			loaded = count(loader.read(col, "users", d -> {
+				BsonValue id = d.get("_id");
+				BsonValue name = d.get("name");
+				if (id == null || !id.isString() || name == null || !name.isString())
+					return null;
+				DatabaseUser dbu = createUser(name.asString().getValue(), UUID.fromString(id.asString().getValue()));
+				BsonValue lm = d.get("last_modified");
+				if (lm != null && lm.isNumber())
+					dbu.last_modification = lm.asNumber().longValue();
+				return dbu;
+			}));
+		}
+		metrics.stop("load.users", started);
+		LOG.info("Loaded "+loaded+" users.");
+	}
+	
+	private static long count(List<? extends List<?>> slices) {
+		long total = 0;
+		for (List<?> l : slices)
+			total += l.size();
+		return total;
+	}
+	
+	/**
+	 * Writes a single user to MongoDB
+	 * @param dbu DatabaseUser To write
+	 */
+	public void writeUserMongo(DatabaseUser dbu) {
+		MongoCollection<Document> item = getMongo().getUserCollection();
+		
+		Document d = new Document("_id", dbu.getUUID().toString())
+				 .append("name", dbu.getName())
+				 .append("last_modified", dbu.last_modification);
+		Bson filter = Filters.eq("_id", dbu.getUUID().toString());
+		item.replaceOne(filter, d, new ReplaceOptions().upsert(true));
+	}
+	
+	/**
+	 * Writes a single object to MongoDB, only over the copy this node last saw
+	 * @param i DatabaseObject To write
+	 * @return boolean Whether it was written as sent, false if it changed meanwhile and stays dirty or changed elsewhere and was dropped
+	 */
+	public boolean writeItemMongo(DatabaseObject<?> i) {
+		MongoCollection<DatabaseObject<?>> item = getMongo().getItemCollection();
+		
+		DatabaseUser owner = i.owner;
+		UUID[] owners = {owner == null ? null : owner.getUUID()};
+		long[] modified = {i.last_modification};
+		UpdateResult r = item.replaceOne(storedState(i), i, storedWriteOptions(i));
+		List<DatabaseObject<?>> written = Collections.<DatabaseObject<?>>singletonList(i);
+		if (r.getMatchedCount() + (r.getUpsertedId() == null ? 0 : 1) == 1)
+			markWritten(written, owners, modified);
+		else
+			resolveWrites(written, owners, modified);
+		return i.storedModification == modified[0];
+	}
+	
+	/**
+	 * Filter replacing an item only over the copy this node last read or wrote
+	 * An item that was never written can't be stored anywhere else yet, so it is matched on its _id alone
+	 * @param i DatabaseObject<?> Item to write
+	 * @return Bson
+	 */
+	Bson storedState(DatabaseObject<?> i) {
+		return i.storedModification < 0 ? eq("_id", i.getUUID().toString()) : expectedState(i);
+	}
+	
+	/**
+	 * Options for replacing an item with storedState, only an item that was never written is inserted
+	 * @param i DatabaseObject<?> Item to write
+	 * @return ReplaceOptions
+	 */
+	static ReplaceOptions storedWriteOptions(DatabaseObject<?> i) {
+		return new ReplaceOptions().upsert(i.storedModification < 0);
+	}
+	
+	/**
+	 * Records that items were written with the owners and modification times they were sent with
+	 * @param written List<DatabaseObject<?>> Items written
+	 * @param owners UUID[] Owner of each when it was sent
+	 * @param modified long[] Modification time of each when it was sent
+	 */
+	void markWritten(List<DatabaseObject<?>> written, UUID[] owners, long[] modified) {
+		for (int n = 0; n < written.size(); n++)
+			written.get(n).markStored(owners[n], modified[n]);
+	}
+	
+	/**
+	 * Works out which of a set of conditional writes went through, when MongoDB matched fewer than were sent
+	 * Each item's stored owner and modification time are read back:
+	 * <ul>
+	 * <li>What was sent: the write went through.</li>
+	 * <li>What this node expects: it moved the item itself meanwhile, the item stays dirty and is sent again.</li>
+	 * <li>Anything else: another node changed it first, the local copy is dropped and read again on next use.</li>
+	 * </ul>
+	 * @param written List<DatabaseObject<?>> Items sent
+	 * @param owners UUID[] Owner of each when it was sent
+	 * @param modified long[] Modification time of each when it was sent
+	 * @return int Number of items that were written as sent
+	 */
+	int resolveWrites(List<DatabaseObject<?>> written, UUID[] owners, long[] modified) {
+		List<String> ids = new ArrayList<String>(written.size());
+		for (DatabaseObject<?> i : written)
+			ids.add(i.getUUID().toString());
+		Map<String, Document> stored = new HashMap<String, Document>();
+		int count = 0;
+		for (Document d : getMongo().getItemDocuments().find(in("_id", ids)).projection(Projections.include("owner", "last_modification")))
+			stored.put(d.getString("_id"), d);
+		for (int n = 0; n < written.size(); n++) {
+			DatabaseObject<?> i = written.get(n);
+			Document d = stored.get(i.getUUID().toString());
+			if (d != null && isState(d, owners[n], modified[n])) {
+				i.markStored(owners[n], modified[n]);
+				count++;
+			} else if (d != null && isState(d, i.storedOwner, i.storedModification)) {
+				markDirty(i);
+			} else {
+				metrics.counter("conflicts.writes").inc();
+				LOG.warning("Item "+i.getUUID()+" changed in MongoDB since it was read, dropping the local copy.");
+				DatabaseUser owner = i.owner;
+				ReentrantLock l = owner == null ? null : userLocks.lock(owner.getUUID());
+				try {
+					forgetItem(i);
+				} finally {
+					if (l != null)
+						l.unlock();
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns whether a stored item document has the given owner and modification time
+	 * @param d Document Stored item, at least its owner and last_modification
+	 * @param owner UUID Owner, may be null
+	 * @param modified long Modification time
+	 * @return boolean
+	 */
+	private static boolean isState(Document d, UUID owner, long modified) {
+		Object lm = d.get("last_modification");
+		String o = d.getString("owner");
+		return lm instanceof Number && ((Number) lm).longValue() == modified
+				&& (owner == null ? o == null : owner.toString().equals(o));
+	}
+	
+	/**
+	 * Moves an item to another user with a conditional update in MongoDB
+	 * The update only matches if the stored owner and last_modification are still the ones this
+	 * copy was read or written with, so two nodes moving the same item can't both succeed
+	 * @param o DatabaseObject<?> Item to move
+	 * @param target DatabaseUser New owner
+	 * @return ItemTransfer.Status Outcome
+	 */
+	public ItemTransfer.Status transferObjectMongo(DatabaseObject<?> o, DatabaseUser target) {
+		ItemTransfer t = new ItemTransfer(o, o == null ? null : o.getOwner(), target);
+		transferObjectsMongo(Collections.singletonList(t));
+		return t.getStatus();
+	}
+	
+	/**
+	 * Moves several items at once, either all of them are moved or none are
+	 * More than one transfer runs as a single MongoDB transaction, which needs a replica set
+	 * Every transfer's status is set, ABORTED marks the ones held back by another one failing
+	 * @param transfers List<ItemTransfer> Transfers to apply
+	 * @return boolean Whether every transfer went through
+	 */
+	public boolean transferObjectsMongo(List<ItemTransfer> transfers) {
+		if (!useMongo) {
+			//Nothing to race against without MongoDB, the in memory transfer is already atomic
+			boolean all = true;
+			for (ItemTransfer t : transfers) {
+				boolean done = t.getSource() != null && t.getSource().transferObject(t.getTarget(), t.getItem());
+				t.setStatus(done ? ItemTransfer.Status.TRANSFERRED : ItemTransfer.Status.REJECTED);
+				all &= done;
+			}
+			return all;
+		}
+		awaitCapacity();
+		Set<UUID> involved = new HashSet<UUID>();
+		for (ItemTransfer t : transfers) {
+			if (t.getSource() != null)
+				involved.add(t.getSource().getUUID());
+			if (t.getTarget() != null)
+				involved.add(t.getTarget().getUUID());
+		}
+		ReentrantLock[] locks = userLocks.lockAll(involved);
+		try {
+			if (!validateTransfers(transfers)) {
+				abortTransfers(transfers);
+				countTransfers(transfers);
+				return false;
+			}
+			//Items created here and never written can't be owned anywhere else, they are written as is first
+			for (ItemTransfer t : transfers)
+				if (t.getItem().storedModification < 0)
+					writeItemMongo(t.getItem());
+			
+			long now = System.currentTimeMillis();
+			MongoCollection<Document> col = getMongo().getItemDocuments();
+			if (transfers.size() == 1) {
+				ItemTransfer t = transfers.get(0);
+				UpdateResult r = col.updateOne(expectedState(t.getItem()), newState(t, now));
+				t.setStatus(r.getMatchedCount() == 0 ? ItemTransfer.Status.CONFLICT : ItemTransfer.Status.TRANSFERRED);
+			} else {
+				try (ClientSession session = getMongo().getClient().startSession()) {
+					session.withTransaction(() -> {
+						boolean conflict = false;
+						for (ItemTransfer t : transfers) {
+							UpdateResult r = col.updateOne(session, expectedState(t.getItem()), newState(t, now));
+							boolean matched = r.getMatchedCount() > 0;
+							t.setStatus(matched ? ItemTransfer.Status.TRANSFERRED : ItemTransfer.Status.CONFLICT);
+							conflict |= !matched;
+						}
+						//Throwing aborts the transaction, so the transfers that did match are undone
+						if (conflict)
+							throw new TransferConflictException();
+						return null;
+					});
+				} catch (TransferConflictException e) {
+					//Thrown by the callback only to abort the transaction, the statuses it set say which transfers conflicted
+					metrics.counter("conflicts.transfers").inc();
+					LOG.warning("Transfer transaction of "+transfers.size()+" items rolled back after a conflict.");
+				}
+			}
+			
+			boolean all = true;
+			for (ItemTransfer t : transfers)
+				all &= t.getStatus() == ItemTransfer.Status.TRANSFERRED;
+			for (ItemTransfer t : transfers) {
+				if (all)
+					applyTransfer(t, now);
+				else if (t.getStatus() == ItemTransfer.Status.CONFLICT)
+					forgetItem(t.getItem());
+				else
+					t.setStatus(ItemTransfer.Status.ABORTED);
+			}
+			countTransfers(transfers);
+			if (!all)
+				LOG.warning("Transfer conflict: "+transfers);
+			return all;
+		} catch (MongoException e) {
+			LOG.log(Level.SEVERE, "Transfer failed.", e);
+			//The outcome is unknown, so the local copies are dropped and read again on next use
+			for (ItemTransfer t : transfers) {
+				t.setStatus(ItemTransfer.Status.FAILED);
+				forgetItem(t.getItem());
+			}
+			countTransfers(transfers);
+			return false;
+		} finally {
+			UserLocks.unlock(locks);
+		}
+	}
+	
+	/**
+	 * Counts the outcome of every transfer under transfers.<status>
+	 * @param transfers List<ItemTransfer> Finished transfers
+	 */
+	private void countTransfers(List<ItemTransfer> transfers) {
+		for (ItemTransfer t : transfers)
+			metrics.counter("transfers."+t.getStatus().name().toLowerCase()).inc();
+	}
+	
+	/**
+	 * Runs the local checks of every transfer, the users involved must be locked
+	 * @param transfers List<ItemTransfer> Transfers to check
+	 * @return boolean Whether every transfer passed
+	 */
+	private boolean validateTransfers(List<ItemTransfer> transfers) {
+		Set<UUID> seen = new HashSet<UUID>();
+		Map<UUID, Integer> incoming = new HashMap<UUID, Integer>();
+		boolean valid = true;
+		for (ItemTransfer t : transfers) {
+			DatabaseObject<?> o = t.getItem();
+			DatabaseUser from = t.getSource();
+			DatabaseUser to = t.getTarget();
+			boolean ok = o != null && from != null && to != null && from != to
+					&& o.exists() && o.owner == from && from.hasObject(o.getUUID())
+					&& !to.hasObject(o.getUUID()) && seen.add(o.getUUID());
+			if (ok) {
+				int added = incoming.merge(to.getUUID(), 1, Integer::sum);
+				ok = to.objects.size() + added <= item_limit;
+			}
+			t.setStatus(ok ? ItemTransfer.Status.PENDING : ItemTransfer.Status.REJECTED);
+			valid &= ok;
+		}
+		return valid;
+	}
+	
+	/**
+	 * Marks every transfer that didn't fail on its own as aborted
+	 * @param transfers List<ItemTransfer> Transfers to mark
+	 */
+	private void abortTransfers(List<ItemTransfer> transfers) {
+		for (ItemTransfer t : transfers)
+			if (t.getStatus() == ItemTransfer.Status.PENDING)
+				t.setStatus(ItemTransfer.Status.ABORTED);
+	}
+	
+	/**
+	 * Filter matching an item only while MongoDB still holds the copy this node last saw
+	 * @param o DatabaseObject<?> Item
+	 * @return Bson
+	 */
+	private Bson expectedState(DatabaseObject<?> o) {
+		UUID owner = o.storedOwner;
+		return and(eq("_id", o.getUUID().toString()),
+				eq("owner", owner == null ? null : owner.toString()),
+				eq("last_modification", o.storedModification));
+	}
+	
+	/**
+	 * Update moving an item to its new owner
+	 * @param t ItemTransfer Transfer
+	 * @param now long New modification time
+	 * @return Bson
+	 */
+	private Bson newState(ItemTransfer t, long now) {
+		return Updates.combine(Updates.set("owner", t.getTarget().getUUID().toString()),
+				Updates.set("last_modification", now));
+	}
+	
+	/**
+	 * Applies a transfer MongoDB already accepted to the loaded objects, the users involved must be locked
+	 * The item isn't marked dirty, MongoDB already holds its new owner
+	 * @param t ItemTransfer Transfer
+	 * @param now long Modification time written to MongoDB
+	 */
+	private void applyTransfer(ItemTransfer t, long now) {
+		DatabaseObject<?> o = t.getItem();
+		reindexOwner(o, o.owner, t.getTarget());
+		o.owner = t.getTarget();
+		o.last_modification = now;
+		o.markStored(t.getTarget().getUUID(), now);
+		t.getTarget().objects.put(o.getUUID(), o);
+		t.getSource().objects.remove(o.getUUID());
+		t.getSource().touch();
+		t.getTarget().touch();
+	}
+	
+	/**
+	 * Drops a loaded item whose stored copy changed elsewhere, so the next lookup reads it again
+	 * @param o DatabaseObject<?> Item to drop
+	 */
+	private void forgetItem(DatabaseObject<?> o) {
+		if (o == null)
+			return;
+		items.remove(o.getUUID());
+		dirtyItems.remove(o.getUUID());
+		unindexOwner(o);
+		queries.itemRemoved(o);
+		o.detach();
+		DatabaseUser owner = o.owner;
+		if (owner != null)
+			owner.objects.remove(o.getUUID());
+	}
+	
+	/**
+	 * Thrown inside a transfer transaction to roll it back once a conflict is found
+	 */
+	private static class TransferConflictException extends RuntimeException {
+		private static final long serialVersionUID = 2816045367195431327L;
+	}
+	
+	/**
+	 * Loads all of the items from MongoDB and deserializes them.
+	 * @throws UnknownHostException
+	 */
+	public void loadItemsMongo() {
+		items.clear();
+		owners.clear();
+		queries.clearIndexes();
+		
+		long started = metrics.start();
+		MongoCollection<BsonDocument> col = getMongo().getItemDocuments().withDocumentClass(BsonDocument.class);
+		DatabaseObjectCodec codec = getItemCodec();
+		long loaded;
+		try (MongoBulkLoader loader = new MongoBulkLoader(mongoLoadParallelism, mongoLoadBatchSize)) {
+			//Slices are read and decoded in parallel, nothing is registered yet
+			List<List<DatabaseObjectAdapter.ItemRecord>> read = loader.read(col, "items", codec::readRecord);
+			//Grouped by owner so every owner is looked up and locked once, ownerless items are under null
+			Map<UUID, List<DatabaseObjectAdapter.ItemRecord>> byOwner = new HashMap<UUID, List<DatabaseObjectAdapter.ItemRecord>>();
+			for (List<DatabaseObjectAdapter.ItemRecord> slice : read)
+				for (DatabaseObjectAdapter.ItemRecord r : slice)
+					byOwner.computeIfAbsent(r.owner, k -> new ArrayList<DatabaseObjectAdapter.ItemRecord>()).add(r);
+			read = null;
+			loaded = loader.forEach(new ArrayList<Map.Entry<UUID, List<DatabaseObjectAdapter.ItemRecord>>>(byOwner.entrySet()),
+					e -> registerLoadedItems(e.getKey(), e.getValue()));
+		}
+		metrics.stop("load.mongo.items", started);
+		LOG.info("Loaded "+loaded+" items.");
+	}
+	
+	/**
+	 * Registers items of one owner read by a bulk load, the owner is looked up once and its collection filled under a single lock
+	 * Items read straight from MongoDB are also the state transfers expect to find there
+	 * @param owner UUID Owner of every record, null for ownerless items
+	 * @param records List<DatabaseObjectAdapter.ItemRecord> Decoded items
+	 * @return int Number of items registered
+	 */
+	int registerLoadedItems(UUID owner, List<DatabaseObjectAdapter.ItemRecord> records) {
+		DatabaseUser user = getUser(owner);
+		List<DatabaseObject<?>> created = new ArrayList<DatabaseObject<?>>(records.size());
+		Map<UUID, byte[]> payloads = new HashMap<UUID, byte[]>();
+		for (DatabaseObjectAdapter.ItemRecord r : records) {
+			if (r.information == null || r.uuid == null) {
+				LOG.severe("Skipped item "+r.uuid+" whose information could not be decoded.");
+				continue;
+			}
+			DatabaseObject<Object> obj = newLoadedItem(r.information, r.uuid, user, r.last_modification);
+			obj.markStored(owner, r.last_modification);
+			if (r.payload != null)
+				payloads.put(r.uuid, r.payload);
+			created.add(obj);
+		}
+		List<DatabaseObject<?>> registered = new ArrayList<DatabaseObject<?>>(created.size());
+		ReentrantLock l = user == null ? null : userLocks.lock(user.getUUID());
+		try {
+			//Items another thread loaded meanwhile keep that instance
+			for (DatabaseObject<?> obj : created)
+				if (items.putIfAbsent(obj.getUUID(), obj) == null)
+					registered.add(obj);
+			if (user != null)
+				user.addLoadedObjects(registered);
+			for (DatabaseObject<?> obj : registered)
+				indexOwner(obj);
+		} finally {
+			if (l != null)
+				l.unlock();
+		}
+		for (DatabaseObject<?> obj : registered) {
+			stow(obj, payloads.get(obj.getUUID()));
+			queries.itemChanged(obj);
+		}
+		return registered.size();
+	}
+	
+	/**
+	 * Rewrites items still stored with info as a JSON string into the BSON layout
+	 * @return MongoBulkWriter.Report Per batch counts and timings
+	 */
+	public MongoBulkWriter.Report migrateItemsMongo() {
+		MongoCollection<DatabaseObject<?>> item = getMongo().getItemCollection();
+		MongoBulkWriter<DatabaseObject<?>> writer = new MongoBulkWriter<DatabaseObject<?>>(item);
+		
+		for (DatabaseObject<?> d : item.find(exists("schema", false))) {
+			if (d == null || d.peekInformation() == null)
+				continue;
+			writer.add(new ReplaceOneModel<DatabaseObject<?>>(storedState(d), d, storedWriteOptions(d)));
+		}
+		MongoBulkWriter.Report r = writer.flush();
+		LOG.info("Migrated items: "+r);
+		return r;
+	}
+	
+	/**
+	 * Deserializes items from a flatfile and puts them into the item HashMap
+	 * Entries are streamed and registered one at a time, loading stops at the first malformed entry
+	 * @param r Reader To use
+	 * @return int Number of items loaded
+	 * @throws IOException
+	 */
+	public int loadItemsFlatFile(Reader r) throws IOException {
+		long started = metrics.start();
+		items.clear();
+		owners.clear();
+		queries.clearIndexes();
+		
+		int loaded = readItems(r, "items.json");
+		metrics.stop("load.items", started);
+		LOG.info("Loaded "+loaded+" items.");
+		return loaded;
+	}
+	
+	/**
+	 * Streams the entries of an items.json style file and registers each item
+	 * @param r Reader To use
+	 * @param source String Name of the file, for the log
+	 * @return int Number of items loaded before the end or the first malformed entry
+	 * @throws IOException
+	 */
+	private int readItems(Reader r, String source) throws IOException {
+		int loaded = 0;
+		try (JsonReader in = new JsonReader(r instanceof BufferedReader ? r : new BufferedReader(r))) {
+			if (in.peek() == JsonToken.END_DOCUMENT)
+				return 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				String key = in.nextName();
+				try {
+					//Reading registers the item, nothing is held here
+					adapter.read(in);
+				} catch (RuntimeException | IOException e) {
+					LOG.log(Level.SEVERE, "Malformed item "+key+" after "+loaded+" items of "+source+", stopping load.", e);
+					break;
+				}
+				loaded++;
+				if (loaded % LOAD_PROGRESS_INTERVAL == 0)
+					LOG.info("Loaded "+loaded+" items of "+source+"...");
+			}
+		}
+		return loaded;
+	}
+	
+	/**
+	 * Writes information to either MongoDB or a Flatfile depending on useMongo
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+		flush();
+		if (useMongo == true) {
+			//Items unloaded here may still be referenced, their information goes back on the heap before the store starts over
+			if (payloads != null) {
+				for (DatabaseObject<?> d : snapshotItems())
+					d.detach();
+				payloads = new OffHeapStore(offHeapSlabBytes, offHeapMaxBytes);
+			}
+			users.clear();
+			names.clear();
+			items.clear();
+			owners.clear();
+			queries.clearIndexes();
+			dirtyUsers.clear();
+			dirtyItems.clear();
+			evictedItems.clear();
+			evictedUsers.clear();
+		}
+	}
+	
+	/**
+	 * Writes every item and user that changed since the last write, keeping everything loaded
+	 * @return FlushResult What was written
+	 * @throws IOException
+	 */
+	public FlushResult flush() throws IOException {
+		long started = metrics.start();
+		FlushResult r;
+		try {
+			r = flushChanges();
+		} finally {
+			metrics.stop("flush", started);
+		}
+		stowClean();
+		return r;
+	}
+	
+	/**
+	 * Does the work of flush, which times it
+	 * @return FlushResult What was written
+	 * @throws IOException
+	 */
+	private FlushResult flushChanges() throws IOException {
+		if (useMongo == true) {
+			MongoBulkWriter.Report users = writeUsersMongo();
+			MongoBulkWriter.Report items = writeItemsMongo();
+			releaseEvicted();
+			releaseEvictedUsers();
+			return new FlushResult(items.getWritten(), users.getWritten(), items.getFailed() + users.getFailed());
+		}
+		checkpointLock.writeLock().lock();
+		try {
+			int items = dirtyItems.size();
+			int users = dirtyUsers.size();
+			writeUsersFlatFile();
+			writeItemsFlatFile();
+			//Everything in the journal is on disk now
+			if (journal != null)
+				journal.reset();
+			return new FlushResult(items, users, 0);
+		} finally {
+			checkpointLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Counts of a single flush
+	 */
+	public static class FlushResult {
+		private final long items;
+		private final long users;
+		private final long failed;
+		
+		FlushResult(long items, long users, long failed) {
+			this.items = items;
+			this.users = users;
+			this.failed = failed;
+		}
+		
+		public long getItems() {
+			return items;
+		}
+		
+		public long getUsers() {
+			return users;
+		}
+		
+		public long getFailed() {
+			return failed;
+		}
+	}
+	
+	/**
+	 * Writes the users that changed since the last write to a flatfile
+	 * @throws IOException
+	 */
+	public void writeUsersFlatFile() throws IOException {
+		if (userStore.equalsIgnoreCase("sharded")) {
+			writeUserShards();
+			return;
+		}
+		File uDir = new File(DEFAULT_FOLDER+"/users/");
+		uDir.mkdirs();
+		for (UUID id : dirtyUsers.toArray(new UUID[0])) {
+			DatabaseUser dbu = users.get(id);
+			if (dbu == null) {
+				dirtyUsers.remove(id);
+				continue;
+			}
+			String fName = DEFAULT_FOLDER+"/users/"+DEFAULT_USER_FOLDER;
+			fName = fName.replaceAll(USERNAME_PLACEHOLDER, dbu.getName());
+			
+			
+			File uuDir = new File(fName);
+			uuDir.mkdir();
+			
+			File f = new File(fName+"userinfo");
+			BufferedWriter bw = new BufferedWriter(new FileWriter(f));
+
+			bw.write("uuid="+dbu.getUUID().toString()+"\n");
+			bw.write("last_modified="+dbu.getLastModified()+"\n");
+			bw.close();
+			dirtyUsers.remove(dbu.getUUID());
+			
+			/*File f2 = new File(fName+"items");
+			bw = new BufferedWriter(new FileWriter(f2));
+
+			for (UUID uuid : dbu.getOwnedItems()) {
+				bw.write(uuid+"\n");
+			}
+			bw.close();*/
+			
+		}
+	}
+	
+	/**
+	 * Rewrites the user shards holding a changed user, or every shard when the layout on disk is stale
+	 * @throws IOException
+	 */
+	private void writeUserShards() throws IOException {
+		FlatFileShards layout = shards();
+		int n = layout.getCount();
+		boolean full = userShardsStale;
+		boolean[] changed = new boolean[n];
+		Arrays.fill(changed, full);
+		boolean any = full;
+		//Removed one at a time so users marked while this runs stay dirty
+		for (UUID u : dirtyUsers) {
+			dirtyUsers.remove(u);
+			changed[layout.shardOf(u)] = true;
+			any = true;
+		}
+		if (!any)
+			return;
+		List<List<DatabaseUser>> buckets = buckets(changed);
+		for (DatabaseUser dbu : snapshotUsers()) {
+			List<DatabaseUser> b = buckets.get(layout.shardOf(dbu.getUUID()));
+			if (b != null)
+				b.add(dbu);
+		}
+		layout.getDirectory().mkdirs();
+		try {
+			FlatFileShards.run(n, i -> changed[i] ? FlatFileShards.writeUsers(layout.file(FlatFileShards.USERS, i), buckets.get(i)) : 0);
+		} catch (IOException e) {
+			//What made it to disk isn't known any more
+			userShardsStale = true;
+			throw e;
+		}
+		if (full) {
+			layout.deleteExtra(FlatFileShards.USERS);
+			userShardsStale = false;
+		}
+	}
+	
+	/**
+	 * Rewrites the item shards holding a changed or dropped item, or every shard when all is set or the layout on disk is stale
+	 * @param all boolean Whether to rewrite every shard
+	 * @throws IOException
+	 */
+	private void writeItemShards(boolean all) throws IOException {
+		FlatFileShards layout = shards();
+		int n = layout.getCount();
+		boolean full = all || itemShardsStale;
+		boolean[] changed = new boolean[n];
+		Arrays.fill(changed, full);
+		if (full) {
+			dirtyItems.clear();
+		} else {
+			for (UUID u : dirtyItems) {
+				dirtyItems.remove(u);
+				changed[layout.shardOf(u)] = true;
+			}
+		}
+		List<List<DatabaseObject<?>>> buckets = buckets(changed);
+		for (DatabaseObject<?> d : items.values()) {
+			List<DatabaseObject<?>> b = buckets.get(layout.shardOf(d.getUUID()));
+			if (b != null)
+				b.add(d);
+		}
+		layout.getDirectory().mkdirs();
+		boolean gzip = gzipItems();
+		long started = metrics.start();
+		List<Long> bytes;
+		try {
+			bytes = FlatFileShards.run(n, i -> {
+				if (!changed[i])
+					return 0L;
+				File f = layout.file(FlatFileShards.ITEMS, i);
+				FlatFileItems.write(f, buckets.get(i), adapter, itemsCompact, gzip);
+				return f.length();
+			});
+		} catch (IOException e) {
+			itemShardsStale = true;
+			throw e;
+		}
+		metrics.stop("write.items", started);
+		metrics.counter("bytes.serialized").add(sum(bytes));
+		if (full) {
+			layout.deleteExtra(FlatFileShards.ITEMS);
+			itemShardsStale = false;
+		}
+	}
+	
+	/**
+	 * Returns one list per shard to fill, null for the shards that aren't written
+	 * @param <T> Type held
+	 * @param changed boolean[] Shards to write
+	 * @return List<List<T>>
+	 */
+	private static <T> List<List<T>> buckets(boolean[] changed) {
+		List<List<T>> buckets = new ArrayList<List<T>>(changed.length);
+		for (boolean c : changed)
+			buckets.add(c ? new ArrayList<T>() : null);
+		return buckets;
+	}
+	
+	/**
+	 * Returns whether items files are gzipped, warning about unknown itemsCompression values
+	 * @return boolean
+	 */
+	private static boolean gzipItems() {
+		boolean gzip = itemsCompression.equalsIgnoreCase("gzip");
+		if (!gzip && !itemsCompression.equalsIgnoreCase("none"))
+			LOG.warning("Unknown items compression "+itemsCompression+", writing uncompressed.");
+		return gzip;
+	}
+	
+	/**
+	 * Writes the item HashMap to a flatfile
+	 * items.json holds every item, so it is only rewritten if at least one item changed
+	 * The file is streamed to a temp file and renamed over the old one, see FlatFileItems
+	 * @throws IOException
+	 */
+	public void writeItemsFlatFile() throws IOException {
+		if (dirtyItems.isEmpty())
+			return;
+		if (segmentStore != null) {
+			//Segments take just the changes, removed items are dropped from the index
+			List<UUID> removed = new ArrayList<UUID>();
+			for (UUID u : dirtyItems)
+				if (!items.containsKey(u))
+					removed.add(u);
+			metrics.counter("bytes.serialized").add(segmentStore.write(takeDirtyItems(), removed));
+			return;
+		}
+		if (itemStore.equalsIgnoreCase("sharded")) {
+			writeItemShards(false);
+			return;
+		}
+		writeItemsFile();
+	}
+	
+	/**
+	 * Writes every loaded item to items.json, or to the segment store or shards when they are in use
+	 * @throws IOException
+	 */
+	private void writeItemsFile() throws IOException {
+		if (segmentStore != null) {
+			List<UUID> removed = new ArrayList<UUID>();
+			for (UUID u : dirtyItems)
+				if (!items.containsKey(u))
+					removed.add(u);
+			metrics.counter("bytes.serialized").add(segmentStore.write(items.values(), removed));
+			dirtyItems.clear();
+			return;
+		}
+		if (itemStore.equalsIgnoreCase("sharded")) {
+			writeItemShards(true);
+			return;
+		}
+		File iDir = new File(DEFAULT_FOLDER+"/items/");
+		iDir.mkdir();
+
+		boolean gzip = gzipItems();
+		File iFile = new File(iDir, "items.json");
+		long started = metrics.start();
+		FlatFileItems.write(iFile, items.values(), adapter, itemsCompact, gzip);
+		metrics.stop("write.items", started);
+		metrics.counter("bytes.serialized").add(iFile.length());
+		dirtyItems.clear();
+	}
+	
+	/**
+	 * Writes the item HashMap to the MongoDB specified in Config
+	 * Items are sent in bulkWrite batches sized by mongoBulkBatchSize
+	 * @return MongoBulkWriter.Report Per batch counts and timings
+	 */
+	public MongoBulkWriter.Report writeItemsMongo() {
+		MongoBulkWriter<DatabaseObject<?>> writer = new MongoBulkWriter<DatabaseObject<?>>(getMongo().getItemCollection());
+		
+		List<DatabaseObject<?>> changed = takeDirtyItems();
+		UUID[] owners = new UUID[changed.size()];
+		long[] modified = new long[changed.size()];
+		for (int n = 0; n < changed.size(); n++) {
+			DatabaseObject<?> i = changed.get(n);
+			DatabaseUser owner = i.owner;
+			owners[n] = owner == null ? null : owner.getUUID();
+			modified[n] = i.last_modification;
+			//Only replaces the copy this node last saw, so a transfer committed elsewhere is never overwritten
+			writer.add(new ReplaceOneModel<DatabaseObject<?>>(storedState(i), i, storedWriteOptions(i)));
+		}
+		MongoBulkWriter.Report r = writer.flush();
+		//A failed flush marks everything it held dirty again, whatever did go through is found on the next one
+		if (r.getFailed() > 0) {
+			for (DatabaseObject<?> i : changed)
+				markDirty(i);
+		} else if (r.getMatched() + r.getUpserted() < changed.size()) {
+			resolveWrites(changed, owners, modified);
+		} else {
+			markWritten(changed, owners, modified);
+		}
+		LOG.info("Wrote items: "+r);
+		return r;
+	}
+	
+	/**
+	 * Writes the user HashMap to the MongoDB specified in Config
+	 * Users are sent in bulkWrite batches sized by mongoBulkBatchSize
+	 * @return MongoBulkWriter.Report Per batch counts and timings
+	 */
+	public MongoBulkWriter.Report writeUsersMongo() {
+		MongoBulkWriter<Document> writer = new MongoBulkWriter<Document>(getMongo().getUserCollection());
+		
+		List<DatabaseUser> changed = takeDirtyUsers();
+		for (DatabaseUser dbu : changed) {
+			Document d = new Document("_id", dbu.getUUID().toString())
+							 .append("name", dbu.getName())
+							 .append("last_modified", dbu.last_modification);
+			writer.upsert(dbu.getUUID().toString(), d);
+		}
+		MongoBulkWriter.Report r = writer.flush();
+		if (r.getFailed() > 0)
+			for (DatabaseUser dbu : changed)
+				markDirty(dbu);
+		LOG.info("Wrote users: "+r);
+		return r;
+	}
+	
+	/**
+	 * Holds the caller back while the write behind flush has too many changes waiting
+	 * Called at the start of public changes, before any user lock is taken, never from markDirty
 	 */
-	public void loadUsersMongo() {
-		allUsers.clear();
-		users.clear();
-		
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<Document> item = database.getCollection(mongoUserCol);
-			
-			FindIterable<Document> fi = item.find();
-			for (Document d : fi) {
-				UUID u = UUID.fromString(d.getString("_id"));
-				String name = d.getString("name");
-				createUser(name, u);
+	void awaitCapacity() {
+		WriteBehind wb = writeBehind;
+		if (wb != null)
+			wb.awaitCapacity();
+	}
+	
+	/**
+	 * Marks an item as changed so the next write persists it
+	 * @param o DatabaseObject<?> To mark
+	 */
+	void markDirty(DatabaseObject<?> o) {
+		checkpointLock.readLock().lock();
+		try {
+			dirtyItems.add(o.getUUID());
+			//An evicted item that is still being used goes back in the cache so the change isn't lost
+			evictedItems.remove(o.getUUID(), o);
+			if (items instanceof CacheMap && items.putIfAbsent(o.getUUID(), o) == null) {
+				DatabaseUser owner = o.owner;
+				if (owner != null && o.exists)
+					owner.objects.put(o.getUUID(), o);
 			}
+			if (journal != null)
+				journal.appendItem(o);
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, "Journal write failed.", e);
+		} finally {
+			checkpointLock.readLock().unlock();
 		}
-		
+		queueJournalCompaction();
+		WriteBehind wb = writeBehind;
+		if (wb != null)
+			wb.changed(dirtyItems.size() + dirtyUsers.size());
 	}
 	
 	/**
-	 * Writes a single user to MongoDB
-	 * @param dbu DatabaseUser To write
+	 * Marks a user as changed so the next write persists it
+	 * @param u DatabaseUser To mark
 	 */
-	public void writeUserMongo(DatabaseUser dbu) {
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<Document> item = database.getCollection(mongoUserCol);
-			
-			Document d = new Document("_id", dbu.getUUID().toString())
-					 .append("name", dbu.getName())
-					 .append("last_modified", dbu.last_modification);
-			Bson filter = Filters.eq("_id", dbu.getUUID().toString());
-			item.replaceOne(filter, d, new ReplaceOptions().upsert(true));
+	void markDirty(DatabaseUser u) {
+		checkpointLock.readLock().lock();
+		try {
+			dirtyUsers.add(u.getUUID());
+		} finally {
+			checkpointLock.readLock().unlock();
 		}
+		WriteBehind wb = writeBehind;
+		if (wb != null)
+			wb.changed(dirtyItems.size() + dirtyUsers.size());
 	}
 	
 	/**
-	 * Writes a single object to MongoDB
-	 * @param i DatabaseObject To write
+	 * Marks every loaded item and user as changed, forcing the next write to persist everything
 	 */
-	public void writeItemMongo(DatabaseObject<?> i) {
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<JsonObject> item = database.getCollection(mongoItemCol, JsonObject.class);
-			
-			JsonObject temp = new JsonObject(i.toJson());
-			
-			Bson filter = Filters.eq("_id", i.getUUID().toString());
-			item.replaceOne(filter, temp, new ReplaceOptions().upsert(true));
+	public void markAllDirty() {
+		//The caches in MongoDB mode can only be iterated while holding their monitor
+		synchronized (items) {
+			dirtyItems.addAll(items.keySet());
+		}
+		synchronized (users) {
+			dirtyUsers.addAll(users.keySet());
 		}
 	}
 	
 	/**
-	 * Loads all of the items from MongoDB and deserializes them.
-	 * @throws UnknownHostException
+	 * Returns the number of items waiting to be written
+	 * @return int
 	 */
-	public void loadItemsMongo() {
-		items.clear();
-		
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<JsonObject> item = database.getCollection(mongoItemCol, JsonObject.class);
-			
-			FindIterable<JsonObject> fi = item.find();
-			for (JsonObject jo : fi) {
-				Type ty = new TypeToken<DatabaseObject<?>>() {}.getType();
-				DatabaseObject<?> d = gson.fromJson(jo.getJson(), ty);
-				d.manager = this;
-				items.put(d.getUUID(), d);
-				d.getOwner().addObject(d);
-			}
-		}
+	public int getDirtyItemCount() {
+		return dirtyItems.size();
 	}
 	
 	/**
-	 * Deserializes items from a flatfile and puts them into the item HashMap
-	 * @param r Reader To use
-	 * @throws IOException
+	 * Returns the number of users waiting to be written
+	 * @return int
 	 */
-	public void loadItemsFlatFile(Reader r) throws IOException {
-		items.clear();
-		
-		Type doT = new TypeToken<HashMap<UUID, DatabaseObject<?>>>() {}.getType();
-		HashMap<UUID, DatabaseObject<?>> hold = gson.fromJson(r, doT);
-		if (hold != null)
-			items = hold;
-		r.close();
-		
+	public int getDirtyUserCount() {
+		return dirtyUsers.size();
 	}
 	
 	/**
-	 * Writes information to either MongoDB or a Flatfile depending on useMongo
-	 * @throws IOException
+	 * Removes every dirty item that is still loaded from the dirty set and returns them
+	 * @return List<DatabaseObject<?>>
 	 */
-	public void write() throws IOException {
-		if (useMongo == true) {
-			writeUsersMongo();
-			writeItemsMongo();
-
-			users.clear();
-			allUsers.clear();
-			items.clear();
-		} else {
-			writeUsersFlatFile();
-			writeItemsFlatFile();
+	private List<DatabaseObject<?>> takeDirtyItems() {
+		List<DatabaseObject<?>> l = new ArrayList<DatabaseObject<?>>(dirtyItems.size());
+		//Removed one at a time so items marked while this runs stay dirty
+		for (UUID u : dirtyItems) {
+			dirtyItems.remove(u);
+			DatabaseObject<?> o = items.get(u);
+			if (o == null)
+				o = evictedItems.get(u);
+			if (o != null)
+				l.add(o);
 		}
+		return l;
 	}
 	
 	/**
-	 * Writes the user HashMap to a flatfile
-	 * @throws IOException
+	 * Removes items about to be written from the dirty set, changes made while they are written mark them again
+	 * @param written Collection<DatabaseObject<?>> Items about to be written
 	 */
-	public void writeUsersFlatFile() throws IOException {
-		File uDir = new File(DEFAULT_FOLDER+"/users/");
-		uDir.mkdirs();
-		for (DatabaseUser dbu : users.values()) {
+	void takeDirty(Collection<DatabaseObject<?>> written) {
+		for (DatabaseObject<?> i : written)
+			dirtyItems.remove(i.getUUID());
+	}
+	
+	/**
+	 * Returns every dirty user that is still loaded and removes them from the dirty set
+	 * @return List<DatabaseUser>
+	 */
+	private List<DatabaseUser> takeDirtyUsers() {
+		List<DatabaseUser> l = new ArrayList<DatabaseUser>(dirtyUsers.size());
+		for (UUID u : dirtyUsers) {
+			dirtyUsers.remove(u);
+			DatabaseUser dbu = users.get(u);
 			if (dbu == null)
+				dbu = evictedUsers.get(u);
+			if (dbu != null)
+				l.add(dbu);
+		}
+		return l;
+	}
+	
+	/**
+	 * Returns the item cache used in MongoDB mode
+	 * @return CacheMap<DatabaseObject<?>> or null if items aren't cached
+	 */
+	@SuppressWarnings("unchecked")
+	public CacheMap<DatabaseObject<?>> getItemCache() {
+		return items instanceof CacheMap ? (CacheMap<DatabaseObject<?>>) items : null;
+	}
+	
+	/**
+	 * Returns the user cache used in MongoDB mode
+	 * @return CacheMap<DatabaseUser> or null if users aren't cached
+	 */
+	@SuppressWarnings("unchecked")
+	public CacheMap<DatabaseUser> getUserCache() {
+		return users instanceof CacheMap ? (CacheMap<DatabaseUser>) users : null;
+	}
+	
+	/**
+	 * Evicts items from the MongoDB item cache, writing back the ones that changed
+	 */
+	private class ItemCachePolicy implements CacheMap.Policy<DatabaseObject<?>> {
+		@Override
+		public boolean canEvict(DatabaseObject<?> d) {
+			return true;
+		}
+		
+		@Override
+		public void evicted(UUID key, DatabaseObject<?> d) {
+			//Runs under the cache's monitor, so nothing here may block: writes and contended owners wait for the next flush
+			unindexOwner(d);
+			queries.itemRemoved(d);
+			if (!dirtyItems.contains(key) && release(key, d, false))
 				return;
-			String fName = DEFAULT_FOLDER+"/users/"+DEFAULT_USER_FOLDER;
-			fName = fName.replaceAll(USERNAME_PLACEHOLDER, dbu.getName());
-			
-			
-			File uuDir = new File(fName);
-			uuDir.mkdir();
-			
-			File f = new File(fName+"userinfo");
-			BufferedWriter bw = new BufferedWriter(new FileWriter(f));
-
-			bw.write("uuid="+dbu.getUUID().toString()+"\n");
-			bw.write("last_modified="+dbu.getLastModified()+"\n");
-			bw.close();
-			
-			/*File f2 = new File(fName+"items");
-			bw = new BufferedWriter(new FileWriter(f2));
-
-			for (UUID uuid : dbu.getOwnedItems()) {
-				bw.write(uuid+"\n");
-			}
-			bw.close();*/
-			
+			evictedItems.put(key, d);
+			WriteBehind wb = writeBehind;
+			if (wb != null)
+				wb.requestFlush();
+		}
+		
+		@Override
+		public long weigh(DatabaseObject<?> d) {
+			//Rough estimate, the object, its UUID and map entries plus the information
+			Object info = d.information;
+			if (info == null)
+				return 160;
+			if (info instanceof CharSequence)
+				return 160 + 2 * ((CharSequence) info).length();
+			if (info instanceof Number || info instanceof Boolean || info instanceof Character)
+				return 176;
+			return 288;
 		}
 	}
 	
 	/**
-	 * Writes the item HashMap to a flatfile
-	 * @throws IOException
+	 * Drops an evicted item from its owner and frees its off heap information
+	 * @param key UUID Item's UUID
+	 * @param d DatabaseObject<?> Evicted item
+	 * @param wait boolean Whether to wait for the owner's lock, or give up if another thread holds it
+	 * @return boolean Whether the item was released
 	 */
-	public void writeItemsFlatFile() throws IOException {
-		File iDir = new File(DEFAULT_FOLDER+"/items/");
-		iDir.mkdir();
-
-		BufferedWriter bw = new BufferedWriter(new FileWriter(new File(iDir.getPath()+"/items.json")));
-		String json = gson.toJson(items);
-		bw.write(json);
-
-		bw.close();
+	private boolean release(UUID key, DatabaseObject<?> d, boolean wait) {
+		DatabaseUser owner = d.owner;
+		ReentrantLock l = null;
+		if (owner != null) {
+			l = wait ? userLocks.lock(owner.getUUID()) : userLocks.tryLock(owner.getUUID());
+			if (l == null)
+				return false;
+		}
+		try {
+			//Used again since it was evicted, it stays
+			if (items.get(key) == d)
+				return true;
+			if (owner != null)
+				owner.objects.remove(key, d);
+			d.detach();
+			return true;
+		} finally {
+			if (l != null)
+				l.unlock();
+		}
 	}
 	
 	/**
-	 * Writes the item HashMap to the MongoDB specified in Config
-	 * @throws UnknownHostException
+	 * Releases the evicted users that have been written
 	 */
-	public void writeItemsMongo() {
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<JsonObject> item = database.getCollection(mongoItemCol, JsonObject.class);
-			
-			
-			DatabaseObject<?>[] d = items.values().toArray(new DatabaseObject<?>[0]);
-			for (int e = d.length-1; e >= 0; e--) {
-				DatabaseObject<?> i = d[e];
-				JsonObject temp = new JsonObject(i.toJson());
-				
-				Bson filter = Filters.eq("_id", i.getUUID().toString());
-				item.replaceOne(filter, temp, new ReplaceOptions().upsert(true));
-			}
+	private void releaseEvictedUsers() {
+		for (Map.Entry<UUID, DatabaseUser> e : evictedUsers.entrySet()) {
+			if (dirtyUsers.contains(e.getKey()))
+				continue;
+			if (evictedUsers.remove(e.getKey(), e.getValue()))
+				names.remove(e.getKey());
 		}
 	}
 	
 	/**
-	 * Writes the user HashMap to the MongoDB specified in Config
-	 * @throws UnknownHostException
+	 * Releases the evicted items that have been written
 	 */
-	public void writeUsersMongo() {
-		try (MongoClient mClient = MongoClients.create("mongodb://"+mongoIp +":" + mongoPort)) {
-			MongoDatabase database = mClient.getDatabase(mongoDBName);
-			MongoCollection<Document> item = database.getCollection(mongoUserCol);
-			
-			for (DatabaseUser dbu : users.values()) {
-				Document d = new Document("_id", dbu.getUUID().toString())
-								 .append("name", dbu.getName())
-								 .append("last_modified", dbu.last_modification);
-				Bson filter = Filters.eq("_id", dbu.getUUID().toString());
-				item.replaceOne(filter, d, new ReplaceOptions().upsert(true));
+	private void releaseEvicted() {
+		for (Map.Entry<UUID, DatabaseObject<?>> e : evictedItems.entrySet()) {
+			if (dirtyItems.contains(e.getKey()))
+				continue;
+			if (release(e.getKey(), e.getValue(), true))
+				evictedItems.remove(e.getKey(), e.getValue());
+		}
+	}
+	
+	/**
+	 * Evicts users that have no loaded items from the MongoDB user cache
+	 */
+	private class UserCachePolicy implements CacheMap.Policy<DatabaseUser> {
+		@Override
+		public boolean canEvict(DatabaseUser u) {
+			//Loaded items still point at their owner, evicting it would split the user in two
+			return u.objects.isEmpty();
+		}
+		
+		@Override
+		public void evicted(UUID key, DatabaseUser u) {
+			//Runs under the cache's monitor like ItemCachePolicy.evicted, a dirty user waits for the next flush
+			if (!dirtyUsers.contains(key)) {
+				names.remove(key);
+				return;
 			}
+			evictedUsers.put(key, u);
+			WriteBehind wb = writeBehind;
+			if (wb != null)
+				wb.requestFlush();
+		}
+		
+		@Override
+		public long weigh(DatabaseUser u) {
+			return 0;
 		}
 	}
 	
 	/**
 	 * Returns all of the loaded items
-	 * @return HashMap<UUID, DatabaseObject> Loaded items
+	 * @return Map<UUID, DatabaseObject> Loaded items
 	 */
-	public HashMap<UUID, DatabaseObject<?>> getLoadedItems() {
+	public Map<UUID, DatabaseObject<?>> getLoadedItems() {
 		return items;
 	}
 	
@@ -610,20 +2495,31 @@ public class Database implements Serializable{
 		//The database this item exists in
 		private Database manager;
 		
-		//The current owner of this object
-		private DatabaseUser owner;
+		//The current owner of this object, only changed while holding the owner's lock
+		private volatile DatabaseUser owner;
+		
+		//Information stored within this object, null while it is kept off heap
+		private volatile T information;
 		
-		//Information stored within this object
-		private T information;
+		//Handle of the serialized information in the database's OffHeapStore, NONE while it is on the heap
+		private volatile long payload = OffHeapStore.NONE;
+		
+		//Whether the information on the heap was handed out by getInformation, it is then never moved off heap
+		//again until putInformation replaces it, as the caller may still change it in place
+		private volatile boolean shared;
 		
 		//The objects UUID
 		private UUID uuid;
 		
 		//The last time this object was modified
-		private long last_modification = 0;
+		private volatile long last_modification = 0;
 		
 		//Destruction flag
-		private boolean exists = true;
+		private volatile boolean exists = true;
+		
+		//Owner and modification time of the copy in MongoDB, storedModification is -1 if it was never written
+		private volatile UUID storedOwner;
+		private volatile long storedModification = -1;
 		
 		/**
 		 * DatabaseObject constructor
@@ -631,7 +2527,7 @@ public class Database implements Serializable{
 		 * @param information T information to hold
 		 */
 		private DatabaseObject(T information, DatabaseUser owner) {
-			init(information, UUID.randomUUID(), owner);
+			init(information, UUID.randomUUID(), owner, true);
 			this.last_modification = System.currentTimeMillis();
 		}
 		
@@ -642,15 +2538,58 @@ public class Database implements Serializable{
 		 * @param uuid UUID uuid of object
 		 */
 		private DatabaseObject(T information, UUID uuid, DatabaseUser owner) {
-			init(information, uuid, owner);
+			init(information, uuid, owner, false);
 		}
 		
-		private void init(T information, UUID uuid, DatabaseUser owner) {
+		private void init(T information, UUID uuid, DatabaseUser owner, boolean touchOwner) {
 			this.information = information;
 			this.uuid = uuid;
 			this.owner = owner;
 			if (owner != null)
-				owner.addObject(this);
+				owner.addObject(this, touchOwner);
+		}
+		
+		/**
+		 * Sets the state of this object to a replayed state without counting it as a modification
+		 * @param information Object Information to hold
+		 * @param owner DatabaseUser Owner to move to
+		 * @param last_modification long Timestamp of last modification
+		 */
+		@SuppressWarnings("unchecked")
+		private void restore(Object information, DatabaseUser owner, long last_modification) {
+			if (information != null)
+				setInformation((T) information);
+			this.last_modification = last_modification;
+			if (information != null && manager != null)
+				manager.queries.itemChanged(this);
+			if (this.owner != owner) {
+				if (manager != null)
+					manager.reindexOwner(this, this.owner, owner);
+				if (this.owner != null)
+					this.owner.objects.remove(uuid);
+				this.owner = owner;
+				if (owner != null)
+					owner.addObject(this, false);
+			}
+		}
+		
+		/**
+		 * Records the state MongoDB holds for this object, used as the expected state of transfers
+		 * @param owner UUID Stored owner's UUID
+		 * @param last_modification long Stored modification time
+		 */
+		void markStored(UUID owner, long last_modification) {
+			this.storedOwner = owner;
+			this.storedModification = last_modification;
+		}
+		
+		/**
+		 * Updates the modification time and marks this object as dirty
+		 */
+		private void touch() {
+			this.last_modification = System.currentTimeMillis();
+			if (manager != null)
+				manager.markDirty(this);
 		}
 		
 		/**
@@ -658,16 +2597,123 @@ public class Database implements Serializable{
 		 * @param information T
 		 */
 		public void putInformation(T information) {
-			this.last_modification = System.currentTimeMillis();
+			if (manager != null)
+				manager.awaitCapacity();
+			setInformation(information);
+			if (manager != null)
+				manager.queries.itemChanged(this);
+			touch();
+		}
+		
+		/**
+		 * Puts information on the heap, any payload kept off heap is out of date and freed
+		 * @param information T
+		 */
+		private synchronized void setInformation(T information) {
 			this.information = information;
+			shared = false;
+			dropPayload();
+		}
+		
+		/**
+		 * Moves the information off heap, where it stays until it is read or changed
+		 * Nothing is moved if the store is full, the information was already moved or was handed out by getInformation
+		 * @param store OffHeapStore Store to use
+		 * @param encoded byte[] Information already encoded by the database's payload serializer, null to encode it here
+		 * @throws IOException
+		 */
+		synchronized void stow(OffHeapStore store, byte[] encoded) throws IOException {
+			T info = information;
+			if (info == null || payload != OffHeapStore.NONE || shared)
+				return;
+			if (encoded == null)
+				encoded = manager.payloadSerializer.encode(info);
+			long h = store.put(encoded);
+			if (h == OffHeapStore.NONE)
+				return;
+			payload = h;
+			information = null;
+		}
+		
+		/**
+		 * Brings the information kept off heap back onto the heap for good and frees its payload
+		 * @return T
+		 */
+		@SuppressWarnings("unchecked")
+		private synchronized T materialize() {
+			T info = information;
+			if (info != null || payload == OffHeapStore.NONE)
+				return info;
+			info = (T) manager.decodePayload(payload);
+			information = info;
+			dropPayload();
+			return info;
+		}
+		
+		/**
+		 * Returns the information for the database's own use, such as encoding and indexing it
+		 * Information kept off heap is decoded without keeping it, so it stays off heap
+		 * @return T
+		 */
+		T peekInformation() {
+			T info = information;
+			return info != null ? info : decodeStored();
+		}
+		
+		@SuppressWarnings("unchecked")
+		private synchronized T decodeStored() {
+			T info = information;
+			if (info != null || payload == OffHeapStore.NONE)
+				return info;
+			return (T) manager.decodePayload(payload);
+		}
+		
+		/**
+		 * Returns the information kept off heap as encoded by the database's payload serializer, without decoding it
+		 * @return byte[] or null while the information is on the heap
+		 */
+		synchronized byte[] storedPayload() {
+			return payload == OffHeapStore.NONE ? null : manager.payloads.get(payload);
+		}
+		
+		/**
+		 * Brings the information back onto the heap and frees its payload, used when the item is unloaded
+		 * but may still be held elsewhere
+		 */
+		synchronized void detach() {
+			materialize();
+		}
+		
+		/**
+		 * Frees the payload kept off heap, the lock must be held
+		 */
+		private void dropPayload() {
+			long h = payload;
+			if (h != OffHeapStore.NONE) {
+				manager.payloads.free(h);
+				payload = OffHeapStore.NONE;
+			}
 		}
 		
 		/**
 		 * Turns on the destroy flag so that the object can be destroyed.
 		 */
 		public void destroy() {
-			this.last_modification = System.currentTimeMillis();
+			if (manager != null)
+				manager.awaitCapacity();
+			markDestroyed();
+		}
+		
+		/**
+		 * Turns on the destroy flag, used by callers that may hold user locks
+		 */
+		private void markDestroyed() {
 			exists = false;
+			if (manager != null) {
+				manager.unindexOwner(this);
+				manager.queries.itemRemoved(this);
+			}
+			touch();
 		}
 
 		/**
@@ -688,10 +2734,21 @@ public class Database implements Serializable{
 		
 		/**
 		 * Returns the information held within this object
+		 * Information kept off heap is decoded on first use and stays on the heap until putInformation replaces it
 		 * @return T
 		 */
 		public T getInformation() {
-			return information;
+			T info = information;
+			return info != null && shared ? info : share();
+		}
+		
+		/**
+		 * Marks the information as handed out, under the lock so that it can't be moved off heap meanwhile
+		 * @return T
+		 */
+		private synchronized T share() {
+			shared = true;
+			return materialize();
 		}
 		
 		/**
@@ -715,17 +2772,18 @@ public class Database implements Serializable{
 		 * @return String JSON string
 		 */
 		public String toJson() {
+			if (manager != null)
+				return manager.getGson().toJson(this);
 			GsonBuilder gb = new GsonBuilder();
-			gb.registerTypeHierarchyAdapter(DatabaseObject.class, new DatabaseObjectAdapter(manager));
-			Gson gson = gb.create();
-			
-			return gson.toJson(this);
+			gb.registerTypeHierarchyAdapter(DatabaseObject.class, new DatabaseObjectAdapter(null));
+			return gb.create().toJson(this);
 		}
 		
 		@Override
 		public String toString() {
 			String s = "Object\n";
 			s += "UUID: "+uuid+"\n";
+			T information = getInformation();
 			s += "Information: {"+information.toString()+"}\n";
 			s += "Information Type: "+information.getClass()+"\n";
 			s += "Owner: "+owner.getName()+"\n";
@@ -737,7 +2795,7 @@ public class Database implements Serializable{
 			int result = uuid.compareTo(other.getUUID());
 			//Triggers the destroy flag if it matches another object of the same type's uuid, as one is a duplicate.
 			if (result == 0) {
-				destroy();
+				markDestroyed();
 			}
 			return result;
 		}
@@ -750,6 +2808,12 @@ public class Database implements Serializable{
 		 * 
 		 */
 		private static final long serialVersionUID = -3101083165791268022L;
+		
+		//Used by users that were never given a database
+		private static final UserLocks FALLBACK_LOCKS = new UserLocks(UserLocks.DEFAULT_STRIPES);
+		
+		//The database this user exists in
+		private transient Database manager;
 
 		//The user's name
 		private String name;
@@ -757,11 +2821,11 @@ public class Database implements Serializable{
 		//The user's UUID
 		private UUID uuid;
 		
-		//The objects that belong to a user
-		private HashMap<UUID, DatabaseObject<?>> objects = new HashMap<UUID, DatabaseObject<?>>();
+		//The objects that belong to a user, kept in UUID order
+		private Map<UUID, DatabaseObject<?>> objects = new SortedUUIDMap<DatabaseObject<?>>();
 		
 		//The last time this user was modified
-		private long last_modification = 0;
+		private volatile long last_modification = 0;
 		
 		
 		/**
@@ -787,33 +2851,86 @@ public class Database implements Serializable{
 			this.uuid = uuid;
 		}
 		
+		/**
+		 * Updates the modification time and marks this user as dirty
+		 */
+		private void touch() {
+			last_modification = System.currentTimeMillis();
+			if (manager != null)
+				manager.markDirty(this);
+		}
+		
+		/**
+		 * Returns the locks of this user's database, users without one share a fallback set
+		 * @return UserLocks
+		 */
+		private UserLocks locks() {
+			return manager != null ? manager.userLocks : FALLBACK_LOCKS;
+		}
+		
 		/**
 		 * Adds an object to the user's collection
 		 * @param object DatabaseObject<?>
 		 */
 		public boolean addObject(DatabaseObject<?> object) {
+			if (manager != null)
+				manager.awaitCapacity();
+			return addObject(object, true);
+		}
+		
+		/**
+		 * Adds an object to the user's collection
+		 * @param object DatabaseObject<?>
+		 * @param touch boolean Whether this counts as a modification, false when loading
+		 */
+		private boolean addObject(DatabaseObject<?> object, boolean touch) {
 			//Makes sure the object isn't null
 			if (object == null)
 				return false;
-			//Don't add the object if it should be destroyed
-			if (!object.exists()) 
-				return false;
-			//Don't add item if it would go over the item limit
-			if (objects.size() + 1 > item_limit)
-				return false;
-			last_modification = System.currentTimeMillis();
-			//Checks if user already has object with the same uuid
-			if (hasObject(object.getUUID())) {
-				//If so makes sure it is not trying to put the object it already has into itself
-				if (!objects.get(object.getUUID()).equals(object)) {
-					//Destroys this instance of the object if it is not the same.
-					object.destroy();
+			ReentrantLock l = locks().lock(uuid);
+			try {
+				//Don't add the object if it should be destroyed
+				if (!object.exists()) 
+					return false;
+				//Don't add item if it would go over the item limit
+				if (objects.size() + 1 > item_limit)
+					return false;
+				if (touch)
+					touch();
+				//Checks if user already has object with the same uuid
+				DatabaseObject<?> held = objects.get(object.getUUID());
+				if (held != null) {
+					//If so makes sure it is not trying to put the object it already has into itself
+					if (!held.equals(object)) {
+						//Destroys this instance of the object if it is not the same.
+						object.markDestroyed();
+					}
+					return false;
 				}
-				return false;
+				//Places the object with its uuid in the map
+				objects.put(object.getUUID(), object);
+				return true;
+			} finally {
+				l.unlock();
+			}
+		}
+		
+		/**
+		 * Adds freshly loaded objects under a single lock, without counting it as a modification
+		 * Objects past item_limit are left out the same way addObject leaves them out
+		 * @param loaded List<DatabaseObject<?>> Objects owned by this user
+		 */
+		private void addLoadedObjects(List<DatabaseObject<?>> loaded) {
+			ReentrantLock l = locks().lock(uuid);
+			try {
+				for (DatabaseObject<?> object : loaded) {
+					if (objects.size() + 1 > item_limit)
+						break;
+					objects.putIfAbsent(object.getUUID(), object);
+				}
+			} finally {
+				l.unlock();
 			}
-			//Places the object with its uuid in the map
-			objects.put(object.getUUID(), object);
-			return true;
 		}
 		
 		/**
@@ -823,34 +2940,69 @@ public class Database implements Serializable{
 		public boolean removeObject(DatabaseObject<?> object) {
 			if (object == null)
 				return false;
-			last_modification = System.currentTimeMillis();
-			object.destroy();
-			objects.remove(object.getUUID());
-			return true;
+			if (manager != null)
+				manager.awaitCapacity();
+			ReentrantLock l = locks().lock(uuid);
+			try {
+				touch();
+				object.markDestroyed();
+				objects.remove(object.getUUID());
+				return true;
+			} finally {
+				l.unlock();
+			}
 		}
 		
 		/**
 		 * Transfers an object from this user to another
+		 * Both users are locked for the whole move, so the object is never owned by both or by neither
+		 * In MongoDB mode the move is a conditional update, so another node can't have moved it meanwhile
 		 * @param target DatabaseUser
 		 * @param o DatabaseObject<?>
 		 * @return
 		 */
 		public boolean transferObject(DatabaseUser target, DatabaseObject<?> o) {
-			//Don't attempt to send an object the user doesn't own
-			if (!hasObject(o.getUUID())) {
-				return false;
-			}
-			//Don't attempt to give someone a duplicate of an object they own
-			if (target.hasObject(o.getUUID())) {
+			if (target == null || o == null || target == this)
 				return false;
+			if (useMongo && manager != null)
+				return manager.transferObjectsMongo(Collections.singletonList(new ItemTransfer(o, this, target)));
+			if (manager != null)
+				manager.awaitCapacity();
+			ReentrantLock[] l = locks().lock(uuid, target.getUUID());
+			try {
+				//Don't attempt to send an object the user doesn't own
+				if (!hasObject(o.getUUID())) {
+					return false;
+				}
+				//Don't attempt to give someone a duplicate of an object they own
+				if (target.hasObject(o.getUUID())) {
+					return false;
+				}
+				//Checked up front, the object can't be left without an owner halfway through
+				if (!o.exists() || target.objects.size() + 1 > item_limit) {
+					return false;
+				}
+	
+				if (o.manager != null)
+					o.manager.reindexOwner(o, this, target);
+				o.owner = target;
+				o.touch();
+				target.addObject(o, true);
+				touch();
+				objects.remove(o.getUUID());
+				
+				return true;
+			} finally {
+				UserLocks.unlock(l);
 			}
-
-			o.owner = target;
-			target.addObject(o);
-			last_modification = System.currentTimeMillis();
-			objects.remove(o.getUUID());
-			
-			return true;
+		}
+		
+		/**
+		 * Returns the live map of this user's objects, changes must hold the user's lock
+		 * @return Map<UUID, DatabaseObject<?>>
+		 */
+		Map<UUID, DatabaseObject<?>> objects() {
+			return objects;
 		}
 		
 		public Set<UUID> getOwnedItems() {
@@ -1,11 +1,15 @@
 package com.botifier.database;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Base64;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.botifier.database.Database.DatabaseObject;
-import com.botifier.database.Database.DatabaseUser;
 import com.google.gson.Gson;
 import com.google.gson.TypeAdapter;
 import com.google.gson.reflect.TypeToken;
@@ -14,44 +18,123 @@ import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 
 public class DatabaseObjectAdapter extends TypeAdapter<DatabaseObject<?>> {
+
+	private static final Logger LOG = Logger.getLogger(DatabaseObjectAdapter.class.getName());
 	
 	//Database to use
 	private Database db;
 	
+	//Gson used for the info field, thread safe and keeps its own reflective adapter cache
+	private final Gson infoGson = new Gson();
+	
+	//Resolved adapters for info, keyed by info_type class name
+	private final ConcurrentHashMap<String, TypeAdapter<?>> infoAdapters = new ConcurrentHashMap<String, TypeAdapter<?>>();
+	
+	//Serializers that can read info, keyed by name
+	private final ConcurrentHashMap<String, ItemSerializer> serializers = new ConcurrentHashMap<String, ItemSerializer>();
+	
+	//Serializer info is written with, JSON writes info_type and info, any other writes info_format and info_bin
+	private volatile ItemSerializer serializer;
+	
 	public DatabaseObjectAdapter(Database db) {
 		this.db = db;
+		serializer = new JsonItemSerializer(this);
+		register(serializer);
+		//Kept in memory until the database registers one backed by its folder
+		register(new BinaryItemSerializer(new SchemaRegistry()));
+	}
+	
+	/**
+	 * Adds a serializer info can be read with, replacing any of the same name
+	 * @param s ItemSerializer To add
+	 */
+	public void register(ItemSerializer s) {
+		serializers.put(s.getName(), s);
+		if (serializer.getName().equals(s.getName()))
+			serializer = s;
+	}
+	
+	/**
+	 * Picks the serializer info is written with
+	 * @param name String Name of a registered serializer, unknown names keep the current one
+	 */
+	public void use(String name) {
+		ItemSerializer s = serializers.get(name.toLowerCase());
+		if (s == null) {
+			LOG.warning("Unknown item serializer "+name+", writing with "+serializer.getName()+".");
+			return;
+		}
+		serializer = s;
+	}
+	
+	/**
+	 * Returns the serializer info is written with
+	 * @return ItemSerializer
+	 */
+	public ItemSerializer getSerializer() {
+		return serializer;
 	}
 
 	@Override
 	public void write(JsonWriter out, DatabaseObject<?> value) throws IOException {
 		if (value.getUUID() == null)
 			return;
-		Gson temp = new Gson();
-		Type type = new TypeToken<Object>() {}.getType();
+		ItemSerializer s = serializer;
+		//Information kept off heap in this serializer's format is written without decoding it
+		byte[] stored = db != null && db.getPayloadSerializer() == s ? value.storedPayload() : null;
 		out.beginObject();
 		out.name("_id");
 		out.value(value.getUUID().toString());
-		out.name("info_type");
-		out.value(value.getInformation().getClass().getName());
-		out.name("info");
-		out.value(temp.toJson(value.getInformation(), type));
+		if (s instanceof JsonItemSerializer) {
+			StoredInfo si = stored != null ? JsonItemSerializer.split(stored) : null;
+			Object info = si == null ? value.peekInformation() : null;
+			out.name("info_type");
+			out.value(si != null ? si.type : info.getClass().getName());
+			out.name("info");
+			out.value(si != null ? si.json : infoToJson(infoAdapter(info.getClass()), info));
+		} else {
+			out.name("info_format");
+			out.value(s.getName());
+			out.name("info_bin");
+			out.value(Base64.getEncoder().encodeToString(stored != null ? stored : s.encode(value.peekInformation())));
+		}
 		out.name("last_modification");
 		out.value(value.getLastModified());
 		out.name("owner");
-		out.value(value.getOwner().getUUID().toString());
+		if (value.getOwner() == null)
+			out.nullValue();
+		else
+			out.value(value.getOwner().getUUID().toString());
 		out.endObject();
 	}
 
 	@Override
 	public DatabaseObject<?> read(JsonReader in) throws IOException {
-		Gson gson = new Gson();
+		ItemRecord r = readRecord(in);
+		DatabaseObject<?> loaded = r.uuid == null ? null : db.getLoadedItems().get(r.uuid);
+		if (loaded != null) {
+			LOG.severe("UUID already used.");
+			return loaded;
+		}
 		
+		return db.loadItem(r, false);
+	}
+	
+	/**
+	 * Reads the fields of a serialized DatabaseObject without creating or registering it
+	 * @param in JsonReader To read from
+	 * @return ItemRecord
+	 * @throws IOException
+	 */
+	ItemRecord readRecord(JsonReader in) throws IOException {
 		String fieldname = "";
 		in.beginObject();
-		DatabaseObject<?> d = null;
-		Type t = null;
+		TypeAdapter<?> t = null;
+		String type = null;
+		String format = BinaryItemSerializer.NAME;
 		UUID u = null;
 		Object information = null;
+		byte[] payload = null;
 		UUID owner = null;
 		long last_modification = 0L;
 		while (in.hasNext()) {
@@ -64,40 +147,60 @@ public class DatabaseObjectAdapter extends TypeAdapter<DatabaseObject<?>> {
 			switch (fieldname) {
 				case "info_type":
 					token = in.peek();
-					Class<?> c = null;
 					try {
-						c = Class.forName(in.nextString());
-						t = mapInfoType(c);
+						type = in.nextString();
+						t = infoAdapter(type);
 					} catch (ClassNotFoundException e) {
-						System.out.println("ERROR: Type given as info type is invalid.");
-						e.printStackTrace();
+						LOG.log(Level.SEVERE, "Type given as info type is invalid.", e);
 					}
 					break;
 				case "info":
 					token = in.peek();
 					if (t == null) {
-						System.out.println("ERROR: Cannot read info before info_type is valid.\n Skipping...");
+						LOG.severe("Cannot read info before info_type is valid. Skipping...");
 						in.nextString();
 						break;
 					}
-					information = gson.fromJson(in.nextString(), t);
+					String json = in.nextString();
+					information = infoFromJson(t, json);
+					payload = payloadOf(type, json);
+					break;
+				case "info_format":
+					format = in.nextString();
+					break;
+				case "info_bin":
+					byte[] bin = Base64.getDecoder().decode(in.nextString());
+					ItemSerializer is = serializers.get(format);
+					if (is == null) {
+						LOG.severe("Info format "+format+" is unknown. Skipping...");
+						break;
+					}
+					try {
+						information = is.decode(bin);
+					} catch (IOException e) {
+						LOG.log(Level.SEVERE, "Could not decode the "+format+" info of item "+u+".", e);
+						break;
+					}
+					if (db != null && db.getPayloadSerializer() == is)
+						payload = bin;
 					break;
 				case "uuid":
 				case "_id": 
 					token = in.peek();
 					String s1 = in.nextString();
 					if (s1 == null || s1.isEmpty()) {
-						System.out.println("ERROR: Cannot load an item without an UUID.");
-						break;
-					}
-					if (db.getLoadedItems().containsKey(UUID.fromString(s1))) {
-						System.out.println("ERROR: UUID already used.");
+						LOG.severe("Cannot load an item without an UUID.");
 						break;
 					}
 					u = UUID.fromString(s1);
 					break;
 				case "owner":
 					token = in.peek();
+					if (token == JsonToken.NULL) {
+						in.nextNull();
+						owner = null;
+						break;
+					}
 					String s = in.nextString();
 					if (s == null || s.isEmpty()) {
 						owner = null;
@@ -109,17 +212,136 @@ public class DatabaseObjectAdapter extends TypeAdapter<DatabaseObject<?>> {
 					token = in.peek();
 					last_modification = in.nextLong();
 					break;
+				default:
+					in.skipValue();
+					break;
 			}
 		}
 		in.endObject();
 		
-		DatabaseUser o = db.getUser(owner);
-		d = db.createItem(information, u, o, last_modification);
-		return d;
+		ItemRecord r = new ItemRecord();
+		r.uuid = u;
+		r.owner = owner;
+		r.information = information;
+		r.payload = information == null ? null : payload;
+		r.last_modification = last_modification;
+		return r;
+	}
+	
+	/**
+	 * Reads only the owner of a serialized DatabaseObject, every other field is skipped without being decoded
+	 * @param in JsonReader To read from
+	 * @return UUID Owner's UUID or null
+	 * @throws IOException
+	 */
+	UUID readOwner(JsonReader in) throws IOException {
+		UUID owner = null;
+		in.beginObject();
+		while (in.hasNext()) {
+			if (!in.nextName().equals("owner") || in.peek() == JsonToken.NULL) {
+				in.skipValue();
+				continue;
+			}
+			String s = in.nextString();
+			if (!s.isEmpty())
+				owner = UUID.fromString(s);
+		}
+		in.endObject();
+		return owner;
+	}
+	
+	/**
+	 * Returns info read as text in the form the database keeps off heap, if that is the JSON form
+	 * @param type String info_type
+	 * @param json String info
+	 * @return byte[] or null if off heap payloads use another serializer
+	 */
+	byte[] payloadOf(String type, String json) {
+		if (db == null || !(db.getPayloadSerializer() instanceof JsonItemSerializer) || type == null)
+			return null;
+		return JsonItemSerializer.join(type, json);
 	}
 	
-	private <T> Type mapInfoType(Class<T> inner) {
-		return TypeToken.get(inner).getType();
+	/**
+	 * Serializes info the same way Gson.toJson would, without the adapter lookup
+	 * @param t TypeAdapter<Object> Adapter to use
+	 * @param info Object Information to write
+	 * @return String JSON string
+	 * @throws IOException
+	 */
+	String infoToJson(TypeAdapter<Object> t, Object info) throws IOException {
+		StringWriter sw = new StringWriter();
+		JsonWriter w = new JsonWriter(sw);
+		w.setSerializeNulls(false);
+		t.write(w, info);
+		w.flush();
+		return sw.toString();
+	}
+	
+	/**
+	 * Deserializes info the same way Gson.fromJson would, without the adapter lookup
+	 * @param t TypeAdapter<?> Adapter to use
+	 * @param json String JSON string
+	 * @return Object
+	 * @throws IOException
+	 */
+	Object infoFromJson(TypeAdapter<?> t, String json) throws IOException {
+		JsonReader r = new JsonReader(new StringReader(json));
+		r.setLenient(true);
+		return t.read(r);
+	}
+	
+	/**
+	 * Returns the cached adapter for an info_type, resolving the class the first time it is seen
+	 * @param className String Name of the class
+	 * @return TypeAdapter<?>
+	 * @throws ClassNotFoundException
+	 */
+	TypeAdapter<?> infoAdapter(String className) throws ClassNotFoundException {
+		TypeAdapter<?> t = infoAdapters.get(className);
+		if (t != null)
+			return t;
+		return infoAdapter(Class.forName(className));
+	}
+	
+	/**
+	 * Returns the cached adapter for a class
+	 * @param c Class<?> Class of the information
+	 * @return TypeAdapter<Object>
+	 */
+	@SuppressWarnings("unchecked")
+	TypeAdapter<Object> infoAdapter(Class<?> c) {
+		TypeAdapter<?> t = infoAdapters.get(c.getName());
+		if (t == null) {
+			t = infoGson.getAdapter(TypeToken.get(c));
+			infoAdapters.putIfAbsent(c.getName(), t);
+		}
+		return (TypeAdapter<Object>) t;
+	}
+	
+	/**
+	 * Fields of a serialized DatabaseObject
+	 */
+	static class ItemRecord {
+		UUID uuid;
+		UUID owner;
+		Object information;
+		//Information as read, in the format kept off heap, null if it wasn't read in that format
+		byte[] payload;
+		long last_modification;
+	}
+	
+	/**
+	 * info_type and info of JSON encoded information
+	 */
+	static class StoredInfo {
+		final String type;
+		final String json;
+		
+		StoredInfo(String type, String json) {
+			this.type = type;
+			this.json = json;
+		}
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,274 @@
+package com.botifier.database;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.BsonReader;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.Decimal128;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+
+/**
+ * Writes DatabaseObjects straight to BSON, with info stored as a real value/subdocument
+ * instead of a JSON string. Documents written before this codec existed (no schema field,
+ * info held as a JSON string) are still read.
+ */
+public class DatabaseObjectCodec implements Codec<DatabaseObject<?>> {
+
+	private static final Logger LOG = Logger.getLogger(DatabaseObjectCodec.class.getName());
+
+	//Current document layout, documents without the field use the old string layout
+	public static final int SCHEMA_VERSION = 2;
+
+	//Decodes the raw document so fields can arrive in any order
+	private static final BsonDocumentCodec DOCUMENT_CODEC = new BsonDocumentCodec();
+
+	//Database to use
+	private final Database db;
+
+	//Adapter that holds the cached info types
+	private final DatabaseObjectAdapter adapter;
+
+	/**
+	 * DatabaseObjectCodec constructor
+	 * @param db Database To load items into
+	 * @param adapter DatabaseObjectAdapter Used to resolve info types
+	 */
+	public DatabaseObjectCodec(Database db, DatabaseObjectAdapter adapter) {
+		this.db = db;
+		this.adapter = adapter;
+	}
+
+	@Override
+	public void encode(BsonWriter writer, DatabaseObject<?> value, EncoderContext encoderContext) {
+		Object info = value.peekInformation();
+		writer.writeStartDocument();
+		writer.writeString("_id", value.getUUID().toString());
+		if (value.getOwner() == null)
+			writer.writeNull("owner");
+		else
+			writer.writeString("owner", value.getOwner().getUUID().toString());
+		writer.writeInt64("last_modification", value.getLastModified());
+		writer.writeString("info_type", info.getClass().getName());
+		writer.writeName("info");
+		writeJson(writer, adapter.infoAdapter(info.getClass()).toJsonTree(info));
+		writer.writeInt32("schema", SCHEMA_VERSION);
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public DatabaseObject<?> decode(BsonReader reader, DecoderContext decoderContext) {
+		BsonDocument doc = DOCUMENT_CODEC.decode(reader, decoderContext);
+
+		UUID u = readId(doc);
+		if (u == null)
+			return null;
+		DatabaseObject<?> loaded = db.getLoadedItems().get(u);
+		if (loaded != null) {
+			LOG.severe("UUID already used.");
+			return loaded;
+		}
+		//Evicted but not written yet, the document read is older than this copy
+		DatabaseObject<?> evicted = db.restoreEvicted(u);
+		if (evicted != null)
+			return evicted;
+
+		DatabaseObjectAdapter.ItemRecord r = readRecord(doc, u);
+		//Skipped like a bulk load skips it, throwing here would end the caller's whole cursor
+		if (r.information == null) {
+			LOG.severe("Skipped item "+u+" whose information could not be decoded.");
+			return null;
+		}
+		//Read straight from MongoDB, so this is also the state transfers expect to find there
+		return db.loadItem(r, true);
+	}
+
+	/**
+	 * Reads the fields of a stored item without creating or registering it, used by bulk loads
+	 * @param doc BsonDocument Stored document
+	 * @return ItemRecord or null if the document has no UUID
+	 */
+	DatabaseObjectAdapter.ItemRecord readRecord(BsonDocument doc) {
+		UUID u = readId(doc);
+		return u == null ? null : readRecord(doc, u);
+	}
+
+	private static UUID readId(BsonDocument doc) {
+		BsonValue id = doc.get("_id", doc.get("uuid"));
+		if (id == null || !id.isString() || id.asString().getValue().isEmpty()) {
+			LOG.severe("Cannot load an item without an UUID.");
+			return null;
+		}
+		return UUID.fromString(id.asString().getValue());
+	}
+
+	private DatabaseObjectAdapter.ItemRecord readRecord(BsonDocument doc, UUID u) {
+		UUID owner = null;
+		BsonValue o = doc.get("owner");
+		if (o != null && o.isString() && !o.asString().getValue().isEmpty())
+			owner = UUID.fromString(o.asString().getValue());
+
+		long last_modification = 0L;
+		BsonValue lm = doc.get("last_modification");
+		if (lm != null && lm.isNumber())
+			last_modification = lm.asNumber().longValue();
+
+		Object information = null;
+		String json = null;
+		BsonValue type = doc.get("info_type");
+		BsonValue info = doc.get("info");
+		if (type == null || !type.isString()) {
+			LOG.severe("Cannot read info before info_type is valid. Skipping...");
+		} else if (info != null) {
+			try {
+				TypeAdapter<?> t = adapter.infoAdapter(type.asString().getValue());
+				if (doc.containsKey("schema"))
+					information = t.fromJsonTree(toJson(info));
+				else
+					information = adapter.infoFromJson(t, json = info.asString().getValue());
+			} catch (ClassNotFoundException e) {
+				LOG.log(Level.SEVERE, "Type given as info type is invalid.", e);
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, "Could not read the info of item "+u+".", e);
+			}
+		}
+
+		DatabaseObjectAdapter.ItemRecord r = new DatabaseObjectAdapter.ItemRecord();
+		r.uuid = u;
+		r.owner = owner;
+		r.information = information;
+		r.payload = information == null || json == null ? null : adapter.payloadOf(type.asString().getValue(), json);
+		r.last_modification = last_modification;
+		return r;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Class<DatabaseObject<?>> getEncoderClass() {
+		return (Class<DatabaseObject<?>>) (Class<?>) DatabaseObject.class;
+	}
+
+	/**
+	 * Returns whether a stored document still uses the old JSON string layout
+	 * @param doc BsonDocument To check
+	 * @return boolean
+	 */
+	public static boolean isLegacy(BsonDocument doc) {
+		return !doc.containsKey("schema");
+	}
+
+	/**
+	 * Writes a Gson tree as BSON, null object members are skipped like Gson does by default
+	 * @param writer BsonWriter To write to
+	 * @param e JsonElement To write
+	 */
+	private static void writeJson(BsonWriter writer, JsonElement e) {
+		if (e == null || e.isJsonNull()) {
+			writer.writeNull();
+		} else if (e.isJsonObject()) {
+			writer.writeStartDocument();
+			for (Entry<String, JsonElement> entry : e.getAsJsonObject().entrySet()) {
+				if (entry.getValue().isJsonNull())
+					continue;
+				writer.writeName(entry.getKey());
+				writeJson(writer, entry.getValue());
+			}
+			writer.writeEndDocument();
+		} else if (e.isJsonArray()) {
+			writer.writeStartArray();
+			for (JsonElement element : e.getAsJsonArray())
+				writeJson(writer, element);
+			writer.writeEndArray();
+		} else {
+			JsonPrimitive p = e.getAsJsonPrimitive();
+			if (p.isBoolean())
+				writer.writeBoolean(p.getAsBoolean());
+			else if (p.isString())
+				writer.writeString(p.getAsString());
+			else
+				writeNumber(writer, p.getAsNumber());
+		}
+	}
+
+	/**
+	 * Writes a number using the narrowest BSON type that holds it exactly
+	 * @param writer BsonWriter To write to
+	 * @param n Number To write
+	 */
+	private static void writeNumber(BsonWriter writer, Number n) {
+		if (n instanceof Integer || n instanceof Short || n instanceof Byte) {
+			writer.writeInt32(n.intValue());
+		} else if (n instanceof Long) {
+			writer.writeInt64(n.longValue());
+		} else if (n instanceof Double || n instanceof Float) {
+			writer.writeDouble(n.doubleValue());
+		} else {
+			BigDecimal d = n instanceof BigDecimal ? (BigDecimal) n
+					: n instanceof BigInteger ? new BigDecimal((BigInteger) n) : new BigDecimal(n.toString());
+			try {
+				writer.writeInt64(d.longValueExact());
+			} catch (ArithmeticException ex) {
+				writer.writeDecimal128(new Decimal128(d));
+			}
+		}
+	}
+
+	/**
+	 * Turns a BSON value back into a Gson tree
+	 * @param v BsonValue To convert
+	 * @return JsonElement
+	 */
+	private static JsonElement toJson(BsonValue v) {
+		switch (v.getBsonType()) {
+			case DOCUMENT:
+				JsonObject o = new JsonObject();
+				for (Entry<String, BsonValue> entry : v.asDocument().entrySet())
+					o.add(entry.getKey(), toJson(entry.getValue()));
+				return o;
+			case ARRAY:
+				JsonArray a = new JsonArray();
+				for (BsonValue element : v.asArray())
+					a.add(toJson(element));
+				return a;
+			case INT32:
+				return new JsonPrimitive(v.asInt32().getValue());
+			case INT64:
+				return new JsonPrimitive(v.asInt64().getValue());
+			case DOUBLE:
+				return new JsonPrimitive(v.asDouble().getValue());
+			case DECIMAL128:
+				return new JsonPrimitive(v.asDecimal128().getValue().bigDecimalValue());
+			case STRING:
+				return new JsonPrimitive(v.asString().getValue());
+			case BOOLEAN:
+				return new JsonPrimitive(v.asBoolean().getValue());
+			case DATE_TIME:
+				return new JsonPrimitive(v.asDateTime().getValue());
+			case OBJECT_ID:
+				return new JsonPrimitive(v.asObjectId().getValue().toHexString());
+			case NULL:
+			case UNDEFINED:
+				return JsonNull.INSTANCE;
+			default:
+				return new JsonPrimitive(v.toString());
+		}
+	}
+}
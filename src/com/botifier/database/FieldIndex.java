@@ -0,0 +1,182 @@
+package com.botifier.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.botifier.database.ItemQuery.Op;
+import com.botifier.database.ItemQuery.Predicate;
+
+/**
+ * Sorted index of one field of one info_type for the flat file backends, kept up to date as items
+ * are created, changed through putInformation, moved or destroyed. Information that is changed in
+ * place has to be put back with putInformation, otherwise the index keeps its old value.
+ * Items whose field is missing, null or not a number, string or boolean aren't indexed.
+ */
+public class FieldIndex {
+
+	//Class name of the indexed information
+	private final String infoType;
+
+	//Indexed field
+	private final String field;
+
+	//Field value to the items holding it
+	private final NavigableMap<Object, Set<UUID>> byValue = new ConcurrentSkipListMap<Object, Set<UUID>>(InfoFields.ORDER);
+
+	//Item to the value it is indexed under, so a changed item can be found again
+	private final Map<UUID, Object> values = new ConcurrentHashMap<UUID, Object>();
+
+	/**
+	 * FieldIndex constructor
+	 * @param infoType String Class name of the information
+	 * @param field String Field of the information
+	 */
+	public FieldIndex(String infoType, String field) {
+		this.infoType = infoType;
+		this.field = field == null ? "" : field;
+	}
+
+	/**
+	 * Indexes an item under its current value, or removes it once it no longer matches
+	 * Updates are serialized so an emptied value entry can't be dropped while another item is joining it
+	 * @param u UUID Item's UUID
+	 * @param info Object Item's information, null to remove it
+	 */
+	public synchronized void update(UUID u, Object info) {
+		Object v = info != null && infoType.equals(info.getClass().getName()) ? InfoFields.read(info, field) : null;
+		if (!InfoFields.orderable(v)) {
+			remove(u);
+			return;
+		}
+		Object old = values.put(u, v);
+		if (old != null) {
+			if (InfoFields.ORDER.compare(old, v) == 0)
+				return;
+			unlink(old, u);
+		}
+		byValue.computeIfAbsent(v, k -> ConcurrentHashMap.newKeySet()).add(u);
+	}
+
+	/**
+	 * Removes an item
+	 * @param u UUID Item's UUID
+	 */
+	public synchronized void remove(UUID u) {
+		Object old = values.remove(u);
+		if (old != null)
+			unlink(old, u);
+	}
+
+	private void unlink(Object v, UUID u) {
+		Set<UUID> s = byValue.get(v);
+		if (s != null) {
+			s.remove(u);
+			//Drops the entry unless another item was added to it in the meantime
+			if (s.isEmpty())
+				byValue.remove(v, s);
+		}
+	}
+
+	/**
+	 * Returns whether this index can answer a predicate
+	 * @param p Predicate To check
+	 * @return boolean
+	 */
+	public boolean supports(Predicate p) {
+		if (!field.equals(p.getField()))
+			return false;
+		switch (p.getOp()) {
+			case NE:
+				//Missing and null values aren't indexed, but match NE
+				return false;
+			case IN:
+				for (Object o : p.getValues())
+					if (!InfoFields.orderable(o))
+						return false;
+				return true;
+			default:
+				return InfoFields.orderable(p.getValue());
+		}
+	}
+
+	/**
+	 * Returns the items that may match a supported predicate
+	 * @param p Predicate To look up
+	 * @return Collection<UUID>
+	 */
+	public Collection<UUID> lookup(Predicate p) {
+		Object v = p.getValue();
+		List<UUID> found = new ArrayList<UUID>();
+		switch (p.getOp()) {
+			case EQ:
+				addAll(found, byValue.get(v));
+				return found;
+			case IN:
+				for (Object o : p.getValues())
+					addAll(found, byValue.get(o));
+				return found;
+			case GT:
+			case GTE:
+				return walk(found, byValue.tailMap(v, p.getOp() == Op.GTE), v);
+			case LT:
+			case LTE:
+				return walk(found, byValue.headMap(v, p.getOp() == Op.LTE).descendingMap(), v);
+			default:
+				throw new IllegalArgumentException("Unsupported operation "+p.getOp());
+		}
+	}
+
+	/**
+	 * Collects a range until it reaches values of another kind, ranges never cross kinds
+	 * @param found List<UUID> To add to
+	 * @param range NavigableMap<Object, Set<UUID>> Range walking away from v
+	 * @param v Object Bound of the range
+	 * @return List<UUID> found
+	 */
+	private static List<UUID> walk(List<UUID> found, NavigableMap<Object, Set<UUID>> range, Object v) {
+		for (Entry<Object, Set<UUID>> e : range.entrySet()) {
+			if (!InfoFields.sameKind(e.getKey(), v))
+				break;
+			found.addAll(e.getValue());
+		}
+		return found;
+	}
+
+	private static void addAll(List<UUID> found, Set<UUID> s) {
+		if (s != null)
+			found.addAll(s);
+	}
+
+	public synchronized void clear() {
+		byValue.clear();
+		values.clear();
+	}
+
+	public String getInfoType() {
+		return infoType;
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * Returns the name this index is reported under
+	 * @return String
+	 */
+	public String getName() {
+		return infoType+"."+(field.isEmpty() ? "info" : field);
+	}
+}
@@ -0,0 +1,120 @@
+package com.botifier.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes items.json style files.
+ * Writes stream each item straight to disk, go to a temp file first, get synced
+ * and then replace the old file in one rename so a crash never leaves half a file behind.
+ */
+public class FlatFileItems {
+
+	//Size of the stream buffers
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	//First two bytes of every gzip stream
+	private static final int GZIP_MAGIC_1 = 0x1f;
+	private static final int GZIP_MAGIC_2 = 0x8b;
+
+	private FlatFileItems() {}
+
+	/**
+	 * Opens an items file for reading, gzip compressed files are detected automatically
+	 * @param f File To open
+	 * @return Reader
+	 * @throws IOException
+	 */
+	public static Reader open(File f) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+		is.mark(2);
+		int b1 = is.read();
+		int b2 = is.read();
+		is.reset();
+		if (b1 == GZIP_MAGIC_1 && b2 == GZIP_MAGIC_2)
+			is = new GZIPInputStream(is, BUFFER_SIZE);
+		return new InputStreamReader(is, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Streams items into a file as a JSON object keyed by UUID, replacing the file atomically
+	 * Destroyed items are left out, so they are gone once the file is read again
+	 * @param f File To replace
+	 * @param items Iterable<DatabaseObject<?>> Items to write
+	 * @param adapter DatabaseObjectAdapter Used to write each item
+	 * @param compact boolean Whether to skip pretty printing
+	 * @param gzip boolean Whether to gzip the file
+	 * @return int Number of items written
+	 * @throws IOException
+	 */
+	public static int write(File f, Iterable<DatabaseObject<?>> items, DatabaseObjectAdapter adapter,
+			boolean compact, boolean gzip) throws IOException {
+		File tmp = new File(f.getPath()+".tmp");
+		int written = 0;
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			OutputStream os = new BufferedOutputStream(fos, BUFFER_SIZE);
+			GZIPOutputStream gz = null;
+			if (gzip)
+				os = gz = new GZIPOutputStream(os, BUFFER_SIZE);
+			JsonWriter w = new JsonWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+			if (!compact)
+				w.setIndent("  ");
+			w.beginObject();
+			for (DatabaseObject<?> d : items) {
+				if (d.getUUID() == null || !d.exists())
+					continue;
+				w.name(d.getUUID().toString());
+				adapter.write(w, d);
+				written++;
+			}
+			w.endObject();
+			w.flush();
+			if (gz != null)
+				gz.finish();
+			os.flush();
+			fos.getFD().sync();
+		}
+		replace(tmp, f);
+		return written;
+	}
+
+	/**
+	 * Moves a file over another in one step where the file system allows it, then syncs the directory
+	 * @param from File Source
+	 * @param to File Target
+	 * @throws IOException
+	 */
+	public static void replace(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		File dir = to.getAbsoluteFile().getParentFile();
+		//Not every platform can open a directory, the rename itself is already done at this point
+		try (FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			fc.force(true);
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.botifier.database;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.botifier.database.Database.DatabaseUser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Flat file layout that splits users and items over a fixed number of shard files by the first
+ * 32 bits of their UUID, so every shard can be read and written by its own fork/join task.
+ * Items go to items-NNN.json in the items.json format, users to users-NNN.json as
+ * {"uuid": {"name": ..., "last_modified": ...}}. Every file is replaced atomically like items.json.
+ */
+public class FlatFileShards {
+
+	//Kinds of shard files
+	public static final String ITEMS = "items";
+	public static final String USERS = "users";
+
+	//Size of the stream buffers
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	//Directory holding the shard files
+	private final File dir;
+
+	//Number of shards written
+	private final int count;
+
+	/**
+	 * FlatFileShards constructor
+	 * @param dir File Directory of the shard files
+	 * @param count int Number of shards to write, files of another count are still read
+	 */
+	public FlatFileShards(File dir, int count) {
+		this.dir = dir;
+		this.count = Math.max(1, count);
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Returns the shard a UUID belongs to
+	 * @param u UUID Item or user
+	 * @return int
+	 */
+	public int shardOf(UUID u) {
+		return (int) ((u.getMostSignificantBits() >>> 32) % count);
+	}
+
+	/**
+	 * Returns the file of a shard
+	 * @param kind String ITEMS or USERS
+	 * @param shard int Shard number
+	 * @return File
+	 */
+	public File file(String kind, int shard) {
+		return new File(dir, name(kind, shard));
+	}
+
+	private static String name(String kind, int shard) {
+		return String.format("%s-%03d.json", kind, shard);
+	}
+
+	/**
+	 * Returns the shard files on disk in shard order, whatever count they were written with
+	 * @param kind String ITEMS or USERS
+	 * @return List<File>
+	 */
+	public List<File> existing(String kind) {
+		Pattern p = pattern(kind);
+		File[] files = dir.listFiles();
+		List<File> found = new ArrayList<File>();
+		if (files == null)
+			return found;
+		for (File f : files)
+			if (f.isFile() && p.matcher(f.getName()).matches())
+				found.add(f);
+		found.sort((a, b) -> Integer.compare(number(p, a), number(p, b)));
+		return found;
+	}
+
+	private static Pattern pattern(String kind) {
+		return Pattern.compile(Pattern.quote(kind)+"-(\\d+)\\.json");
+	}
+
+	private static int number(Pattern p, File f) {
+		Matcher m = p.matcher(f.getName());
+		m.matches();
+		return Integer.parseInt(m.group(1));
+	}
+
+	/**
+	 * Returns whether the files on disk are exactly the shards this layout writes
+	 * Files written with another count put UUIDs in other shards, so they have to be rewritten as a whole
+	 * @param kind String ITEMS or USERS
+	 * @param files List<File> Files returned by existing
+	 * @return boolean
+	 */
+	public boolean matches(String kind, List<File> files) {
+		if (files.size() != count)
+			return false;
+		for (int i = 0; i < count; i++)
+			if (!files.get(i).getName().equals(name(kind, i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Deletes the shard files past this layout's count, left over from a larger count
+	 * @param kind String ITEMS or USERS
+	 */
+	public void deleteExtra(String kind) {
+		Pattern p = pattern(kind);
+		for (File f : existing(kind))
+			if (number(p, f) >= count)
+				f.delete();
+	}
+
+	/**
+	 * Runs a task for every shard on the common fork/join pool and waits for all of them
+	 * @param <R> Result of a shard
+	 * @param n int Number of shards
+	 * @param task ShardTask<R> Called once for every shard number below n
+	 * @return List<R> Results in shard order
+	 * @throws IOException The first failure, after every task has finished
+	 */
+	public static <R> List<R> run(int n, ShardTask<R> task) throws IOException {
+		List<ForkJoinTask<R>> tasks = new ArrayList<ForkJoinTask<R>>(n);
+		for (int i = 0; i < n; i++) {
+			int shard = i;
+			tasks.add(ForkJoinPool.commonPool().submit(() -> task.run(shard)));
+		}
+		List<R> results = new ArrayList<R>(n);
+		Throwable failed = null;
+		for (ForkJoinTask<R> t : tasks) {
+			try {
+				results.add(t.get());
+			} catch (ExecutionException e) {
+				if (failed == null)
+					failed = e.getCause();
+				results.add(null);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the shards.", e);
+			}
+		}
+		if (failed instanceof RuntimeException)
+			throw (RuntimeException) failed;
+		if (failed instanceof Error)
+			throw (Error) failed;
+		if (failed != null)
+			throw failed instanceof IOException ? (IOException) failed : new IOException(failed);
+		return results;
+	}
+
+	/**
+	 * Streams users into a shard file, replacing it atomically
+	 * @param f File To replace
+	 * @param users Iterable<DatabaseUser> Users to write
+	 * @return int Number of users written
+	 * @throws IOException
+	 */
+	public static int writeUsers(File f, Iterable<DatabaseUser> users) throws IOException {
+		File tmp = new File(f.getPath()+".tmp");
+		int written = 0;
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			BufferedOutputStream os = new BufferedOutputStream(fos, BUFFER_SIZE);
+			JsonWriter w = new JsonWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+			w.beginObject();
+			for (DatabaseUser u : users) {
+				w.name(u.getUUID().toString());
+				w.beginObject();
+				w.name("name").value(u.getName());
+				w.name("last_modified").value(u.getLastModified());
+				w.endObject();
+				written++;
+			}
+			w.endObject();
+			w.flush();
+			os.flush();
+			fos.getFD().sync();
+		}
+		FlatFileItems.replace(tmp, f);
+		return written;
+	}
+
+	/**
+	 * Reads a users shard
+	 * @param r Reader Over the file
+	 * @param h UserHandler Receives every user
+	 * @return int Number of users read
+	 * @throws IOException
+	 */
+	public static int readUsers(Reader r, UserHandler h) throws IOException {
+		int read = 0;
+		try (JsonReader in = new JsonReader(r instanceof BufferedReader ? r : new BufferedReader(r))) {
+			if (in.peek() == JsonToken.END_DOCUMENT)
+				return 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				UUID u = UUID.fromString(in.nextName());
+				String name = null;
+				long lastModified = 0L;
+				in.beginObject();
+				while (in.hasNext()) {
+					switch (in.nextName()) {
+						case "name":
+							name = in.nextString();
+							break;
+						case "last_modified":
+							lastModified = in.nextLong();
+							break;
+						default:
+							in.skipValue();
+							break;
+					}
+				}
+				in.endObject();
+				if (name == null)
+					continue;
+				h.user(u, name, lastModified);
+				read++;
+			}
+			in.endObject();
+		}
+		return read;
+	}
+
+	/**
+	 * Work done for one shard
+	 * @param <R> Result
+	 */
+	public interface ShardTask<R> {
+		R run(int shard) throws IOException;
+	}
+
+	/**
+	 * Receives the users of a shard, called from the shard's task
+	 */
+	public interface UserHandler {
+		void user(UUID u, String name, long lastModified);
+	}
+}
@@ -0,0 +1,205 @@
+package com.botifier.database;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Reads fields out of item information by the names Gson serializes them under, without serializing
+ * the whole object. Values are normalized to Long, Double, String or Boolean so they compare the way
+ * MongoDB compares the stored BSON: numbers by value across types, and values of different kinds in
+ * MongoDB's order, null then numbers then strings then anything else then booleans.
+ */
+final class InfoFields {
+
+	//Cached in place of a Field that doesn't exist
+	private static final Field NONE;
+	static {
+		try {
+			NONE = InfoFields.class.getDeclaredField("NONE");
+		} catch (NoSuchFieldException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	//Resolved fields by class and serialized name
+	private static final Map<Class<?>, Map<String, Field>> fields = new ConcurrentHashMap<Class<?>, Map<String, Field>>();
+
+	//Split field paths
+	private static final Map<String, String[]> paths = new ConcurrentHashMap<String, String[]>();
+
+	/**
+	 * Orders normalized values like MongoDB sorts them
+	 */
+	static final Comparator<Object> ORDER = new Comparator<Object>() {
+		@Override
+		public int compare(Object a, Object b) {
+			int c = Integer.compare(kind(a), kind(b));
+			return c != 0 ? c : InfoFields.compare(a, b);
+		}
+	};
+
+	private InfoFields() {
+	}
+
+	/**
+	 * Reads a field, nested fields are separated by dots and an empty field is the information itself
+	 * @param info Object Information to read
+	 * @param field String Field to read
+	 * @return Object Normalized value, null when the field is missing
+	 */
+	static Object read(Object info, String field) {
+		if (field == null || field.isEmpty())
+			return normalize(info);
+		String[] path = paths.get(field);
+		if (path == null) {
+			path = field.split("\\.");
+			paths.put(field, path);
+		}
+		Object o = info;
+		for (String name : path) {
+			if (o == null)
+				return null;
+			if (o instanceof Map) {
+				o = ((Map<?, ?>) o).get(name);
+				continue;
+			}
+			Field f = field(o.getClass(), name);
+			if (f == null)
+				return null;
+			try {
+				o = f.get(o);
+			} catch (IllegalAccessException e) {
+				return null;
+			}
+		}
+		return normalize(o);
+	}
+
+	/**
+	 * Finds the field Gson serializes under a name, static and transient fields are skipped the way Gson skips them
+	 * @param c Class<?> Class to search
+	 * @param name String Serialized name
+	 * @return Field or null
+	 */
+	private static Field field(Class<?> c, String name) {
+		Map<String, Field> byName = fields.computeIfAbsent(c, k -> new ConcurrentHashMap<String, Field>());
+		Field f = byName.get(name);
+		if (f == null) {
+			f = find(c, name);
+			byName.put(name, f == null ? NONE : f);
+		}
+		return f == NONE ? null : f;
+	}
+
+	private static Field find(Class<?> c, String name) {
+		//Platform classes can't be opened and aren't serialized field by field anyway
+		if (c.getName().startsWith("java."))
+			return null;
+		for (Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass()) {
+			for (Field f : k.getDeclaredFields()) {
+				if ((f.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0)
+					continue;
+				SerializedName sn = f.getAnnotation(SerializedName.class);
+				if (sn != null ? sn.value().equals(name) : f.getName().equals(name)) {
+					f.setAccessible(true);
+					return f;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Turns a value into the form it is compared in
+	 * @param o Object Value
+	 * @return Object Long, Double, String, Boolean, null, or the value itself when it is none of those
+	 */
+	static Object normalize(Object o) {
+		if (o == null || o instanceof String || o instanceof Boolean || o instanceof Long || o instanceof Double)
+			return o;
+		if (o instanceof Integer || o instanceof Short || o instanceof Byte)
+			return ((Number) o).longValue();
+		if (o instanceof BigInteger && ((BigInteger) o).bitLength() < 64)
+			return ((BigInteger) o).longValue();
+		if (o instanceof Number)
+			return ((Number) o).doubleValue();
+		if (o instanceof Character || o instanceof UUID)
+			return o.toString();
+		if (o instanceof Enum)
+			return ((Enum<?>) o).name();
+		return o;
+	}
+
+	/**
+	 * Returns the position of a value's kind in MongoDB's sort order
+	 * @param o Object Normalized value
+	 * @return int
+	 */
+	static int kind(Object o) {
+		if (o == null)
+			return 0;
+		if (o instanceof Number)
+			return 1;
+		if (o instanceof String)
+			return 2;
+		if (o instanceof Boolean)
+			return 4;
+		return 3;
+	}
+
+	static boolean sameKind(Object a, Object b) {
+		return kind(a) == kind(b);
+	}
+
+	/**
+	 * Checks two normalized values for equality, numbers by value
+	 * @param a Object First value
+	 * @param b Object Second value
+	 * @return boolean
+	 */
+	static boolean equal(Object a, Object b) {
+		if (a == null || b == null)
+			return a == b;
+		if (a instanceof Number && b instanceof Number)
+			return compare(a, b) == 0;
+		return a.equals(b);
+	}
+
+	/**
+	 * Compares two normalized values of the same kind, values that have no order compare as equal
+	 * @param a Object First value
+	 * @param b Object Second value
+	 * @return int
+	 */
+	static int compare(Object a, Object b) {
+		if (a instanceof Long && b instanceof Long)
+			return Long.compare((Long) a, (Long) b);
+		if (a instanceof Number && b instanceof Number) {
+			double x = ((Number) a).doubleValue();
+			double y = ((Number) b).doubleValue();
+			//0.0 and -0.0 are the same value to MongoDB
+			return x == y ? 0 : Double.compare(x, y);
+		}
+		if (a instanceof String && b instanceof String)
+			return ((String) a).compareTo((String) b);
+		if (a instanceof Boolean && b instanceof Boolean)
+			return Boolean.compare((Boolean) a, (Boolean) b);
+		return 0;
+	}
+
+	/**
+	 * Returns whether a normalized value can be ordered, and so kept in a FieldIndex
+	 * @param o Object Normalized value
+	 * @return boolean
+	 */
+	static boolean orderable(Object o) {
+		return o != null && kind(o) != 3;
+	}
+}
@@ -0,0 +1,245 @@
+package com.botifier.database;
+
+import static com.botifier.database.main.Config.item_limit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+
+/**
+ * Single sweep over the loaded items and users that removes what can't be valid.
+ * Items without an owner are dropped, user entries pointing at an item they don't own
+ * (duplicates held by a second user, or stale copies) are removed, and items missing from
+ * their owner's collection are put back as long as that stays within item_limit. Finding problems only reads, so it can be split
+ * across a fork/join pool, the fixes are applied afterwards under each user's lock.
+ */
+public class IntegrityCheck {
+
+	//Smallest range worth splitting off into its own task
+	private static final int SPLIT_THRESHOLD = 8192;
+
+	//Database to check
+	private final Database db;
+
+	//Whether to find problems in parallel
+	private final boolean parallel;
+
+	/**
+	 * IntegrityCheck constructor
+	 * @param db Database To check
+	 * @param parallel boolean Whether to use the common fork/join pool
+	 */
+	public IntegrityCheck(Database db, boolean parallel) {
+		this.db = db;
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Runs the check and fixes everything it finds
+	 * @return Report What was found and fixed
+	 */
+	public Report run() {
+		long start = System.currentTimeMillis();
+		DatabaseObject<?>[] items = db.snapshotItems();
+		DatabaseUser[] users = db.snapshotUsers();
+
+		Queue<DatabaseObject<?>> ownerless = new ConcurrentLinkedQueue<DatabaseObject<?>>();
+		Queue<DatabaseObject<?>> unlisted = new ConcurrentLinkedQueue<DatabaseObject<?>>();
+		forEach(items.length, i -> {
+			DatabaseObject<?> d = items[i];
+			DatabaseUser owner = d.getOwner();
+			if (owner == null)
+				ownerless.add(d);
+			else if (d.exists() && owner.objects().get(d.getUUID()) != d)
+				unlisted.add(d);
+		});
+
+		//Every user entry that isn't the loaded item pointing back at that user
+		Queue<Claim> wrong = new ConcurrentLinkedQueue<Claim>();
+		Map<UUID, Boolean> claimed = new ConcurrentHashMap<UUID, Boolean>();
+		Map<UUID, Boolean> duplicated = new ConcurrentHashMap<UUID, Boolean>();
+		forEach(users.length, i -> {
+			DatabaseUser u = users[i];
+			for (Entry<UUID, DatabaseObject<?>> e : u.objects().entrySet()) {
+				if (claimed.putIfAbsent(e.getKey(), Boolean.TRUE) != null)
+					duplicated.put(e.getKey(), Boolean.TRUE);
+				DatabaseObject<?> d = e.getValue();
+				if (d.getOwner() != u || db.getLoadedItems().get(e.getKey()) != d)
+					wrong.add(new Claim(u, e.getKey(), d));
+			}
+		});
+
+		Report r = new Report();
+		for (DatabaseObject<?> d : ownerless) {
+			db.dropItem(d.getUUID());
+			r.ownerless.add(d.getUUID());
+		}
+		for (Claim c : wrong) {
+			ReentrantLock l = db.getUserLocks().lock(c.user.getUUID());
+			try {
+				if (!c.user.objects().remove(c.uuid, c.item))
+					continue;
+			} finally {
+				l.unlock();
+			}
+			if (duplicated.containsKey(c.uuid))
+				r.duplicates.add(c.uuid);
+			else
+				r.stale.add(c.uuid);
+		}
+		for (DatabaseObject<?> d : unlisted) {
+			DatabaseUser owner = d.getOwner();
+			ReentrantLock l = db.getUserLocks().lock(owner.getUUID());
+			try {
+				if (owner.objects().size() + 1 > item_limit) {
+					r.overLimit.add(d.getUUID());
+					continue;
+				}
+				owner.objects().put(d.getUUID(), d);
+			} finally {
+				l.unlock();
+			}
+			r.relinked.add(d.getUUID());
+		}
+		r.itemsChecked = items.length;
+		r.usersChecked = users.length;
+		r.millis = System.currentTimeMillis() - start;
+		return r;
+	}
+
+	/**
+	 * Calls body for every index below n, split over the fork/join pool when running in parallel
+	 * @param n int Number of indexes
+	 * @param body IntConsumer Called for every index
+	 */
+	private void forEach(int n, IntConsumer body) {
+		if (!parallel || n <= SPLIT_THRESHOLD) {
+			for (int i = 0; i < n; i++)
+				body.accept(i);
+			return;
+		}
+		ForkJoinPool.commonPool().invoke(new Range(0, n, body));
+	}
+
+	/**
+	 * Fork/join task over a range of indexes
+	 */
+	private static class Range extends RecursiveAction {
+		private static final long serialVersionUID = -4512207843066120817L;
+
+		private final int from;
+		private final int to;
+		private final IntConsumer body;
+
+		Range(int from, int to, IntConsumer body) {
+			this.from = from;
+			this.to = to;
+			this.body = body;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				for (int i = from; i < to; i++)
+					body.accept(i);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Range(from, mid, body), new Range(mid, to, body));
+		}
+	}
+
+	/**
+	 * A user's entry for an item
+	 */
+	private static class Claim {
+		private final DatabaseUser user;
+		private final UUID uuid;
+		private final DatabaseObject<?> item;
+
+		Claim(DatabaseUser user, UUID uuid, DatabaseObject<?> item) {
+			this.user = user;
+			this.uuid = uuid;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * What an integrity check found and fixed
+	 */
+	public static class Report {
+		//Items dropped because they had no owner
+		private final List<UUID> ownerless = new ArrayList<UUID>();
+		//Items held by more than one user, removed from every user that doesn't own them
+		private final List<UUID> duplicates = new ArrayList<UUID>();
+		//User entries for items owned by nobody else that weren't the loaded item
+		private final List<UUID> stale = new ArrayList<UUID>();
+		//Items put back into their owner's collection
+		private final List<UUID> relinked = new ArrayList<UUID>();
+		//Items missing from their owner's collection that would put the owner over item_limit, left as they are
+		private final List<UUID> overLimit = new ArrayList<UUID>();
+
+		private int itemsChecked;
+		private int usersChecked;
+		private long millis;
+
+		public List<UUID> getOwnerless() {
+			return ownerless;
+		}
+
+		public List<UUID> getDuplicates() {
+			return duplicates;
+		}
+
+		public List<UUID> getStale() {
+			return stale;
+		}
+
+		public List<UUID> getRelinked() {
+			return relinked;
+		}
+
+		public List<UUID> getOverLimit() {
+			return overLimit;
+		}
+
+		public int getItemsChecked() {
+			return itemsChecked;
+		}
+
+		public int getUsersChecked() {
+			return usersChecked;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * Returns whether nothing was found
+		 * @return boolean
+		 */
+		public boolean isClean() {
+			return ownerless.isEmpty() && duplicates.isEmpty() && stale.isEmpty() && relinked.isEmpty() && overLimit.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "Checked "+itemsChecked+" items and "+usersChecked+" users in "+millis+"ms. Ownerless: "
+				+ownerless.size()+", Duplicates: "+duplicates.size()+", Stale: "+stale.size()
+				+", Relinked: "+relinked.size()+", Over limit: "+overLimit.size();
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package com.botifier.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+import com.botifier.database.DatabaseObjectAdapter.ItemRecord;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Append only journal of item and user changes for the flat file backend.
+ * Every record is [int length][int crc32][byte op][UTF-8 JSON], the JSON being the same
+ * format items.json uses. Replaying the journal over items.json restores every change
+ * made since items.json was last written.
+ */
+public class ItemJournal implements Closeable {
+
+	private static final Logger LOG = Logger.getLogger(ItemJournal.class.getName());
+
+	//Record types
+	public static final byte OP_PUT = 1;
+	public static final byte OP_DESTROY = 2;
+	public static final byte OP_USER = 3;
+
+	//Anything bigger than this is treated as a torn or corrupt record
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	//Sync modes
+	public static final String SYNC_ALWAYS = "always";
+	public static final String SYNC_INTERVAL = "interval";
+	public static final String SYNC_NONE = "none";
+
+	//Journal file
+	private final File file;
+
+	//Adapter used to write and read items
+	private final DatabaseObjectAdapter adapter;
+
+	//Durability settings
+	private final String syncMode;
+	private final long syncIntervalMs;
+
+	//Open streams
+	private FileOutputStream fos;
+	private DataOutputStream out;
+
+	//Group commit thread, only used in interval mode
+	private ScheduledExecutorService syncer;
+
+	//Current size of the file in bytes
+	private long size = 0;
+
+	//Whether anything was written since the last sync
+	private boolean unsynced = false;
+
+	/**
+	 * ItemJournal constructor
+	 * @param file File Journal file
+	 * @param adapter DatabaseObjectAdapter Used to write and read items
+	 * @param syncMode String always, interval or none
+	 * @param syncIntervalMs long Time between group commits in interval mode
+	 */
+	public ItemJournal(File file, DatabaseObjectAdapter adapter, String syncMode, long syncIntervalMs) {
+		this.file = file;
+		this.adapter = adapter;
+		this.syncMode = syncMode == null ? SYNC_INTERVAL : syncMode.toLowerCase();
+		this.syncIntervalMs = syncIntervalMs;
+	}
+
+	/**
+	 * Opens the journal for appending
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if (out != null)
+			return;
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		fos = new FileOutputStream(file, true);
+		out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+		size = file.length();
+		if (syncMode.equals(SYNC_INTERVAL)) {
+			syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "ItemJournal-sync");
+				t.setDaemon(true);
+				return t;
+			});
+			syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Appends the current state of an item, or a destroy record if it no longer exists
+	 * @param d DatabaseObject<?> Item to record
+	 * @throws IOException
+	 */
+	public void appendItem(DatabaseObject<?> d) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+		bos.write(d.exists() ? OP_PUT : OP_DESTROY);
+		JsonWriter w = new JsonWriter(new OutputStreamWriter(bos, StandardCharsets.UTF_8));
+		adapter.write(w, d);
+		w.flush();
+		append(bos.toByteArray());
+	}
+
+	/**
+	 * Appends a user so items owned by users created after the last write can still be replayed
+	 * @param u DatabaseUser User to record
+	 * @throws IOException
+	 */
+	public void appendUser(DatabaseUser u) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+		bos.write(OP_USER);
+		JsonWriter w = new JsonWriter(new OutputStreamWriter(bos, StandardCharsets.UTF_8));
+		w.beginObject();
+		w.name("_id").value(u.getUUID().toString());
+		w.name("name").value(u.getName());
+		w.endObject();
+		w.flush();
+		append(bos.toByteArray());
+	}
+
+	/**
+	 * Writes a framed record
+	 * @param payload byte[] Op followed by JSON
+	 * @throws IOException
+	 */
+	private synchronized void append(byte[] payload) throws IOException {
+		if (out == null)
+			throw new IOException("Journal is not open.");
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		out.writeInt(payload.length);
+		out.writeInt((int) crc.getValue());
+		out.write(payload);
+		size += 8 + payload.length;
+		unsynced = true;
+		if (syncMode.equals(SYNC_ALWAYS))
+			sync();
+	}
+
+	/**
+	 * Reads every intact record, cutting off a torn or corrupt tail
+	 * @param h Handler Receives the records in order
+	 * @return int Number of records replayed
+	 * @throws IOException
+	 */
+	int replay(Handler h) throws IOException {
+		if (!file.exists())
+			return 0;
+		int count = 0;
+		long valid = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (length < 1 || length > MAX_RECORD_SIZE) {
+					LOG.severe("Journal record at "+valid+" has an invalid length, ignoring the rest.");
+					break;
+				}
+				byte[] payload = new byte[length];
+				int crcValue;
+				try {
+					crcValue = in.readInt();
+					in.readFully(payload);
+				} catch (EOFException e) {
+					LOG.severe("Journal ends in a partial record, ignoring it.");
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != crcValue) {
+					LOG.severe("Journal record at "+valid+" failed its checksum, ignoring the rest.");
+					break;
+				}
+				apply(payload, h);
+				valid += 8 + length;
+				count++;
+			}
+		}
+		if (valid < file.length()) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(valid);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Decodes a record and passes it on to the handler
+	 * @param payload byte[] Record payload
+	 * @param h Handler To call
+	 * @throws IOException
+	 */
+	private void apply(byte[] payload, Handler h) throws IOException {
+		byte op = payload[0];
+		String json = new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8);
+		JsonReader r = new JsonReader(new StringReader(json));
+		switch (op) {
+			case OP_PUT:
+			case OP_DESTROY:
+				h.item(adapter.readRecord(r), op == OP_DESTROY);
+				break;
+			case OP_USER:
+				UUID u = null;
+				String name = null;
+				r.beginObject();
+				while (r.hasNext()) {
+					String field = r.nextName();
+					if (field.equals("_id"))
+						u = UUID.fromString(r.nextString());
+					else if (field.equals("name"))
+						name = r.nextString();
+					else
+						r.skipValue();
+				}
+				r.endObject();
+				h.user(u, name);
+				break;
+			default:
+				LOG.severe("Unknown journal op "+op+", skipping.");
+				break;
+		}
+	}
+
+	/**
+	 * Flushes buffered records and forces them to disk
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if (out == null || !unsynced)
+			return;
+		out.flush();
+		if (!syncMode.equals(SYNC_NONE))
+			fos.getFD().sync();
+		unsynced = false;
+	}
+
+	/**
+	 * Sync for the group commit thread, which has nowhere to throw to
+	 */
+	private void syncQuietly() {
+		try {
+			sync();
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, "Journal sync failed.", e);
+		}
+	}
+
+	/**
+	 * Empties the journal, called once everything in it has been written to items.json
+	 * @throws IOException
+	 */
+	public synchronized void reset() throws IOException {
+		if (out != null) {
+			out.flush();
+			fos.getChannel().truncate(0);
+			fos.getFD().sync();
+		} else if (file.exists()) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(0);
+			}
+		}
+		size = 0;
+		unsynced = false;
+	}
+
+	/**
+	 * Returns the current size of the journal in bytes
+	 * @return long
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Syncs and closes the journal
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (syncer != null) {
+			syncer.shutdown();
+			syncer = null;
+		}
+		if (out == null)
+			return;
+		sync();
+		out.close();
+		out = null;
+		fos = null;
+	}
+
+	/**
+	 * Receives replayed records
+	 */
+	interface Handler {
+		/**
+		 * Called for every item record
+		 * @param r ItemRecord State of the item
+		 * @param destroyed boolean Whether the item was destroyed
+		 */
+		void item(ItemRecord r, boolean destroyed);
+
+		/**
+		 * Called for every user record
+		 * @param u UUID User's UUID
+		 * @param name String User's name
+		 */
+		void user(UUID u, String name);
+	}
+}
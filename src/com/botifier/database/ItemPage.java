@@ -0,0 +1,44 @@
+package com.botifier.database;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One page of an owner's items, in _id order.
+ * Pass getNext() as the cursor of the following request, it is null on the last page.
+ * @param <T> UUID when only the UUIDs were asked for, DatabaseObject<?> otherwise
+ */
+public class ItemPage<T> {
+
+	//Items on this page
+	private final List<T> results;
+
+	//UUID of the last item on this page, null when nothing comes after it
+	private final UUID next;
+
+	/**
+	 * ItemPage constructor
+	 * @param results List<T> Items on this page
+	 * @param next UUID Cursor of the next page or null
+	 */
+	public ItemPage(List<T> results, UUID next) {
+		this.results = results;
+		this.next = next;
+	}
+
+	public List<T> getResults() {
+		return results;
+	}
+
+	public UUID getNext() {
+		return next;
+	}
+
+	public boolean hasMore() {
+		return next != null;
+	}
+
+	public int size() {
+		return results.size();
+	}
+}
@@ -0,0 +1,329 @@
+package com.botifier.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.botifier.database.Database.DatabaseObject;
+
+/**
+ * Query over item information, run with Database.query.
+ * Fields are named the way they appear in the serialized info, nested fields are separated by dots
+ * and an empty field is the information itself. Numbers compare by value whatever their type, the
+ * same way MongoDB compares them, so a query returns the same items on every backend.
+ * <pre>
+ * db.query(new ItemQuery(Sword.class).where("damage", ItemQuery.Op.GT, 50).sort("damage", false).limit(10));
+ * </pre>
+ */
+public class ItemQuery {
+
+	/**
+	 * Comparison of a field against the query's value
+	 */
+	public enum Op {
+		EQ, NE, GT, GTE, LT, LTE, IN
+	}
+
+	//Class name stored as info_type, null matches every type
+	private final String infoType;
+
+	//Every predicate has to match
+	private final List<Predicate> predicates = new ArrayList<Predicate>();
+
+	//Field to sort by, null sorts by UUID only
+	private String sortField = null;
+	private boolean ascending = true;
+
+	//Largest number of items returned, 0 for no limit
+	private int limit = 0;
+
+	//Whether the result should carry the backend's plan
+	private boolean explain = false;
+
+	/**
+	 * ItemQuery constructor
+	 * @param infoType Class<?> Type of information to match, null for any type
+	 */
+	public ItemQuery(Class<?> infoType) {
+		this(infoType == null ? null : infoType.getName());
+	}
+
+	/**
+	 * ItemQuery constructor
+	 * @param infoType String Class name of the information to match, null for any type
+	 */
+	public ItemQuery(String infoType) {
+		this.infoType = infoType;
+	}
+
+	/**
+	 * Adds a predicate
+	 * @param field String Field of the information
+	 * @param op Op Comparison
+	 * @param value Object Value to compare against, a Collection or array for IN
+	 * @return ItemQuery this
+	 */
+	public ItemQuery where(String field, Op op, Object value) {
+		if (op == null)
+			throw new NullPointerException();
+		List<Object> values;
+		if (op == Op.IN) {
+			if (value instanceof Object[])
+				values = Arrays.asList((Object[]) value);
+			else if (value instanceof Iterable) {
+				values = new ArrayList<Object>();
+				for (Object o : (Iterable<?>) value)
+					values.add(o);
+			} else
+				throw new IllegalArgumentException("IN needs a Collection or an array.");
+		} else {
+			values = Collections.singletonList(value);
+		}
+		List<Object> normalized = new ArrayList<Object>(values.size());
+		for (Object o : values) {
+			Object n = InfoFields.normalize(o);
+			//Anything else has no agreed form in MongoDB, so it couldn't be pushed down
+			if (n != null && !InfoFields.orderable(n))
+				throw new IllegalArgumentException("Only numbers, strings, booleans, characters, enums and UUIDs can be compared.");
+			normalized.add(n);
+		}
+		predicates.add(new Predicate(field == null ? "" : field, op, normalized));
+		return this;
+	}
+
+	/**
+	 * Sorts the results by a field, ties are broken by UUID
+	 * @param field String Field of the information
+	 * @param ascending boolean Direction
+	 * @return ItemQuery this
+	 */
+	public ItemQuery sort(String field, boolean ascending) {
+		this.sortField = field == null ? "" : field;
+		this.ascending = ascending;
+		return this;
+	}
+
+	/**
+	 * Limits the number of results
+	 * @param limit int Largest number of results, 0 for no limit
+	 * @return ItemQuery this
+	 */
+	public ItemQuery limit(int limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException("Limit can't be negative.");
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Asks for the backend's plan, with MongoDB this costs an extra explain round trip
+	 * @param explain boolean Whether to explain
+	 * @return ItemQuery this
+	 */
+	public ItemQuery explain(boolean explain) {
+		this.explain = explain;
+		return this;
+	}
+
+	public String getInfoType() {
+		return infoType;
+	}
+
+	public List<Predicate> getPredicates() {
+		return Collections.unmodifiableList(predicates);
+	}
+
+	public String getSortField() {
+		return sortField;
+	}
+
+	public boolean isAscending() {
+		return ascending;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public boolean isExplain() {
+		return explain;
+	}
+
+	/**
+	 * Checks an item's information against the type and every predicate
+	 * @param info Object Information to check
+	 * @return boolean
+	 */
+	boolean matches(Object info) {
+		if (info == null)
+			return false;
+		if (infoType != null && !infoType.equals(info.getClass().getName()))
+			return false;
+		for (Predicate p : predicates)
+			if (!p.matches(InfoFields.read(info, p.field)))
+				return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "ItemQuery [infoType="+infoType+", predicates="+predicates+", sort="+sortField
+			+(ascending ? " asc" : " desc")+", limit="+limit+"]";
+	}
+
+	/**
+	 * A single field comparison, values are normalized the same way field values are
+	 */
+	public static class Predicate {
+		private final String field;
+		private final Op op;
+		private final List<Object> values;
+
+		Predicate(String field, Op op, List<Object> values) {
+			this.field = field;
+			this.op = op;
+			this.values = values;
+		}
+
+		public String getField() {
+			return field;
+		}
+
+		public Op getOp() {
+			return op;
+		}
+
+		public Object getValue() {
+			return values.isEmpty() ? null : values.get(0);
+		}
+
+		public List<Object> getValues() {
+			return Collections.unmodifiableList(values);
+		}
+
+		/**
+		 * Checks a normalized field value, missing fields are null
+		 * Like MongoDB, values of different kinds never order against each other
+		 * @param v Object Field value
+		 * @return boolean
+		 */
+		boolean matches(Object v) {
+			switch (op) {
+				case EQ:
+					return InfoFields.equal(v, getValue());
+				case NE:
+					return !InfoFields.equal(v, getValue());
+				case IN:
+					for (Object o : values)
+						if (InfoFields.equal(v, o))
+							return true;
+					return false;
+				default:
+					break;
+			}
+			Object w = getValue();
+			if (v == null || w == null || !InfoFields.sameKind(v, w))
+				return false;
+			int c = InfoFields.compare(v, w);
+			switch (op) {
+				case GT:
+					return c > 0;
+				case GTE:
+					return c >= 0;
+				case LT:
+					return c < 0;
+				case LTE:
+					return c <= 0;
+				default:
+					return false;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return field+" "+op+" "+(op == Op.IN ? values : getValue());
+		}
+	}
+
+	/**
+	 * Items a query returned and, when asked for, how the backend found them
+	 */
+	public static class Result {
+		private final List<DatabaseObject<?>> items;
+		private final Plan plan;
+
+		Result(List<DatabaseObject<?>> items, Plan plan) {
+			this.items = items;
+			this.plan = plan;
+		}
+
+		public List<DatabaseObject<?>> getItems() {
+			return items;
+		}
+
+		/**
+		 * Returns how the query ran
+		 * @return Plan or null for MongoDB queries that didn't ask for explain
+		 */
+		public Plan getPlan() {
+			return plan;
+		}
+
+		public int size() {
+			return items.size();
+		}
+	}
+
+	/**
+	 * How a query ran
+	 */
+	public static class Plan {
+		//mongo, memory or segment
+		private final String backend;
+		//Index that picked the candidates, null for a full scan
+		private final String index;
+		//Items or documents looked at
+		private final long examined;
+		private final long returned;
+		private final long millis;
+
+		Plan(String backend, String index, long examined, long returned, long millis) {
+			this.backend = backend;
+			this.index = index;
+			this.examined = examined;
+			this.returned = returned;
+			this.millis = millis;
+		}
+
+		public String getBackend() {
+			return backend;
+		}
+
+		public String getIndex() {
+			return index;
+		}
+
+		public boolean isIndexed() {
+			return index != null;
+		}
+
+		public long getExamined() {
+			return examined;
+		}
+
+		public long getReturned() {
+			return returned;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		@Override
+		public String toString() {
+			return backend+" "+(index == null ? "full scan" : "index "+index)+", examined "+examined
+				+", returned "+returned+" in "+millis+"ms";
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package com.botifier.database;
+
+import static com.botifier.database.main.Config.useMongo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.ItemQuery.Op;
+import com.botifier.database.ItemQuery.Plan;
+import com.botifier.database.ItemQuery.Predicate;
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Runs ItemQueries. With MongoDB the whole query, type, predicates, sort and limit, is turned
+ * into a find on info_type and info.* and nothing is filtered here. The flat file backends
+ * evaluate it in memory, starting from a FieldIndex when one covers a predicate and otherwise
+ * scanning every item, unloaded segment items are decoded without being registered and only
+ * the ones that match are loaded.
+ */
+public class ItemQueryEngine {
+
+	private static final Logger LOG = Logger.getLogger(ItemQueryEngine.class.getName());
+
+	//Database to query
+	private final Database db;
+
+	//Flat file indexes by info_type and field
+	private final Map<String, FieldIndex> indexes = new ConcurrentHashMap<String, FieldIndex>();
+
+	//Metrics
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong indexedQueries = new AtomicLong();
+	private final AtomicLong examined = new AtomicLong();
+	private final AtomicLong returned = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+
+	/**
+	 * ItemQueryEngine constructor
+	 * @param db Database To query
+	 */
+	public ItemQueryEngine(Database db) {
+		this.db = db;
+	}
+
+	/**
+	 * Indexes a field of one info_type. With MongoDB this creates an index on info_type and info.field,
+	 * otherwise a FieldIndex filled from every stored item
+	 * @param infoType String Class name of the information
+	 * @param field String Field to index
+	 * @throws IOException
+	 */
+	public void createIndex(String infoType, String field) throws IOException {
+		if (infoType == null)
+			throw new NullPointerException();
+		if (useMongo) {
+			String path = path(field);
+			try {
+				db.getMongo().getItemDocuments().createIndex(Indexes.ascending("info_type", path),
+						new IndexOptions().name("info_type_"+path));
+			} catch (MongoException e) {
+				LOG.log(Level.SEVERE, "Could not create the index on "+path+".", e);
+			}
+			return;
+		}
+		FieldIndex idx = new FieldIndex(infoType, field);
+		if (indexes.putIfAbsent(key(infoType, field), idx) != null)
+			return;
+		//Changes made while it fills are applied to it as well, updates of the same item replace each other
+		db.forEachItem((u, info, loaded) -> idx.update(u, info));
+	}
+
+	/**
+	 * Drops a flat file index
+	 * @param infoType String Class name of the information
+	 * @param field String Indexed field
+	 */
+	public void dropIndex(String infoType, String field) {
+		indexes.remove(key(infoType, field));
+	}
+
+	public Collection<FieldIndex> getIndexes() {
+		return Collections.unmodifiableCollection(indexes.values());
+	}
+
+	/**
+	 * Called after an item was created or its information changed
+	 * @param d DatabaseObject<?> Changed item
+	 */
+	void itemChanged(DatabaseObject<?> d) {
+		if (indexes.isEmpty())
+			return;
+		Object info = d.exists() ? d.peekInformation() : null;
+		for (FieldIndex idx : indexes.values())
+			idx.update(d.getUUID(), info);
+	}
+
+	/**
+	 * Called after an item was destroyed or unloaded for good
+	 * @param d DatabaseObject<?> Removed item
+	 */
+	void itemRemoved(DatabaseObject<?> d) {
+		if (indexes.isEmpty())
+			return;
+		for (FieldIndex idx : indexes.values())
+			idx.remove(d.getUUID());
+	}
+
+	/**
+	 * Empties every index, used when all items are loaded again
+	 */
+	void clearIndexes() {
+		for (FieldIndex idx : indexes.values())
+			idx.clear();
+	}
+
+	/**
+	 * Runs a query
+	 * @param q ItemQuery Query to run
+	 * @return ItemQuery.Result
+	 * @throws IOException
+	 */
+	public ItemQuery.Result run(ItemQuery q) throws IOException {
+		long start = System.currentTimeMillis();
+		ItemQuery.Result r = useMongo ? runMongo(q) : runMemory(q, start);
+		long took = System.currentTimeMillis() - start;
+		queries.incrementAndGet();
+		returned.addAndGet(r.size());
+		totalMillis.addAndGet(took);
+		Plan p = r.getPlan();
+		if (p != null) {
+			if (p.isIndexed())
+				indexedQueries.incrementAndGet();
+			examined.addAndGet(p.getExamined());
+		}
+		return r;
+	}
+
+	/**
+	 * Runs a query against the loaded and stored flat file items
+	 * @param q ItemQuery Query to run
+	 * @param start long When the query started
+	 * @return ItemQuery.Result
+	 * @throws IOException
+	 */
+	private ItemQuery.Result runMemory(ItemQuery q, long start) throws IOException {
+		Comparator<Match> order = order(q);
+		int limit = q.getLimit();
+		//With a limit only the best limit matches are kept, in reverse so the worst one is on top
+		Collection<Match> matches = limit > 0 ? new PriorityQueue<Match>(Math.min(limit, 1024) + 1, order.reversed()) : new ArrayList<Match>();
+		long[] seen = new long[1];
+
+		Predicate p = null;
+		FieldIndex idx = null;
+		for (Predicate c : q.getPredicates()) {
+			FieldIndex f = q.getInfoType() == null ? null : indexes.get(key(q.getInfoType(), c.getField()));
+			if (f == null || !f.supports(c))
+				continue;
+			//Equality picks fewer candidates than a range, so it wins
+			if (idx == null || (c.getOp() == Op.EQ || c.getOp() == Op.IN) && p.getOp() != Op.EQ && p.getOp() != Op.IN) {
+				idx = f;
+				p = c;
+			}
+		}
+
+		if (idx != null) {
+			Set<UUID> candidates = new LinkedHashSet<UUID>(idx.lookup(p));
+			for (UUID u : candidates) {
+				seen[0]++;
+				DatabaseObject<?> d = db.getItem(u);
+				Object info = d != null && d.exists() ? d.peekInformation() : null;
+				if (info != null && q.matches(info))
+					keep(matches, new Match(u, info, d, q), limit);
+			}
+		} else {
+			db.forEachItem((u, info, loaded) -> {
+				seen[0]++;
+				if (q.matches(info))
+					keep(matches, new Match(u, info, loaded, q), limit);
+			});
+		}
+
+		List<Match> sorted = new ArrayList<Match>(matches);
+		sorted.sort(order);
+		List<DatabaseObject<?>> items = new ArrayList<DatabaseObject<?>>(sorted.size());
+		for (Match m : sorted) {
+			//Unloaded matches are only read now, after the limit has thrown the rest away
+			DatabaseObject<?> d = m.loaded != null ? m.loaded : db.getItem(m.uuid);
+			if (d != null)
+				items.add(d);
+		}
+		String backend = db.hasSegmentStore() ? "segment" : "memory";
+		return new ItemQuery.Result(items, new Plan(backend, idx == null ? null : idx.getName(), seen[0], items.size(),
+				System.currentTimeMillis() - start));
+	}
+
+	private static void keep(Collection<Match> matches, Match m, int limit) {
+		matches.add(m);
+		if (limit > 0 && matches.size() > limit)
+			((PriorityQueue<Match>) matches).poll();
+	}
+
+	/**
+	 * Returns the order of a query's results, the sort field with MongoDB's ordering between kinds, then UUID
+	 * @param q ItemQuery Query
+	 * @return Comparator<Match>
+	 */
+	private static Comparator<Match> order(ItemQuery q) {
+		Comparator<Match> byId = (a, b) -> OwnerIndex.ORDER.compare(a.uuid, b.uuid);
+		if (q.getSortField() == null)
+			return byId;
+		Comparator<Match> byKey = (a, b) -> InfoFields.ORDER.compare(a.key, b.key);
+		return (q.isAscending() ? byKey : byKey.reversed()).thenComparing(byId);
+	}
+
+	/**
+	 * Pushes a query down to MongoDB, only _id is fetched and items that aren't loaded are read in one more query
+	 * @param q ItemQuery Query to run
+	 * @return ItemQuery.Result
+	 */
+	private ItemQuery.Result runMongo(ItemQuery q) {
+		long start = System.currentTimeMillis();
+		Bson filter = filter(q);
+		Bson sort = q.getSortField() == null ? Sorts.ascending("_id")
+				: Sorts.orderBy(q.isAscending() ? Sorts.ascending(path(q.getSortField())) : Sorts.descending(path(q.getSortField())),
+						Sorts.ascending("_id"));
+
+		FindIterable<Document> find = db.getMongo().getItemDocuments().find(filter).sort(sort).limit(q.getLimit());
+		List<UUID> ids = new ArrayList<UUID>();
+		for (Document d : find.projection(Projections.include("_id")))
+			ids.add(UUID.fromString(d.getString("_id")));
+		Map<UUID, DatabaseObject<?>> read = db.readItemsMongo(ids);
+		List<DatabaseObject<?>> items = new ArrayList<DatabaseObject<?>>(ids.size());
+		for (UUID u : ids) {
+			DatabaseObject<?> d = read.get(u);
+			if (d != null)
+				items.add(d);
+		}
+		if (!q.isExplain())
+			return new ItemQuery.Result(items, null);
+
+		Document e = db.getMongo().getItemDocuments().find(filter).sort(sort).limit(q.getLimit())
+				.explain(ExplainVerbosity.EXECUTION_STATS);
+		Object planner = e.get("queryPlanner");
+		String index = planner instanceof Document ? indexName(((Document) planner).get("winningPlan")) : null;
+		long docs = -1;
+		Object stats = e.get("executionStats");
+		if (stats instanceof Document && ((Document) stats).get("totalDocsExamined") instanceof Number)
+			docs = ((Number) ((Document) stats).get("totalDocsExamined")).longValue();
+		return new ItemQuery.Result(items, new Plan("mongo", index, docs, items.size(), System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * Builds the MongoDB filter of a query, documents still in the old JSON string layout never match
+	 * @param q ItemQuery Query
+	 * @return Bson
+	 */
+	static Bson filter(ItemQuery q) {
+		List<Bson> and = new ArrayList<Bson>();
+		if (q.getInfoType() != null)
+			and.add(Filters.eq("info_type", q.getInfoType()));
+		for (Predicate p : q.getPredicates()) {
+			String path = path(p.getField());
+			switch (p.getOp()) {
+				case EQ:
+					and.add(Filters.eq(path, p.getValue()));
+					break;
+				case NE:
+					and.add(Filters.ne(path, p.getValue()));
+					break;
+				case GT:
+					and.add(Filters.gt(path, p.getValue()));
+					break;
+				case GTE:
+					and.add(Filters.gte(path, p.getValue()));
+					break;
+				case LT:
+					and.add(Filters.lt(path, p.getValue()));
+					break;
+				case LTE:
+					and.add(Filters.lte(path, p.getValue()));
+					break;
+				case IN:
+					and.add(Filters.in(path, p.getValues()));
+					break;
+			}
+		}
+		return and.isEmpty() ? new Document() : Filters.and(and);
+	}
+
+	/**
+	 * Finds the index a winning plan scans, the plan is a tree of stages
+	 * @param plan Object Plan or part of it
+	 * @return String Index name or null for a collection scan
+	 */
+	private static String indexName(Object plan) {
+		if (plan instanceof Document) {
+			Document d = (Document) plan;
+			if ("IXSCAN".equals(d.get("stage")))
+				return d.getString("indexName");
+			for (Object o : d.values()) {
+				String n = indexName(o);
+				if (n != null)
+					return n;
+			}
+		} else if (plan instanceof List) {
+			for (Object o : (List<?>) plan) {
+				String n = indexName(o);
+				if (n != null)
+					return n;
+			}
+		}
+		return null;
+	}
+
+	private static String path(String field) {
+		return field == null || field.isEmpty() ? "info" : "info."+field;
+	}
+
+	private static String key(String infoType, String field) {
+		return infoType+"#"+(field == null ? "" : field);
+	}
+
+	public long getQueries() {
+		return queries.get();
+	}
+
+	public long getIndexedQueries() {
+		return indexedQueries.get();
+	}
+
+	public long getExamined() {
+		return examined.get();
+	}
+
+	public long getReturned() {
+		return returned.get();
+	}
+
+	/**
+	 * Returns the metrics as a readable line
+	 * @return String
+	 */
+	public String getStatistics() {
+		long n = queries.get();
+		return "Queries: "+n+", Indexed: "+indexedQueries.get()+", Examined: "+examined.get()+", Returned: "+returned.get()
+			+", Avg: "+String.format("%.1f", n == 0 ? 0 : (double) totalMillis.get() / n)+"ms, Indexes: "+indexes.size();
+	}
+
+	/**
+	 * Called for every item a scan visits
+	 */
+	interface ItemVisitor {
+		/**
+		 * @param u UUID Item's UUID
+		 * @param info Object Item's information
+		 * @param loaded DatabaseObject<?> The loaded item, null when it was decoded from the store without loading it
+		 */
+		void visit(UUID u, Object info, DatabaseObject<?> loaded);
+	}
+
+	/**
+	 * An item that matched, with its sort key read once
+	 */
+	private static class Match {
+		private final UUID uuid;
+		private final Object key;
+		private final DatabaseObject<?> loaded;
+
+		Match(UUID uuid, Object info, DatabaseObject<?> loaded, ItemQuery q) {
+			this.uuid = uuid;
+			this.key = q.getSortField() == null ? null : InfoFields.read(info, q.getSortField());
+			this.loaded = loaded;
+		}
+	}
+}
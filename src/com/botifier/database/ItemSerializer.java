@@ -0,0 +1,33 @@
+package com.botifier.database;
+
+import java.io.IOException;
+
+/**
+ * Turns item information into bytes and back. The bytes carry the type of the information, so
+ * decode needs nothing else. Serializers are registered with DatabaseObjectAdapter under their name,
+ * the one picked by itemSerializer is used for new writes and every registered one can still read.
+ */
+public interface ItemSerializer {
+
+	/**
+	 * Returns the name the serializer is picked and recorded by
+	 * @return String
+	 */
+	String getName();
+
+	/**
+	 * Serializes information along with its type
+	 * @param info Object Information, not null
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	byte[] encode(Object info) throws IOException;
+
+	/**
+	 * Deserializes what encode returned
+	 * @param data byte[] Encoded information
+	 * @return Object
+	 * @throws IOException If the data or its type can't be read
+	 */
+	Object decode(byte[] data) throws IOException;
+}
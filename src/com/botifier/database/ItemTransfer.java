@@ -0,0 +1,82 @@
+package com.botifier.database;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+
+/**
+ * A single item moving from one user to another, passed to Database.transferObjectsMongo.
+ * The expected owner and version come from the item's last known copy in MongoDB, so a
+ * transfer only goes through if no other node changed the item since this one read it.
+ */
+public class ItemTransfer {
+
+	//Item being moved
+	private final DatabaseObject<?> item;
+
+	//Current and new owner
+	private final DatabaseUser source;
+	private final DatabaseUser target;
+
+	//Outcome, PENDING until the transfer was attempted
+	private volatile Status status = Status.PENDING;
+
+	/**
+	 * ItemTransfer constructor
+	 * @param item DatabaseObject<?> Item to move
+	 * @param source DatabaseUser Current owner
+	 * @param target DatabaseUser New owner
+	 */
+	public ItemTransfer(DatabaseObject<?> item, DatabaseUser source, DatabaseUser target) {
+		this.item = item;
+		this.source = source;
+		this.target = target;
+	}
+
+	public DatabaseObject<?> getItem() {
+		return item;
+	}
+
+	public DatabaseUser getSource() {
+		return source;
+	}
+
+	public DatabaseUser getTarget() {
+		return target;
+	}
+
+	/**
+	 * Returns the outcome of this transfer
+	 * @return Status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	void setStatus(Status status) {
+		this.status = status;
+	}
+
+	@Override
+	public String toString() {
+		return item.getUUID()+": "+(source == null ? null : source.getName())+" -> "
+				+(target == null ? null : target.getName())+" "+status;
+	}
+
+	/**
+	 * Outcome of a transfer
+	 */
+	public enum Status {
+		//Not attempted yet
+		PENDING,
+		//Moved, both in MongoDB and in memory
+		TRANSFERRED,
+		//MongoDB holds a different owner or version, the local copy is stale and was dropped
+		CONFLICT,
+		//Failed a local check, wrong owner, target already has it, item limit or destroyed
+		REJECTED,
+		//Valid, but another transfer in the same batch failed so nothing was applied
+		ABORTED,
+		//MongoDB could not be reached or returned an error, nothing was applied locally
+		FAILED
+	}
+}
@@ -0,0 +1,71 @@
+package com.botifier.database;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The info_type and info format of items.json as an ItemSerializer: the class name, a zero byte and
+ * the info JSON, both UTF-8. Information goes through DatabaseObjectAdapter's cached Gson adapters.
+ */
+public class JsonItemSerializer implements ItemSerializer {
+
+	public static final String NAME = "json";
+
+	//Adapter whose info adapters are used
+	private final DatabaseObjectAdapter adapter;
+
+	public JsonItemSerializer(DatabaseObjectAdapter adapter) {
+		this.adapter = adapter;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public byte[] encode(Object info) throws IOException {
+		return join(info.getClass().getName(), adapter.infoToJson(adapter.infoAdapter(info.getClass()), info));
+	}
+
+	@Override
+	public Object decode(byte[] data) throws IOException {
+		DatabaseObjectAdapter.StoredInfo s = split(data);
+		try {
+			return adapter.infoFromJson(adapter.infoAdapter(s.type), s.json);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown info type "+s.type+".", e);
+		}
+	}
+
+	/**
+	 * Builds the encoded form from fields already read as text, without going through the information
+	 * @param type String Class name
+	 * @param json String Info JSON
+	 * @return byte[]
+	 */
+	static byte[] join(String type, String json) {
+		byte[] t = type.getBytes(StandardCharsets.UTF_8);
+		byte[] j = json.getBytes(StandardCharsets.UTF_8);
+		byte[] data = new byte[t.length + 1 + j.length];
+		System.arraycopy(t, 0, data, 0, t.length);
+		System.arraycopy(j, 0, data, t.length + 1, j.length);
+		return data;
+	}
+
+	/**
+	 * Splits the encoded form back into the class name and info JSON
+	 * @param data byte[] Returned by encode or join
+	 * @return DatabaseObjectAdapter.StoredInfo
+	 * @throws IOException If there is no separator
+	 */
+	static DatabaseObjectAdapter.StoredInfo split(byte[] data) throws IOException {
+		int i = 0;
+		while (i < data.length && data[i] != 0)
+			i++;
+		if (i == data.length)
+			throw new IOException("Encoded info has no type.");
+		return new DatabaseObjectAdapter.StoredInfo(new String(data, 0, i, StandardCharsets.UTF_8),
+				new String(data, i + 1, data.length - i - 1, StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,197 @@
+package com.botifier.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+
+/**
+ * Reads a whole collection over several cursors at once. The _id range is split into slices by
+ * the leading hex digits of the UUID strings, and each slice is read and decoded by a worker thread.
+ * Random UUIDs spread evenly over the slices, and there are a few slices per thread, so a slow
+ * slice doesn't hold up the others. Any _id that isn't a UUID still falls into the first or last slice.
+ */
+public class MongoBulkLoader implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(MongoBulkLoader.class.getName());
+
+	//Slices per worker thread
+	private static final int SLICES_PER_THREAD = 4;
+
+	//Number of leading hex digits slice bounds are made of
+	private static final int BOUND_DIGITS = 4;
+
+	//How many documents are read between progress messages
+	private static final long PROGRESS_INTERVAL = 100000;
+
+	//Worker threads
+	private final int parallelism;
+
+	//Documents fetched per round trip
+	private final int batchSize;
+
+	private final ExecutorService workers;
+
+	//Documents read by the current load
+	private final AtomicLong read = new AtomicLong();
+
+	/**
+	 * MongoBulkLoader constructor
+	 * @param parallelism int Number of worker threads, 0 or less for one per core
+	 * @param batchSize int Documents fetched per round trip
+	 */
+	public MongoBulkLoader(int parallelism, int batchSize) {
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		this.batchSize = Math.max(1, batchSize);
+		AtomicInteger threads = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(this.parallelism, r -> {
+			Thread t = new Thread(r, "Mongo-load-"+threads.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Reads every document of a collection and decodes it on the worker threads
+	 * @param <R> Decoded type
+	 * @param col MongoCollection<BsonDocument> Collection to read
+	 * @param what String Name used in progress messages
+	 * @param decode Function<BsonDocument, R> Called on a worker thread for every document, null results are dropped
+	 * @return List<List<R>> Decoded documents, one list per slice
+	 */
+	public <R> List<List<R>> read(MongoCollection<BsonDocument> col, String what, Function<BsonDocument, R> decode) {
+		read.set(0);
+		long expected = col.estimatedDocumentCount();
+		List<Bson> slices = slices(parallelism * SLICES_PER_THREAD);
+		List<Future<List<R>>> futures = new ArrayList<Future<List<R>>>(slices.size());
+		for (Bson slice : slices) {
+			futures.add(workers.submit(() -> {
+				List<R> decoded = new ArrayList<R>();
+				try (MongoCursor<BsonDocument> cursor = col.find(slice).batchSize(batchSize).iterator()) {
+					while (cursor.hasNext()) {
+						R r = decode.apply(cursor.next());
+						if (r != null)
+							decoded.add(r);
+						long n = read.incrementAndGet();
+						if (n % PROGRESS_INTERVAL == 0)
+							LOG.info("Read "+n+" of about "+expected+" "+what+"...");
+					}
+				}
+				return decoded;
+			}));
+		}
+		return join(futures);
+	}
+
+	/**
+	 * Calls a function for every element of a list, spread over the worker threads
+	 * @param <T> Element type
+	 * @param list List<T> Elements
+	 * @param f ToIntFunction<T> Called once per element
+	 * @return long Sum of the results
+	 */
+	public <T> long forEach(List<T> list, ToIntFunction<T> f) {
+		int chunks = Math.min(list.size(), parallelism * SLICES_PER_THREAD);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			List<T> chunk = list.subList(c * list.size() / chunks, (c + 1) * list.size() / chunks);
+			futures.add(workers.submit(() -> {
+				long total = 0;
+				for (T t : chunk)
+					total += f.applyAsInt(t);
+				return total;
+			}));
+		}
+		long total = 0;
+		for (Long l : join(futures))
+			total += l;
+		return total;
+	}
+
+	/**
+	 * Returns the number of documents read so far by the current load
+	 * @return long
+	 */
+	public long getRead() {
+		return read.get();
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Splits the UUID string range into filters on _id, the first and last are open ended
+	 * @param n int Number of slices
+	 * @return List<Bson>
+	 */
+	static List<Bson> slices(int n) {
+		long space = 1L << (4 * BOUND_DIGITS);
+		n = (int) Math.max(1, Math.min(n, space));
+		List<Bson> slices = new ArrayList<Bson>(n);
+		String lower = null;
+		for (int i = 1; i <= n; i++) {
+			String upper = i == n ? null : String.format("%0"+BOUND_DIGITS+"x", i * space / n);
+			if (lower == null && upper == null)
+				slices.add(new BsonDocument());
+			else if (lower == null)
+				slices.add(Filters.lt("_id", upper));
+			else if (upper == null)
+				slices.add(Filters.gte("_id", lower));
+			else
+				slices.add(Filters.and(Filters.gte("_id", lower), Filters.lt("_id", upper)));
+			lower = upper;
+		}
+		return slices;
+	}
+
+	/**
+	 * Waits for every future, rethrowing the first failure once all of them are done
+	 * @param <R> Result type
+	 * @param futures List<Future<R>> To wait for
+	 * @return List<R> Results in order
+	 */
+	private static <R> List<R> join(List<Future<R>> futures) {
+		List<R> results = new ArrayList<R>(futures.size());
+		Throwable failed = null;
+		for (Future<R> f : futures) {
+			try {
+				results.add(f.get());
+			} catch (ExecutionException e) {
+				if (failed == null)
+					failed = e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (Future<R> other : futures)
+					other.cancel(true);
+				throw new IllegalStateException("Interrupted while loading.", e);
+			}
+		}
+		if (failed instanceof RuntimeException)
+			throw (RuntimeException) failed;
+		if (failed instanceof Error)
+			throw (Error) failed;
+		if (failed != null)
+			throw new IllegalStateException(failed);
+		return results;
+	}
+
+	@Override
+	public void close() {
+		workers.shutdownNow();
+	}
+}
@@ -0,0 +1,276 @@
+package com.botifier.database;
+
+import static com.botifier.database.main.Config.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Groups upserts into bulkWrite batches instead of one round trip per document.
+ * Failed batches are retried, every batch is timed and counted in a Report.
+ * @param <T> Document type of the collection
+ */
+public class MongoBulkWriter<T> {
+
+	private static final Logger LOG = Logger.getLogger(MongoBulkWriter.class.getName());
+
+	//Upserts are idempotent, so a whole batch can safely be sent again
+	private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+
+	//Collection to write to
+	private final MongoCollection<T> collection;
+
+	//Settings
+	private final int batchSize;
+	private final boolean ordered;
+	private final int retries;
+
+	//Writes waiting for the next batch
+	private final List<WriteModel<T>> pending = new ArrayList<WriteModel<T>>();
+
+	//Report of everything flushed so far
+	private final Report report = new Report();
+
+	/**
+	 * MongoBulkWriter constructor
+	 * Uses the batch settings from Config
+	 * @param collection MongoCollection<T> To write to
+	 */
+	public MongoBulkWriter(MongoCollection<T> collection) {
+		this(collection, mongoBulkBatchSize, mongoBulkOrdered, mongoBulkRetries);
+	}
+
+	/**
+	 * MongoBulkWriter constructor
+	 * @param collection MongoCollection<T> To write to
+	 * @param batchSize int Max writes per bulkWrite
+	 * @param ordered boolean Whether the server should stop a batch at the first error
+	 * @param retries int How many times a failed batch is sent again
+	 */
+	public MongoBulkWriter(MongoCollection<T> collection, int batchSize, boolean ordered, int retries) {
+		if (collection == null)
+			throw new NullPointerException();
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1.");
+		this.collection = collection;
+		this.batchSize = batchSize;
+		this.ordered = ordered;
+		this.retries = Math.max(0, retries);
+	}
+
+	/**
+	 * Queues an upsert of a document by its _id, sending a batch once it is full
+	 * @param id String _id of the document
+	 * @param document T Document to write
+	 */
+	public void upsert(String id, T document) {
+		Bson filter = Filters.eq("_id", id);
+		add(new ReplaceOneModel<T>(filter, document, UPSERT));
+	}
+
+	/**
+	 * Queues any write, sending a batch once it is full
+	 * @param model WriteModel<T> To queue
+	 */
+	public void add(WriteModel<T> model) {
+		pending.add(model);
+		if (pending.size() >= batchSize)
+			sendBatch();
+	}
+
+	/**
+	 * Sends whatever is still queued and returns the report
+	 * @return Report
+	 */
+	public Report flush() {
+		if (!pending.isEmpty())
+			sendBatch();
+		return report;
+	}
+
+	/**
+	 * Returns the report of everything sent so far
+	 * @return Report
+	 */
+	public Report getReport() {
+		return report;
+	}
+
+	/**
+	 * Sends the pending writes as one bulkWrite, retrying it if it fails
+	 */
+	private void sendBatch() {
+		List<WriteModel<T>> batch = new ArrayList<WriteModel<T>>(pending);
+		pending.clear();
+
+		BulkWriteOptions options = new BulkWriteOptions().ordered(ordered);
+		long start = System.nanoTime();
+		MongoException last = null;
+		for (int attempt = 1; attempt <= retries + 1; attempt++) {
+			try {
+				BulkWriteResult r = collection.bulkWrite(batch, options);
+				report.add(new BatchResult(batch.size(), r.getMatchedCount(), r.getModifiedCount(),
+						r.getUpserts().size(), attempt, System.nanoTime() - start, true));
+				return;
+			} catch (MongoException e) {
+				last = e;
+				LOG.warning("Bulk write batch of "+batch.size()+" failed on attempt "+attempt+": "+e.getMessage());
+			}
+		}
+		report.add(new BatchResult(batch.size(), 0, 0, 0, retries + 1, System.nanoTime() - start, false));
+		if (last != null)
+			LOG.log(Level.SEVERE, "Bulk write batch of "+batch.size()+" failed.", last);
+	}
+
+	/**
+	 * Outcome of a single bulkWrite batch
+	 */
+	public static class BatchResult {
+		private final int size;
+		private final int matched;
+		private final int modified;
+		private final int upserted;
+		private final int attempts;
+		private final long nanos;
+		private final boolean success;
+
+		private BatchResult(int size, int matched, int modified, int upserted, int attempts, long nanos, boolean success) {
+			this.size = size;
+			this.matched = matched;
+			this.modified = modified;
+			this.upserted = upserted;
+			this.attempts = attempts;
+			this.nanos = nanos;
+			this.success = success;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public int getMatched() {
+			return matched;
+		}
+
+		public int getModified() {
+			return modified;
+		}
+
+		public int getUpserted() {
+			return upserted;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		@Override
+		public String toString() {
+			return (success ? "OK" : "FAILED")+" size="+size+" matched="+matched+" modified="+modified
+				+" upserted="+upserted+" attempts="+attempts+" time="+(nanos / 1000000)+"ms";
+		}
+	}
+
+	/**
+	 * Totals and per batch results of a MongoBulkWriter
+	 */
+	public static class Report {
+		private final List<BatchResult> batches = new ArrayList<BatchResult>();
+
+		private void add(BatchResult b) {
+			batches.add(b);
+		}
+
+		/**
+		 * Returns the result of every batch in the order they were sent
+		 * @return List<BatchResult>
+		 */
+		public List<BatchResult> getBatches() {
+			return Collections.unmodifiableList(batches);
+		}
+
+		/**
+		 * Returns the number of documents in batches that succeeded
+		 * @return long
+		 */
+		public long getWritten() {
+			long c = 0;
+			for (BatchResult b : batches)
+				if (b.isSuccess())
+					c += b.getSize();
+			return c;
+		}
+
+		/**
+		 * Returns the number of documents matched by the filters of batches that succeeded
+		 * @return long
+		 */
+		public long getMatched() {
+			long c = 0;
+			for (BatchResult b : batches)
+				c += b.getMatched();
+			return c;
+		}
+
+		/**
+		 * Returns the number of documents inserted by upserts of batches that succeeded
+		 * @return long
+		 */
+		public long getUpserted() {
+			long c = 0;
+			for (BatchResult b : batches)
+				c += b.getUpserted();
+			return c;
+		}
+
+		/**
+		 * Returns the number of documents in batches that failed every attempt
+		 * @return long
+		 */
+		public long getFailed() {
+			long c = 0;
+			for (BatchResult b : batches)
+				if (!b.isSuccess())
+					c += b.getSize();
+			return c;
+		}
+
+		/**
+		 * Returns the total time spent sending batches
+		 * @return long Milliseconds
+		 */
+		public long getMillis() {
+			long n = 0;
+			for (BatchResult b : batches)
+				n += b.getNanos();
+			return n / 1000000;
+		}
+
+		@Override
+		public String toString() {
+			return batches.size()+" batches, "+getWritten()+" written, "+getFailed()+" failed in "+getMillis()+"ms";
+		}
+	}
+}
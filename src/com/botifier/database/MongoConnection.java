@@ -0,0 +1,381 @@
+package com.botifier.database;
+
+import static com.botifier.database.main.Config.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.metrics.MetricsRegistry;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+/**
+ * Long lived MongoDB client shared by every call a Database makes.
+ * Opened by Database.start() and closed by Database.stop().
+ */
+public class MongoConnection implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(MongoConnection.class.getName());
+
+	//Compares names without regard to case, used by the unique name index and every query on name
+	public static final Collation NAME_COLLATION = Collation.builder()
+			.locale("en")
+			.collationStrength(CollationStrength.SECONDARY)
+			.build();
+
+	//The pooled client
+	private MongoClient client;
+
+	//Codec used for the item collection
+	private final DatabaseObjectCodec itemCodec;
+
+	//Cached handles, collections are thread safe and cheap to keep around
+	private MongoDatabase database;
+	private MongoCollection<Document> userCollection;
+	private MongoCollection<DatabaseObject<?>> itemCollection;
+	private MongoCollection<Document> itemDocuments;
+
+	//Pool statistics
+	private final PoolStatistics statistics = new PoolStatistics();
+
+	//Times every command sent, null when not measured
+	private final CommandListener commands;
+
+	/**
+	 * MongoConnection constructor
+	 * @param itemCodec DatabaseObjectCodec Codec registered for the item collection
+	 */
+	public MongoConnection(DatabaseObjectCodec itemCodec) {
+		this(itemCodec, null);
+	}
+
+	/**
+	 * MongoConnection constructor
+	 * @param itemCodec DatabaseObjectCodec Codec registered for the item collection
+	 * @param metrics MetricsRegistry Receives the round trips and their latency, null for none
+	 */
+	public MongoConnection(DatabaseObjectCodec itemCodec, MetricsRegistry metrics) {
+		this.itemCodec = itemCodec;
+		this.commands = metrics == null ? null : new CommandMetrics(metrics);
+	}
+
+	/**
+	 * Opens the client using the settings in Config
+	 */
+	public synchronized void open() {
+		if (client != null)
+			return;
+		client = MongoClients.create(buildSettings(statistics, commands));
+		database = client.getDatabase(mongoDBName);
+		userCollection = database.getCollection(mongoUserCol);
+		itemCollection = database.getCollection(mongoItemCol, itemCodec.getEncoderClass()).withCodecRegistry(codecRegistry(itemCodec));
+		itemDocuments = database.getCollection(mongoItemCol);
+	}
+	
+	/**
+	 * Builds client settings from Config, shared with the reactive client of AsyncDatabase
+	 * @param listener ConnectionPoolListener Receives the pool events
+	 * @return MongoClientSettings
+	 */
+	static MongoClientSettings buildSettings(ConnectionPoolListener listener) {
+		return buildSettings(listener, null);
+	}
+	
+	/**
+	 * Builds client settings from Config
+	 * @param listener ConnectionPoolListener Receives the pool events
+	 * @param commands CommandListener Receives every command sent, null for none
+	 * @return MongoClientSettings
+	 */
+	static MongoClientSettings buildSettings(ConnectionPoolListener listener, CommandListener commands) {
+		MongoClientSettings.Builder settings = MongoClientSettings.builder();
+		if (commands != null)
+			settings.addCommandListener(commands);
+		return settings
+				.applyConnectionString(new ConnectionString("mongodb://"+mongoIp +":" + mongoPort))
+				.applyToConnectionPoolSettings(b -> b.maxSize(mongoMaxPoolSize)
+						.minSize(mongoMinPoolSize)
+						.maxWaitTime(mongoMaxWaitMs, TimeUnit.MILLISECONDS)
+						.addConnectionPoolListener(listener))
+				.applyToSocketSettings(b -> b.connectTimeout(mongoConnectTimeoutMs, TimeUnit.MILLISECONDS)
+						.readTimeout(mongoReadTimeoutMs, TimeUnit.MILLISECONDS))
+				.readConcern(parseReadConcern(mongoReadConcern))
+				.writeConcern(parseWriteConcern(mongoWriteConcern))
+				.build();
+	}
+	
+	/**
+	 * Returns a registry that uses the item codec ahead of the driver's defaults
+	 * @param itemCodec DatabaseObjectCodec Codec for DatabaseObjects
+	 * @return CodecRegistry
+	 */
+	static CodecRegistry codecRegistry(DatabaseObjectCodec itemCodec) {
+		return CodecRegistries.fromRegistries(
+				CodecRegistries.fromCodecs(itemCodec),
+				MongoClientSettings.getDefaultCodecRegistry());
+	}
+	
+	/**
+	 * Returns the codec used for the item collection
+	 * @return DatabaseObjectCodec
+	 */
+	DatabaseObjectCodec getItemCodec() {
+		return itemCodec;
+	}
+
+	/**
+	 * Creates the indexes the queries rely on, existing indexes are left alone
+	 */
+	public synchronized void ensureIndexes() {
+		open();
+		try {
+			userCollection.createIndex(Indexes.ascending("name"),
+					new IndexOptions().name("name_ci").unique(true).collation(NAME_COLLATION));
+		} catch (MongoException e) {
+			//Usually two users whose names only differ in case, they have to be renamed before the index can exist
+			LOG.log(Level.SEVERE, "Could not create the unique name index.", e);
+		}
+		try {
+			//Covers the items by owner pages, filtered on owner and walked in _id order
+			itemDocuments.createIndex(Indexes.ascending("owner", "_id"), new IndexOptions().name("owner_id"));
+		} catch (MongoException e) {
+			LOG.log(Level.SEVERE, "Could not create the owner index.", e);
+		}
+	}
+	
+	/**
+	 * Closes the client and drops the cached handles
+	 */
+	@Override
+	public synchronized void close() {
+		if (client == null)
+			return;
+		client.close();
+		client = null;
+		database = null;
+		userCollection = null;
+		itemCollection = null;
+		itemDocuments = null;
+	}
+
+	/**
+	 * Returns whether or not the client is open
+	 * @return boolean
+	 */
+	public synchronized boolean isOpen() {
+		return client != null;
+	}
+
+	/**
+	 * Returns the client, opening it first if needed
+	 * @return MongoClient
+	 */
+	public synchronized MongoClient getClient() {
+		open();
+		return client;
+	}
+
+	/**
+	 * Returns the database named in Config
+	 * @return MongoDatabase
+	 */
+	public synchronized MongoDatabase getDatabase() {
+		open();
+		return database;
+	}
+
+	/**
+	 * Returns the user collection
+	 * @return MongoCollection<Document>
+	 */
+	public synchronized MongoCollection<Document> getUserCollection() {
+		open();
+		return userCollection;
+	}
+
+	/**
+	 * Returns the item collection, decoded with the DatabaseObjectCodec
+	 * @return MongoCollection<DatabaseObject<?>>
+	 */
+	public synchronized MongoCollection<DatabaseObject<?>> getItemCollection() {
+		open();
+		return itemCollection;
+	}
+
+	/**
+	 * Returns the item collection as raw documents
+	 * @return MongoCollection<Document>
+	 */
+	public synchronized MongoCollection<Document> getItemDocuments() {
+		open();
+		return itemDocuments;
+	}
+
+	/**
+	 * Returns the pool statistics of this connection
+	 * @return PoolStatistics
+	 */
+	public PoolStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Turns a config value into a ReadConcern, "default" leaves it up to the server
+	 * @param s String To parse
+	 * @return ReadConcern
+	 */
+	private static ReadConcern parseReadConcern(String s) {
+		if (s == null || s.isEmpty() || s.equalsIgnoreCase("default"))
+			return ReadConcern.DEFAULT;
+		return new ReadConcern(ReadConcernLevel.fromString(s));
+	}
+
+	/**
+	 * Turns a config value into a WriteConcern, unknown values fall back to ACKNOWLEDGED
+	 * @param s String To parse
+	 * @return WriteConcern
+	 */
+	private static WriteConcern parseWriteConcern(String s) {
+		WriteConcern wc = s == null ? null : WriteConcern.valueOf(s);
+		if (wc == null) {
+			LOG.warning("Unknown write concern "+s+", using ACKNOWLEDGED.");
+			return WriteConcern.ACKNOWLEDGED;
+		}
+		return wc;
+	}
+
+	/**
+	 * Counts every command sent as a round trip and times it under mongo.<command name>
+	 */
+	private static class CommandMetrics implements CommandListener {
+		private final MetricsRegistry metrics;
+
+		CommandMetrics(MetricsRegistry metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public void commandSucceeded(CommandSucceededEvent event) {
+			metrics.counter("mongo.roundTrips").inc();
+			metrics.histogram("mongo."+event.getCommandName()).record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+		}
+
+		@Override
+		public void commandFailed(CommandFailedEvent event) {
+			metrics.counter("mongo.roundTrips").inc();
+			metrics.counter("mongo.failures").inc();
+			metrics.histogram("mongo."+event.getCommandName()).record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+		}
+	}
+
+	/**
+	 * Counts connection pool events so they can be read at runtime
+	 */
+	public static class PoolStatistics implements ConnectionPoolListener {
+		private final AtomicLong created = new AtomicLong();
+		private final AtomicLong closed = new AtomicLong();
+		private final AtomicLong checkedOut = new AtomicLong();
+		private final AtomicLong checkedIn = new AtomicLong();
+		private final AtomicLong checkOutFailed = new AtomicLong();
+
+		@Override
+		public void connectionCreated(ConnectionCreatedEvent event) {
+			created.incrementAndGet();
+		}
+
+		@Override
+		public void connectionClosed(ConnectionClosedEvent event) {
+			closed.incrementAndGet();
+		}
+
+		@Override
+		public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+			checkedOut.incrementAndGet();
+		}
+
+		@Override
+		public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+			checkedIn.incrementAndGet();
+		}
+
+		@Override
+		public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+			checkOutFailed.incrementAndGet();
+		}
+
+		/**
+		 * Returns the number of connections currently open
+		 * @return long
+		 */
+		public long getOpenConnections() {
+			return created.get() - closed.get();
+		}
+
+		/**
+		 * Returns the number of connections currently checked out of the pool
+		 * @return long
+		 */
+		public long getInUseConnections() {
+			return checkedOut.get() - checkedIn.get();
+		}
+
+		/**
+		 * Returns the total number of connections created
+		 * @return long
+		 */
+		public long getCreatedConnections() {
+			return created.get();
+		}
+
+		/**
+		 * Returns the total number of successful check outs
+		 * @return long
+		 */
+		public long getCheckOuts() {
+			return checkedOut.get();
+		}
+
+		/**
+		 * Returns the total number of failed check outs
+		 * @return long
+		 */
+		public long getFailedCheckOuts() {
+			return checkOutFailed.get();
+		}
+
+		@Override
+		public String toString() {
+			return "Open: "+getOpenConnections()+", In use: "+getInUseConnections()
+				+", Created: "+getCreatedConnections()+", Check outs: "+getCheckOuts()
+				+", Failed check outs: "+getFailedCheckOuts();
+		}
+	}
+}
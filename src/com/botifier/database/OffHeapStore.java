@@ -0,0 +1,204 @@
+package com.botifier.database;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Slab allocator over direct ByteBuffers, used to keep serialized item information off the heap.
+ * Slabs are allocated as needed up to a byte limit and never handed back. A stored payload takes a
+ * block of the next power of two size that fits it and a 4 byte length, and freed blocks are kept
+ * on one free list per size, so a payload never takes more than twice its size.
+ * Handles are the slab number in the upper and the offset in the lower 32 bits.
+ */
+public class OffHeapStore {
+
+	//Handle of nothing stored
+	public static final long NONE = -1L;
+
+	//Smallest block, as a power of two
+	private static final int MIN_SHIFT = 4;
+
+	//Bytes in front of every payload holding its length
+	private static final int LENGTH_SIZE = 4;
+
+	//Bytes per slab, a power of two
+	private final int slabBytes;
+
+	//Most slabs that may be allocated
+	private final int maxSlabs;
+
+	//Slabs, replaced by a longer copy when one is added so readers need no lock
+	private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+	//Free blocks per size, as stacks of handles
+	private final long[][] free;
+	private final int[] freeCount;
+
+	//Next free offset in the last slab
+	private int top = 0;
+
+	//Bytes of the blocks in use
+	private long used = 0;
+
+	/**
+	 * OffHeapStore constructor
+	 * @param slabBytes int Bytes per slab, rounded up to a power of two, also the largest block
+	 * @param maxBytes long Most bytes allocated for slabs
+	 */
+	public OffHeapStore(int slabBytes, long maxBytes) {
+		int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, slabBytes) - 1));
+		shift = Math.min(shift, 30);
+		this.slabBytes = 1 << shift;
+		this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, Math.max(0, maxBytes) / this.slabBytes);
+		this.free = new long[shift + 1][];
+		this.freeCount = new int[shift + 1];
+		for (int i = 0; i < free.length; i++)
+			free[i] = new long[8];
+		//The first slab is only allocated by the first put
+		this.top = this.slabBytes;
+	}
+
+	/**
+	 * Copies a payload off the heap
+	 * @param data byte[] Payload
+	 * @return long Handle, or NONE if it is larger than a slab or the byte limit was reached
+	 */
+	public synchronized long put(byte[] data) {
+		int shift = shiftOf(data.length);
+		if (shift >= free.length)
+			return NONE;
+		long h = allocate(shift);
+		if (h == NONE)
+			return NONE;
+		ByteBuffer b = slabs[slab(h)].duplicate();
+		b.position(offset(h));
+		b.putInt(data.length);
+		b.put(data);
+		used += 1 << shift;
+		return h;
+	}
+
+	/**
+	 * Copies a payload back onto the heap, the handle must not be freed meanwhile
+	 * @param handle long Returned by put
+	 * @return byte[]
+	 */
+	public byte[] get(long handle) {
+		ByteBuffer b = slabs[slab(handle)].duplicate();
+		b.position(offset(handle));
+		byte[] data = new byte[b.getInt()];
+		b.get(data);
+		return data;
+	}
+
+	/**
+	 * Gives a payload's block back for reuse
+	 * @param handle long Returned by put, NONE is ignored
+	 */
+	public synchronized void free(long handle) {
+		if (handle == NONE)
+			return;
+		int shift = shiftOf(slabs[slab(handle)].getInt(offset(handle)));
+		push(shift, handle);
+		used -= 1 << shift;
+	}
+
+	/**
+	 * Drops every payload and slab, every handle handed out becomes invalid
+	 */
+	public synchronized void clear() {
+		slabs = new ByteBuffer[0];
+		Arrays.fill(freeCount, 0);
+		top = slabBytes;
+		used = 0;
+	}
+
+	/**
+	 * Returns the bytes allocated for slabs
+	 * @return long
+	 */
+	public long getCapacity() {
+		return (long) slabs.length * slabBytes;
+	}
+
+	/**
+	 * Returns the bytes of the blocks holding payloads
+	 * @return long
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	private long allocate(int shift) {
+		if (freeCount[shift] > 0)
+			return free[shift][--freeCount[shift]];
+		int size = 1 << shift;
+		if (top + size > slabBytes) {
+			if (slabs.length >= maxSlabs)
+				return splitLarger(shift);
+			//What is left of the last slab goes to the free lists
+			if (slabs.length > 0)
+				release(slabs.length - 1, top, slabBytes - top);
+			ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+			grown[slabs.length] = ByteBuffer.allocateDirect(slabBytes);
+			slabs = grown;
+			top = 0;
+		}
+		long h = handle(slabs.length - 1, top);
+		top += size;
+		return h;
+	}
+
+	/**
+	 * Once no slab can be added, splits the smallest free block that is larger
+	 */
+	private long splitLarger(int shift) {
+		for (int s = shift + 1; s < free.length; s++) {
+			if (freeCount[s] == 0)
+				continue;
+			long h = free[s][--freeCount[s]];
+			//Halves are freed from the top down, the lowest one is used
+			for (int t = s - 1; t >= shift; t--)
+				push(t, h + (1 << t));
+			return h;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Puts a free range on the free lists as the largest blocks that fit
+	 */
+	private void release(int slab, int offset, int length) {
+		while (length >= 1 << MIN_SHIFT) {
+			int shift = 31 - Integer.numberOfLeadingZeros(length);
+			push(shift, handle(slab, offset));
+			offset += 1 << shift;
+			length -= 1 << shift;
+		}
+	}
+
+	private void push(int shift, long handle) {
+		if (freeCount[shift] == free[shift].length)
+			free[shift] = Arrays.copyOf(free[shift], 2 * free[shift].length);
+		free[shift][freeCount[shift]++] = handle;
+	}
+
+	/**
+	 * Returns the size of the block holding a payload, as a power of two
+	 */
+	private static int shiftOf(int length) {
+		return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(length + LENGTH_SIZE - 1));
+	}
+
+	private static long handle(int slab, int offset) {
+		return ((long) slab << 32) | offset;
+	}
+
+	private static int slab(long handle) {
+		return (int) (handle >>> 32);
+	}
+
+	private static int offset(long handle) {
+		return (int) handle;
+	}
+}
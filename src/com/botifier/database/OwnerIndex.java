@@ -0,0 +1,116 @@
+package com.botifier.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owner to item UUID index of the flat file backends. Each owner's items are kept sorted
+ * in the order MongoDB sorts their _id strings, so a page is a walk from the cursor
+ * that only touches the items on that page, and both backends page the same way.
+ */
+public class OwnerIndex {
+
+	/**
+	 * Orders UUIDs the same way their toString() values compare, which is an unsigned compare of the bits
+	 */
+	public static final Comparator<UUID> ORDER = new Comparator<UUID>() {
+		@Override
+		public int compare(UUID a, UUID b) {
+			int c = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+			return c != 0 ? c : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+		}
+	};
+
+	//Owner to its sorted item UUIDs
+	private final Map<UUID, Owned> byOwner = new ConcurrentHashMap<UUID, Owned>();
+
+	/**
+	 * Adds an item to an owner
+	 * @param owner UUID Owner's UUID
+	 * @param item UUID Item's UUID
+	 */
+	public void add(UUID owner, UUID item) {
+		if (owner == null || item == null)
+			return;
+		Owned o = byOwner.computeIfAbsent(owner, k -> new Owned());
+		if (o.items.add(item))
+			o.size.incrementAndGet();
+	}
+
+	/**
+	 * Removes an item from an owner
+	 * @param owner UUID Owner's UUID
+	 * @param item UUID Item's UUID
+	 */
+	public void remove(UUID owner, UUID item) {
+		if (owner == null || item == null)
+			return;
+		Owned o = byOwner.get(owner);
+		if (o != null && o.items.remove(item))
+			o.size.decrementAndGet();
+	}
+
+	/**
+	 * Moves an item between owners, the item is added to the new owner first so it is never missing
+	 * @param from UUID Old owner's UUID, may be null
+	 * @param to UUID New owner's UUID, may be null
+	 * @param item UUID Item's UUID
+	 */
+	public void move(UUID from, UUID to, UUID item) {
+		if (from != null && from.equals(to))
+			return;
+		add(to, item);
+		remove(from, item);
+	}
+
+	/**
+	 * Returns up to limit item UUIDs of an owner that sort after a cursor
+	 * @param owner UUID Owner's UUID
+	 * @param after UUID Last UUID of the previous page, null for the first page
+	 * @param limit int Largest number of UUIDs to return
+	 * @return List<UUID>
+	 */
+	public List<UUID> page(UUID owner, UUID after, int limit) {
+		Owned o = owner == null ? null : byOwner.get(owner);
+		if (o == null || limit <= 0)
+			return Collections.emptyList();
+		NavigableSet<UUID> s = o.items;
+		List<UUID> page = new ArrayList<UUID>(Math.min(limit, 64));
+		for (UUID u : after == null ? s : s.tailSet(after, false)) {
+			page.add(u);
+			if (page.size() >= limit)
+				break;
+		}
+		return page;
+	}
+
+	/**
+	 * Returns the number of items an owner has
+	 * @param owner UUID Owner's UUID
+	 * @return int
+	 */
+	public int count(UUID owner) {
+		Owned o = owner == null ? null : byOwner.get(owner);
+		return o == null ? 0 : o.size.get();
+	}
+
+	public void clear() {
+		byOwner.clear();
+	}
+
+	/**
+	 * An owner's items, the skip list's own size() walks every entry so the count is kept alongside
+	 */
+	private static class Owned {
+		private final NavigableSet<UUID> items = new ConcurrentSkipListSet<UUID>(ORDER);
+		private final AtomicInteger size = new AtomicInteger();
+	}
+}
@@ -0,0 +1,251 @@
+package com.botifier.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Numeric IDs and field lists of the information types BinaryItemSerializer has written.
+ * Every type gets an ID the first time it is seen, and a new version whenever its fields differ
+ * from every version it had before. Old versions are kept so data written with them can still be read.
+ * The registry is saved to its file before an ID or version is handed out, so nothing can be written
+ * with a schema that isn't on disk.
+ *
+ * File: {"types": [{"id": 1, "class": "...", "kind": 1, "versions": [[{"name": "...", "wire": 1}, ...], ...]}]}
+ */
+public class SchemaRegistry {
+
+	//How a type is encoded
+	public static final int KIND_SCALAR = 0;
+	public static final int KIND_RECORD = 1;
+	public static final int KIND_JSON = 2;
+
+	//How a field is encoded
+	public static final int WIRE_BOOL = 0;
+	public static final int WIRE_INT = 1;
+	public static final int WIRE_FLOAT = 2;
+	public static final int WIRE_DOUBLE = 3;
+	public static final int WIRE_STRING = 4;
+	public static final int WIRE_MESSAGE = 5;
+	public static final int WIRE_JSON = 6;
+
+	//File the registry is kept in, null to keep it in memory only
+	private final File file;
+
+	//Types by class name and by ID, slot 0 is unused
+	private final Map<String, Type> byName = new HashMap<String, Type>();
+	private volatile Type[] byId = new Type[1];
+
+	/**
+	 * SchemaRegistry constructor for a registry kept in memory only
+	 */
+	public SchemaRegistry() {
+		this.file = null;
+	}
+
+	/**
+	 * SchemaRegistry constructor, reads the file if it exists
+	 * @param file File To keep the registry in, null to keep it in memory only
+	 * @throws IOException If the file exists and can't be read
+	 */
+	public SchemaRegistry(File file) throws IOException {
+		this.file = file;
+		if (file != null && file.isFile())
+			load();
+	}
+
+	/**
+	 * Returns the ID and version of a type with the given fields, registering them if they are new
+	 * @param className String Class name
+	 * @param kind int KIND_*
+	 * @param fields Field[] Fields in encoding order, empty unless kind is KIND_RECORD
+	 * @return int[] ID and version
+	 * @throws IOException If the registry couldn't be saved
+	 */
+	public synchronized int[] register(String className, int kind, Field[] fields) throws IOException {
+		Type t = byName.get(className);
+		if (t != null && t.kind == kind) {
+			for (int v = 0; v < t.versions.size(); v++)
+				if (Arrays.equals(t.versions.get(v), fields))
+					return new int[] {t.id, v};
+		}
+		Type[] ids = byId;
+		Type added;
+		if (t == null || t.kind != kind) {
+			//A class that changed kind is registered again under a new ID, its old data keeps the old one
+			added = new Type(ids.length, className, kind);
+			ids = Arrays.copyOf(ids, ids.length + 1);
+			ids[added.id] = added;
+		} else {
+			added = t.copy();
+			ids = ids.clone();
+			ids[added.id] = added;
+		}
+		added.versions.add(fields);
+		save(ids);
+		byName.put(className, added);
+		byId = ids;
+		return new int[] {added.id, added.versions.size() - 1};
+	}
+
+	/**
+	 * Returns a registered type
+	 * @param id int Type ID
+	 * @return Type or null if the ID is unknown
+	 */
+	public Type type(int id) {
+		Type[] ids = byId;
+		return id > 0 && id < ids.length ? ids[id] : null;
+	}
+
+	private void load() throws IOException {
+		try (Reader r = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			JsonObject root = JsonParser.parseReader(r).getAsJsonObject();
+			List<Type> types = new ArrayList<Type>();
+			int max = 0;
+			for (JsonElement e : root.getAsJsonArray("types")) {
+				JsonObject o = e.getAsJsonObject();
+				Type t = new Type(o.get("id").getAsInt(), o.get("class").getAsString(), o.get("kind").getAsInt());
+				for (JsonElement v : o.getAsJsonArray("versions")) {
+					JsonArray a = v.getAsJsonArray();
+					Field[] fields = new Field[a.size()];
+					for (int i = 0; i < fields.length; i++) {
+						JsonObject f = a.get(i).getAsJsonObject();
+						fields[i] = new Field(f.get("name").getAsString(), f.get("wire").getAsInt());
+					}
+					t.versions.add(fields);
+				}
+				types.add(t);
+				max = Math.max(max, t.id);
+			}
+			Type[] ids = new Type[max + 1];
+			for (Type t : types) {
+				ids[t.id] = t;
+				Type old = byName.get(t.className);
+				//The newest ID of a class is the one written with
+				if (old == null || old.id < t.id)
+					byName.put(t.className, t);
+			}
+			byId = ids;
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed schema registry "+file+".", e);
+		}
+	}
+
+	private void save(Type[] ids) throws IOException {
+		if (file == null)
+			return;
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		File tmp = new File(file.getPath()+".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			JsonWriter w = new JsonWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+			w.setIndent("  ");
+			w.beginObject();
+			w.name("types").beginArray();
+			for (Type t : ids) {
+				if (t == null)
+					continue;
+				w.beginObject();
+				w.name("id").value(t.id);
+				w.name("class").value(t.className);
+				w.name("kind").value(t.kind);
+				w.name("versions").beginArray();
+				for (Field[] fields : t.versions) {
+					w.beginArray();
+					for (Field f : fields) {
+						w.beginObject();
+						w.name("name").value(f.name);
+						w.name("wire").value(f.wire);
+						w.endObject();
+					}
+					w.endArray();
+				}
+				w.endArray();
+				w.endObject();
+			}
+			w.endArray();
+			w.endObject();
+			w.flush();
+			fos.getFD().sync();
+		}
+		FlatFileItems.replace(tmp, file);
+	}
+
+	/**
+	 * A registered type, a new copy is made for every version added so readers never see one being changed
+	 */
+	public static class Type {
+		final int id;
+		final String className;
+		final int kind;
+		final List<Field[]> versions = new ArrayList<Field[]>();
+
+		Type(int id, String className, int kind) {
+			this.id = id;
+			this.className = className;
+			this.kind = kind;
+		}
+
+		Type copy() {
+			Type t = new Type(id, className, kind);
+			t.versions.addAll(versions);
+			return t;
+		}
+
+		/**
+		 * Returns the fields of a version
+		 * @param version int Version
+		 * @return Field[] or null if the version is unknown
+		 */
+		public Field[] fields(int version) {
+			return version >= 0 && version < versions.size() ? versions.get(version) : null;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public int getKind() {
+			return kind;
+		}
+	}
+
+	/**
+	 * Name and wire type of a field
+	 */
+	public static class Field {
+		final String name;
+		final int wire;
+
+		public Field(String name, int wire) {
+			this.name = name;
+			this.wire = wire;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Field && ((Field) o).name.equals(name) && ((Field) o).wire == wire;
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode() * 31 + wire;
+		}
+	}
+}
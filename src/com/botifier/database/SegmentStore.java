@@ -0,0 +1,543 @@
+package com.botifier.database;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Binary item store made of append only segment files and a sorted UUID index, both read through FileChannel.map.
+ * Single items are found with a binary search over the mapped index and decoded on their own,
+ * nothing else in the store is touched.
+ *
+ * Segment file: 16 byte header (magic, version), then records of [long msb][long lsb][int length][payload].
+ * Index file: 16 byte header (magic, version, count), then entries of [long msb][long lsb][int segment][long offset][int length]
+ * sorted by UUID. The payload is an item in the items.json format.
+ */
+public class SegmentStore implements Closeable {
+
+	//File layout
+	private static final int SEGMENT_MAGIC = 0x47494453;
+	private static final int INDEX_MAGIC = 0x47494458;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 32;
+	private static final int RECORD_HEADER_SIZE = 20;
+
+	//A single mapping can't go past Integer.MAX_VALUE
+	private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+	//Dead space has to reach this before compaction is considered
+	private static final long MIN_COMPACT_BYTES = 64L * 1024 * 1024;
+
+	//Directory holding the store
+	private final File dir;
+
+	//Adapter used to write and read items
+	private final DatabaseObjectAdapter adapter;
+
+	//Size at which a new segment is started
+	private final long segmentMaxBytes;
+
+	//Mapped index and its entry count
+	private MappedByteBuffer index;
+	private int count = 0;
+
+	//Mapped segments, remapped after they grow
+	private final Map<Integer, MappedByteBuffer> segments = new HashMap<Integer, MappedByteBuffer>();
+
+	//Segment new records are appended to
+	private int activeSegment = 0;
+
+	/**
+	 * SegmentStore constructor
+	 * @param dir File Directory to keep the store in
+	 * @param adapter DatabaseObjectAdapter Used to write and read items
+	 * @param segmentMaxBytes long Size at which a new segment is started
+	 */
+	public SegmentStore(File dir, DatabaseObjectAdapter adapter, long segmentMaxBytes) {
+		this.dir = dir;
+		this.adapter = adapter;
+		this.segmentMaxBytes = Math.min(segmentMaxBytes, MAX_SEGMENT_BYTES);
+	}
+
+	/**
+	 * Opens the store, mapping the index if there is one
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		dir.mkdirs();
+		activeSegment = 0;
+		File[] files = dir.listFiles((d, n) -> n.startsWith("segment-") && n.endsWith(".seg"));
+		if (files != null)
+			for (File f : files)
+				activeSegment = Math.max(activeSegment, segmentId(f));
+		mapIndex();
+	}
+
+	/**
+	 * Returns the number of items in the store
+	 * @return int
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Checks if the store holds an item
+	 * @param u UUID To check
+	 * @return boolean
+	 */
+	public synchronized boolean contains(UUID u) {
+		return find(u.getMostSignificantBits(), u.getLeastSignificantBits()) >= 0;
+	}
+
+	/**
+	 * Returns the stored JSON of a single item
+	 * @param u UUID To read
+	 * @return byte[] Payload or null if the item isn't stored
+	 * @throws IOException
+	 */
+	public synchronized byte[] readRaw(UUID u) throws IOException {
+		int i = find(u.getMostSignificantBits(), u.getLeastSignificantBits());
+		if (i < 0)
+			return null;
+		int pos = HEADER_SIZE + i * ENTRY_SIZE;
+		ByteBuffer b = segment(index.getInt(pos + 16)).duplicate();
+		b.position((int) index.getLong(pos + 20) + RECORD_HEADER_SIZE);
+		byte[] payload = new byte[index.getInt(pos + 28)];
+		b.get(payload);
+		return payload;
+	}
+
+	/**
+	 * Decodes a single item and registers it with the adapter's database
+	 * @param u UUID To read
+	 * @return DatabaseObject<?> or null if the item isn't stored
+	 * @throws IOException
+	 */
+	public DatabaseObject<?> read(UUID u) throws IOException {
+		byte[] payload = readRaw(u);
+		if (payload == null)
+			return null;
+		try (JsonReader in = new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8))) {
+			return adapter.read(in);
+		}
+	}
+
+	/**
+	 * Passes the UUID and stored JSON of every item to action, in index order
+	 * @param action BiConsumer<UUID, byte[]> Called for every item
+	 * @throws IOException
+	 */
+	public synchronized void forEachRaw(BiConsumer<UUID, byte[]> action) throws IOException {
+		for (int i = 0; i < count; i++) {
+			int pos = HEADER_SIZE + i * ENTRY_SIZE;
+			ByteBuffer b = segment(index.getInt(pos + 16)).duplicate();
+			b.position((int) index.getLong(pos + 20) + RECORD_HEADER_SIZE);
+			byte[] payload = new byte[index.getInt(pos + 28)];
+			b.get(payload);
+			action.accept(new UUID(index.getLong(pos), index.getLong(pos + 8)), payload);
+		}
+	}
+
+	/**
+	 * Writes changed items and drops removed ones, changed items that were destroyed are dropped too
+	 * @param changed Collection<DatabaseObject<?>> Items to store
+	 * @param removed Collection<UUID> Items to drop from the index
+	 * @return long Payload bytes written
+	 * @throws IOException
+	 */
+	public synchronized long write(Collection<DatabaseObject<?>> changed, Collection<UUID> removed) throws IOException {
+		Entries e = new Entries(changed.size());
+		List<UUID> dropped = new ArrayList<UUID>(removed);
+		long bytes = 0;
+		try (SegmentAppender a = new SegmentAppender()) {
+			for (DatabaseObject<?> d : changed) {
+				if (!d.exists()) {
+					dropped.add(d.getUUID());
+					continue;
+				}
+				byte[] payload = serialize(d);
+				a.append(d.getUUID(), payload, e);
+				bytes += payload.length;
+			}
+		}
+		mergeIndex(e, dropped);
+		compactIfWasteful();
+		return bytes;
+	}
+
+	/**
+	 * Imports an items.json style file, streaming it entry by entry
+	 * @param r Reader Over the file
+	 * @return int Number of items imported
+	 * @throws IOException
+	 */
+	public synchronized int importJson(Reader r) throws IOException {
+		Entries e = new Entries(1024);
+		try (JsonReader in = new JsonReader(r); SegmentAppender a = new SegmentAppender()) {
+			if (in.peek() == JsonToken.END_DOCUMENT)
+				return 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				String key = in.nextName();
+				JsonElement item = JsonParser.parseReader(in);
+				JsonElement id = item.isJsonObject() ? item.getAsJsonObject().get("_id") : null;
+				UUID u = UUID.fromString(id != null && id.isJsonPrimitive() ? id.getAsString() : key);
+				a.append(u, item.toString().getBytes(StandardCharsets.UTF_8), e);
+			}
+		}
+		mergeIndex(e, null);
+		return e.size;
+	}
+
+	/**
+	 * Rewrites every live record into fresh segments, dropping the space held by old versions
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		Set<Integer> old = new HashSet<Integer>();
+		File[] files = dir.listFiles((d, n) -> n.startsWith("segment-") && n.endsWith(".seg"));
+		if (files != null)
+			for (File f : files)
+				old.add(segmentId(f));
+
+		//Entries come out of the index already sorted, so the new index can be written as is
+		activeSegment++;
+		Entries e = new Entries(count);
+		try (SegmentAppender a = new SegmentAppender()) {
+			for (int i = 0; i < count; i++) {
+				int pos = HEADER_SIZE + i * ENTRY_SIZE;
+				UUID u = new UUID(index.getLong(pos), index.getLong(pos + 8));
+				a.append(u, readRaw(u), e);
+			}
+		}
+		writeIndex(e, identity(e.size));
+		for (int id : old) {
+			segments.remove(id);
+			new File(dir, segmentName(id)).delete();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		index = null;
+		segments.clear();
+	}
+
+	/**
+	 * Serializes an item into the items.json format
+	 * @param d DatabaseObject<?> To serialize
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	private byte[] serialize(DatabaseObject<?> d) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+		JsonWriter w = new JsonWriter(new OutputStreamWriter(bos, StandardCharsets.UTF_8));
+		adapter.write(w, d);
+		w.flush();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Binary searches the mapped index
+	 * @param msb long Most significant bits
+	 * @param lsb long Least significant bits
+	 * @return int Entry number or -1
+	 */
+	private int find(long msb, long lsb) {
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int pos = HEADER_SIZE + mid * ENTRY_SIZE;
+			int c = compare(index.getLong(pos), index.getLong(pos + 8), msb, lsb);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Merges new entries into the index, the new entries win over old ones with the same UUID
+	 * @param e Entries New entries
+	 * @param removed Collection<UUID> UUIDs to drop, may be null
+	 * @throws IOException
+	 */
+	private void mergeIndex(Entries e, Collection<UUID> removed) throws IOException {
+		Integer[] order = e.sortedOrder();
+		Set<UUID> drop = removed == null ? new HashSet<UUID>() : new HashSet<UUID>(removed);
+
+		Entries merged = new Entries(count + e.size);
+		int i = 0;
+		int j = 0;
+		while (i < count || j < order.length) {
+			int pos = HEADER_SIZE + i * ENTRY_SIZE;
+			int c;
+			if (i >= count)
+				c = 1;
+			else if (j >= order.length)
+				c = -1;
+			else
+				c = compare(index.getLong(pos), index.getLong(pos + 8), e.msb[order[j]], e.lsb[order[j]]);
+			if (c < 0) {
+				if (!drop.contains(new UUID(index.getLong(pos), index.getLong(pos + 8))))
+					merged.add(index.getLong(pos), index.getLong(pos + 8), index.getInt(pos + 16), index.getLong(pos + 20), index.getInt(pos + 28));
+				i++;
+			} else {
+				int k = order[j];
+				//Later duplicates in the same batch replace earlier ones
+				while (j + 1 < order.length && compare(e.msb[order[j + 1]], e.lsb[order[j + 1]], e.msb[k], e.lsb[k]) == 0)
+					k = order[++j];
+				if (!drop.contains(new UUID(e.msb[k], e.lsb[k])))
+					merged.add(e.msb[k], e.lsb[k], e.segment[k], e.offset[k], e.length[k]);
+				j++;
+				if (c == 0)
+					i++;
+			}
+		}
+		writeIndex(merged, identity(merged.size));
+	}
+
+	/**
+	 * Writes the index to a temp file, syncs it and swaps it in
+	 * @param e Entries Entries to write
+	 * @param order int[] Order to write them in, must be sorted by UUID
+	 * @throws IOException
+	 */
+	private void writeIndex(Entries e, int[] order) throws IOException {
+		File idx = new File(dir, "index.idx");
+		File tmp = new File(dir, "index.idx.tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(order.length);
+			out.writeInt(0);
+			for (int k : order) {
+				out.writeLong(e.msb[k]);
+				out.writeLong(e.lsb[k]);
+				out.writeInt(e.segment[k]);
+				out.writeLong(e.offset[k]);
+				out.writeInt(e.length[k]);
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		index = null;
+		FlatFileItems.replace(tmp, idx);
+		mapIndex();
+	}
+
+	/**
+	 * Maps index.idx, an absent index is an empty store
+	 * @throws IOException
+	 */
+	private void mapIndex() throws IOException {
+		File idx = new File(dir, "index.idx");
+		if (!idx.exists()) {
+			index = null;
+			count = 0;
+			return;
+		}
+		try (FileChannel fc = FileChannel.open(idx.toPath(), StandardOpenOption.READ)) {
+			index = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION)
+			throw new IOException("Not a segment index: "+idx);
+		count = index.getInt(8);
+	}
+
+	/**
+	 * Returns a mapped segment, mapping it the first time it is used
+	 * @param id int Segment number
+	 * @return MappedByteBuffer
+	 * @throws IOException
+	 */
+	private MappedByteBuffer segment(int id) throws IOException {
+		MappedByteBuffer b = segments.get(id);
+		if (b != null)
+			return b;
+		try (FileChannel fc = FileChannel.open(new File(dir, segmentName(id)).toPath(), StandardOpenOption.READ)) {
+			b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		if (b.getInt(0) != SEGMENT_MAGIC)
+			throw new IOException("Not a segment: "+segmentName(id));
+		segments.put(id, b);
+		return b;
+	}
+
+	/**
+	 * Compacts once more than half of the segment bytes belong to replaced or removed records
+	 * @throws IOException
+	 */
+	private void compactIfWasteful() throws IOException {
+		long live = 0;
+		for (int i = 0; i < count; i++)
+			live += RECORD_HEADER_SIZE + index.getInt(HEADER_SIZE + i * ENTRY_SIZE + 28);
+		long total = 0;
+		File[] files = dir.listFiles((d, n) -> n.startsWith("segment-") && n.endsWith(".seg"));
+		if (files != null)
+			for (File f : files)
+				total += f.length() - HEADER_SIZE;
+		if (total - live > MIN_COMPACT_BYTES && total > live * 2)
+			compact();
+	}
+
+	private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+		int c = Long.compare(msb1, msb2);
+		return c != 0 ? c : Long.compare(lsb1, lsb2);
+	}
+
+	private static int[] identity(int n) {
+		int[] o = new int[n];
+		for (int i = 0; i < n; i++)
+			o[i] = i;
+		return o;
+	}
+
+	private static String segmentName(int id) {
+		return String.format("segment-%05d.seg", id);
+	}
+
+	private static int segmentId(File f) {
+		String n = f.getName();
+		return Integer.parseInt(n.substring("segment-".length(), n.length() - ".seg".length()));
+	}
+
+	/**
+	 * Appends records to the active segment, rolling over to a new one once it is full
+	 */
+	private class SegmentAppender implements Closeable {
+		private FileChannel fc;
+		private long position;
+
+		private SegmentAppender() throws IOException {
+			openActive();
+		}
+
+		private void openActive() throws IOException {
+			File f = new File(dir, segmentName(activeSegment));
+			fc = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			position = fc.size();
+			if (position < HEADER_SIZE) {
+				ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+				h.putInt(SEGMENT_MAGIC).putInt(VERSION).putLong(0);
+				h.flip();
+				fc.write(h, 0);
+				position = HEADER_SIZE;
+			}
+			//The mapping is stale once the segment grows
+			segments.remove(activeSegment);
+		}
+
+		private void append(UUID u, byte[] payload, Entries e) throws IOException {
+			long size = RECORD_HEADER_SIZE + payload.length;
+			if (position + size > segmentMaxBytes && position > HEADER_SIZE) {
+				close();
+				activeSegment++;
+				openActive();
+			}
+			ByteBuffer b = ByteBuffer.allocate((int) size);
+			b.putLong(u.getMostSignificantBits()).putLong(u.getLeastSignificantBits()).putInt(payload.length).put(payload);
+			b.flip();
+			while (b.hasRemaining())
+				position += fc.write(b, position);
+			e.add(u.getMostSignificantBits(), u.getLeastSignificantBits(), activeSegment, position - size, payload.length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (fc == null)
+				return;
+			fc.force(true);
+			fc.close();
+			fc = null;
+			segments.remove(activeSegment);
+		}
+	}
+
+	/**
+	 * Growable parallel arrays of index entries
+	 */
+	private static class Entries {
+		private long[] msb;
+		private long[] lsb;
+		private int[] segment;
+		private long[] offset;
+		private int[] length;
+		private int size = 0;
+
+		private Entries(int capacity) {
+			capacity = Math.max(capacity, 16);
+			msb = new long[capacity];
+			lsb = new long[capacity];
+			segment = new int[capacity];
+			offset = new long[capacity];
+			length = new int[capacity];
+		}
+
+		private void add(long m, long l, int s, long o, int len) {
+			if (size == msb.length) {
+				int n = size * 2;
+				msb = Arrays.copyOf(msb, n);
+				lsb = Arrays.copyOf(lsb, n);
+				segment = Arrays.copyOf(segment, n);
+				offset = Arrays.copyOf(offset, n);
+				length = Arrays.copyOf(length, n);
+			}
+			msb[size] = m;
+			lsb[size] = l;
+			segment[size] = s;
+			offset[size] = o;
+			length[size] = len;
+			size++;
+		}
+
+		/**
+		 * Returns entry numbers sorted by UUID, entries with equal UUIDs keep the order they were added in
+		 * @return Integer[]
+		 */
+		private Integer[] sortedOrder() {
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> compare(msb[a], lsb[a], msb[b], lsb[b]));
+			return order;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.botifier.database;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Small map keyed by UUID, kept as UUID ordered long[] pairs next to an array of values, for the
+ * items of a single user. An entry costs its 16 key bytes and a reference, no node or key object.
+ * New keys are inserted into a short sorted tail that is merged into the main part once it holds
+ * more than about the square root of the entries, so loading a user's items one at a time doesn't
+ * shift the whole array for every item.
+ * Every method is synchronized, iterators walk a copy in UUID order.
+ * @param <V> Value type
+ */
+public class SortedUUIDMap<V> extends AbstractMap<UUID, V> implements Serializable {
+
+	private static final long serialVersionUID = -1306212617465412489L;
+
+	//Smallest tail allowed before it is merged
+	private static final int TAIL_MIN = 32;
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	//Pairs of msb and lsb, the main part ends at sorted and the tail runs from there up to size, both in UUID order
+	private long[] keys = new long[2 * INITIAL_CAPACITY];
+	private Object[] vals = new Object[INITIAL_CAPACITY];
+	private int sorted = 0;
+	private int size = 0;
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public synchronized V get(Object key) {
+		int i = indexOf(key);
+		return i < 0 ? null : (V) vals[i];
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public synchronized V put(UUID key, V value) {
+		return put(key, value, false);
+	}
+
+	@Override
+	public synchronized V putIfAbsent(UUID key, V value) {
+		return put(key, value, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private V put(UUID key, V value, boolean onlyIfAbsent) {
+		if (value == null)
+			throw new NullPointerException();
+		int i = indexOf(key);
+		if (i >= 0) {
+			V old = (V) vals[i];
+			if (!onlyIfAbsent)
+				vals[i] = value;
+			return old;
+		}
+		if (size == vals.length) {
+			keys = Arrays.copyOf(keys, 4 * size);
+			vals = Arrays.copyOf(vals, 2 * size);
+		}
+		long msb = key.getMostSignificantBits();
+		long lsb = key.getLeastSignificantBits();
+		//Insertion into the tail, shifting the larger keys up one
+		int j = size - 1;
+		while (j >= sorted && compare(keys[2 * j], keys[2 * j + 1], msb, lsb) > 0) {
+			keys[2 * (j + 1)] = keys[2 * j];
+			keys[2 * (j + 1) + 1] = keys[2 * j + 1];
+			vals[j + 1] = vals[j];
+			j--;
+		}
+		keys[2 * (j + 1)] = msb;
+		keys[2 * (j + 1) + 1] = lsb;
+		vals[j + 1] = value;
+		size++;
+		int tail = size - sorted;
+		if (tail > TAIL_MIN && (long) tail * tail > sorted)
+			merge();
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public synchronized V remove(Object key) {
+		int i = indexOf(key);
+		if (i < 0)
+			return null;
+		V old = (V) vals[i];
+		removeAt(i);
+		return old;
+	}
+
+	@Override
+	public synchronized boolean remove(Object key, Object value) {
+		int i = indexOf(key);
+		if (i < 0 || !vals[i].equals(value))
+			return false;
+		removeAt(i);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		keys = new long[2 * INITIAL_CAPACITY];
+		vals = new Object[INITIAL_CAPACITY];
+		sorted = 0;
+		size = 0;
+	}
+
+	private void removeAt(int i) {
+		//Everything after it moves down one, the tail too if it was in the main part
+		System.arraycopy(keys, 2 * (i + 1), keys, 2 * i, 2 * (size - i - 1));
+		System.arraycopy(vals, i + 1, vals, i, size - i - 1);
+		if (i < sorted)
+			sorted--;
+		vals[--size] = null;
+		//Gives memory back once a user has lost most of their items
+		if (vals.length > INITIAL_CAPACITY && size < vals.length / 4) {
+			int capacity = Math.max(INITIAL_CAPACITY, vals.length / 2);
+			keys = Arrays.copyOf(keys, 2 * capacity);
+			vals = Arrays.copyOf(vals, capacity);
+		}
+	}
+
+	/**
+	 * Finds a key, binary searching the main part and then the tail
+	 * @param key Object UUID
+	 * @return int Index or -1
+	 */
+	private int indexOf(Object key) {
+		if (!(key instanceof UUID))
+			return -1;
+		UUID u = (UUID) key;
+		long msb = u.getMostSignificantBits();
+		long lsb = u.getLeastSignificantBits();
+		int i = search(0, sorted, msb, lsb);
+		return i >= 0 ? i : search(sorted, size, msb, lsb);
+	}
+
+	private int search(int from, int to, long msb, long lsb) {
+		int lo = from;
+		int hi = to - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(keys[2 * mid], keys[2 * mid + 1], msb, lsb);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares keys the way UUID.compareTo does, by signed msb then signed lsb
+	 */
+	private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+		int c = Long.compare(msb1, msb2);
+		return c != 0 ? c : Long.compare(lsb1, lsb2);
+	}
+
+	/**
+	 * Merges the tail into the main part, walking both from the back so only the tail is copied
+	 */
+	private void merge() {
+		int tail = size - sorted;
+		long[] tk = Arrays.copyOfRange(keys, 2 * sorted, 2 * size);
+		Object[] tv = Arrays.copyOfRange(vals, sorted, size);
+		int a = sorted - 1;
+		int b = tail - 1;
+		for (int out = size - 1; b >= 0; out--) {
+			if (a >= 0 && compare(keys[2 * a], keys[2 * a + 1], tk[2 * b], tk[2 * b + 1]) > 0) {
+				keys[2 * out] = keys[2 * a];
+				keys[2 * out + 1] = keys[2 * a + 1];
+				vals[out] = vals[a--];
+			} else {
+				keys[2 * out] = tk[2 * b];
+				keys[2 * out + 1] = tk[2 * b + 1];
+				vals[out] = tv[b--];
+			}
+		}
+		sorted = size;
+	}
+
+	@Override
+	public Set<Entry<UUID, V>> entrySet() {
+		return new AbstractSet<Entry<UUID, V>>() {
+			@Override
+			public Iterator<Entry<UUID, V>> iterator() {
+				return new Snapshot();
+			}
+
+			@Override
+			public int size() {
+				return SortedUUIDMap.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Iterator over a copy of the entries in UUID order
+	 */
+	private class Snapshot implements Iterator<Entry<UUID, V>> {
+		private final long[] k;
+		private final Object[] v;
+		private int next = 0;
+		private UUID last = null;
+
+		Snapshot() {
+			synchronized (SortedUUIDMap.this) {
+				if (size > sorted)
+					merge();
+				k = Arrays.copyOf(keys, 2 * size);
+				v = Arrays.copyOf(vals, size);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < v.length;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Entry<UUID, V> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			last = new UUID(k[2 * next], k[2 * next + 1]);
+			return new SimpleImmutableEntry<UUID, V>(last, (V) v[next++]);
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			SortedUUIDMap.this.remove(last);
+			last = null;
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package com.botifier.database;
+
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent map keyed by UUID that stores the two halves of every key in a long[] instead of
+ * keeping a node and a key object per entry. Keys live in open addressed tables with linear probing,
+ * split over segments that each have their own lock, and reads usually take no lock at all.
+ * Values can't be null. Iterators are weakly consistent like those of ConcurrentHashMap, every
+ * segment is copied when the iterator reaches it, and keys handed out are new UUID instances.
+ * @param <V> Value type
+ */
+public class UUIDMap<V> extends AbstractMap<UUID, V> implements ConcurrentMap<UUID, V>, Serializable {
+
+	private static final long serialVersionUID = 6712950482304985717L;
+
+	//Number of segments, a power of two
+	private static final int SEGMENTS = 64;
+
+	//Bits of the hash that pick the segment
+	private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENTS);
+
+	//Slots in a new segment, a power of two
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	public UUIDMap() {
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment();
+	}
+
+	/**
+	 * Mixes both halves of a UUID into a hash, the top bits pick the segment and the low bits the slot
+	 * @param msb long Most significant bits
+	 * @param lsb long Least significant bits
+	 * @return int
+	 */
+	static int hash(long msb, long lsb) {
+		long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+		h ^= h >>> 32;
+		h *= 0xD6E8FEB86659FD93L;
+		h ^= h >>> 32;
+		return (int) h;
+	}
+
+	private Segment segment(int h) {
+		return segments[h >>> SEGMENT_SHIFT];
+	}
+
+	@Override
+	public int size() {
+		long n = 0;
+		for (Segment s : segments)
+			n += s.size;
+		return (int) Math.min(n, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (Segment s : segments)
+			if (s.size != 0)
+				return false;
+		return true;
+	}
+
+	@Override
+	public V get(Object key) {
+		if (!(key instanceof UUID))
+			return null;
+		UUID u = (UUID) key;
+		return get(u.getMostSignificantBits(), u.getLeastSignificantBits());
+	}
+
+	/**
+	 * Looks a key up by its halves without a UUID instance
+	 * @param msb long Most significant bits
+	 * @param lsb long Least significant bits
+	 * @return V or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long msb, long lsb) {
+		int h = hash(msb, lsb);
+		return (V) segment(h).get(msb, lsb, h);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public V put(UUID key, V value) {
+		return put(key, value, false);
+	}
+
+	@Override
+	public V putIfAbsent(UUID key, V value) {
+		return put(key, value, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private V put(UUID key, V value, boolean onlyIfAbsent) {
+		if (value == null)
+			throw new NullPointerException();
+		long msb = key.getMostSignificantBits();
+		long lsb = key.getLeastSignificantBits();
+		int h = hash(msb, lsb);
+		return (V) segment(h).put(msb, lsb, h, value, onlyIfAbsent);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return remove(key, null, false);
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		return value != null && remove(key, value, true) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V remove(Object key, Object expected, boolean match) {
+		if (!(key instanceof UUID))
+			return null;
+		UUID u = (UUID) key;
+		long msb = u.getMostSignificantBits();
+		long lsb = u.getLeastSignificantBits();
+		int h = hash(msb, lsb);
+		return (V) segment(h).remove(msb, lsb, h, expected, match);
+	}
+
+	@Override
+	public boolean replace(UUID key, V oldValue, V newValue) {
+		if (oldValue == null || newValue == null)
+			throw new NullPointerException();
+		long msb = key.getMostSignificantBits();
+		long lsb = key.getLeastSignificantBits();
+		int h = hash(msb, lsb);
+		return segment(h).replace(msb, lsb, h, oldValue, newValue) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V replace(UUID key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+		long msb = key.getMostSignificantBits();
+		long lsb = key.getLeastSignificantBits();
+		int h = hash(msb, lsb);
+		return (V) segment(h).replace(msb, lsb, h, null, value);
+	}
+
+	@Override
+	public void clear() {
+		for (Segment s : segments)
+			s.clear();
+	}
+
+	@Override
+	public Set<Entry<UUID, V>> entrySet() {
+		return new AbstractSet<Entry<UUID, V>>() {
+			@Override
+			public Iterator<Entry<UUID, V>> iterator() {
+				return new Walker<Entry<UUID, V>>() {
+					@SuppressWarnings("unchecked")
+					@Override
+					Entry<UUID, V> element(long msb, long lsb, Object v) {
+						return new SimpleImmutableEntry<UUID, V>(new UUID(msb, lsb), (V) v);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return UUIDMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Collection<V> values() {
+		//Doesn't build a key for every value
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new Walker<V>() {
+					@SuppressWarnings("unchecked")
+					@Override
+					V element(long msb, long lsb, Object v) {
+						return (V) v;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return UUIDMap.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Iterates the segments one copy at a time
+	 * @param <E> Element handed out
+	 */
+	private abstract class Walker<E> implements Iterator<E> {
+		private int segment = 0;
+		private long[] keys = new long[0];
+		private Object[] vals = new Object[0];
+		private int next = 0;
+		private int count = 0;
+		private long lastMsb;
+		private long lastLsb;
+		private boolean canRemove = false;
+
+		abstract E element(long msb, long lsb, Object v);
+
+		@Override
+		public boolean hasNext() {
+			while (next >= count && segment < SEGMENTS) {
+				Segment s = segments[segment++];
+				count = s.copy(this);
+				next = 0;
+			}
+			return next < count;
+		}
+
+		@Override
+		public E next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			lastMsb = keys[2 * next];
+			lastLsb = keys[2 * next + 1];
+			canRemove = true;
+			return element(lastMsb, lastLsb, vals[next++]);
+		}
+
+		@Override
+		public void remove() {
+			if (!canRemove)
+				throw new IllegalStateException();
+			canRemove = false;
+			UUIDMap.this.remove(new UUID(lastMsb, lastLsb));
+		}
+	}
+
+	/**
+	 * Keys, as msb and lsb pairs, and values of one segment, replaced as a whole when it grows
+	 */
+	private static final class Table implements Serializable {
+		private static final long serialVersionUID = -2841773930553203851L;
+
+		final long[] keys;
+		final Object[] vals;
+
+		Table(int capacity) {
+			keys = new long[2 * capacity];
+			vals = new Object[capacity];
+		}
+
+		/**
+		 * Returns the slot holding a key, or -1
+		 * Free slots have zero keys, so vals is only read on a match or a zero key, which saves a cache miss per probe.
+		 * The probe is bounded, so a reader racing a writer without the lock still stops
+		 */
+		int find(long msb, long lsb, int h) {
+			Object[] v = vals;
+			long[] k = keys;
+			int mask = v.length - 1;
+			for (int i = h & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+				long m = k[2 * i];
+				long l = k[2 * i + 1];
+				if (m == msb && l == lsb)
+					return v[i] == null ? -1 : i;
+				if (m == 0 && l == 0 && v[i] == null)
+					return -1;
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the first free slot of a key that isn't in the table
+		 */
+		int free(int h) {
+			int mask = vals.length - 1;
+			int i = h & mask;
+			while (vals[i] != null)
+				i = (i + 1) & mask;
+			return i;
+		}
+
+		void set(int i, long msb, long lsb, Object v) {
+			keys[2 * i] = msb;
+			keys[2 * i + 1] = lsb;
+			vals[i] = v;
+		}
+
+		/**
+		 * Empties a slot, shifting later entries of the same run back so no tombstones are needed
+		 */
+		void delete(int i) {
+			int mask = vals.length - 1;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (vals[j] == null)
+					break;
+				int home = hash(keys[2 * j], keys[2 * j + 1]) & mask;
+				//Entries whose home lies cyclically in (i, j] are already as close as they can be
+				boolean stays = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+				if (!stays) {
+					set(i, keys[2 * j], keys[2 * j + 1], vals[j]);
+					i = j;
+				}
+			}
+			set(i, 0L, 0L, null);
+		}
+	}
+
+	/**
+	 * One lock and one table
+	 */
+	private static final class Segment implements Serializable {
+		private static final long serialVersionUID = 4470412217587802733L;
+
+		private final StampedLock lock = new StampedLock();
+		private volatile Table table = new Table(INITIAL_CAPACITY);
+		private volatile int size = 0;
+
+		Object get(long msb, long lsb, int h) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				Table t = table;
+				int i = t.find(msb, lsb, h);
+				Object v = i < 0 ? null : t.vals[i];
+				if (lock.validate(stamp))
+					return v;
+			}
+			stamp = lock.readLock();
+			try {
+				Table t = table;
+				int i = t.find(msb, lsb, h);
+				return i < 0 ? null : t.vals[i];
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		Object put(long msb, long lsb, int h, Object value, boolean onlyIfAbsent) {
+			long stamp = lock.writeLock();
+			try {
+				Table t = table;
+				int i = t.find(msb, lsb, h);
+				if (i >= 0) {
+					Object old = t.vals[i];
+					if (!onlyIfAbsent)
+						t.vals[i] = value;
+					return old;
+				}
+				//Grows at three quarters full so probes stay short
+				if ((size + 1) * 4L > t.vals.length * 3L)
+					t = grow(t);
+				t.set(t.free(h), msb, lsb, value);
+				size++;
+				return null;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		Object remove(long msb, long lsb, int h, Object expected, boolean match) {
+			long stamp = lock.writeLock();
+			try {
+				Table t = table;
+				int i = t.find(msb, lsb, h);
+				if (i < 0)
+					return null;
+				Object old = t.vals[i];
+				if (match && !old.equals(expected))
+					return null;
+				t.delete(i);
+				size--;
+				return old;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		Object replace(long msb, long lsb, int h, Object expected, Object value) {
+			long stamp = lock.writeLock();
+			try {
+				Table t = table;
+				int i = t.find(msb, lsb, h);
+				if (i < 0)
+					return null;
+				Object old = t.vals[i];
+				if (expected != null && !old.equals(expected))
+					return null;
+				t.vals[i] = value;
+				return old;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		void clear() {
+			long stamp = lock.writeLock();
+			try {
+				table = new Table(INITIAL_CAPACITY);
+				size = 0;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		private Table grow(Table old) {
+			Table t = new Table(old.vals.length * 2);
+			for (int i = 0; i < old.vals.length; i++) {
+				Object v = old.vals[i];
+				if (v != null) {
+					long msb = old.keys[2 * i];
+					long lsb = old.keys[2 * i + 1];
+					t.set(t.free(hash(msb, lsb)), msb, lsb, v);
+				}
+			}
+			table = t;
+			return t;
+		}
+
+		/**
+		 * Copies the entries into an iterator's buffers
+		 * @return int Number of entries copied
+		 */
+		int copy(UUIDMap<?>.Walker<?> w) {
+			long stamp = lock.readLock();
+			try {
+				Table t = table;
+				if (w.vals.length < size) {
+					w.keys = new long[2 * size];
+					w.vals = new Object[size];
+				}
+				int n = 0;
+				for (int i = 0; i < t.vals.length; i++) {
+					Object v = t.vals[i];
+					if (v != null) {
+						w.keys[2 * n] = t.keys[2 * i];
+						w.keys[2 * n + 1] = t.keys[2 * i + 1];
+						w.vals[n++] = v;
+					}
+				}
+				return n;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.botifier.database;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks shared by every user of a Database, a user's UUID picks its lock.
+ * Anything that changes what a user owns holds that user's lock, transfers hold both
+ * users' locks and always take the lower stripe first so two opposite transfers can't deadlock.
+ */
+public class UserLocks {
+
+	//Default number of stripes, must be a power of two
+	public static final int DEFAULT_STRIPES = 256;
+
+	//The locks
+	private final ReentrantLock[] stripes;
+
+	//stripes.length - 1, used in place of a modulo
+	private final int mask;
+
+	/**
+	 * UserLocks constructor
+	 * @param stripes int Number of locks, rounded up to a power of two
+	 */
+	public UserLocks(int stripes) {
+		int n = 1;
+		while (n < stripes)
+			n <<= 1;
+		this.stripes = new ReentrantLock[n];
+		for (int i = 0; i < n; i++)
+			this.stripes[i] = new ReentrantLock();
+		this.mask = n - 1;
+	}
+
+	/**
+	 * Returns the stripe a user's UUID maps to
+	 * @param u UUID User's UUID
+	 * @return int
+	 */
+	private int stripe(UUID u) {
+		int h = u.hashCode();
+		//Spreads the high bits down the same way HashMap does
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * Locks a single user
+	 * @param u UUID User's UUID
+	 * @return ReentrantLock The lock that was taken, pass it to unlock
+	 */
+	public ReentrantLock lock(UUID u) {
+		ReentrantLock l = stripes[stripe(u)];
+		l.lock();
+		return l;
+	}
+
+	/**
+	 * Locks a single user if its lock is free or already held by this thread
+	 * @param u UUID User's UUID
+	 * @return ReentrantLock The lock that was taken, or null if another thread holds it
+	 */
+	public ReentrantLock tryLock(UUID u) {
+		ReentrantLock l = stripes[stripe(u)];
+		return l.tryLock() ? l : null;
+	}
+
+	/**
+	 * Locks two users in stripe order, both UUIDs may map to the same stripe
+	 * @param a UUID First user's UUID
+	 * @param b UUID Second user's UUID
+	 * @return ReentrantLock[] The locks that were taken, pass them to unlock
+	 */
+	public ReentrantLock[] lock(UUID a, UUID b) {
+		int sa = stripe(a);
+		int sb = stripe(b);
+		if (sa == sb) {
+			stripes[sa].lock();
+			return new ReentrantLock[] {stripes[sa]};
+		}
+		ReentrantLock first = stripes[Math.min(sa, sb)];
+		ReentrantLock second = stripes[Math.max(sa, sb)];
+		first.lock();
+		second.lock();
+		return new ReentrantLock[] {first, second};
+	}
+
+	/**
+	 * Locks any number of users in stripe order, each stripe is only taken once
+	 * @param users Collection<UUID> Users' UUIDs
+	 * @return ReentrantLock[] The locks that were taken, pass them to unlock
+	 */
+	public ReentrantLock[] lockAll(Collection<UUID> users) {
+		boolean[] needed = new boolean[stripes.length];
+		int count = 0;
+		for (UUID u : users) {
+			int s = stripe(u);
+			if (!needed[s]) {
+				needed[s] = true;
+				count++;
+			}
+		}
+		ReentrantLock[] taken = new ReentrantLock[count];
+		int i = 0;
+		for (int s = 0; s < needed.length; s++) {
+			if (!needed[s])
+				continue;
+			stripes[s].lock();
+			taken[i++] = stripes[s];
+		}
+		return taken;
+	}
+
+	/**
+	 * Releases locks taken by lock(UUID, UUID) or lockAll, in reverse order
+	 * @param locks ReentrantLock[] Locks to release
+	 */
+	public static void unlock(ReentrantLock[] locks) {
+		for (int i = locks.length - 1; i >= 0; i--)
+			locks[i].unlock();
+	}
+
+	/**
+	 * Returns the number of stripes
+	 * @return int
+	 */
+	public int getStripes() {
+		return stripes.length;
+	}
+}
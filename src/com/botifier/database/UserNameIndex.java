@@ -0,0 +1,95 @@
+package com.botifier.database;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Two way index between user names and UUIDs. Names are matched without regard to case,
+ * the same way the unique collated name index in MongoDB matches them, while the name a
+ * user registered with is kept for display.
+ */
+public class UserNameIndex {
+
+	//Normalized name to UUID
+	private final Map<String, UUID> byName = new ConcurrentHashMap<String, UUID>();
+
+	//UUID to the name as it was registered
+	private final Map<UUID, String> byUUID = new ConcurrentHashMap<UUID, String>();
+
+	/**
+	 * Returns the key a name is indexed under
+	 * @param name String Name
+	 * @return String
+	 */
+	public static String normalize(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Adds a name, fails if it is already taken by another UUID
+	 * @param name String User's name
+	 * @param u UUID User's UUID
+	 * @return boolean Whether the name now belongs to u
+	 */
+	public boolean register(String name, UUID u) {
+		UUID held = byName.putIfAbsent(normalize(name), u);
+		if (held != null && !held.equals(u))
+			return false;
+		String old = byUUID.put(u, name);
+		//A renamed user gives up its old name
+		if (old != null && !normalize(old).equals(normalize(name)))
+			byName.remove(normalize(old), u);
+		return true;
+	}
+
+	/**
+	 * Returns the UUID registered under a name
+	 * @param name String Name in any case
+	 * @return UUID or null
+	 */
+	public UUID get(String name) {
+		return name == null ? null : byName.get(normalize(name));
+	}
+
+	/**
+	 * Returns the name a UUID was registered with
+	 * @param u UUID User's UUID
+	 * @return String or null
+	 */
+	public String getName(UUID u) {
+		return u == null ? null : byUUID.get(u);
+	}
+
+	public boolean containsName(String name) {
+		return get(name) != null;
+	}
+
+	public boolean containsUUID(UUID u) {
+		return getName(u) != null;
+	}
+
+	/**
+	 * Removes a user from both directions
+	 * @param u UUID User's UUID
+	 */
+	public void remove(UUID u) {
+		String name = byUUID.remove(u);
+		if (name != null)
+			byName.remove(normalize(name), u);
+	}
+
+	public boolean isEmpty() {
+		return byUUID.isEmpty();
+	}
+
+	public int size() {
+		return byUUID.size();
+	}
+
+	public void clear() {
+		byName.clear();
+		byUUID.clear();
+	}
+}
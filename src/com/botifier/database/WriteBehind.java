@@ -0,0 +1,253 @@
+package com.botifier.database;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background writer that persists dirty items and users every intervalMs, or as soon as
+ * batchSize of them are waiting. Changes are collected in the Database's dirty sets, keyed by
+ * UUID, so an item that changes every tick is still only written once per flush.
+ * Once maxPending changes are waiting the threads making more changes are held back for up to
+ * maxWaitMs while the flush catches up. They are held back in awaitCapacity, before a change takes
+ * any user lock, since the flush needs those locks to catch up.
+ */
+public class WriteBehind implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(WriteBehind.class.getName());
+
+	//Database to flush
+	private final Database db;
+
+	//Settings
+	private final long intervalMs;
+	private final int batchSize;
+	private final int maxPending;
+	private final long maxWaitMs;
+
+	//Flush thread
+	private ScheduledExecutorService executor;
+
+	//Thread running a flush right now, changes it makes itself (failed writes marked dirty again) are never held back
+	private volatile Thread flushing;
+
+	//Whether an early flush is already on its way
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+	//Notified after every flush, held back threads wait on it
+	private final Object flushed = new Object();
+
+	//Metrics
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong itemsWritten = new AtomicLong();
+	private final AtomicLong usersWritten = new AtomicLong();
+	private final AtomicLong failedWrites = new AtomicLong();
+	private final AtomicLong totalFlushMillis = new AtomicLong();
+	private final AtomicLong maxFlushMillis = new AtomicLong();
+	private final AtomicLong producerWaits = new AtomicLong();
+	private volatile long lastFlushMillis = 0;
+
+	/**
+	 * WriteBehind constructor
+	 * @param db Database To flush
+	 * @param intervalMs long Time between flushes
+	 * @param batchSize int Waiting changes that trigger an early flush
+	 * @param maxPending int Waiting changes after which new changes are held back
+	 * @param maxWaitMs long Longest a change is held back
+	 */
+	public WriteBehind(Database db, long intervalMs, int batchSize, int maxPending, long maxWaitMs) {
+		this.db = db;
+		this.intervalMs = Math.max(1, intervalMs);
+		this.batchSize = Math.max(1, batchSize);
+		this.maxPending = Math.max(this.batchSize, maxPending);
+		this.maxWaitMs = maxWaitMs;
+	}
+
+	/**
+	 * Starts the flush thread
+	 */
+	public synchronized void start() {
+		if (executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "WriteBehind-flush");
+			t.setDaemon(true);
+			return t;
+		});
+		executor.scheduleWithFixedDelay(this::flushQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Called after every change, triggers an early flush once batchSize changes are waiting
+	 * Never blocks, the caller may still hold user locks
+	 * @param pending int Changes currently waiting
+	 */
+	void changed(int pending) {
+		if (pending >= batchSize && Thread.currentThread() != flushing)
+			requestFlush();
+	}
+
+	/**
+	 * Holds the caller back while maxPending or more changes are waiting, for up to maxWaitMs
+	 * Only called before a change takes any user lock, the flush needs them to catch up
+	 */
+	void awaitCapacity() {
+		if (Thread.currentThread() == flushing || maxWaitMs <= 0 || getQueueDepth() < maxPending)
+			return;
+		requestFlush();
+		producerWaits.incrementAndGet();
+		long deadline = System.currentTimeMillis() + maxWaitMs;
+		synchronized (flushed) {
+			long remaining;
+			while (getQueueDepth() >= maxPending && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					flushed.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Asks the flush thread for a flush now instead of at the next interval
+	 */
+	public void requestFlush() {
+		ScheduledExecutorService e = executor;
+		if (e != null && flushRequested.compareAndSet(false, true)) {
+			try {
+				e.execute(this::flushQuietly);
+			} catch (RuntimeException ex) {
+				//Already shutting down, close() does the last flush
+				flushRequested.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Writes everything that is waiting
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		flushRequested.set(false);
+		if (getQueueDepth() == 0)
+			return;
+		long start = System.currentTimeMillis();
+		flushing = Thread.currentThread();
+		try {
+			Database.FlushResult r = db.flush();
+			itemsWritten.addAndGet(r.getItems());
+			usersWritten.addAndGet(r.getUsers());
+			failedWrites.addAndGet(r.getFailed());
+		} finally {
+			flushing = null;
+			long took = System.currentTimeMillis() - start;
+			lastFlushMillis = took;
+			totalFlushMillis.addAndGet(took);
+			maxFlushMillis.accumulateAndGet(took, Math::max);
+			flushes.incrementAndGet();
+			synchronized (flushed) {
+				flushed.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Flush for the flush thread, which has nowhere to throw to and must keep running
+	 */
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.SEVERE, "Write behind flush failed.", e);
+		}
+	}
+
+	/**
+	 * Stops the flush thread and writes whatever is still waiting
+	 */
+	@Override
+	public void close() {
+		ScheduledExecutorService e;
+		synchronized (this) {
+			e = executor;
+			executor = null;
+		}
+		if (e != null) {
+			e.shutdown();
+			try {
+				if (!e.awaitTermination(Math.max(maxWaitMs, intervalMs), TimeUnit.MILLISECONDS))
+					LOG.warning("Write behind flush thread did not stop in time.");
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flushQuietly();
+	}
+
+	/**
+	 * Returns the number of items and users waiting to be written
+	 * @return int
+	 */
+	public int getQueueDepth() {
+		return db.getDirtyItemCount() + db.getDirtyUserCount();
+	}
+
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	public long getItemsWritten() {
+		return itemsWritten.get();
+	}
+
+	public long getUsersWritten() {
+		return usersWritten.get();
+	}
+
+	public long getFailedWrites() {
+		return failedWrites.get();
+	}
+
+	public long getLastFlushMillis() {
+		return lastFlushMillis;
+	}
+
+	public long getMaxFlushMillis() {
+		return maxFlushMillis.get();
+	}
+
+	/**
+	 * Returns the average time a flush took
+	 * @return double
+	 */
+	public double getAverageFlushMillis() {
+		long n = flushes.get();
+		return n == 0 ? 0 : (double) totalFlushMillis.get() / n;
+	}
+
+	/**
+	 * Returns how many times a change was held back because too much was waiting
+	 * @return long
+	 */
+	public long getProducerWaits() {
+		return producerWaits.get();
+	}
+
+	/**
+	 * Returns the metrics as a readable line
+	 * @return String
+	 */
+	public String getStatistics() {
+		return "Queued: "+getQueueDepth()+", Flushes: "+getFlushes()+", Items: "+getItemsWritten()
+			+", Users: "+getUsersWritten()+", Failed: "+getFailedWrites()
+			+", Last flush: "+getLastFlushMillis()+"ms, Avg flush: "+String.format("%.1f", getAverageFlushMillis())
+			+"ms, Max flush: "+getMaxFlushMillis()+"ms, Held back: "+getProducerWaits();
+	}
+}
@@ -9,9 +9,12 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.logging.Logger;
 
 public class Config {
 
+	private static final Logger LOG = Logger.getLogger(Config.class.getName());
+
 	public static final String USERNAME_PLACEHOLDER = "\\{UN}";
 	
 	public static final String DEFAULT_USER = "vd";
@@ -38,6 +41,86 @@ public class Config {
 	
 	public static final int DEFAULT_MONGO_PORT = 27017;
 	
+	public static final int DEFAULT_MONGO_MAX_POOL_SIZE = 100;
+	
+	public static final int DEFAULT_MONGO_MIN_POOL_SIZE = 0;
+	
+	public static final long DEFAULT_MONGO_MAX_WAIT_MS = 120000;
+	
+	public static final int DEFAULT_MONGO_CONNECT_TIMEOUT_MS = 10000;
+	
+	public static final int DEFAULT_MONGO_READ_TIMEOUT_MS = 0;
+	
+	public static final String DEFAULT_MONGO_READ_CONCERN = "default";
+	
+	public static final String DEFAULT_MONGO_WRITE_CONCERN = "ACKNOWLEDGED";
+	
+	public static final int DEFAULT_MONGO_BULK_BATCH_SIZE = 1000;
+	
+	public static final boolean DEFAULT_MONGO_BULK_ORDERED = false;
+	
+	public static final int DEFAULT_MONGO_BULK_RETRIES = 2;
+	
+	public static final boolean DEFAULT_ITEMS_COMPACT = false;
+	
+	public static final String DEFAULT_ITEMS_COMPRESSION = "none";
+	
+	public static final boolean DEFAULT_JOURNAL_ENABLED = true;
+	
+	public static final String DEFAULT_JOURNAL_SYNC = "interval";
+	
+	public static final long DEFAULT_JOURNAL_SYNC_INTERVAL_MS = 100;
+	
+	public static final long DEFAULT_JOURNAL_COMPACT_BYTES = 64L * 1024 * 1024;
+	
+	public static final String DEFAULT_ITEM_STORE = "json";
+	
+	public static final long DEFAULT_SEGMENT_MAX_BYTES = 256L * 1024 * 1024;
+	
+	public static final int DEFAULT_MONGO_CACHE_MAX_ITEMS = 100000;
+	
+	public static final long DEFAULT_MONGO_CACHE_MAX_BYTES = 0;
+	
+	public static final int DEFAULT_MONGO_CACHE_MAX_USERS = 10000;
+	
+	public static final int DEFAULT_ASYNC_MAX_IN_FLIGHT = 128;
+	
+	public static final int DEFAULT_ASYNC_MAX_QUEUED = 10000;
+	
+	public static final boolean DEFAULT_WRITE_BEHIND_ENABLED = true;
+	
+	public static final long DEFAULT_WRITE_BEHIND_INTERVAL_MS = 1000;
+	
+	public static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 5000;
+	
+	public static final int DEFAULT_WRITE_BEHIND_MAX_PENDING = 100000;
+	
+	public static final long DEFAULT_WRITE_BEHIND_MAX_WAIT_MS = 5000;
+	
+	public static final boolean DEFAULT_INTEGRITY_PARALLEL = true;
+	
+	public static final boolean DEFAULT_METRICS_JMX = true;
+	
+	public static final long DEFAULT_METRICS_LOG_INTERVAL_MS = 0;
+	
+	public static final long DEFAULT_METRICS_SLOW_MS = 1000;
+	
+	public static final String DEFAULT_USER_STORE = "directory";
+	
+	public static final int DEFAULT_FLAT_FILE_SHARDS = 16;
+	
+	public static final int DEFAULT_MONGO_LOAD_PARALLELISM = 0;
+	
+	public static final int DEFAULT_MONGO_LOAD_BATCH_SIZE = 2000;
+	
+	public static final boolean DEFAULT_OFF_HEAP_PAYLOADS = false;
+	
+	public static final int DEFAULT_OFF_HEAP_SLAB_BYTES = 1048576;
+	
+	public static final long DEFAULT_OFF_HEAP_MAX_BYTES = 1073741824L;
+	
+	public static final String DEFAULT_ITEM_SERIALIZER = "json";
+	
 	public static String databaseFolder = DEFAULT_FOLDER;
 	
 	public static long item_limit = DEFAULT_ITEM_LIMIT;
@@ -54,13 +137,93 @@ public class Config {
 	
 	public static String mongoUserCol = DEFAULT_MONGO_USER_COLLECTION_NAME;
 	
+	public static int mongoMaxPoolSize = DEFAULT_MONGO_MAX_POOL_SIZE;
+	
+	public static int mongoMinPoolSize = DEFAULT_MONGO_MIN_POOL_SIZE;
+	
+	public static long mongoMaxWaitMs = DEFAULT_MONGO_MAX_WAIT_MS;
+	
+	public static int mongoConnectTimeoutMs = DEFAULT_MONGO_CONNECT_TIMEOUT_MS;
+	
+	public static int mongoReadTimeoutMs = DEFAULT_MONGO_READ_TIMEOUT_MS;
+	
+	public static String mongoReadConcern = DEFAULT_MONGO_READ_CONCERN;
+	
+	public static String mongoWriteConcern = DEFAULT_MONGO_WRITE_CONCERN;
+	
+	public static int mongoBulkBatchSize = DEFAULT_MONGO_BULK_BATCH_SIZE;
+	
+	public static boolean mongoBulkOrdered = DEFAULT_MONGO_BULK_ORDERED;
+	
+	public static int mongoBulkRetries = DEFAULT_MONGO_BULK_RETRIES;
+	
+	public static boolean itemsCompact = DEFAULT_ITEMS_COMPACT;
+	
+	public static String itemsCompression = DEFAULT_ITEMS_COMPRESSION;
+	
+	public static boolean journalEnabled = DEFAULT_JOURNAL_ENABLED;
+	
+	public static String journalSync = DEFAULT_JOURNAL_SYNC;
+	
+	public static long journalSyncIntervalMs = DEFAULT_JOURNAL_SYNC_INTERVAL_MS;
+	
+	public static long journalCompactBytes = DEFAULT_JOURNAL_COMPACT_BYTES;
+	
+	public static String itemStore = DEFAULT_ITEM_STORE;
+	
+	public static long segmentMaxBytes = DEFAULT_SEGMENT_MAX_BYTES;
+	
+	public static int mongoCacheMaxItems = DEFAULT_MONGO_CACHE_MAX_ITEMS;
+	
+	public static long mongoCacheMaxBytes = DEFAULT_MONGO_CACHE_MAX_BYTES;
+	
+	public static int mongoCacheMaxUsers = DEFAULT_MONGO_CACHE_MAX_USERS;
+	
+	public static int asyncMaxInFlight = DEFAULT_ASYNC_MAX_IN_FLIGHT;
+	
+	public static int asyncMaxQueued = DEFAULT_ASYNC_MAX_QUEUED;
+	
+	public static boolean writeBehindEnabled = DEFAULT_WRITE_BEHIND_ENABLED;
+	
+	public static long writeBehindIntervalMs = DEFAULT_WRITE_BEHIND_INTERVAL_MS;
+	
+	public static int writeBehindBatchSize = DEFAULT_WRITE_BEHIND_BATCH_SIZE;
+	
+	public static int writeBehindMaxPending = DEFAULT_WRITE_BEHIND_MAX_PENDING;
+	
+	public static long writeBehindMaxWaitMs = DEFAULT_WRITE_BEHIND_MAX_WAIT_MS;
+	
+	public static boolean integrityParallel = DEFAULT_INTEGRITY_PARALLEL;
+	
+	public static boolean metricsJmx = DEFAULT_METRICS_JMX;
+	
+	public static long metricsLogIntervalMs = DEFAULT_METRICS_LOG_INTERVAL_MS;
+	
+	public static long metricsSlowMs = DEFAULT_METRICS_SLOW_MS;
+	
+	public static String userStore = DEFAULT_USER_STORE;
+	
+	public static int flatFileShards = DEFAULT_FLAT_FILE_SHARDS;
+	
+	public static int mongoLoadParallelism = DEFAULT_MONGO_LOAD_PARALLELISM;
+	
+	public static int mongoLoadBatchSize = DEFAULT_MONGO_LOAD_BATCH_SIZE;
+	
+	public static boolean offHeapPayloads = DEFAULT_OFF_HEAP_PAYLOADS;
+	
+	public static int offHeapSlabBytes = DEFAULT_OFF_HEAP_SLAB_BYTES;
+	
+	public static long offHeapMaxBytes = DEFAULT_OFF_HEAP_MAX_BYTES;
+	
+	public static String itemSerializer = DEFAULT_ITEM_SERIALIZER;
+	
 	/**
 	 * Generates a brand new config
 	 * @throws IOException
 	 */
 	public static void generateNewConfig() throws IOException {
 		//Make this dynamic to allow for the addition of more config options without modifying this function. 
-		System.out.println("Creating Config...");
+		LOG.info("Creating Config...");
 		File f = new File("config.cfg");
 		BufferedWriter bw = new BufferedWriter(new FileWriter(f));
 
@@ -72,8 +235,48 @@ public class Config {
 		bw.write("mongoDBName=" + DEFAULT_MONGO_DATABASE_NAME+"\n");
 		bw.write("mongoUserCol=" + DEFAULT_MONGO_USER_COLLECTION_NAME+"\n");
 		bw.write("mongoItemCol="+DEFAULT_MONGO_ITEM_COLLECTION_NAME+"\n");
+		bw.write("mongoMaxPoolSize="+DEFAULT_MONGO_MAX_POOL_SIZE+"\n");
+		bw.write("mongoMinPoolSize="+DEFAULT_MONGO_MIN_POOL_SIZE+"\n");
+		bw.write("mongoMaxWaitMs="+DEFAULT_MONGO_MAX_WAIT_MS+"\n");
+		bw.write("mongoConnectTimeoutMs="+DEFAULT_MONGO_CONNECT_TIMEOUT_MS+"\n");
+		bw.write("mongoReadTimeoutMs="+DEFAULT_MONGO_READ_TIMEOUT_MS+"\n");
+		bw.write("mongoReadConcern="+DEFAULT_MONGO_READ_CONCERN+"\n");
+		bw.write("mongoWriteConcern="+DEFAULT_MONGO_WRITE_CONCERN+"\n");
+		bw.write("mongoBulkBatchSize="+DEFAULT_MONGO_BULK_BATCH_SIZE+"\n");
+		bw.write("mongoBulkOrdered="+DEFAULT_MONGO_BULK_ORDERED+"\n");
+		bw.write("mongoBulkRetries="+DEFAULT_MONGO_BULK_RETRIES+"\n");
+		bw.write("itemsCompact="+DEFAULT_ITEMS_COMPACT+"\n");
+		bw.write("itemsCompression="+DEFAULT_ITEMS_COMPRESSION+"\n");
+		bw.write("journalEnabled="+DEFAULT_JOURNAL_ENABLED+"\n");
+		bw.write("journalSync="+DEFAULT_JOURNAL_SYNC+"\n");
+		bw.write("journalSyncIntervalMs="+DEFAULT_JOURNAL_SYNC_INTERVAL_MS+"\n");
+		bw.write("journalCompactBytes="+DEFAULT_JOURNAL_COMPACT_BYTES+"\n");
+		bw.write("itemStore="+DEFAULT_ITEM_STORE+"\n");
+		bw.write("segmentMaxBytes="+DEFAULT_SEGMENT_MAX_BYTES+"\n");
+		bw.write("mongoCacheMaxItems="+DEFAULT_MONGO_CACHE_MAX_ITEMS+"\n");
+		bw.write("mongoCacheMaxBytes="+DEFAULT_MONGO_CACHE_MAX_BYTES+"\n");
+		bw.write("mongoCacheMaxUsers="+DEFAULT_MONGO_CACHE_MAX_USERS+"\n");
+		bw.write("asyncMaxInFlight="+DEFAULT_ASYNC_MAX_IN_FLIGHT+"\n");
+		bw.write("asyncMaxQueued="+DEFAULT_ASYNC_MAX_QUEUED+"\n");
+		bw.write("writeBehindEnabled="+DEFAULT_WRITE_BEHIND_ENABLED+"\n");
+		bw.write("writeBehindIntervalMs="+DEFAULT_WRITE_BEHIND_INTERVAL_MS+"\n");
+		bw.write("writeBehindBatchSize="+DEFAULT_WRITE_BEHIND_BATCH_SIZE+"\n");
+		bw.write("writeBehindMaxPending="+DEFAULT_WRITE_BEHIND_MAX_PENDING+"\n");
+		bw.write("writeBehindMaxWaitMs="+DEFAULT_WRITE_BEHIND_MAX_WAIT_MS+"\n");
+		bw.write("integrityParallel="+DEFAULT_INTEGRITY_PARALLEL+"\n");
+		bw.write("metricsJmx="+DEFAULT_METRICS_JMX+"\n");
+		bw.write("metricsLogIntervalMs="+DEFAULT_METRICS_LOG_INTERVAL_MS+"\n");
+		bw.write("metricsSlowMs="+DEFAULT_METRICS_SLOW_MS+"\n");
+		bw.write("userStore="+DEFAULT_USER_STORE+"\n");
+		bw.write("flatFileShards="+DEFAULT_FLAT_FILE_SHARDS+"\n");
+		bw.write("mongoLoadParallelism="+DEFAULT_MONGO_LOAD_PARALLELISM+"\n");
+		bw.write("mongoLoadBatchSize="+DEFAULT_MONGO_LOAD_BATCH_SIZE+"\n");
+		bw.write("offHeapPayloads="+DEFAULT_OFF_HEAP_PAYLOADS+"\n");
+		bw.write("offHeapSlabBytes="+DEFAULT_OFF_HEAP_SLAB_BYTES+"\n");
+		bw.write("offHeapMaxBytes="+DEFAULT_OFF_HEAP_MAX_BYTES+"\n");
+		bw.write("itemSerializer="+DEFAULT_ITEM_SERIALIZER+"\n");
 		bw.close();
-		System.out.println("Done!");
+		LOG.info("Done!");
 	}
 	
 	/**
@@ -81,17 +284,17 @@ public class Config {
 	 * @throws IOException
 	 */
 	public static void loadConfig() throws IOException {
-		System.out.println("Loading Config...");
+		LOG.info("Loading Config...");
 		File f = new File("config.cfg");
 		if (!f.exists()) {
-			System.out.println("Config does not exist.");
+			LOG.warning("Config does not exist.");
 			generateNewConfig();
 		}
-		System.out.println("Reading Config...");
+		LOG.info("Reading Config...");
 		Reader r = new InputStreamReader(new FileInputStream(f));
 		Properties p = new Properties();
 		p.load(r);
-		System.out.println("Setting Variables...");
+		LOG.info("Setting Variables...");
 		databaseFolder = p.getProperty("database_folder");
 		item_limit = Long.valueOf(p.getProperty("user_item_limit"));
 		useMongo = Boolean.valueOf(p.getProperty("useMongo"));
@@ -100,9 +303,50 @@ public class Config {
 		mongoDBName = p.getProperty("mongoDBName");
 		mongoItemCol = p.getProperty("mongoItemCol");
 		mongoUserCol = p.getProperty("mongoUserCol");
+		//Options added after the first release fall back to their defaults so older configs keep loading
+		mongoMaxPoolSize = Integer.valueOf(p.getProperty("mongoMaxPoolSize", String.valueOf(DEFAULT_MONGO_MAX_POOL_SIZE)));
+		mongoMinPoolSize = Integer.valueOf(p.getProperty("mongoMinPoolSize", String.valueOf(DEFAULT_MONGO_MIN_POOL_SIZE)));
+		mongoMaxWaitMs = Long.valueOf(p.getProperty("mongoMaxWaitMs", String.valueOf(DEFAULT_MONGO_MAX_WAIT_MS)));
+		mongoConnectTimeoutMs = Integer.valueOf(p.getProperty("mongoConnectTimeoutMs", String.valueOf(DEFAULT_MONGO_CONNECT_TIMEOUT_MS)));
+		mongoReadTimeoutMs = Integer.valueOf(p.getProperty("mongoReadTimeoutMs", String.valueOf(DEFAULT_MONGO_READ_TIMEOUT_MS)));
+		mongoReadConcern = p.getProperty("mongoReadConcern", DEFAULT_MONGO_READ_CONCERN);
+		mongoWriteConcern = p.getProperty("mongoWriteConcern", DEFAULT_MONGO_WRITE_CONCERN);
+		mongoBulkBatchSize = Integer.valueOf(p.getProperty("mongoBulkBatchSize", String.valueOf(DEFAULT_MONGO_BULK_BATCH_SIZE)));
+		mongoBulkOrdered = Boolean.valueOf(p.getProperty("mongoBulkOrdered", String.valueOf(DEFAULT_MONGO_BULK_ORDERED)));
+		mongoBulkRetries = Integer.valueOf(p.getProperty("mongoBulkRetries", String.valueOf(DEFAULT_MONGO_BULK_RETRIES)));
+		itemsCompact = Boolean.valueOf(p.getProperty("itemsCompact", String.valueOf(DEFAULT_ITEMS_COMPACT)));
+		itemsCompression = p.getProperty("itemsCompression", DEFAULT_ITEMS_COMPRESSION);
+		journalEnabled = Boolean.valueOf(p.getProperty("journalEnabled", String.valueOf(DEFAULT_JOURNAL_ENABLED)));
+		journalSync = p.getProperty("journalSync", DEFAULT_JOURNAL_SYNC);
+		journalSyncIntervalMs = Long.valueOf(p.getProperty("journalSyncIntervalMs", String.valueOf(DEFAULT_JOURNAL_SYNC_INTERVAL_MS)));
+		journalCompactBytes = Long.valueOf(p.getProperty("journalCompactBytes", String.valueOf(DEFAULT_JOURNAL_COMPACT_BYTES)));
+		itemStore = p.getProperty("itemStore", DEFAULT_ITEM_STORE);
+		segmentMaxBytes = Long.valueOf(p.getProperty("segmentMaxBytes", String.valueOf(DEFAULT_SEGMENT_MAX_BYTES)));
+		mongoCacheMaxItems = Integer.valueOf(p.getProperty("mongoCacheMaxItems", String.valueOf(DEFAULT_MONGO_CACHE_MAX_ITEMS)));
+		mongoCacheMaxBytes = Long.valueOf(p.getProperty("mongoCacheMaxBytes", String.valueOf(DEFAULT_MONGO_CACHE_MAX_BYTES)));
+		mongoCacheMaxUsers = Integer.valueOf(p.getProperty("mongoCacheMaxUsers", String.valueOf(DEFAULT_MONGO_CACHE_MAX_USERS)));
+		asyncMaxInFlight = Integer.valueOf(p.getProperty("asyncMaxInFlight", String.valueOf(DEFAULT_ASYNC_MAX_IN_FLIGHT)));
+		asyncMaxQueued = Integer.valueOf(p.getProperty("asyncMaxQueued", String.valueOf(DEFAULT_ASYNC_MAX_QUEUED)));
+		writeBehindEnabled = Boolean.valueOf(p.getProperty("writeBehindEnabled", String.valueOf(DEFAULT_WRITE_BEHIND_ENABLED)));
+		writeBehindIntervalMs = Long.valueOf(p.getProperty("writeBehindIntervalMs", String.valueOf(DEFAULT_WRITE_BEHIND_INTERVAL_MS)));
+		writeBehindBatchSize = Integer.valueOf(p.getProperty("writeBehindBatchSize", String.valueOf(DEFAULT_WRITE_BEHIND_BATCH_SIZE)));
+		writeBehindMaxPending = Integer.valueOf(p.getProperty("writeBehindMaxPending", String.valueOf(DEFAULT_WRITE_BEHIND_MAX_PENDING)));
+		writeBehindMaxWaitMs = Long.valueOf(p.getProperty("writeBehindMaxWaitMs", String.valueOf(DEFAULT_WRITE_BEHIND_MAX_WAIT_MS)));
+		integrityParallel = Boolean.valueOf(p.getProperty("integrityParallel", String.valueOf(DEFAULT_INTEGRITY_PARALLEL)));
+		metricsJmx = Boolean.valueOf(p.getProperty("metricsJmx", String.valueOf(DEFAULT_METRICS_JMX)));
+		metricsLogIntervalMs = Long.valueOf(p.getProperty("metricsLogIntervalMs", String.valueOf(DEFAULT_METRICS_LOG_INTERVAL_MS)));
+		metricsSlowMs = Long.valueOf(p.getProperty("metricsSlowMs", String.valueOf(DEFAULT_METRICS_SLOW_MS)));
+		userStore = p.getProperty("userStore", DEFAULT_USER_STORE);
+		flatFileShards = Integer.valueOf(p.getProperty("flatFileShards", String.valueOf(DEFAULT_FLAT_FILE_SHARDS)));
+		mongoLoadParallelism = Integer.valueOf(p.getProperty("mongoLoadParallelism", String.valueOf(DEFAULT_MONGO_LOAD_PARALLELISM)));
+		mongoLoadBatchSize = Integer.valueOf(p.getProperty("mongoLoadBatchSize", String.valueOf(DEFAULT_MONGO_LOAD_BATCH_SIZE)));
+		offHeapPayloads = Boolean.valueOf(p.getProperty("offHeapPayloads", String.valueOf(DEFAULT_OFF_HEAP_PAYLOADS)));
+		offHeapSlabBytes = Integer.valueOf(p.getProperty("offHeapSlabBytes", String.valueOf(DEFAULT_OFF_HEAP_SLAB_BYTES)));
+		offHeapMaxBytes = Long.valueOf(p.getProperty("offHeapMaxBytes", String.valueOf(DEFAULT_OFF_HEAP_MAX_BYTES)));
+		itemSerializer = p.getProperty("itemSerializer", DEFAULT_ITEM_SERIALIZER);
 		
 		r.close();
-		System.out.println("Done!");
+		LOG.info("Done!");
 	}
 
 }
@@ -0,0 +1,13 @@
+package com.botifier.database.metrics;
+
+/**
+ * Value read at the moment metrics are exported, such as a cache size or a queue depth
+ */
+public interface Gauge {
+
+	/**
+	 * Returns the current value
+	 * @return long
+	 */
+	long getValue();
+}
@@ -0,0 +1,69 @@
+package com.botifier.database.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in nanoseconds. Values go into power of two buckets, so recording is a few
+ * atomic adds without allocation and percentiles are exact to within a factor of two.
+ */
+public class Histogram {
+
+	//Bucket i holds values below 2^i and at least 2^(i-1), bucket 0 holds 0
+	private final AtomicLongArray buckets = new AtomicLongArray(65);
+
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value
+	 * @param nanos long Value, negative values count as 0
+	 */
+	public void record(long nanos) {
+		long v = Math.max(0, nanos);
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+		count.increment();
+		sum.add(v);
+		max.accumulateAndGet(v, Math::max);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket holding a percentile, never more than the largest value
+	 * @param p double Percentile between 0 and 1
+	 * @return long
+	 */
+	public long getPercentile(double p) {
+		long n = 0;
+		for (int i = 0; i < buckets.length(); i++)
+			n += buckets.get(i);
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(p * n);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return i == 0 ? 0 : Math.min(i == 64 ? Long.MAX_VALUE : (1L << i) - 1, max.get());
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,31 @@
+package com.botifier.database.metrics;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes every metric on a single log line
+ */
+public class LoggingExporter implements MetricsExporter {
+
+	private static final Logger LOG = Logger.getLogger(LoggingExporter.class.getName());
+
+	//Level the line is logged at
+	private final Level level;
+
+	public LoggingExporter(Level level) {
+		this.level = level;
+	}
+
+	@Override
+	public void export(Map<String, Number> snapshot) {
+		if (!LOG.isLoggable(level))
+			return;
+		StringBuilder sb = new StringBuilder("Metrics:");
+		for (Entry<String, Number> e : snapshot.entrySet())
+			sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+		LOG.log(level, sb.toString());
+	}
+}
@@ -0,0 +1,16 @@
+package com.botifier.database.metrics;
+
+import java.util.Map;
+
+/**
+ * Receives every metric at each reporting interval, plug one in with MetricsRegistry.addExporter
+ * to send the values to a monitoring system.
+ */
+public interface MetricsExporter {
+
+	/**
+	 * Called with the current values, keyed by name in name order
+	 * @param snapshot Map<String, Number> Values, see MetricsRegistry.snapshot
+	 */
+	void export(Map<String, Number> snapshot);
+}
@@ -0,0 +1,115 @@
+package com.botifier.database.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Shows every metric of a registry as a read only JMX attribute, so jconsole or any JMX collector
+ * can read them. Attributes are the snapshot names, metrics added later show up once the
+ * client reloads the bean's info.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+	private static final Logger LOG = Logger.getLogger(MetricsMBean.class.getName());
+
+	//Registry to show
+	private final MetricsRegistry registry;
+
+	public MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Registers a registry with the platform MBean server
+	 * @param registry MetricsRegistry Registry to show
+	 * @param name String Value of the name key, telling databases in the same JVM apart
+	 * @return ObjectName Name it was registered under, or null if registering failed
+	 */
+	public static ObjectName register(MetricsRegistry registry, String name) {
+		try {
+			ObjectName on = new ObjectName("com.botifier.database:type=Metrics,name="+ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(on))
+				server.unregisterMBean(on);
+			server.registerMBean(new MetricsMBean(registry), on);
+			return on;
+		} catch (JMException e) {
+			LOG.log(Level.WARNING, "Could not register the metrics MBean.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Removes a registered bean, null is ignored
+	 * @param on ObjectName Name returned by register
+	 */
+	public static void unregister(ObjectName on) {
+		if (on == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+		} catch (JMException e) {
+			LOG.log(Level.FINE, "Could not unregister "+on+".", e);
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number n = registry.snapshot().get(attribute);
+		if (n == null)
+			throw new AttributeNotFoundException(attribute);
+		return n;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> s = registry.snapshot();
+		AttributeList list = new AttributeList();
+		for (String a : attributes) {
+			Number n = s.get(a);
+			if (n != null)
+				list.add(new Attribute(a, n));
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only.");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws javax.management.MBeanException {
+		throw new javax.management.MBeanException(new UnsupportedOperationException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Entry<String, Number> e : registry.snapshot().entrySet())
+			attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+		return new MBeanInfo(getClass().getName(), "GameItemDatabase metrics",
+				attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,208 @@
+package com.botifier.database.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Named counters, histograms and gauges of one Database. Operations are timed with start/stop,
+ * which also logs any operation slower than the slow threshold, so slow calls show up in the log
+ * with their name and duration while the histograms show where time goes overall.
+ * Exporters get a snapshot of every value each reporting interval and a last one when reporting stops.
+ */
+public class MetricsRegistry {
+
+	private static final Logger LOG = Logger.getLogger(MetricsRegistry.class.getName());
+
+	private static final double NANOS_PER_MS = 1000000.0;
+
+	//Every metric by name
+	private final Map<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+	//Where snapshots are sent
+	private final List<MetricsExporter> exporters = new CopyOnWriteArrayList<MetricsExporter>();
+
+	//Operations at least this slow are logged, 0 logs none
+	private volatile long slowNanos = 0;
+
+	//Reporting thread, null when not reporting
+	private ScheduledExecutorService reporter;
+
+	/**
+	 * Returns a counter, creating it the first time
+	 * @param name String Name
+	 * @return Counter
+	 */
+	public Counter counter(String name) {
+		return get(name, Counter.class);
+	}
+
+	/**
+	 * Returns a histogram, creating it the first time
+	 * @param name String Name
+	 * @return Histogram
+	 */
+	public Histogram histogram(String name) {
+		return get(name, Histogram.class);
+	}
+
+	/**
+	 * Adds a gauge, replacing one of the same name
+	 * @param name String Name
+	 * @param g Gauge Read at every snapshot
+	 */
+	public void gauge(String name, Gauge g) {
+		Object old = metrics.put(name, g);
+		if (old != null && !(old instanceof Gauge))
+			throw new IllegalArgumentException(name+" is already a "+old.getClass().getSimpleName());
+	}
+
+	public void remove(String name) {
+		metrics.remove(name);
+	}
+
+	private <M> M get(String name, Class<M> type) {
+		Object m = metrics.get(name);
+		if (m == null) {
+			try {
+				m = metrics.computeIfAbsent(name, k -> newMetric(type));
+			} catch (RuntimeException e) {
+				throw new IllegalStateException("Could not create metric "+name, e);
+			}
+		}
+		if (!type.isInstance(m))
+			throw new IllegalArgumentException(name+" is already a "+m.getClass().getSimpleName());
+		return type.cast(m);
+	}
+
+	private static Object newMetric(Class<?> type) {
+		return type == Counter.class ? new Counter() : new Histogram();
+	}
+
+	/**
+	 * Starts timing an operation
+	 * @return long Start time to pass to stop
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records how long an operation took in its histogram and logs it when it was slow
+	 * @param name String Operation's histogram
+	 * @param start long Value returned by start
+	 * @return long Nanoseconds taken
+	 */
+	public long stop(String name, long start) {
+		long took = System.nanoTime() - start;
+		histogram(name).record(took);
+		long slow = slowNanos;
+		if (slow > 0 && took >= slow)
+			LOG.warning("Slow "+name+": "+String.format("%.1f", took / NANOS_PER_MS)+"ms");
+		return took;
+	}
+
+	/**
+	 * Sets the slow operation threshold
+	 * @param ms long Milliseconds, 0 to log no slow operations
+	 */
+	public void setSlowThresholdMs(long ms) {
+		this.slowNanos = Math.max(0, ms) * 1000000L;
+	}
+
+	/**
+	 * Returns every value in name order. Counters and gauges are reported as they are, histograms as
+	 * name.count, name.meanMs, name.p50Ms, name.p99Ms and name.maxMs
+	 * @return Map<String, Number>
+	 */
+	public Map<String, Number> snapshot() {
+		Map<String, Number> s = new TreeMap<String, Number>();
+		for (Entry<String, Object> e : metrics.entrySet()) {
+			String name = e.getKey();
+			Object m = e.getValue();
+			if (m instanceof Counter) {
+				s.put(name, ((Counter) m).get());
+			} else if (m instanceof Gauge) {
+				try {
+					s.put(name, ((Gauge) m).getValue());
+				} catch (RuntimeException ex) {
+					LOG.log(Level.FINE, "Gauge "+name+" failed.", ex);
+				}
+			} else {
+				Histogram h = (Histogram) m;
+				s.put(name+".count", h.getCount());
+				s.put(name+".meanMs", round(h.getMean() / NANOS_PER_MS));
+				s.put(name+".p50Ms", round(h.getPercentile(0.5) / NANOS_PER_MS));
+				s.put(name+".p99Ms", round(h.getPercentile(0.99) / NANOS_PER_MS));
+				s.put(name+".maxMs", round(h.getMax() / NANOS_PER_MS));
+			}
+		}
+		return s;
+	}
+
+	private static double round(double ms) {
+		return Math.round(ms * 1000) / 1000.0;
+	}
+
+	public void addExporter(MetricsExporter e) {
+		exporters.add(e);
+	}
+
+	public void removeExporter(MetricsExporter e) {
+		exporters.remove(e);
+	}
+
+	/**
+	 * Sends a snapshot to every exporter, an exporter that fails doesn't stop the others
+	 */
+	public void export() {
+		if (exporters.isEmpty())
+			return;
+		Map<String, Number> s = snapshot();
+		for (MetricsExporter e : exporters) {
+			try {
+				e.export(s);
+			} catch (RuntimeException ex) {
+				LOG.log(Level.WARNING, "Metrics exporter "+e.getClass().getName()+" failed.", ex);
+			}
+		}
+	}
+
+	/**
+	 * Exports on a daemon thread every intervalMs
+	 * @param intervalMs long Time between exports
+	 */
+	public synchronized void startReporting(long intervalMs) {
+		if (reporter != null || intervalMs <= 0)
+			return;
+		reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Metrics-reporter");
+			t.setDaemon(true);
+			return t;
+		});
+		reporter.scheduleAtFixedRate(this::export, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the reporting thread and exports one last time
+	 */
+	public void stopReporting() {
+		ScheduledExecutorService r;
+		synchronized (this) {
+			r = reporter;
+			reporter = null;
+		}
+		if (r == null)
+			return;
+		r.shutdownNow();
+		export();
+	}
+}
@@ -0,0 +1,215 @@
+package com.botifier.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.botifier.database.SchemaRegistry.Field;
+
+/**
+ * Round trips information through BinaryItemSerializer, and reads data written with older schemas.
+ * An older version of a class is simulated by encoding a stand-in class and registering its fields
+ * as a version of the current class, which is exactly what the registry would hold after the change.
+ */
+public class BinaryItemSerializerTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File file;
+	private SchemaRegistry registry;
+	private BinaryItemSerializer serializer;
+
+	enum Rarity { COMMON, RARE }
+
+	static class Gem {
+		String color;
+		float shine;
+	}
+
+	static class Sword {
+		String name;
+		long level;
+		double weight;
+		Rarity rarity;
+		Gem gem;
+		List<String> tags;
+		Integer bonus;
+		//Added after the first version, data written before keeps this default
+		int durability = 100;
+	}
+
+	//Sword before durability was added and while level was still an int
+	static class SwordV0 {
+		String name;
+		int level;
+	}
+
+	//Sword while it still had fields that were removed since, between ones that are kept
+	static class SwordWithRemoved {
+		String name;
+		String legacy;
+		Gem socket;
+		int level;
+		double weight;
+	}
+
+	@Before
+	public void setup() throws IOException {
+		file = new File(tmp.getRoot(), "items/schemas.json");
+		registry = new SchemaRegistry(file);
+		serializer = new BinaryItemSerializer(registry);
+	}
+
+	@Test
+	public void roundTripsEveryKind() throws IOException {
+		Sword s = sword();
+		assertSword(s, (Sword) serializer.decode(serializer.encode(s)));
+		Sword empty = new Sword();
+		empty.durability = 0;
+		Sword read = (Sword) serializer.decode(serializer.encode(empty));
+		assertNull("Null name.", read.name);
+		assertNull("Null gem.", read.gem);
+		assertNull("Null bonus.", read.bonus);
+		assertEquals("Zero durability isn't the default.", 0, read.durability);
+		assertEquals("string", serializer.decode(serializer.encode("string")));
+		assertEquals(Integer.MIN_VALUE, serializer.decode(serializer.encode(Integer.MIN_VALUE)));
+		assertEquals(Long.MAX_VALUE, serializer.decode(serializer.encode(Long.MAX_VALUE)));
+		assertEquals(Rarity.RARE, serializer.decode(serializer.encode(Rarity.RARE)));
+		Map<String, Double> map = new HashMap<String, Double>();
+		map.put("a", 1.5);
+		assertEquals("Map written as JSON.", map, serializer.decode(serializer.encode(map)));
+	}
+
+	@Test
+	public void readsWithARegistryLoadedFromItsFile() throws IOException {
+		Sword s = sword();
+		byte[] data = serializer.encode(s);
+		BinaryItemSerializer reloaded = new BinaryItemSerializer(new SchemaRegistry(file));
+		assertSword(s, (Sword) reloaded.decode(data));
+		//Same fields, so the schema written with doesn't change either
+		assertTrue("Same bytes after a reload.", Arrays.equals(data, reloaded.encode(s)));
+	}
+
+	@Test
+	public void addedFieldKeepsItsDefault() throws IOException {
+		SwordV0 old = new SwordV0();
+		old.name = "old";
+		old.level = 7;
+		byte[] data = asVersionOf(Sword.class, old);
+
+		Sword read = (Sword) new BinaryItemSerializer(new SchemaRegistry(file)).decode(data);
+		assertEquals("old", read.name);
+		assertEquals("Level read as a long.", 7L, read.level);
+		assertEquals("Added field.", 100, read.durability);
+		assertNull("Added object field.", read.gem);
+		//Writes from now on use a new version, the old one still reads
+		Sword s = sword();
+		assertSword(s, (Sword) serializer.decode(serializer.encode(s)));
+		assertEquals(7L, ((Sword) serializer.decode(data)).level);
+	}
+
+	@Test
+	public void removedFieldsAreSkipped() throws IOException {
+		SwordWithRemoved old = new SwordWithRemoved();
+		old.name = "removed";
+		old.legacy = "gone";
+		old.socket = new Gem();
+		old.socket.color = "red";
+		old.socket.shine = 2f;
+		old.level = 3;
+		old.weight = 4.5;
+		byte[] data = asVersionOf(Sword.class, old);
+
+		Sword read = (Sword) new BinaryItemSerializer(new SchemaRegistry(file)).decode(data);
+		assertEquals("removed", read.name);
+		assertEquals("Field after a removed string.", 3L, read.level);
+		assertEquals("Field after a removed message.", 4.5, read.weight, 0);
+		assertEquals(100, read.durability);
+	}
+
+	@Test
+	public void readsWithAnOlderSchemaId() throws IOException {
+		//The class was first written as JSON, a change of kind registers it again under a new ID
+		int[] old = registry.register(Sword.class.getName(), SchemaRegistry.KIND_JSON, new Field[0]);
+		byte[] json = "{\"name\":\"json\",\"level\":9,\"durability\":5}".getBytes(StandardCharsets.UTF_8);
+		byte[] data = new byte[3 + json.length];
+		data[0] = (byte) old[0];
+		data[1] = (byte) old[1];
+		data[2] = (byte) json.length;
+		System.arraycopy(json, 0, data, 3, json.length);
+
+		Sword s = sword();
+		byte[] current = serializer.encode(s);
+		assertNotEquals("Written under a new ID.", old[0], current[0]);
+
+		BinaryItemSerializer reloaded = new BinaryItemSerializer(new SchemaRegistry(file));
+		Sword read = (Sword) reloaded.decode(data);
+		assertEquals("json", read.name);
+		assertEquals(9L, read.level);
+		assertEquals(5, read.durability);
+		assertSword(s, (Sword) reloaded.decode(current));
+		assertEquals("Reloaded registry writes with the newest ID.", current[0], reloaded.encode(s)[0]);
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownSchemaFails() throws IOException {
+		serializer.decode(new byte[] {42, 0});
+	}
+
+	/**
+	 * Encodes a stand-in and tags the message as a version of another class holding the stand-in's fields
+	 */
+	private byte[] asVersionOf(Class<?> current, Object standIn) throws IOException {
+		byte[] data = serializer.encode(standIn);
+		//IDs and versions this small are single byte varints
+		assertTrue(data[0] > 0 && data[1] >= 0);
+		Field[] fields = registry.type(data[0]).fields(data[1]);
+		int[] idVersion = registry.register(current.getName(), SchemaRegistry.KIND_RECORD, fields);
+		assertTrue(idVersion[0] < 128 && idVersion[1] < 128);
+		data[0] = (byte) idVersion[0];
+		data[1] = (byte) idVersion[1];
+		return data;
+	}
+
+	private static Sword sword() {
+		Sword s = new Sword();
+		s.name = "Blade";
+		s.level = -3;
+		s.weight = 2.25;
+		s.rarity = Rarity.RARE;
+		s.gem = new Gem();
+		s.gem.color = "blue";
+		s.gem.shine = 0.5f;
+		s.tags = Arrays.asList("sharp", "old");
+		s.bonus = 12;
+		s.durability = 40;
+		return s;
+	}
+
+	private static void assertSword(Sword expected, Sword read) {
+		assertEquals(expected.name, read.name);
+		assertEquals(expected.level, read.level);
+		assertEquals(expected.weight, read.weight, 0);
+		assertEquals(expected.rarity, read.rarity);
+		assertEquals(expected.gem.color, read.gem.color);
+		assertEquals(expected.gem.shine, read.gem.shine, 0);
+		assertEquals(expected.tags, read.tags);
+		assertEquals(expected.bonus, read.bonus);
+		assertEquals(expected.durability, read.durability);
+	}
+}
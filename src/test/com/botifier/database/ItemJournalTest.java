@@ -0,0 +1,218 @@
+package com.botifier.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+import com.botifier.database.DatabaseObjectAdapter.ItemRecord;
+import com.botifier.database.main.Config;
+
+/**
+ * Replays the journal the way a restart after a crash does, and checks its record framing.
+ * Files go to the database folder under the working directory, which the build points at target/test-work.
+ */
+public class ItemJournalTest {
+
+	private static final File FOLDER = new File(Config.DEFAULT_FOLDER);
+
+	@Before
+	public void setup() {
+		Config.useMongo = false;
+		Config.journalEnabled = true;
+		Config.journalSync = ItemJournal.SYNC_ALWAYS;
+		Config.journalCompactBytes = Long.MAX_VALUE;
+		Config.writeBehindEnabled = false;
+		Config.offHeapPayloads = false;
+		Config.userStore = Config.DEFAULT_USER_STORE;
+		Config.item_limit = Long.MAX_VALUE;
+		delete(FOLDER);
+	}
+
+	@Test
+	public void replayedDestroyStaysDestroyedInItemsJson() throws IOException {
+		Config.itemStore = "json";
+		replayedDestroyStaysDestroyed();
+	}
+
+	@Test
+	public void replayedDestroyStaysDestroyedInSegments() throws IOException {
+		Config.itemStore = "segment";
+		replayedDestroyStaysDestroyed();
+	}
+
+	private void replayedDestroyStaysDestroyed() throws IOException {
+		Database first = new Database();
+		first.load();
+		DatabaseUser owner = first.createUser("keeper");
+		DatabaseObject<?> kept = first.createItem("kept", owner);
+		DatabaseObject<?> destroyed = first.createItem("destroyed", owner);
+		//Both items are in the item files, only the destroy is left in the journal
+		first.compactJournal();
+		assertTrue(owner.removeObject(destroyed));
+		//Crash, nothing else is written
+
+		Database replayed = new Database();
+		replayed.load();
+		assertLoaded(replayed, owner.getUUID(), kept.getUUID(), destroyed.getUUID());
+
+		Database restarted = new Database();
+		restarted.load();
+		assertLoaded(restarted, owner.getUUID(), kept.getUUID(), destroyed.getUUID());
+	}
+
+	@Test
+	public void recordsReplayInOrder() throws IOException {
+		Database db = journalFree();
+		DatabaseUser owner = db.createUser("framed");
+		DatabaseObject<?> kept = db.createItem("kept", owner);
+		DatabaseObject<?> destroyed = db.createItem("destroyed", owner);
+		assertTrue(owner.removeObject(destroyed));
+		File file = new File(FOLDER, "framing.journal");
+		ItemJournal journal = new ItemJournal(file, new DatabaseObjectAdapter(db), ItemJournal.SYNC_ALWAYS, 0);
+		journal.open();
+		journal.appendUser(owner);
+		journal.appendItem(kept);
+		journal.appendItem(destroyed);
+		long size = journal.size();
+		journal.close();
+		assertEquals("Size counts every frame.", size, file.length());
+
+		Recorder r = new Recorder();
+		assertEquals(3, new ItemJournal(file, new DatabaseObjectAdapter(db), ItemJournal.SYNC_ALWAYS, 0).replay(r));
+		assertEquals("user "+owner.getUUID()+" framed", r.events.get(0));
+		assertEquals("put "+kept.getUUID()+" "+owner.getUUID()+" kept", r.events.get(1));
+		assertEquals("destroy "+destroyed.getUUID(), r.events.get(2));
+		assertEquals("Intact journal left as it is.", size, file.length());
+	}
+
+	@Test
+	public void tornTailIsCutOff() throws IOException {
+		Database db = journalFree();
+		DatabaseUser owner = db.createUser("torn");
+		File file = new File(FOLDER, "torn.journal");
+		ItemJournal journal = new ItemJournal(file, new DatabaseObjectAdapter(db), ItemJournal.SYNC_ALWAYS, 0);
+		journal.open();
+		journal.appendUser(owner);
+		journal.appendItem(db.createItem("first", owner));
+		long intact = journal.size();
+		journal.appendItem(db.createItem("torn", owner));
+		journal.close();
+		//A crash in the middle of the last record
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(file.length() - 3);
+		}
+
+		Recorder r = new Recorder();
+		journal = new ItemJournal(file, new DatabaseObjectAdapter(db), ItemJournal.SYNC_ALWAYS, 0);
+		assertEquals(2, journal.replay(r));
+		assertEquals("Torn record cut off.", intact, file.length());
+
+		//Half a length field is cut off too, and records appended after it replay
+		try (FileOutputStream fos = new FileOutputStream(file, true)) {
+			fos.write(new byte[] {0, 0});
+		}
+		assertEquals(2, journal.replay(new Recorder()));
+		assertEquals("Partial length cut off.", intact, file.length());
+		journal.open();
+		DatabaseObject<?> after = db.createItem("after", owner);
+		journal.appendItem(after);
+		journal.close();
+		r = new Recorder();
+		assertEquals(3, journal.replay(r));
+		assertEquals("put "+after.getUUID()+" "+owner.getUUID()+" after", r.events.get(2));
+	}
+
+	@Test
+	public void corruptRecordStopsReplay() throws IOException {
+		Database db = journalFree();
+		DatabaseUser owner = db.createUser("corrupt");
+		File file = new File(FOLDER, "corrupt.journal");
+		ItemJournal journal = new ItemJournal(file, new DatabaseObjectAdapter(db), ItemJournal.SYNC_ALWAYS, 0);
+		journal.open();
+		journal.appendUser(owner);
+		long first = journal.size();
+		journal.appendItem(db.createItem("corrupt", owner));
+		journal.appendItem(db.createItem("after", owner));
+		journal.close();
+		//Flips a byte of the second record's JSON, past its length, checksum and op
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(first + 12);
+			int b = raf.read();
+			raf.seek(first + 12);
+			raf.write(b ^ 0x20);
+		}
+
+		Recorder r = new Recorder();
+		//Nothing after a failed checksum can be trusted, the intact third record goes with it
+		assertEquals(1, new ItemJournal(file, new DatabaseObjectAdapter(db), ItemJournal.SYNC_ALWAYS, 0).replay(r));
+		assertEquals("user "+owner.getUUID()+" corrupt", r.events.get(0));
+		assertEquals("Cut off at the corrupt record.", first, file.length());
+
+		//A length no record can have stops replay the same way
+		try (FileOutputStream fos = new FileOutputStream(file, true)) {
+			fos.write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 0, 0, 0, ItemJournal.OP_USER});
+		}
+		assertEquals(1, new ItemJournal(file, new DatabaseObjectAdapter(db), ItemJournal.SYNC_ALWAYS, 0).replay(new Recorder()));
+		assertEquals("Cut off at the invalid length.", first, file.length());
+	}
+
+	/**
+	 * Returns a database to build items with, which keeps no journal of its own
+	 */
+	private static Database journalFree() throws IOException {
+		Config.journalEnabled = false;
+		Database db = new Database();
+		db.load();
+		return db;
+	}
+
+	/**
+	 * Records replayed records as short strings
+	 */
+	private static class Recorder implements ItemJournal.Handler {
+		final List<String> events = new ArrayList<String>();
+
+		@Override
+		public void item(ItemRecord r, boolean destroyed) {
+			events.add(destroyed ? "destroy "+r.uuid : "put "+r.uuid+" "+r.owner+" "+r.information);
+		}
+
+		@Override
+		public void user(UUID u, String name) {
+			events.add("user "+u+" "+name);
+		}
+	}
+
+	private static void assertLoaded(Database db, UUID owner, UUID kept, UUID destroyed) {
+		DatabaseUser u = db.getUser(owner);
+		assertNotNull("Owner loaded.", u);
+		assertNotNull("Kept item loaded.", db.getItem(kept));
+		assertTrue("Owner holds the kept item.", u.hasObject(kept));
+		assertNull("Destroyed item loaded.", db.getItem(destroyed));
+		assertFalse("Owner holds the destroyed item.", u.hasObject(destroyed));
+		assertEquals("Indexed items of the owner.", 1, db.countItemsByOwner(owner));
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+}
@@ -0,0 +1,102 @@
+package com.botifier.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+import com.botifier.database.main.Config;
+
+/**
+ * Checks that information handed out by getInformation keeps changes made in place while
+ * offHeapPayloads is set. start() reads config.cfg from the working directory, which the
+ * build points at target/test-work.
+ */
+public class OffHeapPayloadTest {
+
+	private static final File FOLDER = new File(Config.DEFAULT_FOLDER);
+	private static final File CONFIG = new File("config.cfg");
+
+	public static class Stats {
+		int level;
+
+		Stats(int level) {
+			this.level = level;
+		}
+	}
+
+	@Before
+	public void setup() throws IOException {
+		delete(FOLDER);
+		CONFIG.delete();
+		Config.generateNewConfig();
+		//Later keys win when the properties are read
+		try (Writer w = new FileWriter(CONFIG, true)) {
+			w.write("useMongo=false\n");
+			w.write("journalEnabled=false\n");
+			w.write("writeBehindEnabled=false\n");
+			w.write("itemStore=json\n");
+			w.write("offHeapPayloads=true\n");
+		}
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		//Puts every option back to its default for the other tests
+		CONFIG.delete();
+		Config.loadConfig();
+		CONFIG.delete();
+		delete(FOLDER);
+	}
+
+	@Test
+	public void sharedInformationStaysOnHeap() throws IOException {
+		Database db = new Database();
+		db.start();
+		try {
+			DatabaseUser owner = db.createUser("stats");
+			@SuppressWarnings("unchecked")
+			DatabaseObject<Stats> item = (DatabaseObject<Stats>) db.createItem(new Stats(1), owner);
+			db.flush();
+			assertTrue("Payload bytes after the first flush.", used(db) > 0);
+
+			Stats s = item.getInformation();
+			assertEquals("Payload bytes once handed out.", 0L, used(db));
+			s.level = 5;
+			System.gc();
+			db.flush();
+			assertEquals("Payload bytes after flushing shared information.", 0L, used(db));
+			assertSame("Same information after a flush.", s, item.getInformation());
+			assertEquals("Level changed in place.", 5, item.getInformation().level);
+
+			item.putInformation(new Stats(7));
+			db.flush();
+			assertTrue("Payload bytes after flushing a put.", used(db) > 0);
+			assertEquals("Level decoded from off heap.", 7, item.getInformation().level);
+		} finally {
+			db.stop();
+		}
+	}
+
+	private static long used(Database db) {
+		return db.getMetrics().snapshot().get("offheap.used").longValue();
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+}
@@ -0,0 +1,169 @@
+package com.botifier.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks SortedUUIDMap against a TreeMap, which orders UUIDs the same way
+ */
+public class SortedUUIDMapTest {
+
+	@Test
+	public void matchesTreeMapAcrossResizesAndMerges() {
+		Random r = new Random(23);
+		SortedUUIDMap<Integer> map = new SortedUUIDMap<Integer>();
+		TreeMap<UUID, Integer> expected = new TreeMap<UUID, Integer>();
+		List<UUID> pool = keys(r, 3000);
+		pool.add(new UUID(0L, 0L));
+		pool.add(new UUID(Long.MIN_VALUE, Long.MIN_VALUE));
+		pool.add(new UUID(-1L, -1L));
+		for (int op = 0; op < 100000; op++) {
+			UUID k = pool.get(r.nextInt(pool.size()));
+			Integer v = op;
+			//Grows for the first half, then shrinks as removes win
+			int put = op < 50000 ? 3 : 1;
+			int c = r.nextInt(put + 3);
+			if (c < put)
+				assertEquals("put "+k, expected.put(k, v), map.put(k, v));
+			else if (c == put)
+				assertEquals("putIfAbsent "+k, expected.putIfAbsent(k, v), map.putIfAbsent(k, v));
+			else if (c == put + 1)
+				assertEquals("remove "+k, expected.remove(k), map.remove(k));
+			else
+				assertEquals("get "+k, expected.get(k), map.get(k));
+			if (op % 10000 == 0)
+				assertSameEntries(expected, map);
+		}
+		assertSameEntries(expected, map);
+	}
+
+	@Test
+	public void tailIsSearchedBeforeAndAfterItMerges() {
+		SortedUUIDMap<Integer> map = new SortedUUIDMap<Integer>();
+		TreeMap<UUID, Integer> expected = new TreeMap<UUID, Integer>();
+		//Even keys make up the main part once the first merge ran
+		for (int i = 0; i < 4000; i += 2)
+			put(map, expected, new UUID(0L, i), i);
+		assertSameEntries(expected, map);
+		//Odd keys between them, inserted backwards so each one goes to the front of the tail
+		for (int i = 3999; i > 0; i -= 2) {
+			put(map, expected, new UUID(0L, i), i);
+			assertEquals(Integer.valueOf(i), map.get(new UUID(0L, i)));
+			assertEquals(Integer.valueOf(i - 1), map.get(new UUID(0L, i - 1)));
+		}
+		for (Map.Entry<UUID, Integer> e : expected.entrySet())
+			assertEquals(e.getValue(), map.get(e.getKey()));
+		assertSameEntries(expected, map);
+		//Removes from both parts while a tail is pending
+		put(map, expected, new UUID(1L, 0L), -1);
+		assertEquals(Integer.valueOf(-1), map.remove(new UUID(1L, 0L)));
+		expected.remove(new UUID(1L, 0L));
+		for (int i = 0; i < 4000; i += 3)
+			assertEquals(expected.remove(new UUID(0L, i)), map.remove(new UUID(0L, i)));
+		assertSameEntries(expected, map);
+	}
+
+	@Test
+	public void iteratorIsASnapshot() {
+		SortedUUIDMap<Integer> map = new SortedUUIDMap<Integer>();
+		TreeMap<UUID, Integer> expected = new TreeMap<UUID, Integer>();
+		int n = 0;
+		for (UUID u : keys(new Random(29), 100))
+			put(map, expected, u, n++);
+		Iterator<Map.Entry<UUID, Integer>> it = map.entrySet().iterator();
+		map.clear();
+		assertTrue("Empty after clear.", map.isEmpty());
+		List<UUID> seen = new ArrayList<UUID>();
+		while (it.hasNext()) {
+			UUID k = it.next().getKey();
+			seen.add(k);
+			map.put(k, 0);
+		}
+		assertEquals(new ArrayList<UUID>(expected.keySet()), seen);
+		it = map.entrySet().iterator();
+		it.next();
+		it.remove();
+		assertEquals(99, map.size());
+		assertFalse("Removed key.", map.containsKey(seen.get(0)));
+		assertFalse("Remove with the wrong value.", map.remove(seen.get(1), 1));
+		assertTrue(map.remove(seen.get(1), 0));
+	}
+
+	@Test
+	public void concurrentReadersAndWritersStayConsistent() throws InterruptedException {
+		SortedUUIDMap<UUID> map = new SortedUUIDMap<UUID>();
+		List<UUID> stable = keys(new Random(31), 200);
+		for (UUID u : stable)
+			map.put(u, u);
+		AtomicReference<String> failure = new AtomicReference<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			int seed = t;
+			Thread writer = new Thread(() -> {
+				List<UUID> own = keys(new Random(1000 + seed), 2000);
+				for (UUID u : own)
+					map.put(u, u);
+				for (UUID u : own)
+					if (map.remove(u) != u)
+						failure.compareAndSet(null, "Own key "+u+" missing.");
+			});
+			Thread reader = new Thread(() -> {
+				Random r = new Random(2000 + seed);
+				for (int i = 0; i < 20000; i++) {
+					UUID s = stable.get(r.nextInt(stable.size()));
+					if (map.get(s) != s)
+						failure.compareAndSet(null, "Stable key "+s+" missing.");
+					if (i % 1000 == 0) {
+						UUID last = null;
+						for (UUID k : map.keySet()) {
+							if (last != null && last.compareTo(k) >= 0)
+								failure.compareAndSet(null, "Iterated out of order.");
+							last = k;
+						}
+					}
+				}
+			});
+			threads.add(writer);
+			threads.add(reader);
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assertNull(failure.get(), failure.get());
+		assertEquals(stable.size(), map.size());
+		for (UUID u : stable)
+			assertSame(u, map.get(u));
+	}
+
+	private static void put(SortedUUIDMap<Integer> map, TreeMap<UUID, Integer> expected, UUID k, int v) {
+		assertEquals("put "+k, expected.put(k, v), map.put(k, v));
+	}
+
+	private static List<UUID> keys(Random r, int n) {
+		List<UUID> keys = new ArrayList<UUID>(n);
+		for (int i = 0; i < n; i++)
+			keys.add(new UUID(r.nextLong(), r.nextLong()));
+		return keys;
+	}
+
+	private static <V> void assertSameEntries(TreeMap<UUID, V> expected, SortedUUIDMap<V> map) {
+		assertEquals("Size.", expected.size(), map.size());
+		//TreeMap iterates in UUID order, so the lists only match if the map does too
+		assertEquals("Entries in UUID order.", new ArrayList<Map.Entry<UUID, V>>(expected.entrySet()), new ArrayList<Map.Entry<UUID, V>>(map.entrySet()));
+	}
+}
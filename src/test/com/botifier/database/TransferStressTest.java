@@ -0,0 +1,177 @@
+package com.botifier.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.codecs.DecoderContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.botifier.database.Database.DatabaseObject;
+import com.botifier.database.Database.DatabaseUser;
+import com.botifier.database.main.Config;
+
+/**
+ * Many threads transferring the same items between the same users at random. Afterwards every item
+ * must be owned by exactly one user, that user must be the item's owner, and no item may be gone.
+ * Also many threads loading the same items for the first time, which must all get the same instance.
+ * The database is used without start(), so nothing reads config.cfg or touches the working directory.
+ */
+public class TransferStressTest {
+
+	private static final int USERS = 16;
+	private static final int ITEMS = 2000;
+	private static final int THREADS = 16;
+	private static final int TRANSFERS_PER_THREAD = 20000;
+	private static final int COLD_ITEMS = 4000;
+	private static final int LOADERS = 8;
+
+	private Database db;
+	private DatabaseUser[] users;
+	private List<DatabaseObject<?>> items;
+
+	@Before
+	public void setup() {
+		Config.useMongo = false;
+		Config.journalEnabled = false;
+		Config.writeBehindEnabled = false;
+		Config.item_limit = Long.MAX_VALUE;
+		db = new Database();
+		users = new DatabaseUser[USERS];
+		for (int i = 0; i < USERS; i++)
+			users[i] = db.createUser("stress"+i);
+		items = new ArrayList<DatabaseObject<?>>(ITEMS);
+		for (int i = 0; i < ITEMS; i++)
+			items.add(db.createItem("item"+i, users[i % USERS]));
+	}
+
+	@Test(timeout = 120000)
+	public void randomTransfersNeverDuplicateOrLoseItems() throws Exception {
+		AtomicInteger transferred = new AtomicInteger();
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			threads[t] = new Thread(() -> {
+				ThreadLocalRandom r = ThreadLocalRandom.current();
+				try {
+					start.await();
+					for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+						DatabaseObject<?> item = items.get(r.nextInt(ITEMS));
+						//Mostly from the owner as last seen, which other threads race to change, sometimes from anyone
+						DatabaseUser from = r.nextInt(4) == 0 ? users[r.nextInt(USERS)] : item.getOwner();
+						DatabaseUser to = users[r.nextInt(USERS)];
+						if (from != null && from.transferObject(to, item))
+							transferred.incrementAndGet();
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}, "TransferStress-"+t);
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread t : threads)
+			t.join();
+		if (failure.get() != null)
+			throw new AssertionError("Transfer thread failed.", failure.get());
+		assertTrue("No transfer succeeded.", transferred.get() > 0);
+
+		int owned = 0;
+		for (DatabaseUser u : users)
+			owned += u.getOwnedItems().size();
+		assertEquals("Items owned in total.", ITEMS, owned);
+		assertEquals("Items loaded.", ITEMS, db.getLoadedItems().size());
+		for (DatabaseObject<?> item : items) {
+			UUID id = item.getUUID();
+			DatabaseUser holder = null;
+			int holders = 0;
+			for (DatabaseUser u : users) {
+				if (u.hasObject(id)) {
+					holder = u;
+					holders++;
+				}
+			}
+			assertEquals("Users holding item "+id+".", 1, holders);
+			assertSame("Owner of item "+id+".", holder, item.getOwner());
+			assertSame("Loaded item "+id+".", item, db.getLoadedItems().get(id));
+		}
+	}
+
+	@Test(timeout = 120000)
+	public void concurrentColdLoadsShareOneInstance() throws Exception {
+		//Documents the way MongoDB returns them, decoded by the codec like getItem does on a miss
+		DatabaseObjectCodec codec = new DatabaseObjectCodec(db, new DatabaseObjectAdapter(db));
+		List<BsonDocument> docs = new ArrayList<BsonDocument>(COLD_ITEMS);
+		for (int i = 0; i < COLD_ITEMS; i++) {
+			BsonDocument doc = new BsonDocument("_id", new BsonString(UUID.randomUUID().toString()));
+			doc.put("owner", new BsonString(users[i % USERS].getUUID().toString()));
+			doc.put("last_modification", new BsonInt64(i));
+			doc.put("info_type", new BsonString(String.class.getName()));
+			doc.put("info", new BsonString("cold"+i));
+			doc.put("schema", new BsonInt32(DatabaseObjectCodec.SCHEMA_VERSION));
+			docs.add(doc);
+		}
+		ConcurrentHashMap<UUID, Set<DatabaseObject<?>>> seen = new ConcurrentHashMap<UUID, Set<DatabaseObject<?>>>();
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[LOADERS];
+		for (int t = 0; t < LOADERS; t++) {
+			threads[t] = new Thread(() -> {
+				try {
+					start.await();
+					//Same order on every thread, so they keep missing on the same item at the same time
+					for (BsonDocument doc : docs) {
+						DatabaseObject<?> d = codec.decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+						seen.computeIfAbsent(d.getUUID(), k -> Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<DatabaseObject<?>, Boolean>()))).add(d);
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			}, "ColdLoad-"+t);
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread t : threads)
+			t.join();
+		if (failure.get() != null)
+			throw new AssertionError("Loading thread failed.", failure.get());
+
+		assertEquals("Items loaded.", COLD_ITEMS, seen.size());
+		for (int i = 0; i < COLD_ITEMS; i++) {
+			UUID id = UUID.fromString(docs.get(i).getString("_id").getValue());
+			DatabaseUser owner = users[i % USERS];
+			Set<DatabaseObject<?>> instances = seen.get(id);
+			assertEquals("Instances handed out for item "+id+".", 1, instances.size());
+			DatabaseObject<?> item = instances.iterator().next();
+			assertTrue("Item "+id+" exists.", item.exists());
+			assertSame("Loaded item "+id+".", item, db.getLoadedItems().get(id));
+			assertSame("Owner of item "+id+".", owner, item.getOwner());
+			assertSame("Item "+id+" held by its owner.", item, owner.objects().get(id));
+		}
+		int owned = 0;
+		for (DatabaseUser u : users) {
+			owned += u.getOwnedItems().size();
+			assertEquals("Indexed items of "+u.getName()+".", u.getOwnedItems().size(), db.countItemsByOwner(u.getUUID()));
+		}
+		assertEquals("Items owned in total.", ITEMS + COLD_ITEMS, owned);
+	}
+}
@@ -0,0 +1,187 @@
+package com.botifier.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks UUIDMap against a HashMap, through enough entries that every segment grows several times
+ */
+public class UUIDMapTest {
+
+	private static final UUID ZERO = new UUID(0L, 0L);
+
+	@Test
+	public void matchesHashMapAcrossResizes() {
+		Random r = new Random(17);
+		UUIDMap<Integer> map = new UUIDMap<Integer>();
+		Map<UUID, Integer> expected = new HashMap<UUID, Integer>();
+		//A pool small enough that removes and replaces hit, large enough to grow every segment
+		List<UUID> pool = keys(r, 20000);
+		pool.add(ZERO);
+		for (int op = 0; op < 200000; op++) {
+			UUID k = pool.get(r.nextInt(pool.size()));
+			Integer v = op;
+			switch (r.nextInt(6)) {
+			case 0:
+			case 1:
+				assertEquals("put "+k, expected.put(k, v), map.put(k, v));
+				break;
+			case 2:
+				assertEquals("putIfAbsent "+k, expected.putIfAbsent(k, v), map.putIfAbsent(k, v));
+				break;
+			case 3:
+				assertEquals("remove "+k, expected.remove(k), map.remove(k));
+				break;
+			case 4:
+				assertEquals("replace "+k, expected.replace(k, v), map.replace(k, v));
+				break;
+			default:
+				assertEquals("get "+k, expected.get(k), map.get(k));
+				assertEquals("get by halves "+k, expected.get(k), map.get(k.getMostSignificantBits(), k.getLeastSignificantBits()));
+			}
+			if (op % 50000 == 0)
+				assertSameContents(expected, map);
+		}
+		assertSameContents(expected, map);
+		map.clear();
+		assertTrue("Empty after clear.", map.isEmpty());
+		assertNull("Zero key after clear.", map.get(ZERO));
+	}
+
+	@Test
+	public void zeroKeyIsNotAFreeSlot() {
+		UUIDMap<String> map = new UUIDMap<String>();
+		assertFalse("Zero key before put.", map.containsKey(ZERO));
+		assertNull(map.put(ZERO, "zero"));
+		//Grows the segment holding it and every other one
+		List<UUID> others = keys(new Random(3), 5000);
+		for (UUID u : others)
+			map.put(u, u.toString());
+		assertEquals("zero", map.get(ZERO));
+		assertEquals(others.size() + 1, map.size());
+		assertTrue("Zero key iterated.", map.containsKey(ZERO) && copy(map).containsKey(ZERO));
+		//Removing others shifts runs back over the zero key's slot
+		for (UUID u : others.subList(0, 4000))
+			assertEquals(u.toString(), map.remove(u));
+		assertEquals("zero", map.get(ZERO));
+		assertFalse("Remove with the wrong value.", map.remove(ZERO, "other"));
+		assertTrue(map.remove(ZERO, "zero"));
+		assertNull(map.get(ZERO));
+		assertEquals(1000, map.size());
+		for (UUID u : others.subList(4000, 5000))
+			assertEquals(u.toString(), map.get(u));
+	}
+
+	@Test
+	public void iteratorRemovesWhatItReturned() {
+		UUIDMap<Integer> map = new UUIDMap<Integer>();
+		Map<UUID, Integer> expected = new HashMap<UUID, Integer>();
+		int n = 0;
+		for (UUID u : keys(new Random(5), 3000)) {
+			map.put(u, n);
+			expected.put(u, n++);
+		}
+		for (Iterator<Map.Entry<UUID, Integer>> it = map.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<UUID, Integer> e = it.next();
+			if (e.getValue() % 2 == 0) {
+				it.remove();
+				expected.remove(e.getKey());
+			}
+		}
+		assertSameContents(expected, map);
+		int values = 0;
+		for (Integer v : map.values()) {
+			assertTrue("Odd value left.", v % 2 == 1);
+			values++;
+		}
+		assertEquals(expected.size(), values);
+	}
+
+	@Test
+	public void readersSeeStableKeysWhileSegmentsGrowAndShrink() throws InterruptedException {
+		UUIDMap<UUID> map = new UUIDMap<UUID>();
+		List<UUID> stable = keys(new Random(7), 500);
+		stable.add(ZERO);
+		for (UUID u : stable)
+			map.put(u, u);
+		List<UUID> churn = keys(new Random(11), 50000);
+		//Index of the last churn key put, readers may look anything up to it
+		AtomicInteger published = new AtomicInteger(-1);
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<String> failure = new AtomicReference<String>();
+		int readers = 4;
+		CountDownLatch started = new CountDownLatch(readers);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < readers; t++) {
+			Random r = new Random(100 + t);
+			Thread reader = new Thread(() -> {
+				started.countDown();
+				while (!done.get() && failure.get() == null) {
+					UUID s = stable.get(r.nextInt(stable.size()));
+					if (map.get(s) != s)
+						failure.compareAndSet(null, "Stable key "+s+" missing.");
+					int p = published.get();
+					if (p >= 0) {
+						UUID c = churn.get(r.nextInt(p + 1));
+						UUID v = map.get(c);
+						//Only the writer removes churn keys, and only after every one was put
+						if (v != c && p < churn.size() - 1)
+							failure.compareAndSet(null, "Published key "+c+" missing.");
+					}
+				}
+			});
+			threads.add(reader);
+			reader.start();
+		}
+		started.await();
+		for (int i = 0; i < churn.size(); i++) {
+			map.put(churn.get(i), churn.get(i));
+			published.set(i);
+		}
+		for (UUID c : churn)
+			map.remove(c);
+		done.set(true);
+		for (Thread t : threads)
+			t.join();
+		assertNull(failure.get(), failure.get());
+		assertEquals(stable.size(), map.size());
+		for (UUID u : stable)
+			assertSame(u, map.get(u));
+	}
+
+	private static List<UUID> keys(Random r, int n) {
+		List<UUID> keys = new ArrayList<UUID>(n);
+		for (int i = 0; i < n; i++)
+			keys.add(new UUID(r.nextLong(), r.nextLong()));
+		return keys;
+	}
+
+	private static <V> Map<UUID, V> copy(UUIDMap<V> map) {
+		Map<UUID, V> copy = new HashMap<UUID, V>();
+		for (Map.Entry<UUID, V> e : map.entrySet())
+			assertNull("Key iterated twice.", copy.put(e.getKey(), e.getValue()));
+		return copy;
+	}
+
+	private static <V> void assertSameContents(Map<UUID, V> expected, UUIDMap<V> map) {
+		assertEquals("Size.", expected.size(), map.size());
+		assertEquals("Iterated entries.", expected, copy(map));
+	}
+}